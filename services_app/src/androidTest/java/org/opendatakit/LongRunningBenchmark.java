@@ -0,0 +1,16 @@
+package org.opendatakit;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks instrumented benchmarks that take too long for the default
+ * connectedAndroidTest run. The build excludes them unless -PrunBenchmarks is
+ * given.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE, ElementType.METHOD })
+public @interface LongRunningBenchmark {
+}
@@ -0,0 +1,392 @@
+package org.opendatakit.services.database.utilities;
+
+import android.Manifest;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.opendatakit.LongRunningBenchmark;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.utilities.LocalizationUtils;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * On-device benchmarks of the ODKDatabaseImplUtils hot paths against tables of
+ * 1,000, 100,000 and 1,000,000 synced rows:
+ * <ul>
+ * <li>insertRowWithId and updateRowWithId as an ordinary user</li>
+ * <li>rawQuery with the row-level access filters of an ordinary user</li>
+ * <li>privilegedPerhapsPlaceRowIntoConflictWithId with a changed server row</li>
+ * <li>getTableHealth</li>
+ * <li>query, which materializes the rows through buildBaseTable</li>
+ * </ul>
+ * The writes run inside a transaction that is rolled back (outside of the
+ * timed region) every {@link #ROLLBACK_INTERVAL} iterations, so that the
+ * table stays at its nominal size. Queries read a page of {@link #PAGE_SIZE}
+ * rows.
+ * <p>
+ * Each table is populated once with a single INSERT ... SELECT and shared by
+ * all of the benchmarks of that size. AndroidX Benchmark writes the results
+ * as JSON to the device, and the build pulls them into
+ * build/outputs/connected_android_test_additional_output.
+ * <p>
+ * Populating the 1,000,000 row tables takes a long time, so the suite is
+ * excluded from the default instrumented test run. Run it with e.g.
+ * <pre>
+ * ./gradlew connectedBasicDebugAndroidTest -PrunBenchmarks \
+ *   -Pandroid.testInstrumentationRunnerArguments.class=org.opendatakit.services.database.utilities.ODKDatabaseImplUtilsBenchmarkTest
+ * </pre>
+ * AndroidX Benchmark fails when it is run on a debuggable build or an
+ * emulator; to take (less reliable) measurements there anyway, add e.g.
+ * <pre>
+ *   -Pandroid.testInstrumentationRunnerArguments.androidx.benchmark.suppressErrors=DEBUGGABLE,EMULATOR
+ * </pre>
+ */
+@LargeTest
+@LongRunningBenchmark
+@RunWith(Parameterized.class)
+public class ODKDatabaseImplUtilsBenchmarkTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String TABLE_ID_PREFIX = "benchmark_";
+  private static final int[] ROW_COUNTS = { 1000, 100000, 1000000 };
+  private static final int ROLLBACK_INTERVAL = 500;
+  private static final int PAGE_SIZE = 1000;
+
+  private static final String ACTIVE_USER = "mailto:bench@example.com";
+  private static final String OTHER_USER = "mailto:other@example.com";
+  private static final String LOCALE = "en_US";
+
+  /**
+   * The rows that {@link #populate()} leaves visible to and owned by the
+   * active user repeat with this period, at these offsets.
+   */
+  private static final int VISIBLE_ROW_PERIOD = 30;
+  private static final int[] VISIBLE_ROW_OFFSETS;
+
+  static {
+    List<Integer> offsets = new ArrayList<Integer>();
+    for (int n = 0; n < VISIBLE_ROW_PERIOD; ++n) {
+      if (isVisibleToActiveUser(n)) {
+        offsets.add(n);
+      }
+    }
+    VISIBLE_ROW_OFFSETS = new int[offsets.size()];
+    for (int i = 0; i < VISIBLE_ROW_OFFSETS.length; ++i) {
+      VISIBLE_ROW_OFFSETS[i] = offsets.get(i);
+    }
+  }
+
+  private static final DbHandle uniqueKey = new DbHandle(
+      ODKDatabaseImplUtilsBenchmarkTest.class.getSimpleName()
+          + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+  @Parameterized.Parameters(name = "{0} rows")
+  public static Collection<Object[]> rowCounts() {
+    List<Object[]> params = new ArrayList<Object[]>();
+    for (int rows : ROW_COUNTS) {
+      params.add(new Object[] { rows });
+    }
+    return params;
+  }
+
+  @Rule
+  public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private final int rows;
+  private final String tableId;
+  private OdkConnectionInterface db;
+  private OrderedColumns orderedColumns;
+
+  public ODKDatabaseImplUtilsBenchmarkTest(int rows) {
+    this.rows = rows;
+    this.tableId = TABLE_ID_PREFIX + rows;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    AndroidConnectFactory.configure();
+
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(APPNAME, uniqueKey);
+
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("answer", "answer", ElementDataType.integer.name(), "[]"));
+    columns.add(new Column("name", "name", ElementDataType.string.name(), "[]"));
+    columns.add(new Column("score", "score", ElementDataType.number.name(), "[]"));
+    orderedColumns = ODKDatabaseImplUtils.get().createOrOpenTableWithColumns(db, tableId, columns);
+
+    if (countRows() != rows) {
+      populate();
+    }
+    assertEquals(rows, countRows());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      db.releaseReference();
+    }
+  }
+
+  @AfterClass
+  public static void deleteTables() throws Exception {
+    OdkConnectionInterface db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(APPNAME, uniqueKey);
+    try {
+      for (int rows : ROW_COUNTS) {
+        ODKDatabaseImplUtils.get().deleteTableAndAllData(db, TABLE_ID_PREFIX + rows);
+      }
+    } finally {
+      db.releaseReference();
+    }
+  }
+
+  @Test
+  public void insertRowWithId() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    int i = 0;
+    db.beginTransactionNonExclusive();
+    try {
+      while (state.keepRunning()) {
+        ContentValues cv = userValues(rows + i);
+        ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cv,
+            LocalizationUtils.genUUID(), ACTIVE_USER, RoleConsts.USER_ROLES_LIST, LOCALE);
+        rollbackPeriodically(state, ++i);
+      }
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @Test
+  public void updateRowWithId() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    int i = 0;
+    db.beginTransactionNonExclusive();
+    try {
+      while (state.keepRunning()) {
+        ContentValues cv = userValues(rows + i);
+        ODKDatabaseImplUtils.get().updateRowWithId(db, tableId, orderedColumns, cv,
+            visibleRowId(i), ACTIVE_USER, RoleConsts.USER_ROLES_LIST, LOCALE);
+        rollbackPeriodically(state, ++i);
+      }
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @Test
+  public void rawQueryWithAccessFilters() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
+        .getAccessContext(db, tableId, ACTIVE_USER, RoleConsts.USER_ROLES_LIST);
+    String sql = "SELECT * FROM \"" + tableId + "\" WHERE \"answer\" >= ?";
+    Object[] args = { rows / 2 };
+    QueryBounds bounds = new QueryBounds(PAGE_SIZE, 0);
+    int count = 0;
+    while (state.keepRunning()) {
+      Cursor c = ODKDatabaseImplUtils.get().rawQuery(db, sql, args, bounds, accessContext);
+      try {
+        count = 0;
+        while (c.moveToNext()) {
+          ++count;
+        }
+      } finally {
+        c.close();
+      }
+    }
+    assertTrue(count > 0);
+  }
+
+  @Test
+  public void privilegedPerhapsPlaceRowIntoConflictWithId() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    int i = 0;
+    db.beginTransactionNonExclusive();
+    try {
+      while (state.keepRunning()) {
+        String rowId = visibleRowId(i);
+        ContentValues serverValues = userValues(-i);
+        serverValues.put(DataTableColumns.ID, rowId);
+        serverValues.put(DataTableColumns.ROW_ETAG, "server etag " + i);
+        serverValues.put(DataTableColumns.SYNC_STATE, SyncState.changed.name());
+        serverValues.putNull(DataTableColumns.CONFLICT_TYPE);
+        serverValues.put(DataTableColumns.DEFAULT_ACCESS, RowFilterScope.Access.FULL.name());
+        serverValues.put(DataTableColumns.ROW_OWNER, ACTIVE_USER);
+        serverValues.putNull(DataTableColumns.GROUP_READ_ONLY);
+        serverValues.putNull(DataTableColumns.GROUP_MODIFY);
+        serverValues.putNull(DataTableColumns.GROUP_PRIVILEGED);
+        serverValues.put(DataTableColumns.FORM_ID, "server_form");
+        serverValues.put(DataTableColumns.LOCALE, LOCALE);
+        serverValues.put(DataTableColumns.SAVEPOINT_TYPE, SavepointTypeManipulator.complete());
+        serverValues.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
+            TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(), Locale.ROOT));
+        serverValues.put(DataTableColumns.SAVEPOINT_CREATOR, OTHER_USER);
+        ODKDatabaseImplUtils.get().privilegedPerhapsPlaceRowIntoConflictWithId(db, tableId,
+            orderedColumns, serverValues, rowId, ACTIVE_USER, RoleConsts.USER_ROLES_LIST, LOCALE);
+        rollbackPeriodically(state, ++i);
+      }
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @Test
+  public void getTableHealth() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    int health = 0;
+    while (state.keepRunning()) {
+      health = ODKDatabaseImplUtils.get().getTableHealth(db, tableId);
+    }
+    assertTrue(health >= 0);
+  }
+
+  @Test
+  public void queryBuildBaseTable() throws Exception {
+    final BenchmarkState state = benchmarkRule.getState();
+    ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
+        .getAccessContext(db, tableId, ACTIVE_USER, RoleConsts.USER_ROLES_LIST);
+    String sql = "SELECT * FROM \"" + tableId + "\"";
+    QueryBounds bounds = new QueryBounds(PAGE_SIZE, 0);
+    BaseTable table = null;
+    while (state.keepRunning()) {
+      table = ODKDatabaseImplUtils.get().query(db, tableId, sql, null, bounds, accessContext);
+    }
+    assertEquals(Math.min(rows, PAGE_SIZE), table.getNumberOfRows());
+  }
+
+  /**
+   * Discard the rows written so far, outside of the timed region.
+   */
+  private void rollbackPeriodically(BenchmarkState state, int iteration) {
+    if (iteration % ROLLBACK_INTERVAL == 0) {
+      state.pauseTiming();
+      db.endTransaction();
+      db.beginTransactionNonExclusive();
+      state.resumeTiming();
+    }
+  }
+
+  private static boolean isVisibleToActiveUser(int n) {
+    return n % 10 != 0 && n % 3 != 0;
+  }
+
+  /**
+   * @return the id of the i-th row that the active user owns and can see,
+   * wrapping around at the end of the table.
+   */
+  private String visibleRowId(int i) {
+    int visibleRows = (rows / VISIBLE_ROW_PERIOD) * VISIBLE_ROW_OFFSETS.length;
+    int k = i % visibleRows;
+    int n = (k / VISIBLE_ROW_OFFSETS.length) * VISIBLE_ROW_PERIOD
+        + VISIBLE_ROW_OFFSETS[k % VISIBLE_ROW_OFFSETS.length];
+    return "uuid:benchmark-" + n;
+  }
+
+  private static ContentValues userValues(int n) {
+    ContentValues cv = new ContentValues();
+    cv.put("answer", n);
+    cv.put("name", "name " + n);
+    cv.put("score", n * 0.5);
+    return cv;
+  }
+
+  private int countRows() {
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM \"" + tableId + "\"", null);
+    try {
+      c.moveToFirst();
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Fill the table with synced rows in one statement. Every 10th row is
+   * hidden, and every 3rd row is owned by another user, so that the access
+   * filters have rows to exclude.
+   */
+  private void populate() {
+    List<String> adminColumns = Arrays.asList(DataTableColumns.ID, DataTableColumns.ROW_ETAG,
+        DataTableColumns.SYNC_STATE, DataTableColumns.CONFLICT_TYPE,
+        DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+        DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+        DataTableColumns.GROUP_PRIVILEGED, DataTableColumns.FORM_ID, DataTableColumns.LOCALE,
+        DataTableColumns.SAVEPOINT_TYPE, DataTableColumns.SAVEPOINT_TIMESTAMP,
+        DataTableColumns.SAVEPOINT_CREATOR);
+
+    StringBuilder b = new StringBuilder();
+    b.append("WITH RECURSIVE seq(n) AS (SELECT 0 UNION ALL SELECT n + 1 FROM seq WHERE n < ?)")
+        .append(" INSERT INTO \"").append(tableId).append("\" (");
+    for (String column : adminColumns) {
+      b.append("\"").append(column).append("\", ");
+    }
+    b.append("\"answer\", \"name\", \"score\") SELECT")
+        .append(" 'uuid:benchmark-' || n, 'etag ' || n, ?, NULL,")
+        .append(" CASE WHEN n % 10 = 0 THEN ? ELSE ? END,")
+        .append(" CASE WHEN n % 3 = 0 THEN ? ELSE ? END,")
+        .append(" NULL, NULL, NULL, ?, ?, ?, ?, ?,")
+        .append(" n, 'name ' || n, n * 0.5 FROM seq");
+    Object[] bindArgs = { rows - 1, SyncState.synced.name(),
+        RowFilterScope.Access.HIDDEN.name(), RowFilterScope.Access.FULL.name(),
+        OTHER_USER, ACTIVE_USER, tableId, LOCALE, SavepointTypeManipulator.complete(),
+        TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(), Locale.ROOT),
+        ACTIVE_USER };
+
+    db.beginTransactionNonExclusive();
+    try {
+      db.execSQL("DELETE FROM \"" + tableId + "\"", null);
+      db.execSQL(b.toString(), bindArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.TestConsts;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Verifies that ProviderQueryCache stops serving a result once another
+ * connection commits a change to the database. The writes of the
+ * :databaseservice and :sync processes are made on connections of their own,
+ * which PRAGMA data_version does not tell apart from the writer used here.
+ */
+public class ProviderQueryCacheTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String TABLE = "provider_query_cache_test";
+  private static final Uri URI = Uri.parse("content://org.opendatakit.test/" + TABLE);
+
+  private static final DbHandle writerKey = new DbHandle(
+      ProviderQueryCacheTest.class.getSimpleName()
+          + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+  private OdkConnectionInterface db;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    AndroidConnectFactory.configure();
+
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(APPNAME, writerKey);
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (x INTEGER)", null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      try {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE, null);
+      } finally {
+        db.releaseReference();
+      }
+    }
+  }
+
+  private void write() {
+    db.execSQL("INSERT INTO " + TABLE + " (x) VALUES (?)", new Object[] { 1 });
+  }
+
+  private static Cursor result() {
+    MatrixCursor c = new MatrixCursor(new String[] { "x" });
+    c.addRow(new Object[] { 1L });
+    return c;
+  }
+
+  @Test
+  public void testGenerationChangesWhenAnotherConnectionCommits() {
+    long before = ProviderQueryCache.getGeneration(APPNAME);
+    assertNotEquals(ProviderQueryCache.NO_GENERATION, before);
+    assertEquals(before, ProviderQueryCache.getGeneration(APPNAME));
+
+    write();
+    assertNotEquals(before, ProviderQueryCache.getGeneration(APPNAME));
+
+    db.beginTransactionNonExclusive();
+    try {
+      write();
+      long uncommitted = ProviderQueryCache.getGeneration(APPNAME);
+      db.setTransactionSuccessful();
+      db.endTransaction();
+      assertNotEquals(uncommitted, ProviderQueryCache.getGeneration(APPNAME));
+    } finally {
+      if (db.inTransaction()) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  @Test
+  public void testEntryFilledBeforeACommitIsNotServed() {
+    String key = ProviderQueryCache.key(URI, null, null, null, null, "testEntry");
+    long generation = ProviderQueryCache.getGeneration(APPNAME);
+    Cursor c = ProviderQueryCache.put(APPNAME, URI, key, generation, result());
+    assertEquals(1, c.getCount());
+    c.close();
+
+    c = ProviderQueryCache.get(APPNAME, key);
+    assertNotNull(c);
+    assertEquals(1, c.getCount());
+    c.close();
+
+    write();
+    assertNull(ProviderQueryCache.get(APPNAME, key));
+  }
+
+  @Test
+  public void testResultOfAQueryRacingACommitIsNotCached() {
+    String key = ProviderQueryCache.key(URI, null, null, null, null, "testRace");
+    long generation = ProviderQueryCache.getGeneration(APPNAME);
+    write();
+    Cursor c = ProviderQueryCache.put(APPNAME, URI, key, generation, result());
+    assertEquals(1, c.getCount());
+    c.close();
+
+    assertNull(ProviderQueryCache.get(APPNAME, key));
+  }
+}
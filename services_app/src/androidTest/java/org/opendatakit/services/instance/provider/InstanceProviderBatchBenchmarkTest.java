@@ -0,0 +1,170 @@
+package org.opendatakit.services.instance.provider;
+
+import android.Manifest;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.LongRunningBenchmark;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.provider.InstanceProviderAPI;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.utilities.LocalizationUtils;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Marks 1,000 instances as submitted through the InstanceProvider, once with
+ * an update() per instance (a connection and a transaction each) and once
+ * with a single applyBatch() (one connection and one transaction).
+ * <p>
+ * Excluded from the default instrumented test run; run it with e.g.
+ * <pre>
+ * ./gradlew connectedBasicDebugAndroidTest -PrunBenchmarks \
+ *   -Pandroid.testInstrumentationRunnerArguments.class=org.opendatakit.services.instance.provider.InstanceProviderBatchBenchmarkTest
+ * </pre>
+ */
+@LargeTest
+@LongRunningBenchmark
+public class InstanceProviderBatchBenchmarkTest {
+
+  private static final String TAG = "InstanceProviderBatchBenchmarkTest";
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String TABLE_ID = "batchBenchmark";
+  private static final int ROWS = 1000;
+
+  private static final DbHandle uniqueKey = new DbHandle(
+      InstanceProviderBatchBenchmarkTest.class.getSimpleName()
+          + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private OdkConnectionInterface db;
+  private Uri tableUri;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    AndroidConnectFactory.configure();
+
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(APPNAME, uniqueKey);
+
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("answer", "answer", ElementDataType.integer.name(), "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, TABLE_ID, columns);
+
+    db.beginTransactionNonExclusive();
+    try {
+      for (int i = 0; i < ROWS; ++i) {
+        ContentValues cv = new ContentValues();
+        cv.put("answer", i);
+        ODKDatabaseImplUtils.get().insertRowWithId(db, TABLE_ID, orderedColumns, cv,
+            LocalizationUtils.genUUID(), "anonymous", RoleConsts.ADMIN_ROLES_LIST, "en_US");
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    tableUri = Uri.withAppendedPath(Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI,
+        APPNAME), TABLE_ID);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, TABLE_ID);
+      db.releaseReference();
+    }
+  }
+
+  @Test
+  public void testUpdateVersusApplyBatch() throws Exception {
+    ContentResolver resolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    List<String> ids = getInstanceIds(resolver);
+    assertEquals(ROWS, ids.size());
+
+    long start = System.nanoTime();
+    for (String id : ids) {
+      ContentValues cv = new ContentValues();
+      cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
+      assertEquals(1, resolver.update(Uri.withAppendedPath(tableUri, id), cv, null, null));
+    }
+    long singleNanos = System.nanoTime() - start;
+    assertEquals(ROWS, countWithStatus(resolver, InstanceColumns.STATUS_SUBMISSION_FAILED));
+
+    ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    for (String id : ids) {
+      operations.add(ContentProviderOperation.newUpdate(Uri.withAppendedPath(tableUri, id))
+          .withValue(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED)
+          .build());
+    }
+    start = System.nanoTime();
+    ContentProviderResult[] results = resolver.applyBatch(InstanceProviderAPI.AUTHORITY,
+        operations);
+    long batchNanos = System.nanoTime() - start;
+    assertEquals(ROWS, results.length);
+    assertEquals(ROWS, countWithStatus(resolver, InstanceColumns.STATUS_SUBMITTED));
+
+    Log.i(TAG, ROWS + " updates: one per call " + (singleNanos / 1000000L) + " ms, applyBatch "
+        + (batchNanos / 1000000L) + " ms");
+  }
+
+  private List<String> getInstanceIds(ContentResolver resolver) {
+    List<String> ids = new ArrayList<String>();
+    Cursor c = resolver.query(tableUri, new String[] { InstanceColumns._ID }, null, null, null);
+    try {
+      while (c.moveToNext()) {
+        ids.add(c.getString(c.getColumnIndex(InstanceColumns._ID)));
+      }
+    } finally {
+      c.close();
+    }
+    return ids;
+  }
+
+  private int countWithStatus(ContentResolver resolver, String status) {
+    Cursor c = resolver.query(tableUri, new String[] { InstanceColumns._ID },
+        InstanceColumns.XML_PUBLISH_STATUS + "=?", new String[] { status }, null);
+    try {
+      return c.getCount();
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package org.opendatakit.services.legacy.logic;
+
+import android.Manifest;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.TestConsts;
+import org.opendatakit.httpclientandroidlib.impl.client.BasicCredentialsProvider;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.utilities.FileSet;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads submissions to a local stand-in for the OpenRosa /submission
+ * endpoint that records how many requests, connections and concurrent posts
+ * it sees.
+ */
+public class SubmissionUploadEngineTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final int MAX_CONCURRENT = 3;
+  private static final int SUBMISSIONS = 12;
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private StandInServer server;
+  private File instanceFile;
+
+  @Before
+  public void setUp() throws IOException {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    instanceFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+        "submission.xml");
+    OutputStream os = new FileOutputStream(instanceFile);
+    try {
+      os.write("<data id=\"test\"><answer>42</answer></data>".getBytes("UTF-8"));
+    } finally {
+      os.close();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+    instanceFile.delete();
+  }
+
+  private List<SubmissionUploadEngine.Result> uploadAll(int postStatus, int headStatus)
+      throws Exception {
+    server = new StandInServer(headStatus, postStatus);
+    URI u = URI.create("http://127.0.0.1:" + server.getPort() + "/submission");
+
+    SubmissionUploadEngine engine = new SubmissionUploadEngine(APPNAME, u.toString(), u,
+        "success", new BasicCredentialsProvider(), MAX_CONCURRENT);
+    List<SubmissionUploadEngine.Result> results = new ArrayList<SubmissionUploadEngine.Result>();
+    try {
+      for (int i = 0; i < SUBMISSIONS; ++i) {
+        FileSet fs = new FileSet(APPNAME);
+        fs.instanceFile = instanceFile;
+        engine.submit(Integer.toString(i), "uuid:" + i, fs);
+        SubmissionUploadEngine.Result r;
+        while ((r = engine.poll()) != null) {
+          results.add(r);
+        }
+      }
+      SubmissionUploadEngine.Result r;
+      while ((r = engine.take()) != null) {
+        results.add(r);
+      }
+      if (headStatus == 401) {
+        assertNotNull(engine.getAuthRequestingServer());
+      } else {
+        assertNull(engine.getAuthRequestingServer());
+      }
+    } finally {
+      engine.close();
+    }
+    assertEquals(SUBMISSIONS, results.size());
+    return results;
+  }
+
+  @Test
+  public void testConcurrentUploadsShareConnections() throws Exception {
+    List<SubmissionUploadEngine.Result> results = uploadAll(201, 204);
+
+    for (SubmissionUploadEngine.Result r : results) {
+      assertEquals(InstanceColumns.STATUS_SUBMITTED, r.status);
+      assertEquals("success", r.message);
+    }
+    assertEquals(1, server.heads.get());
+    assertEquals(SUBMISSIONS, server.posts.get());
+    assertEquals(MAX_CONCURRENT, server.peakConcurrentPosts.get());
+    // the HEAD and the posts are sent over the pooled keep-alive connections
+    assertTrue(server.connections.get() <= MAX_CONCURRENT);
+  }
+
+  @Test
+  public void testServerErrorFailsSubmission() throws Exception {
+    List<SubmissionUploadEngine.Result> results = uploadAll(500, 204);
+
+    for (SubmissionUploadEngine.Result r : results) {
+      assertEquals(InstanceColumns.STATUS_SUBMISSION_FAILED, r.status);
+      assertTrue(r.message.contains("(500)"));
+    }
+    assertEquals(SUBMISSIONS, server.posts.get());
+  }
+
+  @Test
+  public void testCredentialsRequestStopsUploads() throws Exception {
+    List<SubmissionUploadEngine.Result> results = uploadAll(201, 401);
+
+    for (SubmissionUploadEngine.Result r : results) {
+      assertNull(r.status);
+    }
+    assertEquals(1, server.heads.get());
+    assertEquals(0, server.posts.get());
+  }
+
+  /**
+   * Minimal HTTP/1.1 server with keep-alive. HEAD requests get headStatus;
+   * POST requests get postStatus, and the first MAX_CONCURRENT posts are held
+   * until all of them have arrived.
+   */
+  private static class StandInServer implements Runnable {
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger heads = new AtomicInteger();
+    final AtomicInteger posts = new AtomicInteger();
+    final AtomicInteger peakConcurrentPosts = new AtomicInteger();
+
+    private final AtomicInteger concurrentPosts = new AtomicInteger();
+    private final CountDownLatch firstPosts = new CountDownLatch(MAX_CONCURRENT);
+    private final int headStatus;
+    private final int postStatus;
+    private final ServerSocket serverSocket;
+
+    StandInServer(int headStatus, int postStatus) throws IOException {
+      this.headStatus = headStatus;
+      this.postStatus = postStatus;
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread t = new Thread(this, "stand-in-submission-server");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket s = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(s);
+            }
+          });
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    private void serve(Socket s) {
+      try {
+        InputStream is = s.getInputStream();
+        OutputStream os = s.getOutputStream();
+        String requestLine;
+        while ((requestLine = readLine(is)) != null) {
+          int contentLength = 0;
+          String header;
+          while ((header = readLine(is)) != null && header.length() != 0) {
+            if (header.toLowerCase(Locale.US).startsWith("content-length:")) {
+              contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+          }
+          for (int i = 0; i < contentLength; ++i) {
+            if (is.read() < 0) {
+              return;
+            }
+          }
+
+          String response;
+          if (requestLine.startsWith("HEAD ")) {
+            heads.incrementAndGet();
+            response = "HTTP/1.1 " + headStatus + " Status\r\n"
+                + "X-OpenRosa-Version: 1.0\r\n\r\n";
+          } else {
+            posts.incrementAndGet();
+            int concurrent = concurrentPosts.incrementAndGet();
+            int peak;
+            while ((peak = peakConcurrentPosts.get()) < concurrent
+                && !peakConcurrentPosts.compareAndSet(peak, concurrent)) {
+            }
+            firstPosts.countDown();
+            firstPosts.await(10, TimeUnit.SECONDS);
+            concurrentPosts.decrementAndGet();
+            response = "HTTP/1.1 " + postStatus + " Status\r\n"
+                + "Content-Length: 0\r\n\r\n";
+          }
+          os.write(response.getBytes("UTF-8"));
+          os.flush();
+        }
+      } catch (Exception e) {
+        // connection dropped
+      } finally {
+        try {
+          s.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = is.read()) >= 0) {
+        if (b == '\n') {
+          String str = line.toString("UTF-8");
+          return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+        }
+        line.write(b);
+      }
+      return (line.size() == 0) ? null : line.toString("UTF-8");
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package org.opendatakit.services.sync.service.logic;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.application.IToolAware;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.ODKServiceTestRule;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.services.R;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.sync.service.GlobalSyncNotificationManager;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.SyncProgressTracker;
+import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
+import org.opendatakit.sync.service.SyncAttachmentState;
+import org.opendatakit.sync.service.SyncOutcome;
+import org.opendatakit.sync.service.SyncOverallResult;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Verifies that ProcessRowDataPullServerUpdates pulls the changes to a table
+ * it synced before change set by change set from a {@link MockSyncServer},
+ * and that it pages through the updates instead only when the server does not
+ * provide change sets.
+ */
+public class ChangeSetPullTest {
+
+  private static final String APPNAME = "changesetpull";
+  private static final long SEED = 20201117L;
+
+  private static final int ROWS = 30;
+  private static final int CHANGED_ROWS = 5;
+
+  private Application application;
+  private MockSyncServer server;
+
+  @Rule
+  public final ODKServiceTestRule mServiceRule = new ODKServiceTestRule();
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule internetPermissionRule = GrantPermissionRule .grant(Manifest.permission.INTERNET);
+
+  private static final class GlobalSyncNotificationManagerStub implements
+      GlobalSyncNotificationManager {
+
+    @Override
+    public void startingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void stoppingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void updateNotification(String appName, String text, int maxProgress, int progress,
+                                   boolean indeterminateProgress) {
+
+    }
+
+    @Override
+    public void finalErrorNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void finalConflictNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void clearNotification(String appName, String title, String text) {
+
+    }
+
+    @Override
+    public void clearVerificationNotification(String appName, String title, String text) {
+
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    application = InstrumentationRegistry.getInstrumentation().newApplication(this.getClass()
+        .getClassLoader(), "org.opendatakit.services.application.Services",
+        InstrumentationRegistry.getTargetContext());
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    server = new MockSyncServer(APPNAME);
+
+    Context context = InstrumentationRegistry.getTargetContext();
+    PropertiesSingleton props = CommonToolProperties.get(context, APPNAME);
+    Map<String,String> properties = new HashMap<String,String>();
+    properties.put(CommonToolProperties.KEY_SYNC_SERVER_URL, server.getBaseUrl());
+    properties.put(CommonToolProperties.KEY_AUTHENTICATION_TYPE,
+        context.getString(R.string.credential_type_none));
+    properties.put(CommonToolProperties.KEY_USERNAME, "");
+    properties.put(CommonToolProperties.KEY_PASSWORD, "");
+    properties.put(CommonToolProperties.KEY_DEFAULT_GROUP, "");
+    properties.put(CommonToolProperties.KEY_ROLES_LIST, "");
+    properties.put(CommonToolProperties.KEY_USERS_LIST, "");
+    props.setProperties(properties);
+
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    resetDevice();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  private void resetDevice() throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      for (String tableId : sc.getDatabaseService().getAllTableIds(APPNAME, db)) {
+        sc.getDatabaseService().deleteTableAndAllData(APPNAME, db, tableId);
+      }
+    } finally {
+      sc.releaseDatabase(db);
+    }
+    FileUtils.deleteQuietly(new File(ODKFileUtils.getAssetsFolder(APPNAME)));
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+  }
+
+  private SyncExecutionContext newSyncExecutionContext(SyncOverallResult syncResult) {
+    Context context = InstrumentationRegistry.getTargetContext();
+    SyncProgressTracker syncProg = new SyncProgressTracker(context,
+        new GlobalSyncNotificationManagerStub(), APPNAME);
+    String verCodeStr = ((IToolAware) application).getVersionCodeString();
+    return new SyncExecutionContext(context, verCodeStr, APPNAME, syncProg, syncResult);
+  }
+
+  /**
+   * Pull everything from the server, as AppSynchronizer does, with the journal
+   * reopened from the database as it would be after a restart.
+   *
+   * @return the outcome of the table's data sync
+   */
+  private SyncOutcome sync(String tableId) throws Exception {
+    SyncOverallResult syncResult = new SyncOverallResult();
+    SyncExecutionContext sc = newSyncExecutionContext(syncResult);
+    sc.setSynchronizer(SynchronizerFactory.create(sc));
+    sc.setSyncJournal(SyncJournal.open(sc));
+    List<TableResource> tables = new ProcessAppAndTableLevelChanges(sc)
+        .synchronizeConfigurationAndContent(false);
+    assertEquals(SyncOutcome.SUCCESS, syncResult.getAppLevelSyncOutcome());
+    assertNotNull(tables);
+    new ProcessRowDataOrchestrateChanges(sc)
+        .synchronizeDataRowsAndAttachments(tables, SyncAttachmentState.SYNC);
+    return sc.getTableLevelResult(tableId).getSyncOutcome();
+  }
+
+  /**
+   * @return the number of local rows whose name has the given suffix
+   */
+  private int getLocalRowCount(String tableId, String nameSuffix) throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      OrderedColumns orderedColumns = sc.getDatabaseService()
+          .getUserDefinedColumns(APPNAME, db, tableId);
+      UserTable table = sc.getDatabaseService()
+          .privilegedSimpleQuery(APPNAME, db, tableId, orderedColumns, null, null, null, null,
+              null, null, null, null);
+      int count = 0;
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        TypedRow row = table.getRowAtIndex(i);
+        if (row.getRawStringByKey("name").endsWith(nameSuffix)) {
+          ++count;
+        }
+      }
+      return count;
+    } finally {
+      sc.releaseDatabase(db);
+    }
+  }
+
+  /**
+   * Sync the table once, then change some of its rows on the server.
+   *
+   * @return the tableId
+   */
+  private String syncThenChangeRows() throws Exception {
+    SyncDataSet dataSet = new SyncDataSet(1, ROWS, 0, 0, SEED);
+    dataSet.seed(server);
+    String tableId = SyncDataSet.tableId(0);
+    assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+    assertEquals(ROWS, getLocalRowCount(tableId, " revision 0"));
+
+    dataSet.mutate(server, CHANGED_ROWS);
+    server.resetCounters();
+    return tableId;
+  }
+
+  @Test
+  public void testChangesArePulledByChangeSet() throws Exception {
+    String tableId = syncThenChangeRows();
+
+    assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+    assertEquals(1, server.getServedCount(MockSyncServer.Endpoint.CHANGE_SETS));
+    assertEquals(1, server.getServedCount(MockSyncServer.Endpoint.CHANGE_SET_PAGE));
+    // no paging through the updates, during or after the change sets
+    assertEquals(0, server.getServedCount(MockSyncServer.Endpoint.ROW_PAGE));
+    assertEquals(CHANGED_ROWS, getLocalRowCount(tableId, " revision 1"));
+    assertEquals(ROWS - CHANGED_ROWS, getLocalRowCount(tableId, " revision 0"));
+
+    // the table is at the server's dataETag: nothing more to pull
+    server.resetCounters();
+    assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+    assertEquals(0, server.getServedCount(MockSyncServer.Endpoint.CHANGE_SET_PAGE));
+    assertEquals(0, server.getServedCount(MockSyncServer.Endpoint.ROW_PAGE));
+  }
+
+  @Test
+  public void testServerWithoutChangeSetsFallsBackToUpdates() throws Exception {
+    String tableId = syncThenChangeRows();
+    server.setChangeSetsSupported(false);
+
+    assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+    assertEquals(0, server.getServedCount(MockSyncServer.Endpoint.CHANGE_SET_PAGE));
+    assertNotEquals(0, server.getServedCount(MockSyncServer.Endpoint.ROW_PAGE));
+    assertEquals(CHANGED_ROWS, getLocalRowCount(tableId, " revision 1"));
+    assertEquals(ROWS - CHANGED_ROWS, getLocalRowCount(tableId, " revision 0"));
+  }
+
+  @Test
+  public void testChangeSetsFailureDoesNotFallBackToUpdates() throws Exception {
+    String tableId = syncThenChangeRows();
+    server.setFailureAfter(MockSyncServer.Endpoint.CHANGE_SETS, 0);
+
+    assertNotEquals(SyncOutcome.SUCCESS, sync(tableId));
+    assertEquals(0, server.getServedCount(MockSyncServer.Endpoint.ROW_PAGE));
+    assertEquals(0, getLocalRowCount(tableId, " revision 1"));
+  }
+}
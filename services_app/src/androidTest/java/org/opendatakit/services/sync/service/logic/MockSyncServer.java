@@ -0,0 +1,1215 @@
+package org.opendatakit.services.sync.service.logic;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process stand-in for the sync REST endpoints that HttpRestProtocolWrapper
+ * talks to: the app name list, the table list and definitions, the app-level
+ * and table-level manifests and config files, paging through a table's rows,
+ * diffs and change sets, row pushes, and the row-level attachment manifests
+ * with their bulk uploads and downloads. The privilegesInfo and usersInfo
+ * endpoints are not implemented, so the device syncs as the anonymous user.
+ * <p>
+ * Everything is held in memory. Each request can be delayed by a fixed latency
+ * and each connection throttled to a bandwidth in each direction; the bytes
+ * that cross the sockets are counted in both directions.
+ * <p>
+ * This is a minimal HTTP/1.1 server with keep-alive. Request bodies may be sent
+ * with a Content-Length or chunked, and may be gzip-encoded. Responses other
+ * than file contents are gzip-encoded when the client accepts that.
+ */
+class MockSyncServer implements Runnable {
+
+  private static final String ODKTABLES = "/odktables/";
+  private static final int DEFAULT_FETCH_LIMIT = 2000;
+  private static final int WRITE_CHUNK = 8192;
+
+  /**
+   * Bytes that an idle connection may send or receive at full speed before
+   * the bandwidth limit applies.
+   */
+  private static final long BURST_BYTES = 16384L;
+
+  private static final String ANONYMOUS_USER = "anonymous";
+  private static final String LOCALE = "en_US";
+
+  /**
+   * The requests whose count is kept, and which can be made to fail.
+   */
+  enum Endpoint {
+    ROW_PAGE, CHANGE_SETS, CHANGE_SET_PAGE, ROW_PUSH, ATTACHMENT_UPLOAD, ATTACHMENT_DOWNLOAD
+  }
+
+  private static final class ServerFile {
+    final byte[] content;
+    final String contentType;
+    final String md5hash;
+
+    ServerFile(byte[] content, String contentType) {
+      this.content = content;
+      this.contentType = contentType;
+      this.md5hash = md5Hash(content);
+    }
+  }
+
+  private static final class ServerRow {
+    final String rowId;
+    String rowETag;
+    String dataETagAtModification;
+    boolean deleted;
+    String createUser;
+    String lastUpdateUser;
+    String formId;
+    String locale;
+    String savepointType;
+    String savepointTimestamp;
+    String savepointCreator;
+    String defaultAccess = "FULL";
+    String rowOwner;
+    String groupReadOnly;
+    String groupModify;
+    String groupPrivileged;
+    final LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+
+    ServerRow(String rowId) {
+      this.rowId = rowId;
+    }
+  }
+
+  private static final class ServerTable {
+    final String tableId;
+    final String schemaETag;
+    final List<Column> columns;
+    final TreeMap<String, ServerRow> rows = new TreeMap<String, ServerRow>();
+    /**
+     * dataETags of the change sets, oldest first
+     */
+    final List<String> changeSets = new ArrayList<String>();
+    /**
+     * rowId -to- rowpath -to- attachment
+     */
+    final Map<String, Map<String, ServerFile>> attachments =
+        new HashMap<String, Map<String, ServerFile>>();
+
+    ServerTable(String tableId, String schemaETag, List<Column> columns) {
+      this.tableId = tableId;
+      this.schemaETag = schemaETag;
+      this.columns = columns;
+    }
+
+    String getDataETag() {
+      return changeSets.isEmpty() ? null : changeSets.get(changeSets.size() - 1);
+    }
+  }
+
+  private static final class Request {
+    String method;
+    String path;
+    final Map<String, String> query = new HashMap<String, String>();
+    final Map<String, String> headers = new HashMap<String, String>();
+    byte[] body;
+
+    String header(String name) {
+      return headers.get(name.toLowerCase(Locale.US));
+    }
+  }
+
+  private static final class Response {
+    final int status;
+    final byte[] body;
+    final String contentType;
+    final boolean compressible;
+    String eTag;
+
+    Response(int status, byte[] body, String contentType, boolean compressible) {
+      this.status = status;
+      this.body = body;
+      this.contentType = contentType;
+      this.compressible = compressible;
+    }
+  }
+
+  private final String appName;
+  private final ServerSocket serverSocket;
+  private final String baseUrl;
+
+  /**
+   * config-relative path -to- file. The files under tables/tableId/ are the
+   * table-level files; all others are app-level.
+   */
+  private final TreeMap<String, ServerFile> configFiles = new TreeMap<String, ServerFile>();
+  private final TreeMap<String, ServerTable> tables = new TreeMap<String, ServerTable>();
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final List<Socket> openSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+  private volatile long latencyMillis = 0L;
+  private volatile long bytesPerSecond = 0L;
+  private volatile boolean compressResponses = true;
+
+  // guarded by this
+  private int maxFetchLimit = 0;
+  private final EnumMap<Endpoint, Integer> served = new EnumMap<Endpoint, Integer>(Endpoint.class);
+  private final EnumMap<Endpoint, Integer> failureAfter =
+      new EnumMap<Endpoint, Integer>(Endpoint.class);
+  private boolean changeSetsSupported = true;
+
+  MockSyncServer(String appName) throws IOException {
+    this.appName = appName;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    baseUrl = "http://127.0.0.1:" + serverSocket.getLocalPort();
+    Thread t = new Thread(this, "mock-sync-server");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * @return the URL to configure as the sync server
+   */
+  String getBaseUrl() {
+    return baseUrl;
+  }
+
+  /**
+   * @param latencyMillis delay before each response is sent
+   */
+  void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /**
+   * @param bytesPerSecond bandwidth of each connection in each direction; 0 for unlimited
+   */
+  void setBandwidth(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  void setCompressResponses(boolean compressResponses) {
+    this.compressResponses = compressResponses;
+  }
+
+  /**
+   * @param maxFetchLimit most rows returned in a page, whatever the client
+   *                      asks for; 0 for no limit
+   */
+  synchronized void setMaxFetchLimit(int maxFetchLimit) {
+    this.maxFetchLimit = maxFetchLimit;
+  }
+
+  /**
+   * Fail the requests to the endpoint with a 503, after the given number of
+   * them succeeded, as if the connection had been lost. The failed requests
+   * are not counted as served.
+   *
+   * @param endpoint
+   * @param requestsBeforeFailure -1 to never fail
+   */
+  synchronized void setFailureAfter(Endpoint endpoint, int requestsBeforeFailure) {
+    if (requestsBeforeFailure < 0) {
+      failureAfter.remove(endpoint);
+    } else {
+      failureAfter.put(endpoint, requestsBeforeFailure);
+    }
+    served.remove(endpoint);
+  }
+
+  /**
+   * @param endpoint
+   * @return requests to the endpoint served since the last {@link #resetCounters()}
+   */
+  synchronized int getServedCount(Endpoint endpoint) {
+    Integer count = served.get(endpoint);
+    return (count == null) ? 0 : count;
+  }
+
+  /**
+   * @param changeSetsSupported false to answer the changeSets requests with a
+   *                            404, as a server that predates them does
+   */
+  synchronized void setChangeSetsSupported(boolean changeSetsSupported) {
+    this.changeSetsSupported = changeSetsSupported;
+  }
+
+  long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  int getRequestCount() {
+    return requests.get();
+  }
+
+  int getConnectionCount() {
+    return connections.get();
+  }
+
+  void resetCounters() {
+    synchronized (this) {
+      served.clear();
+    }
+    bytesReceived.set(0L);
+    bytesSent.set(0L);
+    requests.set(0);
+    connections.set(0);
+  }
+
+  void close() throws IOException {
+    serverSocket.close();
+    synchronized (openSockets) {
+      for (Socket s : openSockets) {
+        try {
+          s.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Add or replace an app-level or table-level config file.
+   *
+   * @param configRelativePath e.g., assets/index.html or tables/tableId/html/list.html
+   * @param content
+   */
+  synchronized void putConfigFile(String configRelativePath, byte[] content) {
+    configFiles.put(configRelativePath, new ServerFile(content,
+        HttpRestProtocolWrapper.determineContentType(configRelativePath)));
+  }
+
+  synchronized void createTable(String tableId, String schemaETag, List<Column> columns) {
+    tables.put(tableId, new ServerTable(tableId, schemaETag, columns));
+  }
+
+  /**
+   * Insert or update rows as one change set, as if another device had pushed them.
+   *
+   * @param tableId
+   * @param valuesByRowId the values of the user-defined columns of each row
+   * @return the dataETag of the change set
+   */
+  synchronized String putRows(String tableId, Map<String, Map<String, String>> valuesByRowId) {
+    ServerTable t = tables.get(tableId);
+    String dataETag = newETag();
+    String savepointTimestamp = TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(),
+        TableConstants.TIMESTAMP_LOCALE);
+    for (Map.Entry<String, Map<String, String>> e : valuesByRowId.entrySet()) {
+      ServerRow row = t.rows.get(e.getKey());
+      if (row == null) {
+        row = new ServerRow(e.getKey());
+        row.createUser = ANONYMOUS_USER;
+        row.formId = tableId;
+        row.locale = LOCALE;
+        t.rows.put(row.rowId, row);
+      }
+      row.rowETag = newETag();
+      row.dataETagAtModification = dataETag;
+      row.lastUpdateUser = ANONYMOUS_USER;
+      row.savepointType = "COMPLETE";
+      row.savepointTimestamp = savepointTimestamp;
+      row.savepointCreator = ANONYMOUS_USER;
+      row.values.putAll(e.getValue());
+    }
+    t.changeSets.add(dataETag);
+    return dataETag;
+  }
+
+  synchronized void putAttachment(String tableId, String rowId, String rowpath,
+      String contentType, byte[] content) {
+    ServerTable t = tables.get(tableId);
+    Map<String, ServerFile> files = t.attachments.get(rowId);
+    if (files == null) {
+      files = new TreeMap<String, ServerFile>();
+      t.attachments.put(rowId, files);
+    }
+    files.put(rowpath, new ServerFile(content, contentType));
+  }
+
+  synchronized int getRowCount(String tableId) {
+    return tables.get(tableId).rows.size();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final Socket s = serverSocket.accept();
+        connections.incrementAndGet();
+        openSockets.add(s);
+        Thread t = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            serve(s);
+          }
+        }, "mock-sync-server-connection");
+        t.setDaemon(true);
+        t.start();
+      }
+    } catch (IOException e) {
+      // closed
+    }
+  }
+
+  private void serve(Socket s) {
+    try {
+      InputStream is = new BufferedInputStream(new ShapedInputStream(s.getInputStream()));
+      OutputStream os = new BufferedOutputStream(new ShapedOutputStream(s.getOutputStream()),
+          WRITE_CHUNK);
+      Request req;
+      while ((req = readRequest(is)) != null) {
+        requests.incrementAndGet();
+        Response res;
+        try {
+          res = handle(req);
+        } catch (Exception e) {
+          res = new Response(500, bytes(e.toString()), "text/plain; charset=utf-8", false);
+        }
+        if (latencyMillis > 0L) {
+          Thread.sleep(latencyMillis);
+        }
+        writeResponse(os, req, res);
+        os.flush();
+      }
+    } catch (Exception e) {
+      // connection dropped
+    } finally {
+      openSockets.remove(s);
+      try {
+        s.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /*
+   * Routing
+   */
+
+  private synchronized Response handle(Request req) throws IOException {
+    if (!req.path.startsWith(ODKTABLES)) {
+      return status(404);
+    }
+    List<String> seg = new ArrayList<String>();
+    for (String s : req.path.substring(ODKTABLES.length()).split("/")) {
+      if (s.length() != 0) {
+        seg.add(s);
+      }
+    }
+    if (seg.isEmpty()) {
+      return json(Collections.singletonList(appName));
+    }
+    if (!seg.get(0).equals(appName) || seg.size() < 2) {
+      return status(404);
+    }
+    String resource = seg.get(1);
+    if (resource.equals("installationInfo")) {
+      return json(Collections.emptyMap());
+    } else if (resource.equals("tables")) {
+      return handleTables(req, seg.subList(2, seg.size()));
+    } else if (resource.equals("manifest") && seg.size() >= 3) {
+      String prefix = (seg.size() == 3) ? null : "tables/" + seg.get(3) + "/";
+      return manifest(req, seg.get(2), prefix);
+    } else if (resource.equals("files") && seg.size() >= 4) {
+      ServerFile f = configFiles.get(join(seg, 3));
+      if (f == null) {
+        return status(404);
+      }
+      if (req.method.equals("GET")) {
+        return file(f);
+      }
+      return status(404);
+    }
+    // privilegesInfo and usersInfo, as on a server that predates them
+    return status(404);
+  }
+
+  private Response handleTables(Request req, List<String> seg) throws IOException {
+    if (seg.isEmpty()) {
+      List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+      for (ServerTable t : tables.values()) {
+        list.add(tableResource(t));
+      }
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      m.put("tables", list);
+      m.put("webSafeRefetchCursor", null);
+      m.put("webSafeBackwardCursor", null);
+      m.put("webSafeResumeCursor", null);
+      m.put("hasMoreResults", false);
+      m.put("hasPriorResults", false);
+      m.put("appLevelManifestETag", manifestETag(null));
+      return json(m);
+    }
+
+    String tableId = seg.get(0);
+    ServerTable t = tables.get(tableId);
+    if (seg.size() == 1) {
+      if (req.method.equals("PUT")) {
+        if (t == null) {
+          JsonNode definition = ODKFileUtils.mapper.readTree(req.body);
+          List<Column> columns = new ArrayList<Column>();
+          for (JsonNode c : definition.path("orderedColumns")) {
+            columns.add(ODKFileUtils.mapper.treeToValue(c, Column.class));
+          }
+          t = new ServerTable(tableId, text(definition, "schemaETag"), columns);
+          tables.put(tableId, t);
+        }
+        return json(tableResource(t));
+      }
+      return (t == null) ? status(404) : json(tableResource(t));
+    }
+    if (t == null || seg.size() < 3 || !seg.get(1).equals("ref")
+        || !seg.get(2).equals(t.schemaETag)) {
+      return status(404);
+    }
+    if (seg.size() == 3) {
+      if (req.method.equals("DELETE")) {
+        tables.remove(tableId);
+        return json(Collections.emptyMap());
+      }
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      m.put("tableId", t.tableId);
+      m.put("schemaETag", t.schemaETag);
+      m.put("orderedColumns", t.columns);
+      m.put("selfUri", tableSelfUri(t) + "/ref/" + t.schemaETag);
+      m.put("tableUri", tableSelfUri(t));
+      return json(m);
+    }
+
+    String sub = seg.get(3);
+    if (sub.equals("installationStatus")) {
+      return json(Collections.emptyMap());
+    } else if (sub.equals("rows") && seg.size() == 4) {
+      if (req.method.equals("PUT")) {
+        if (isFailing(Endpoint.ROW_PUSH)) {
+          return status(503);
+        }
+        return pushRows(req, t);
+      }
+      List<ServerRow> rows = new ArrayList<ServerRow>();
+      for (ServerRow row : t.rows.values()) {
+        if (!row.deleted) {
+          rows.add(row);
+        }
+      }
+      return rowPage(req, t, rows, Endpoint.ROW_PAGE);
+    } else if (sub.equals("diff")) {
+      if (seg.size() > 4 && !changeSetsSupported) {
+        return status(404);
+      }
+      int since = t.changeSets.indexOf(req.query.get(HttpRestProtocolWrapper.QUERY_DATA_ETAG));
+      if (seg.size() == 4) {
+        List<ServerRow> rows = new ArrayList<ServerRow>();
+        for (ServerRow row : t.rows.values()) {
+          if (t.changeSets.indexOf(row.dataETagAtModification) > since) {
+            rows.add(row);
+          }
+        }
+        return rowPage(req, t, rows, Endpoint.ROW_PAGE);
+      } else if (seg.size() == 5 && seg.get(4).equals("changeSets")) {
+        if (isFailing(Endpoint.CHANGE_SETS)) {
+          return status(503);
+        }
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("changeSets", new ArrayList<String>(t.changeSets.subList(since + 1,
+            t.changeSets.size())));
+        m.put("dataETag", t.getDataETag());
+        m.put("sequenceValue", Integer.toString(t.changeSets.size()));
+        return json(m);
+      } else if (seg.size() == 6 && seg.get(4).equals("changeSets")) {
+        List<ServerRow> rows = new ArrayList<ServerRow>();
+        for (ServerRow row : t.rows.values()) {
+          if (seg.get(5).equals(row.dataETagAtModification)) {
+            rows.add(row);
+          }
+        }
+        return rowPage(req, t, rows, Endpoint.CHANGE_SET_PAGE);
+      }
+    } else if (sub.equals("attachments") && seg.size() >= 6) {
+      return handleAttachments(req, t, seg.get(4), seg.get(5), join(seg, 6));
+    }
+    return status(404);
+  }
+
+  private Response handleAttachments(Request req, ServerTable t, String rowId, String action,
+      String path) throws IOException {
+    Map<String, ServerFile> files = t.attachments.get(rowId);
+    if (files == null) {
+      files = new TreeMap<String, ServerFile>();
+      t.attachments.put(rowId, files);
+    }
+    String rowUri = tableDefinitionUri(t) + "/attachments/" + rowId;
+    if (action.equals("manifest")) {
+      List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+      StringBuilder b = new StringBuilder();
+      for (Map.Entry<String, ServerFile> e : files.entrySet()) {
+        entries.add(manifestEntry(e.getKey(), e.getValue(), rowUri + "/file/" + e.getKey()));
+        b.append(e.getKey()).append('|').append(e.getValue().md5hash).append('\n');
+      }
+      return withETag(json(Collections.singletonMap("files", entries)),
+          md5Hash(bytes(b.toString())));
+    } else if (action.equals("upload")) {
+      if (isFailing(Endpoint.ATTACHMENT_UPLOAD)) {
+        return status(503);
+      }
+      for (Map.Entry<String, byte[]> part : parseMultipart(req).entrySet()) {
+        files.put(part.getKey(), new ServerFile(part.getValue(),
+            HttpRestProtocolWrapper.determineContentType(part.getKey())));
+      }
+      return status(201);
+    } else if (action.equals("download")) {
+      if (isFailing(Endpoint.ATTACHMENT_DOWNLOAD)) {
+        return status(503);
+      }
+      JsonNode manifest = ODKFileUtils.mapper.readTree(req.body);
+      String boundary = "boundary" + UUID.randomUUID();
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      for (JsonNode entry : manifest.path("files")) {
+        String filename = text(entry, "filename");
+        ServerFile f = files.get(filename);
+        if (f == null) {
+          return status(404);
+        }
+        bo.write(bytes("--" + boundary + "\r\n"
+            + "Content-Disposition: file; filename=\"" + filename + "\"\r\n"
+            + "Content-Type: " + f.contentType + "\r\n\r\n"));
+        bo.write(f.content);
+        bo.write(bytes("\r\n"));
+      }
+      bo.write(bytes("--" + boundary + "--\r\n"));
+      return new Response(200, bo.toByteArray(), "multipart/form-data; "
+          + HttpRestProtocolWrapper.BOUNDARY + "=" + boundary, false);
+    } else if (action.equals("file")) {
+      if (isFailing(Endpoint.ATTACHMENT_DOWNLOAD)) {
+        return status(503);
+      }
+      ServerFile f = files.get(path);
+      return (f == null) ? status(404) : file(f);
+    }
+    return status(404);
+  }
+
+  private Response manifest(Request req, String apiVersion, String tablePrefix)
+      throws IOException {
+    String filesUri = baseUrl + ODKTABLES + appName + "/files/" + apiVersion + "/";
+    List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, ServerFile> e : configFiles.entrySet()) {
+      if (isInManifest(e.getKey(), tablePrefix)) {
+        entries.add(manifestEntry(e.getKey(), e.getValue(), filesUri + e.getKey()));
+      }
+    }
+    return withETag(json(Collections.singletonMap("files", entries)),
+        manifestETag(tablePrefix));
+  }
+
+  private static boolean isInManifest(String path, String tablePrefix) {
+    return (tablePrefix == null) ? !path.startsWith("tables/") : path.startsWith(tablePrefix);
+  }
+
+  private String manifestETag(String tablePrefix) {
+    StringBuilder b = new StringBuilder();
+    for (Map.Entry<String, ServerFile> e : configFiles.entrySet()) {
+      if (isInManifest(e.getKey(), tablePrefix)) {
+        b.append(e.getKey()).append('|').append(e.getValue().md5hash).append('\n');
+      }
+    }
+    return md5Hash(bytes(b.toString()));
+  }
+
+  private static Map<String, Object> manifestEntry(String filename, ServerFile f,
+      String downloadUrl) {
+    Map<String, Object> m = new LinkedHashMap<String, Object>();
+    m.put("filename", filename);
+    m.put("contentLength", (long) f.content.length);
+    m.put("contentType", f.contentType);
+    m.put("md5hash", f.md5hash);
+    m.put("downloadUrl", downloadUrl);
+    return m;
+  }
+
+  /*
+   * Rows
+   */
+
+  /**
+   * Counts the request to the endpoint, unless it is to fail.
+   *
+   * @return true if the request is to be answered with a 503
+   */
+  private boolean isFailing(Endpoint endpoint) {
+    int count = getServedCount(endpoint);
+    Integer limit = failureAfter.get(endpoint);
+    if (limit != null && count >= limit) {
+      return true;
+    }
+    served.put(endpoint, count + 1);
+    return false;
+  }
+
+  private Response rowPage(Request req, ServerTable t, List<ServerRow> rows, Endpoint endpoint)
+      throws IOException {
+    if (isFailing(endpoint)) {
+      return status(503);
+    }
+    int fetchLimit = DEFAULT_FETCH_LIMIT;
+    if (req.query.containsKey(HttpRestProtocolWrapper.FETCH_LIMIT)) {
+      fetchLimit = Integer.parseInt(req.query.get(HttpRestProtocolWrapper.FETCH_LIMIT));
+    }
+    if (maxFetchLimit > 0) {
+      fetchLimit = Math.min(fetchLimit, maxFetchLimit);
+    }
+    int start = 0;
+    if (req.query.containsKey(HttpRestProtocolWrapper.CURSOR_PARAMETER)) {
+      start = Integer.parseInt(req.query.get(HttpRestProtocolWrapper.CURSOR_PARAMETER));
+    }
+    int end = Math.min(rows.size(), start + fetchLimit);
+
+    List<Map<String, Object>> page = new ArrayList<Map<String, Object>>();
+    for (int i = start; i < end; ++i) {
+      page.add(rowResource(t, rows.get(i)));
+    }
+    Map<String, Object> m = new LinkedHashMap<String, Object>();
+    m.put("rows", page);
+    m.put("dataETag", t.getDataETag());
+    m.put("tableUri", tableSelfUri(t));
+    m.put("webSafeRefetchCursor", Integer.toString(start));
+    m.put("webSafeBackwardCursor", Integer.toString(Math.max(0, start - fetchLimit)));
+    m.put("webSafeResumeCursor", Integer.toString(end));
+    m.put("hasMoreResults", end < rows.size());
+    m.put("hasPriorResults", start > 0);
+    return json(m);
+  }
+
+  private Response pushRows(Request req, ServerTable t) throws IOException {
+    JsonNode rowList = ODKFileUtils.mapper.readTree(req.body);
+    String dataETag = text(rowList, "dataETag");
+    String current = t.getDataETag();
+    if ((current == null) ? (dataETag != null) : !current.equals(dataETag)) {
+      // the device must first pull the changes it has not seen
+      return status(409);
+    }
+
+    String newDataETag = newETag();
+    boolean changed = false;
+    List<Map<String, Object>> outcomes = new ArrayList<Map<String, Object>>();
+    for (JsonNode r : rowList.path("rows")) {
+      String rowId = text(r, "id");
+      ServerRow row = t.rows.get(rowId);
+      String outcome;
+      if (row != null && !row.rowETag.equals(text(r, "rowETag"))) {
+        outcome = "IN_CONFLICT";
+      } else {
+        if (row == null) {
+          row = new ServerRow(rowId);
+          row.createUser = ANONYMOUS_USER;
+          t.rows.put(rowId, row);
+        }
+        row.rowETag = newETag();
+        row.dataETagAtModification = newDataETag;
+        row.deleted = r.path("deleted").asBoolean(false);
+        row.lastUpdateUser = ANONYMOUS_USER;
+        row.formId = text(r, "formId");
+        row.locale = text(r, "locale");
+        row.savepointType = text(r, "savepointType");
+        row.savepointTimestamp = text(r, "savepointTimestamp");
+        row.savepointCreator = text(r, "savepointCreator");
+        JsonNode scope = r.path("filterScope");
+        row.defaultAccess = text(scope, "defaultAccess");
+        row.rowOwner = text(scope, "rowOwner");
+        row.groupReadOnly = text(scope, "groupReadOnly");
+        row.groupModify = text(scope, "groupModify");
+        row.groupPrivileged = text(scope, "groupPrivileged");
+        for (JsonNode kv : r.path("orderedColumns")) {
+          row.values.put(text(kv, "column"), text(kv, "value"));
+        }
+        outcome = "SUCCESS";
+        changed = true;
+      }
+      Map<String, Object> m = rowResource(t, row);
+      m.put("outcome", outcome);
+      outcomes.add(m);
+    }
+    if (changed) {
+      t.changeSets.add(newDataETag);
+    }
+
+    Map<String, Object> m = new LinkedHashMap<String, Object>();
+    m.put("rows", outcomes);
+    m.put("dataETag", t.getDataETag());
+    m.put("tableUri", tableSelfUri(t));
+    return json(m);
+  }
+
+  private Map<String, Object> rowResource(ServerTable t, ServerRow row) {
+    List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, String> e : row.values.entrySet()) {
+      Map<String, Object> kv = new LinkedHashMap<String, Object>();
+      kv.put("column", e.getKey());
+      kv.put("value", e.getValue());
+      values.add(kv);
+    }
+    Map<String, Object> scope = new LinkedHashMap<String, Object>();
+    scope.put("defaultAccess", row.defaultAccess);
+    scope.put("rowOwner", row.rowOwner);
+    scope.put("groupReadOnly", row.groupReadOnly);
+    scope.put("groupModify", row.groupModify);
+    scope.put("groupPrivileged", row.groupPrivileged);
+
+    Map<String, Object> m = new LinkedHashMap<String, Object>();
+    m.put("rowETag", row.rowETag);
+    m.put("dataETagAtModification", row.dataETagAtModification);
+    m.put("deleted", row.deleted);
+    m.put("createUser", row.createUser);
+    m.put("lastUpdateUser", row.lastUpdateUser);
+    m.put("formId", row.formId);
+    m.put("locale", row.locale);
+    m.put("savepointType", row.savepointType);
+    m.put("savepointTimestamp", row.savepointTimestamp);
+    m.put("savepointCreator", row.savepointCreator);
+    m.put("id", row.rowId);
+    m.put("orderedColumns", values);
+    m.put("filterScope", scope);
+    m.put("selfUri", tableDefinitionUri(t) + "/rows/" + row.rowId);
+    return m;
+  }
+
+  private Map<String, Object> tableResource(ServerTable t) {
+    String definitionUri = tableDefinitionUri(t);
+    Map<String, Object> m = new LinkedHashMap<String, Object>();
+    m.put("tableId", t.tableId);
+    m.put("dataETag", t.getDataETag());
+    m.put("schemaETag", t.schemaETag);
+    m.put("selfUri", tableSelfUri(t));
+    m.put("definitionUri", definitionUri);
+    m.put("dataUri", definitionUri + "/rows");
+    m.put("instanceFilesUri", definitionUri + "/attachments");
+    m.put("diffUri", definitionUri + "/diff");
+    m.put("aclUri", definitionUri + "/acl");
+    m.put("tableLevelManifestETag", manifestETag("tables/" + t.tableId + "/"));
+    return m;
+  }
+
+  private String tableSelfUri(ServerTable t) {
+    return baseUrl + ODKTABLES + appName + "/tables/" + t.tableId;
+  }
+
+  private String tableDefinitionUri(ServerTable t) {
+    return tableSelfUri(t) + "/ref/" + t.schemaETag;
+  }
+
+  /*
+   * Responses
+   */
+
+  private static Response status(int status) {
+    return new Response(status, new byte[0], null, false);
+  }
+
+  private static Response json(Object value) throws IOException {
+    return new Response(200, ODKFileUtils.mapper.writeValueAsBytes(value),
+        "application/json; charset=utf-8", true);
+  }
+
+  private static Response file(ServerFile f) {
+    Response res = new Response(200, f.content, f.contentType, false);
+    res.eTag = f.md5hash;
+    return res;
+  }
+
+  private static Response withETag(Response res, String eTag) {
+    res.eTag = eTag;
+    return res;
+  }
+
+  private void writeResponse(OutputStream os, Request req, Response res) throws IOException {
+    String eTag = res.eTag;
+    if (eTag == null && res.status == 200 && req.method.equals("GET")) {
+      eTag = md5Hash(res.body);
+    }
+    int status = res.status;
+    byte[] body = res.body;
+    if (eTag != null && eTag.equals(req.header("If-None-Match"))) {
+      status = 304;
+      body = new byte[0];
+    }
+
+    boolean gzip = compressResponses && res.compressible && body.length != 0;
+    String acceptEncoding = req.header(ApiConstants.ACCEPT_CONTENT_ENCODING_HEADER);
+    gzip = gzip && acceptEncoding != null
+        && acceptEncoding.contains(ApiConstants.GZIP_CONTENT_ENCODING);
+    if (gzip) {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      GZIPOutputStream gz = new GZIPOutputStream(bo);
+      gz.write(body);
+      gz.close();
+      body = bo.toByteArray();
+    }
+
+    StringBuilder h = new StringBuilder();
+    h.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+    h.append(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER).append(": ")
+        .append(ApiConstants.OPEN_DATA_KIT_VERSION).append("\r\n");
+    if (res.contentType != null && status != 304) {
+      h.append("Content-Type: ").append(res.contentType).append("\r\n");
+    }
+    if (gzip) {
+      h.append("Content-Encoding: ").append(ApiConstants.GZIP_CONTENT_ENCODING).append("\r\n");
+    }
+    if (eTag != null) {
+      h.append("ETag: ").append(eTag).append("\r\n");
+    }
+    h.append("Content-Length: ").append(body.length).append("\r\n");
+    h.append("Connection: keep-alive\r\n\r\n");
+    os.write(bytes(h.toString()));
+    os.write(body);
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+    case 200:
+      return "OK";
+    case 201:
+      return "Created";
+    case 304:
+      return "Not Modified";
+    case 404:
+      return "Not Found";
+    case 409:
+      return "Conflict";
+    default:
+      return "Status";
+    }
+  }
+
+  /*
+   * Requests
+   */
+
+  private static Request readRequest(InputStream is) throws IOException {
+    String requestLine = readLine(is);
+    while (requestLine != null && requestLine.length() == 0) {
+      requestLine = readLine(is);
+    }
+    if (requestLine == null) {
+      return null;
+    }
+    String[] parts = requestLine.split(" ");
+    Request req = new Request();
+    req.method = parts[0];
+    URI target = URI.create(parts[1]);
+    req.path = target.getPath();
+    if (target.getRawQuery() != null) {
+      for (String param : target.getRawQuery().split("&")) {
+        int idx = param.indexOf('=');
+        if (idx > 0) {
+          req.query.put(URLDecoder.decode(param.substring(0, idx), "UTF-8"),
+              URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+        }
+      }
+    }
+
+    String header;
+    while ((header = readLine(is)) != null && header.length() != 0) {
+      int idx = header.indexOf(':');
+      if (idx > 0) {
+        String name = header.substring(0, idx).trim().toLowerCase(Locale.US);
+        String value = header.substring(idx + 1).trim();
+        String prior = req.headers.get(name);
+        req.headers.put(name, (prior == null) ? value : prior + ", " + value);
+      }
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    String transferEncoding = req.header("Transfer-Encoding");
+    if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+      for (;;) {
+        String sizeLine = readLine(is);
+        if (sizeLine == null) {
+          throw new IOException("truncated chunked body");
+        }
+        int ext = sizeLine.indexOf(';');
+        int size = Integer.parseInt((ext < 0 ? sizeLine : sizeLine.substring(0, ext)).trim(), 16);
+        if (size == 0) {
+          // trailers
+          while ((header = readLine(is)) != null && header.length() != 0) {
+          }
+          break;
+        }
+        copy(is, body, size);
+        readLine(is);
+      }
+    } else if (req.header("Content-Length") != null) {
+      copy(is, body, Integer.parseInt(req.header("Content-Length")));
+    }
+    req.body = body.toByteArray();
+
+    String contentEncoding = req.header("Content-Encoding");
+    if (contentEncoding != null && contentEncoding.contains(ApiConstants.GZIP_CONTENT_ENCODING)) {
+      ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+      InputStream gz = new GZIPInputStream(new ByteArrayInputStream(req.body));
+      byte[] buf = new byte[WRITE_CHUNK];
+      int len;
+      while ((len = gz.read(buf)) >= 0) {
+        decoded.write(buf, 0, len);
+      }
+      req.body = decoded.toByteArray();
+    }
+    return req;
+  }
+
+  /**
+   * @return the contents of each part of a multipart/form-data body, by filename
+   */
+  private static Map<String, byte[]> parseMultipart(Request req) throws IOException {
+    String contentType = req.header("Content-Type");
+    String marker = HttpRestProtocolWrapper.BOUNDARY + "=";
+    int idx = contentType.indexOf(marker);
+    String boundary = contentType.substring(idx + marker.length()).split(";")[0].trim();
+    if (boundary.startsWith("\"")) {
+      boundary = boundary.substring(1, boundary.length() - 1);
+    }
+    byte[] delimiter = bytes("\r\n--" + boundary);
+    byte[] body = req.body;
+
+    Map<String, byte[]> parts = new LinkedHashMap<String, byte[]>();
+    // the first boundary is not preceded by a CRLF
+    byte[] dashBoundary = bytes("--" + boundary);
+    int pos = indexOf(body, dashBoundary, 0);
+    while (pos >= 0) {
+      int after = pos + dashBoundary.length;
+      if (after + 1 >= body.length || (body[after] == '-' && body[after + 1] == '-')) {
+        // closing delimiter
+        break;
+      }
+      int lineEnd = indexOf(body, bytes("\r\n"), after);
+      int headersEnd = indexOf(body, bytes("\r\n\r\n"), lineEnd);
+      String headers = new String(body, lineEnd + 2, headersEnd - lineEnd - 2, "UTF-8");
+      int contentStart = headersEnd + 4;
+      int contentEnd = indexOf(body, delimiter, contentStart);
+      byte[] content = new byte[contentEnd - contentStart];
+      System.arraycopy(body, contentStart, content, 0, content.length);
+      String filename = HttpRestProtocolWrapper.extractInstanceFileRelativeFilename(headers);
+      if (filename != null) {
+        parts.put(filename.replace("\"\"", "\""), content);
+      }
+      pos = contentEnd + 2;
+    }
+    return parts;
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern, int from) {
+    outer:
+    for (int i = from; i <= data.length - pattern.length; ++i) {
+      for (int j = 0; j < pattern.length; ++j) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static void copy(InputStream is, OutputStream os, int length) throws IOException {
+    byte[] buf = new byte[WRITE_CHUNK];
+    while (length > 0) {
+      int len = is.read(buf, 0, Math.min(buf.length, length));
+      if (len < 0) {
+        throw new IOException("truncated body");
+      }
+      os.write(buf, 0, len);
+      length -= len;
+    }
+  }
+
+  private static String readLine(InputStream is) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = is.read()) >= 0) {
+      if (b == '\n') {
+        String str = line.toString("UTF-8");
+        return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+      }
+      line.write(b);
+    }
+    return (line.size() == 0) ? null : line.toString("UTF-8");
+  }
+
+  /*
+   * Utilities
+   */
+
+  private static String join(List<String> seg, int from) {
+    StringBuilder b = new StringBuilder();
+    for (Iterator<String> it = seg.subList(Math.min(from, seg.size()), seg.size()).iterator();
+         it.hasNext(); ) {
+      b.append(it.next());
+      if (it.hasNext()) {
+        b.append('/');
+      }
+    }
+    return b.toString();
+  }
+
+  private static String text(JsonNode node, String field) {
+    JsonNode value = node.get(field);
+    return (value == null || value.isNull()) ? null : value.asText();
+  }
+
+  private static byte[] bytes(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String newETag() {
+    return "uuid:" + UUID.randomUUID().toString();
+  }
+
+  /**
+   * @return the md5 hash in the form the device computes for its files
+   */
+  static String md5Hash(byte[] content) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(content);
+      StringBuilder b = new StringBuilder("md5:");
+      for (byte d : digest) {
+        b.append(String.format(Locale.US, "%02x", d & 0xff));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Token bucket that paces the bytes of one direction of a connection to the
+   * configured bandwidth.
+   */
+  private final class Shaper {
+    private long available = BURST_BYTES;
+    private long lastRefillNanos = System.nanoTime();
+
+    void acquire(int n) throws InterruptedIOException {
+      long rate = bytesPerSecond;
+      if (rate <= 0L) {
+        return;
+      }
+      long now = System.nanoTime();
+      long elapsed = Math.min(now - lastRefillNanos, 1000000000L);
+      available = Math.min(BURST_BYTES, available + (elapsed * rate) / 1000000000L);
+      lastRefillNanos = now;
+      available -= n;
+      if (available < 0L) {
+        long waitNanos = (-available * 1000000000L) / rate;
+        try {
+          Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  private final class ShapedInputStream extends FilterInputStream {
+    private final Shaper shaper = new Shaper();
+
+    ShapedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        bytesReceived.incrementAndGet();
+        shaper.acquire(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        bytesReceived.addAndGet(n);
+        shaper.acquire(n);
+      }
+      return n;
+    }
+  }
+
+  private final class ShapedOutputStream extends FilterOutputStream {
+    private final Shaper shaper = new Shaper();
+
+    ShapedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      shaper.acquire(1);
+      out.write(b);
+      bytesSent.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, WRITE_CHUNK);
+        shaper.acquire(n);
+        out.write(b, off, n);
+        bytesSent.addAndGet(n);
+        off += n;
+        len -= n;
+      }
+    }
+  }
+}
@@ -0,0 +1,456 @@
+package org.opendatakit.services.sync.service.logic;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.LongRunningBenchmark;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.application.IToolAware;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.ODKServiceTestRule;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.services.R;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.service.OdkDatabaseService;
+import org.opendatakit.services.sync.service.GlobalSyncNotificationManager;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.SyncProgressTracker;
+import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
+import org.opendatakit.sync.service.SyncAttachmentState;
+import org.opendatakit.sync.service.SyncOutcome;
+import org.opendatakit.sync.service.SyncOverallResult;
+import org.opendatakit.sync.service.TableLevelResult;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * End-to-end benchmark of a full sync followed by an incremental sync against
+ * a {@link MockSyncServer} running in the test process, so that it needs no
+ * server and the network can be shaped to a given latency and bandwidth.
+ * <p>
+ * The server is seeded with N tables of M rows, each with K attachments (see
+ * {@link SyncDataSet}). The first sync pulls everything onto a device that has
+ * none of it; the server then changes some of the rows and the second sync
+ * pulls just those. For each sync, this reports:
+ * <ul>
+ * <li>the wall time</li>
+ * <li>the bytes sent and received by the server, and the number of requests</li>
+ * <li>the number of database operations, by kind, taken from the database
+ * service's <code>--operation-counts</code> dump, as that service runs in its
+ * own process</li>
+ * <li>the peak Java heap of this (the syncing) process</li>
+ * </ul>
+ * The results are logged and written as JSON to the directory given by the
+ * <code>additionalTestOutputDir</code> argument, if any, which the build pulls
+ * into build/outputs/connected_android_test_additional_output. The size of the
+ * data set and the shaping of the network are set by instrumentation
+ * arguments. It is excluded from the default instrumented test run; run it
+ * with e.g.
+ * <pre>
+ * ./gradlew connectedBasicDebugAndroidTest -PrunBenchmarks \
+ *   -Pandroid.testInstrumentationRunnerArguments.class=org.opendatakit.services.sync.service.logic.SyncBenchmarkTest \
+ *   -Pandroid.testInstrumentationRunnerArguments.syncBenchmarkTables=5 \
+ *   -Pandroid.testInstrumentationRunnerArguments.syncBenchmarkRows=2000 \
+ *   -Pandroid.testInstrumentationRunnerArguments.syncBenchmarkLatencyMillis=150 \
+ *   -Pandroid.testInstrumentationRunnerArguments.syncBenchmarkBytesPerSecond=250000
+ * </pre>
+ */
+@LargeTest
+@LongRunningBenchmark
+public class SyncBenchmarkTest {
+
+  private static final String TAG = SyncBenchmarkTest.class.getSimpleName();
+
+  private static final String APPNAME = "syncbenchmark";
+  private static final long SEED = 20200401L;
+  private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 10L;
+
+  private static final String ARG_TABLES = "syncBenchmarkTables";
+  private static final String ARG_ROWS = "syncBenchmarkRows";
+  private static final String ARG_ATTACHMENTS = "syncBenchmarkAttachments";
+  private static final String ARG_ATTACHMENT_BYTES = "syncBenchmarkAttachmentBytes";
+  private static final String ARG_CHANGED_ROWS = "syncBenchmarkChangedRows";
+  private static final String ARG_LATENCY_MILLIS = "syncBenchmarkLatencyMillis";
+  private static final String ARG_BYTES_PER_SECOND = "syncBenchmarkBytesPerSecond";
+  private static final String ARG_OUTPUT_DIR = "additionalTestOutputDir";
+
+  private Application application;
+  private MockSyncServer server;
+
+  @Rule
+  public final ODKServiceTestRule mServiceRule = new ODKServiceTestRule();
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule internetPermissionRule = GrantPermissionRule .grant(Manifest.permission.INTERNET);
+
+  private static final class GlobalSyncNotificationManagerStub implements
+      GlobalSyncNotificationManager {
+
+    @Override
+    public void startingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void stoppingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void updateNotification(String appName, String text, int maxProgress, int progress,
+                                   boolean indeterminateProgress) {
+
+    }
+
+    @Override
+    public void finalErrorNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void finalConflictNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void clearNotification(String appName, String title, String text) {
+
+    }
+
+    @Override
+    public void clearVerificationNotification(String appName, String title, String text) {
+
+    }
+  }
+
+  /**
+   * The measurements of one sync
+   */
+  private static final class SyncMeasurement {
+    long wallMillis;
+    long bytesReceived;
+    long bytesSent;
+    int requests;
+    int connections;
+    long peakHeapBytes;
+    final Map<String, Long> operationCounts = new TreeMap<String, Long>();
+
+    long getTotalOperations() {
+      long total = 0L;
+      for (Long count : operationCounts.values()) {
+        total += count;
+      }
+      return total;
+    }
+
+    JSONObject toJson() throws Exception {
+      JSONObject o = new JSONObject();
+      o.put("wallMillis", wallMillis);
+      o.put("bytesSentToDevice", bytesSent);
+      o.put("bytesReceivedFromDevice", bytesReceived);
+      o.put("requests", requests);
+      o.put("connections", connections);
+      o.put("peakHeapBytes", peakHeapBytes);
+      o.put("databaseOperations", getTotalOperations());
+      JSONObject byKind = new JSONObject();
+      for (Map.Entry<String, Long> e : operationCounts.entrySet()) {
+        byKind.put(e.getKey(), e.getValue());
+      }
+      o.put("databaseOperationsByKind", byKind);
+      return o;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%1$d ms, %2$d bytes down, %3$d bytes up, %4$d requests over %5$d connections, "
+              + "%6$d database operations, peak heap %7$d KB", wallMillis, bytesSent,
+          bytesReceived, requests, connections, getTotalOperations(), peakHeapBytes / 1024L);
+    }
+  }
+
+  /**
+   * Samples the heap in use until stopped, keeping the largest value seen.
+   */
+  private static final class HeapSampler extends Thread {
+    private volatile boolean running = true;
+    private volatile long peakBytes = 0L;
+
+    HeapSampler() {
+      super("heap-sampler");
+      setDaemon(true);
+    }
+
+    private void sample() {
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      if (used > peakBytes) {
+        peakBytes = used;
+      }
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        sample();
+        try {
+          Thread.sleep(HEAP_SAMPLE_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+
+    long finish() throws InterruptedException {
+      running = false;
+      interrupt();
+      join();
+      sample();
+      return peakBytes;
+    }
+  }
+
+  private static int intArg(Bundle args, String key, int defaultValue) {
+    String value = args.getString(key);
+    return (value == null) ? defaultValue : Integer.parseInt(value);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    application = InstrumentationRegistry.getInstrumentation().newApplication(this.getClass()
+        .getClassLoader(), "org.opendatakit.services.application.Services",
+        InstrumentationRegistry.getTargetContext());
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    server = new MockSyncServer(APPNAME);
+
+    Context context = InstrumentationRegistry.getTargetContext();
+    PropertiesSingleton props = CommonToolProperties.get(context, APPNAME);
+    Map<String,String> properties = new HashMap<String,String>();
+    properties.put(CommonToolProperties.KEY_SYNC_SERVER_URL, server.getBaseUrl());
+    properties.put(CommonToolProperties.KEY_AUTHENTICATION_TYPE,
+        context.getString(R.string.credential_type_none));
+    properties.put(CommonToolProperties.KEY_USERNAME, "");
+    properties.put(CommonToolProperties.KEY_PASSWORD, "");
+    properties.put(CommonToolProperties.KEY_DEFAULT_GROUP, "");
+    properties.put(CommonToolProperties.KEY_ROLES_LIST, "");
+    properties.put(CommonToolProperties.KEY_USERS_LIST, "");
+    props.setProperties(properties);
+
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    resetDevice();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  /**
+   * Make this a device that has never synced: drop the local tables (and,
+   * with them, their files), the app-level config files and the cached
+   * responses of earlier runs.
+   */
+  private void resetDevice() throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      for (String tableId : sc.getDatabaseService().getAllTableIds(APPNAME, db)) {
+        sc.getDatabaseService().deleteTableAndAllData(APPNAME, db, tableId);
+      }
+    } finally {
+      sc.releaseDatabase(db);
+    }
+    FileUtils.deleteQuietly(new File(ODKFileUtils.getAssetsFolder(APPNAME)));
+    FileUtils.deleteQuietly(new File(new File(application.getCacheDir(),
+        HttpRestProtocolWrapper.RESPONSE_CACHE_DIR), APPNAME));
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+  }
+
+  private SyncExecutionContext newSyncExecutionContext(SyncOverallResult syncResult) {
+    Context context = InstrumentationRegistry.getTargetContext();
+    SyncProgressTracker syncProg = new SyncProgressTracker(context,
+        new GlobalSyncNotificationManagerStub(), APPNAME);
+    String verCodeStr = ((IToolAware) application).getVersionCodeString();
+    return new SyncExecutionContext(context, verCodeStr, APPNAME, syncProg, syncResult);
+  }
+
+  /**
+   * Pull everything from the server, as AppSynchronizer does, and verify that
+   * the app and every table synced successfully.
+   */
+  private SyncMeasurement measureSync(String label) throws Exception {
+    Map<String, Long> before = readOperationCounts();
+    server.resetCounters();
+    HeapSampler heapSampler = new HeapSampler();
+    heapSampler.start();
+    long start = System.nanoTime();
+
+    SyncOverallResult syncResult = new SyncOverallResult();
+    SyncExecutionContext sc = newSyncExecutionContext(syncResult);
+    sc.setSynchronizer(SynchronizerFactory.create(sc));
+    sc.setSyncJournal(SyncJournal.open(sc));
+    List<TableResource> tables = new ProcessAppAndTableLevelChanges(sc)
+        .synchronizeConfigurationAndContent(false);
+    assertEquals(SyncOutcome.SUCCESS, syncResult.getAppLevelSyncOutcome());
+    assertNotNull(tables);
+    new ProcessRowDataOrchestrateChanges(sc)
+        .synchronizeDataRowsAndAttachments(tables, SyncAttachmentState.SYNC);
+
+    SyncMeasurement m = new SyncMeasurement();
+    m.wallMillis = (System.nanoTime() - start) / 1000000L;
+    m.peakHeapBytes = heapSampler.finish();
+    m.bytesReceived = server.getBytesReceived();
+    m.bytesSent = server.getBytesSent();
+    m.requests = server.getRequestCount();
+    m.connections = server.getConnectionCount();
+    for (Map.Entry<String, Long> e : readOperationCounts().entrySet()) {
+      Long prior = before.get(e.getKey());
+      long delta = e.getValue() - ((prior == null) ? 0L : prior);
+      if (delta != 0L) {
+        m.operationCounts.put(e.getKey(), delta);
+      }
+    }
+
+    for (TableLevelResult tlr : syncResult.getTableLevelResults()) {
+      assertEquals(label + " " + tlr.getTableId(), SyncOutcome.SUCCESS, tlr.getSyncOutcome());
+    }
+    Log.i(TAG, label + ": " + m);
+    return m;
+  }
+
+  private void assertLocalRowCounts(SyncDataSet dataSet) throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      for (int i = 0; i < dataSet.tableCount; ++i) {
+        String tableId = SyncDataSet.tableId(i);
+        OrderedColumns orderedColumns = sc.getDatabaseService()
+            .getUserDefinedColumns(APPNAME, db, tableId);
+        UserTable table = sc.getDatabaseService()
+            .privilegedSimpleQuery(APPNAME, db, tableId, orderedColumns, null, null, null, null,
+                null, null, null, null);
+        assertEquals(tableId, server.getRowCount(tableId), table.getNumberOfRows());
+      }
+    } finally {
+      sc.releaseDatabase(db);
+    }
+  }
+
+  /**
+   * The number of operations of each kind on the database, which lives in the
+   * database service's process, via dumpsys.
+   */
+  private Map<String, Long> readOperationCounts() throws IOException {
+    Map<String, Long> counts = new HashMap<String, Long>();
+    String command = "dumpsys activity service "
+        + InstrumentationRegistry.getTargetContext().getPackageName() + "/"
+        + OdkDatabaseService.class.getName() + " " + OdkDatabaseService.OPERATION_COUNTS_ARG
+        + " " + APPNAME;
+    ParcelFileDescriptor pfd = InstrumentationRegistry.getInstrumentation().getUiAutomation()
+        .executeShellCommand(command);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new ParcelFileDescriptor.AutoCloseInputStream(pfd), Charset.forName("UTF-8")));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        int idx = line.lastIndexOf(' ');
+        if (idx <= 0) {
+          continue;
+        }
+        try {
+          counts.put(line.substring(0, idx), Long.valueOf(line.substring(idx + 1)));
+        } catch (NumberFormatException e) {
+          // e.g., the dumpsys header line
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return counts;
+  }
+
+  private void writeResults(JSONObject results) throws IOException {
+    String dir = InstrumentationRegistry.getArguments().getString(ARG_OUTPUT_DIR);
+    if (dir == null) {
+      return;
+    }
+    File out = new File(dir, TAG + ".json");
+    FileUtils.writeStringToFile(out, results.toString(2), Charset.forName("UTF-8"));
+    Log.i(TAG, "results written to " + out.getAbsolutePath());
+  }
+
+  @Test
+  public void testFullThenIncrementalSync() throws Exception {
+    Bundle args = InstrumentationRegistry.getArguments();
+    SyncDataSet dataSet = new SyncDataSet(intArg(args, ARG_TABLES, 3),
+        intArg(args, ARG_ROWS, 500), intArg(args, ARG_ATTACHMENTS, 1),
+        intArg(args, ARG_ATTACHMENT_BYTES, 8192), SEED);
+    int changedRows = intArg(args, ARG_CHANGED_ROWS, 50);
+    server.setLatencyMillis(intArg(args, ARG_LATENCY_MILLIS, 0));
+    server.setBandwidth(intArg(args, ARG_BYTES_PER_SECOND, 0));
+
+    dataSet.seed(server);
+    SyncMeasurement full = measureSync("full sync");
+    assertLocalRowCounts(dataSet);
+
+    dataSet.mutate(server, changedRows);
+    SyncMeasurement incremental = measureSync("incremental sync");
+    assertLocalRowCounts(dataSet);
+
+    JSONObject parameters = new JSONObject();
+    parameters.put("tables", dataSet.tableCount);
+    parameters.put("rowsPerTable", dataSet.rowsPerTable);
+    parameters.put("attachmentsPerRow", dataSet.attachmentsPerRow);
+    parameters.put("attachmentBytes", dataSet.attachmentBytes);
+    parameters.put("changedRowsPerTable", changedRows);
+    parameters.put("latencyMillis", intArg(args, ARG_LATENCY_MILLIS, 0));
+    parameters.put("bytesPerSecond", intArg(args, ARG_BYTES_PER_SECOND, 0));
+
+    JSONObject results = new JSONObject();
+    results.put("parameters", parameters);
+    results.put("fullSync", full.toJson());
+    results.put("incrementalSync", incremental.toJson());
+    writeResults(results);
+  }
+}
@@ -0,0 +1,158 @@
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Scripted content for a {@link MockSyncServer}: N tables of M rows, each row
+ * with K file attachments of a given size. Everything is generated from a
+ * seed, so that runs with the same parameters transfer the same bytes.
+ */
+final class SyncDataSet {
+
+  static final String TABLE_ID_PREFIX = "bench_";
+
+  private static final String MIME_URI = "mimeUri";
+  private static final String ATTACHMENT_CONTENT_TYPE = "image/jpeg";
+  private static final int NOTE_LENGTH = 64;
+
+  final int tableCount;
+  final int rowsPerTable;
+  final int attachmentsPerRow;
+  final int attachmentBytes;
+
+  private final Random random;
+  /**
+   * rowIds of each table, in the order they were created
+   */
+  private final List<List<String>> rowIds = new ArrayList<List<String>>();
+  private int revision = 0;
+
+  SyncDataSet(int tableCount, int rowsPerTable, int attachmentsPerRow, int attachmentBytes,
+      long seed) {
+    this.tableCount = tableCount;
+    this.rowsPerTable = rowsPerTable;
+    this.attachmentsPerRow = attachmentsPerRow;
+    this.attachmentBytes = attachmentBytes;
+    this.random = new Random(seed);
+  }
+
+  static String tableId(int table) {
+    return TABLE_ID_PREFIX + table;
+  }
+
+  private static String attachmentColumn(int attachment) {
+    return "photo" + attachment;
+  }
+
+  private static String attachmentRowpath(int attachment) {
+    return attachmentColumn(attachment) + ".jpg";
+  }
+
+  private List<Column> columns() {
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("name", "name", ElementDataType.string.name(), "[]"));
+    columns.add(new Column("count", "count", ElementDataType.integer.name(), "[]"));
+    columns.add(new Column("score", "score", ElementDataType.number.name(), "[]"));
+    columns.add(new Column("note", "note", ElementDataType.string.name(), "[]"));
+    for (int k = 0; k < attachmentsPerRow; ++k) {
+      String col = attachmentColumn(k);
+      columns.add(new Column(col, col, MIME_URI,
+          "[\"" + col + "_uriFragment\",\"" + col + "_contentType\"]"));
+      columns.add(new Column(col + "_uriFragment", "uriFragment",
+          ElementDataType.rowpath.name(), "[]"));
+      columns.add(new Column(col + "_contentType", "contentType",
+          ElementDataType.string.name(), "[]"));
+    }
+    return columns;
+  }
+
+  /**
+   * Load the config files, tables, rows and attachments into the server.
+   */
+  void seed(MockSyncServer server) {
+    server.putConfigFile("assets/index.html", text(4096));
+    for (int i = 0; i < tableCount; ++i) {
+      String tableId = tableId(i);
+      server.createTable(tableId, "uuid:" + uuid(), columns());
+      server.putConfigFile("tables/" + tableId + "/html/" + tableId + "_list.html", text(4096));
+
+      List<String> ids = new ArrayList<String>();
+      Map<String, Map<String, String>> rows = new LinkedHashMap<String, Map<String, String>>();
+      for (int n = 0; n < rowsPerTable; ++n) {
+        String rowId = "uuid:" + uuid();
+        ids.add(rowId);
+        rows.put(rowId, rowValues(n));
+      }
+      rowIds.add(ids);
+      server.putRows(tableId, rows);
+      for (String rowId : ids) {
+        putAttachments(server, tableId, rowId);
+      }
+    }
+  }
+
+  /**
+   * Change the first changedRowsPerTable rows of every table, and replace their
+   * attachments, as one change set per table; i.e., as another device would
+   * between two syncs of this one.
+   */
+  void mutate(MockSyncServer server, int changedRowsPerTable) {
+    ++revision;
+    for (int i = 0; i < tableCount; ++i) {
+      String tableId = tableId(i);
+      List<String> ids = rowIds.get(i);
+      Map<String, Map<String, String>> rows = new LinkedHashMap<String, Map<String, String>>();
+      for (int n = 0; n < Math.min(changedRowsPerTable, ids.size()); ++n) {
+        rows.put(ids.get(n), rowValues(n));
+        putAttachments(server, tableId, ids.get(n));
+      }
+      server.putRows(tableId, rows);
+    }
+  }
+
+  private Map<String, String> rowValues(int n) {
+    Map<String, String> values = new LinkedHashMap<String, String>();
+    values.put("name", "row " + n + " revision " + revision);
+    values.put("count", Integer.toString(n + revision));
+    values.put("score", String.format(Locale.US, "%.3f", random.nextDouble() * 100.0));
+    values.put("note", new String(text(NOTE_LENGTH), Charset.forName("UTF-8")));
+    for (int k = 0; k < attachmentsPerRow; ++k) {
+      String col = attachmentColumn(k);
+      values.put(col + "_uriFragment", attachmentRowpath(k));
+      values.put(col + "_contentType", ATTACHMENT_CONTENT_TYPE);
+    }
+    return values;
+  }
+
+  private void putAttachments(MockSyncServer server, String tableId, String rowId) {
+    for (int k = 0; k < attachmentsPerRow; ++k) {
+      // random bytes, as incompressible as the photos they stand in for
+      byte[] content = new byte[attachmentBytes];
+      random.nextBytes(content);
+      server.putAttachment(tableId, rowId, attachmentRowpath(k), ATTACHMENT_CONTENT_TYPE,
+          content);
+    }
+  }
+
+  private String uuid() {
+    return new UUID(random.nextLong(), random.nextLong()).toString();
+  }
+
+  private byte[] text(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      b[i] = (byte) ('a' + random.nextInt(26));
+    }
+    return b;
+  }
+}
@@ -0,0 +1,359 @@
+package org.opendatakit.services.sync.service.logic;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.ContentValues;
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.application.IToolAware;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.ODKServiceTestRule;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.services.R;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.sync.service.GlobalSyncNotificationManager;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.sync.service.SyncProgressTracker;
+import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
+import org.opendatakit.sync.service.SyncAttachmentState;
+import org.opendatakit.sync.service.SyncOutcome;
+import org.opendatakit.sync.service.SyncOverallResult;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Interrupts the sync of a table's rows with a {@link MockSyncServer} part way
+ * through the pull, the push or the attachment download, at failure points
+ * drawn from a fixed seed, and verifies that the next sync, with a freshly
+ * opened journal, resumes where the failed one stopped rather than
+ * transferring again what it had completed.
+ * <p>
+ * The failures are failed requests; a process dying while the journal itself
+ * is being saved is not simulated. Attachment uploads are not journaled and
+ * are not covered.
+ */
+public class SyncJournalResumeTest {
+
+  private static final String APPNAME = "syncjournal";
+  private static final long SEED = 20201103L;
+
+  // failure points tried in each phase
+  private static final int FAILURE_POINTS = 3;
+
+  private static final int ROWS = 60;
+  private static final int PAGE_SIZE = 10;
+
+  // rows are pushed UPSERT_BATCH_SIZE (500) at a time by ProcessRowDataPushLocalChanges
+  private static final int PUSH_ROWS = 1200;
+  private static final int PUSH_BATCH_SIZE = 500;
+
+  private static final int ATTACHMENT_ROWS = 12;
+  private static final int ATTACHMENT_BYTES = 4096;
+
+  private Application application;
+  private MockSyncServer server;
+
+  @Rule
+  public final ODKServiceTestRule mServiceRule = new ODKServiceTestRule();
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule internetPermissionRule = GrantPermissionRule .grant(Manifest.permission.INTERNET);
+
+  private static final class GlobalSyncNotificationManagerStub implements
+      GlobalSyncNotificationManager {
+
+    @Override
+    public void startingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void stoppingSync(String appName) throws NoAppNameSpecifiedException {
+
+    }
+
+    @Override
+    public void updateNotification(String appName, String text, int maxProgress, int progress,
+                                   boolean indeterminateProgress) {
+
+    }
+
+    @Override
+    public void finalErrorNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void finalConflictNotification(String appName, String text) {
+
+    }
+
+    @Override
+    public void clearNotification(String appName, String title, String text) {
+
+    }
+
+    @Override
+    public void clearVerificationNotification(String appName, String title, String text) {
+
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    application = InstrumentationRegistry.getInstrumentation().newApplication(this.getClass()
+        .getClassLoader(), "org.opendatakit.services.application.Services",
+        InstrumentationRegistry.getTargetContext());
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    startServer();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  /**
+   * Replace the server with an empty one, at a new address, and clear the
+   * device. The journal entries recorded against the previous server are
+   * discarded when the journal is next opened.
+   */
+  private void startServer() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+    server = new MockSyncServer(APPNAME);
+
+    Context context = InstrumentationRegistry.getTargetContext();
+    PropertiesSingleton props = CommonToolProperties.get(context, APPNAME);
+    Map<String,String> properties = new HashMap<String,String>();
+    properties.put(CommonToolProperties.KEY_SYNC_SERVER_URL, server.getBaseUrl());
+    properties.put(CommonToolProperties.KEY_AUTHENTICATION_TYPE,
+        context.getString(R.string.credential_type_none));
+    properties.put(CommonToolProperties.KEY_USERNAME, "");
+    properties.put(CommonToolProperties.KEY_PASSWORD, "");
+    properties.put(CommonToolProperties.KEY_DEFAULT_GROUP, "");
+    properties.put(CommonToolProperties.KEY_ROLES_LIST, "");
+    properties.put(CommonToolProperties.KEY_USERS_LIST, "");
+    props.setProperties(properties);
+
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+    resetDevice();
+  }
+
+  private void resetDevice() throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      for (String tableId : sc.getDatabaseService().getAllTableIds(APPNAME, db)) {
+        sc.getDatabaseService().deleteTableAndAllData(APPNAME, db, tableId);
+      }
+    } finally {
+      sc.releaseDatabase(db);
+    }
+    FileUtils.deleteQuietly(new File(ODKFileUtils.getAssetsFolder(APPNAME)));
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+  }
+
+  private SyncExecutionContext newSyncExecutionContext(SyncOverallResult syncResult) {
+    Context context = InstrumentationRegistry.getTargetContext();
+    SyncProgressTracker syncProg = new SyncProgressTracker(context,
+        new GlobalSyncNotificationManagerStub(), APPNAME);
+    String verCodeStr = ((IToolAware) application).getVersionCodeString();
+    return new SyncExecutionContext(context, verCodeStr, APPNAME, syncProg, syncResult);
+  }
+
+  /**
+   * Pull everything from the server, as AppSynchronizer does, with the journal
+   * reopened from the database as it would be after a restart.
+   *
+   * @return the outcome of the table's data sync
+   */
+  private SyncOutcome sync(String tableId) throws Exception {
+    SyncOverallResult syncResult = new SyncOverallResult();
+    SyncExecutionContext sc = newSyncExecutionContext(syncResult);
+    sc.setSynchronizer(SynchronizerFactory.create(sc));
+    sc.setSyncJournal(SyncJournal.open(sc));
+    List<TableResource> tables = new ProcessAppAndTableLevelChanges(sc)
+        .synchronizeConfigurationAndContent(false);
+    assertEquals(SyncOutcome.SUCCESS, syncResult.getAppLevelSyncOutcome());
+    assertNotNull(tables);
+    new ProcessRowDataOrchestrateChanges(sc)
+        .synchronizeDataRowsAndAttachments(tables, SyncAttachmentState.SYNC);
+    return sc.getTableLevelResult(tableId).getSyncOutcome();
+  }
+
+  private SyncJournal.Phase getInterruptedPhase(String tableId) throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    return SyncJournal.open(sc).getInterruptedPhase(tableId);
+  }
+
+  private int getLocalRowCount(String tableId) throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      OrderedColumns orderedColumns = sc.getDatabaseService()
+          .getUserDefinedColumns(APPNAME, db, tableId);
+      UserTable table = sc.getDatabaseService()
+          .privilegedSimpleQuery(APPNAME, db, tableId, orderedColumns, null, null, null, null,
+              null, null, null, null);
+      return table.getNumberOfRows();
+    } finally {
+      sc.releaseDatabase(db);
+    }
+  }
+
+  private void insertLocalRows(String tableId, int count) throws Exception {
+    SyncExecutionContext sc = newSyncExecutionContext(new SyncOverallResult());
+    DbHandle db = sc.getDatabase();
+    try {
+      OrderedColumns orderedColumns = sc.getDatabaseService()
+          .getUserDefinedColumns(APPNAME, db, tableId);
+      for (int n = 0; n < count; ++n) {
+        ContentValues cv = new ContentValues();
+        cv.put("name", "local row " + n);
+        cv.put("count", n);
+        cv.put("score", 0.5 * n);
+        cv.put("note", "");
+        sc.getDatabaseService().insertRowWithId(APPNAME, db, tableId, orderedColumns, cv,
+            "uuid:" + UUID.randomUUID().toString());
+      }
+    } finally {
+      sc.releaseDatabase(db);
+    }
+  }
+
+  /**
+   * @param random
+   * @param requests the number of requests a phase makes when not interrupted
+   * @return distinct numbers of requests to let succeed before failing the
+   * rest, between 1 and requests - 1, in increasing order
+   */
+  private static List<Integer> failurePoints(Random random, int requests) {
+    TreeSet<Integer> points = new TreeSet<Integer>();
+    while (points.size() < Math.min(FAILURE_POINTS, requests - 1)) {
+      points.add(1 + random.nextInt(requests - 1));
+    }
+    return new ArrayList<Integer>(points);
+  }
+
+  private static int batches(int rows, int batchSize) {
+    return (rows + batchSize - 1) / batchSize;
+  }
+
+  @Test
+  public void testInterruptedPullResumesAtFailedPage() throws Exception {
+    int pages = ROWS / PAGE_SIZE;
+    for (int pagesBeforeFailure : failurePoints(new Random(SEED), pages)) {
+      startServer();
+      SyncDataSet dataSet = new SyncDataSet(1, ROWS, 0, 0, SEED);
+      dataSet.seed(server);
+      String tableId = SyncDataSet.tableId(0);
+      server.setMaxFetchLimit(PAGE_SIZE);
+
+      // the connection is lost while pulling the page after pagesBeforeFailure
+      server.setFailureAfter(MockSyncServer.Endpoint.ROW_PAGE, pagesBeforeFailure);
+      assertNotEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals(SyncJournal.Phase.PULL, getInterruptedPhase(tableId));
+      assertEquals(pagesBeforeFailure * PAGE_SIZE, getLocalRowCount(tableId));
+
+      // the next sync fetches only the remaining pages
+      server.setFailureAfter(MockSyncServer.Endpoint.ROW_PAGE, -1);
+      assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals("failure after " + pagesBeforeFailure + " pages", pages - pagesBeforeFailure,
+          server.getServedCount(MockSyncServer.Endpoint.ROW_PAGE));
+      assertEquals(ROWS, getLocalRowCount(tableId));
+      assertNull(getInterruptedPhase(tableId));
+    }
+  }
+
+  @Test
+  public void testInterruptedPushResumesAtFailedBatch() throws Exception {
+    int pushes = batches(PUSH_ROWS, PUSH_BATCH_SIZE);
+    for (int batchesBeforeFailure : failurePoints(new Random(SEED + 1), pushes)) {
+      startServer();
+      SyncDataSet dataSet = new SyncDataSet(1, PAGE_SIZE, 0, 0, SEED);
+      dataSet.seed(server);
+      String tableId = SyncDataSet.tableId(0);
+      assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+      insertLocalRows(tableId, PUSH_ROWS);
+
+      // the connection is lost while pushing the batch after batchesBeforeFailure
+      server.setFailureAfter(MockSyncServer.Endpoint.ROW_PUSH, batchesBeforeFailure);
+      assertNotEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals(SyncJournal.Phase.PUSH, getInterruptedPhase(tableId));
+      int pushedRows = batchesBeforeFailure * PUSH_BATCH_SIZE;
+      assertEquals(PAGE_SIZE + pushedRows, server.getRowCount(tableId));
+
+      // the next sync pushes only the rows the server has not accepted
+      server.setFailureAfter(MockSyncServer.Endpoint.ROW_PUSH, -1);
+      assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals("failure after " + batchesBeforeFailure + " batches",
+          batches(PUSH_ROWS - pushedRows, PUSH_BATCH_SIZE),
+          server.getServedCount(MockSyncServer.Endpoint.ROW_PUSH));
+      assertEquals(PAGE_SIZE + PUSH_ROWS, server.getRowCount(tableId));
+      assertEquals(PAGE_SIZE + PUSH_ROWS, getLocalRowCount(tableId));
+      assertNull(getInterruptedPhase(tableId));
+    }
+  }
+
+  @Test
+  public void testInterruptedDownloadResumesAtFailedAttachment() throws Exception {
+    for (int downloadsBeforeFailure : failurePoints(new Random(SEED + 2), ATTACHMENT_ROWS)) {
+      startServer();
+      SyncDataSet dataSet = new SyncDataSet(1, ATTACHMENT_ROWS, 1, ATTACHMENT_BYTES, SEED);
+      dataSet.seed(server);
+      String tableId = SyncDataSet.tableId(0);
+
+      // the connection is lost while downloading the attachments of a row
+      server.setFailureAfter(MockSyncServer.Endpoint.ATTACHMENT_DOWNLOAD,
+          downloadsBeforeFailure);
+      assertNotEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals(SyncJournal.Phase.ATTACHMENTS, getInterruptedPhase(tableId));
+      assertEquals(ATTACHMENT_ROWS, getLocalRowCount(tableId));
+      int downloaded = server.getServedCount(MockSyncServer.Endpoint.ATTACHMENT_DOWNLOAD);
+
+      // the next sync downloads only the attachments not yet on the device
+      server.setFailureAfter(MockSyncServer.Endpoint.ATTACHMENT_DOWNLOAD, -1);
+      assertEquals(SyncOutcome.SUCCESS, sync(tableId));
+      assertEquals("failure after " + downloadsBeforeFailure + " downloads", ATTACHMENT_ROWS,
+          downloaded + server.getServedCount(MockSyncServer.Endpoint.ATTACHMENT_DOWNLOAD));
+      assertNull(getInterruptedPhase(tableId));
+    }
+  }
+}
@@ -21,11 +21,13 @@ import org.junit.Test;
 import org.junit.runners.MethodSorters;
 import org.opendatakit.aggregate.odktables.rest.ConflictType;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.database.RoleConsts;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -216,6 +218,118 @@ public class ODKDatabaseUtilsConflictInteractionsPermissionsTest extends Abstrac
     }
   }
 
+  private void base_Type_ResolveAllLocalRows_Table(boolean isLocked, boolean canAnonCreate,
+      RowFilterScope.Access access) throws ActionNotAuthorizedException {
+
+    String tableId;
+    if ( isLocked ) {
+      if ( canAnonCreate ) {
+        tableId = testTableLockedYesAnonCreate;
+      } else {
+        tableId = testTableLockedNoAnonCreate;
+      }
+    } else {
+      if ( canAnonCreate ) {
+        tableId = testTableUnlockedYesAnonCreate;
+      } else {
+        tableId = testTableUnlockedNoAnonCreate;
+      }
+    }
+
+    ArrayList<AuthParamAndOutcome> cases = buildOutcomesListResolveTakeLocal(tableId, isLocked);
+
+    // resolve the whole table once for each user
+    ArrayList<String> usernames = new ArrayList<String>();
+    for ( AuthParamAndOutcome ap : cases ) {
+      if ( !usernames.contains(ap.username) ) {
+        usernames.add(ap.username);
+      }
+    }
+
+    for ( String username : usernames ) {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+      assertConflictPopulatedTestTable(tableId, isLocked, canAnonCreate, access.name());
+
+      String roles = null;
+      for ( AuthParamAndOutcome ap : cases ) {
+        if ( ap.username.equals(username) ) {
+          roles = ap.roles;
+        }
+      }
+
+      Map<String, String> unresolved = ODKDatabaseImplUtils.get()
+          .resolveServerConflictsForTable(db, tableId, true, username, roles, currentLocale);
+
+      for ( AuthParamAndOutcome ap : cases ) {
+        if ( !ap.username.equals(username) ) {
+          continue;
+        }
+        if ( ap.throwsAccessException ) {
+          assertTrue("Expected row to be left in conflict: " + ap.toString(),
+              unresolved.containsKey(ap.rowId));
+          assertTrue("Expected row to be left in conflict: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 2,
+                  FirstSavepointTimestampType.IN_CONFLICT, ap.toString()));
+        } else if (ap.rowId.contains("" + ConflictType.LOCAL_DELETED_OLD_VALUES)) {
+          assertFalse("Expected row to be resolved: " + ap.toString(),
+              unresolved.containsKey(ap.rowId));
+          assertTrue("Expected no rows to remain: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                  FirstSavepointTimestampType.DELETED, ap.toString()));
+        } else {
+          assertFalse("Expected row to be resolved: " + ap.toString(),
+              unresolved.containsKey(ap.rowId));
+          assertTrue("Expected row to be marked as changed: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                  FirstSavepointTimestampType.CHANGED, ap.toString()));
+        }
+      }
+    }
+  }
+
+  private void base_Type_ResolveAllServerRows_Table(boolean isLocked, boolean canAnonCreate,
+      RowFilterScope.Access access) throws ActionNotAuthorizedException {
+
+    String tableId;
+    if ( isLocked ) {
+      if ( canAnonCreate ) {
+        tableId = testTableLockedYesAnonCreate;
+      } else {
+        tableId = testTableLockedNoAnonCreate;
+      }
+    } else {
+      if ( canAnonCreate ) {
+        tableId = testTableUnlockedYesAnonCreate;
+      } else {
+        tableId = testTableUnlockedNoAnonCreate;
+      }
+    }
+
+    assertConflictPopulatedTestTable(tableId, isLocked, canAnonCreate, access.name());
+
+    ArrayList<AuthParamAndOutcome> cases = buildOutcomesListResolveTakeServer(tableId);
+
+    // all users can always take the server's changes
+    Map<String, String> unresolved = ODKDatabaseImplUtils.get()
+        .resolveServerConflictsForTable(db, tableId, false, anonymousUser,
+            RoleConsts.ANONYMOUS_ROLES_LIST, currentLocale);
+    assertTrue("Expected all rows to be resolved: " + unresolved.toString(),
+        unresolved.isEmpty());
+
+    for ( AuthParamAndOutcome ap : cases ) {
+      if ( ap.rowId.contains("" + ConflictType.SERVER_DELETED_OLD_VALUES) ) {
+        assertTrue("Expected no rows to remain: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 0, FirstSavepointTimestampType.NEW_ROW,
+                ap.toString()));
+      } else {
+        assertTrue("Expected row to be synced pending files: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                FirstSavepointTimestampType.SYNCED_PENDING_FILES,
+                ap.toString()));
+      }
+    }
+  }
+
   @Test
   public void testResolveLocalRowUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
 
@@ -292,4 +406,30 @@ public class ODKDatabaseUtilsConflictInteractionsPermissionsTest extends Abstrac
 
     base_Type_ResolveServerRow_Table(true, true, RowFilterScope.Access.FULL);
   }
+
+  ///////////////////
+
+  @Test
+  public void testResolveAllLocalRowsUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(false, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllLocalRowsLockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(true, true, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllServerRowsUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(false, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllServerRowsLockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(true, true, RowFilterScope.Access.FULL);
+  }
 }
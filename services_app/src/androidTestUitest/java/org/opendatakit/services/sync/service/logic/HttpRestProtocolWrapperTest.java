@@ -12,8 +12,8 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPut;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpRequestBase;
 import org.opendatakit.httpclientandroidlib.client.utils.URIBuilder;
-import org.opendatakit.httpclientandroidlib.entity.ByteArrayEntity;
 import org.opendatakit.httpclientandroidlib.entity.ContentType;
+import org.opendatakit.httpclientandroidlib.entity.FileEntity;
 import org.opendatakit.httpclientandroidlib.entity.HttpEntityWrapper;
 import org.opendatakit.services.application.Services;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
@@ -22,6 +22,7 @@ import org.opendatakit.sync.service.SyncNotification;
 import org.opendatakit.sync.service.SyncOverallResult;
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
@@ -166,7 +167,7 @@ public class HttpRestProtocolWrapperTest {
     assertEquals(
         h.constructTableDiffChangeSetsForDataETagUri(makeUri("/tableDiffUri/Tea_houses"), "etag",
             true, "websafe_resume_cursor").toString(), makeUri(
-            "/tableDiffUri/Tea_houses/changeSets/etag?data_etag=true&cursor"
+            "/tableDiffUri/Tea_houses/changeSets/etag?active_only=true&cursor"
                 + "=websafe_resume_cursor"));
     assertEquals(
         h.constructTableDiffChangeSetsForDataETagUri(makeUri("/tableDiffUri/Tea_houses"), null,
@@ -175,7 +176,7 @@ public class HttpRestProtocolWrapperTest {
     assertEquals(
         h.constructTableDiffChangeSetsForDataETagUri(makeUri("/tableDiffUri/Tea_houses"), null,
             true, "websafe_resume_cursor").toString(), makeUri(
-            "/tableDiffUri/Tea_houses/changeSets/null?data_etag=true&cursor=websafe_resume_cursor"));
+            "/tableDiffUri/Tea_houses/changeSets/null?active_only=true&cursor=websafe_resume_cursor"));
   }
 
   @Test
@@ -379,10 +380,12 @@ public class HttpRestProtocolWrapperTest {
     // I swear to god there is no easier way to do this, e.getContent() is useless
     Field f = HttpEntityWrapper.class.getDeclaredField("wrappedEntity");
     f.setAccessible(true);
-    ByteArrayEntity bae = (ByteArrayEntity) f.get(e);
-    f = ByteArrayEntity.class.getDeclaredField("b");
-    f.setAccessible(true);
-    byte[] bytes = (byte[]) f.get(bae);
+    // the file is streamed, not buffered
+    FileEntity fe = (FileEntity) f.get(e);
+    assertEquals(file.length(), fe.getContentLength());
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    fe.writeTo(bo);
+    byte[] bytes = bo.toByteArray();
     //noinspection IOResourceOpenedButNotSafelyClosed if it throws an exception, let the test fail
     InputStream is = new FileInputStream(file);
     byte[] realBytes = new byte[bytes.length];
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of small static assets (framework JS and CSS, formDef.json
+ * files, etc.) served by SimpleWebServer.
+ * <p>
+ * Entries hold the file contents, a strong ETag computed from those contents
+ * and, for compressible types, a gzip-encoded copy. The cache is bounded by
+ * the total number of bytes held and evicts the least recently used entries.
+ * An entry is only used while the file's last-modified time and length are
+ * unchanged, so edits to the app folder are picked up on the next request
+ * without reading the file again until it has changed. This is the only
+ * invalidation: the app files are rewritten by installs and syncs running in
+ * other processes, which cannot reach this cache.
+ */
+public class AssetCache {
+
+  /**
+   * Default bound on the bytes held by the cache.
+   */
+  public static final long DEFAULT_MAX_BYTES = 8L * 1024L * 1024L;
+
+  /**
+   * Default size of the largest file that is cached.
+   */
+  public static final long DEFAULT_MAX_ENTRY_BYTES = 512L * 1024L;
+
+  /**
+   * gzip variants that do not save at least this fraction are not kept.
+   */
+  private static final double MIN_GZIP_SAVINGS = 0.1;
+
+  /**
+   * A cached asset.
+   */
+  public static class Entry {
+    final String path;
+    final long lastModified;
+    final long length;
+    final String eTag;
+    final byte[] body;
+    final byte[] gzipBody;
+
+    Entry(String path, long lastModified, long length, String eTag, byte[] body, byte[] gzipBody) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.eTag = eTag;
+      this.body = body;
+      this.gzipBody = gzipBody;
+    }
+
+    public String getETag() {
+      return eTag;
+    }
+
+    /**
+     * @return the strong ETag of the gzip-encoded body. It differs from
+     *         {@link #getETag()} because the two variants are different
+     *         representations of the asset.
+     */
+    public String getGzipETag() {
+      // insert the suffix inside the quotes
+      return eTag.substring(0, eTag.length() - 1) + "-gz\"";
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * @return the gzip-encoded body, or null if the asset is not compressible.
+     */
+    public byte[] getGzipBody() {
+      return gzipBody;
+    }
+
+    long getSize() {
+      return body.length + ((gzipBody == null) ? 0 : gzipBody.length);
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+
+  /**
+   * Access-ordered, so iteration starts at the least recently used entry.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong uncacheable = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  public AssetCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+  }
+
+  /**
+   * @param maxBytes      bound on the bytes held by the cache, including gzip variants
+   * @param maxEntryBytes files larger than this are never cached
+   */
+  public AssetCache(long maxBytes, long maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  /**
+   * Return the cached entry for the file, loading it if it is not cached or
+   * has changed on disk.
+   *
+   * @param file
+   * @param mimeType used to decide whether a gzip variant is worth keeping
+   * @return the entry, or null if the file is too large to cache.
+   * @throws IOException if the file cannot be read
+   */
+  public Entry get(File file, String mimeType) throws IOException {
+    String path = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (entry != null) {
+        if (entry.lastModified == lastModified && entry.length == length) {
+          hits.incrementAndGet();
+          return entry;
+        }
+        remove(path);
+        invalidations.incrementAndGet();
+      }
+    }
+
+    if (length > maxEntryBytes) {
+      uncacheable.incrementAndGet();
+      return null;
+    }
+    misses.incrementAndGet();
+
+    // read and compress outside the lock; a concurrent load of the same
+    // file just replaces an identical entry
+    byte[] body = readFully(file, length);
+    if (file.lastModified() != lastModified || body.length != length) {
+      // changed while being read -- serve it, but do not cache it
+      return new Entry(path, lastModified, body.length, computeETag(body), body, null);
+    }
+    byte[] gzipBody = null;
+    if (isCompressible(mimeType)) {
+      gzipBody = gzip(body);
+      if (gzipBody.length > body.length * (1.0 - MIN_GZIP_SAVINGS)) {
+        gzipBody = null;
+      }
+    }
+    Entry entry = new Entry(path, lastModified, length, computeETag(body), body, gzipBody);
+    put(entry);
+    return entry;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getUncacheableCount() {
+    return uncacheable.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getInvalidationCount() {
+    return invalidations.get();
+  }
+
+  public synchronized long getSizeInBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return fraction of cacheable requests served from the cache.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0.0 : ((double) h) / total;
+  }
+
+  /**
+   * @return a one-line summary of the counters, for logging.
+   */
+  public String getStatistics() {
+    return String.format(Locale.US,
+        "hits=%d misses=%d hitRate=%.3f uncacheable=%d evictions=%d invalidations=%d entries=%d bytes=%d",
+        getHitCount(), getMissCount(), getHitRate(), getUncacheableCount(), getEvictionCount(),
+        getInvalidationCount(), getEntryCount(), getSizeInBytes());
+  }
+
+  private synchronized void put(Entry entry) {
+    remove(entry.path);
+    entries.put(entry.path, entry);
+    totalBytes += entry.getSize();
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      if (eldest == entry) {
+        continue;
+      }
+      it.remove();
+      totalBytes -= eldest.getSize();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private Entry remove(String path) {
+    Entry entry = entries.remove(path);
+    if (entry != null) {
+      totalBytes -= entry.getSize();
+    }
+    return entry;
+  }
+
+  static boolean isCompressible(String mimeType) {
+    if (mimeType == null) {
+      return false;
+    }
+    String type = mimeType.toLowerCase(Locale.US);
+    return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+        || type.contains("xml") || type.contains("svg");
+  }
+
+  private static byte[] readFully(File file, long length) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream((int) length);
+      byte[] buffer = new byte[16 * 1024];
+      int len;
+      while ((len = is.read(buffer)) != -1) {
+        bo.write(buffer, 0, len);
+      }
+      return bo.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream(body.length / 2 + 64);
+    GZIPOutputStream gzip = new GZIPOutputStream(bo);
+    gzip.write(body);
+    gzip.close();
+    return bo.toByteArray();
+  }
+
+  private static String computeETag(byte[] body) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(body);
+      StringBuilder b = new StringBuilder(2 + 2 * digest.length);
+      b.append('"');
+      for (byte d : digest) {
+        b.append(String.format("%02x", d & 0xff));
+      }
+      b.append('"');
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 should always be available");
+    }
+  }
+}
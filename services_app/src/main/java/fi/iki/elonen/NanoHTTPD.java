@@ -48,6 +48,7 @@ import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -67,7 +68,11 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -86,6 +91,13 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -306,17 +318,74 @@ public abstract class NanoHTTPD {
             safeClose(this.acceptSocket);
         }
 
+        /**
+         * Refuse the connection with a 503 response. Used by an AsyncRunner
+         * that has no capacity left to serve it.
+         */
+        public void rejectBusy() {
+            try {
+                OutputStream outputStream = this.acceptSocket.getOutputStream();
+                outputStream.write(("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+                    + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                outputStream.flush();
+            } catch (IOException e) {
+                // the client is gone -- nothing to do
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Wait, for at most idleTimeout, for the next request on a keep-alive
+         * connection, then restore the read timeout for reading that request.
+         *
+         * @throws SocketTimeoutException
+         *             if the connection stayed idle.
+         */
+        private void awaitNextRequest(BufferedInputStream inputStream, int idleTimeout, int readTimeout) throws IOException {
+            this.acceptSocket.setSoTimeout(idleTimeout);
+            inputStream.mark(1);
+            int read;
+            try {
+                read = inputStream.read();
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                // closed by the client or by stop()
+                read = -1;
+            }
+            if (read == -1) {
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+            inputStream.reset();
+            this.acceptSocket.setSoTimeout(readTimeout);
+        }
+
         @Override
         public void run() {
             OutputStream outputStream = null;
+            BoundedAsyncRunner boundedRunner = (NanoHTTPD.this.asyncRunner instanceof BoundedAsyncRunner) ?
+                (BoundedAsyncRunner) NanoHTTPD.this.asyncRunner : null;
             try {
                 outputStream = this.acceptSocket.getOutputStream();
+                if (this.acceptSocket.getChannel() != null) {
+                    outputStream = new SocketChannelOutputStream(outputStream, this.acceptSocket.getChannel());
+                }
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                int readTimeout = this.acceptSocket.getSoTimeout();
+                BufferedInputStream sessionInputStream = new BufferedInputStream(this.inputStream);
+                HTTPSession session = new HTTPSession(tempFileManager, sessionInputStream, outputStream, this.acceptSocket.getInetAddress());
                 while (!this.acceptSocket.isClosed()) {
                     session.execute();
+                    if (boundedRunner != null && !this.acceptSocket.isClosed()) {
+                        // bound how long an idle keep-alive connection holds the worker
+                        awaitNextRequest(sessionInputStream, boundedRunner.getIdleTimeout(), readTimeout);
+                    }
                 }
             } catch (Exception e) {
+                if (boundedRunner != null && e instanceof SocketTimeoutException) {
+                    boundedRunner.connectionIdledOut();
+                }
                 // When the socket is closed by the client,
                 // we throw our own SocketException
                 // to break the "keep alive" loop above. If
@@ -502,6 +571,228 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Threading strategy that serves connections from a bounded pool of worker
+     * threads rather than starting a new thread for every connection.
+     * <p/>
+     * <p>
+     * Connections beyond the number of workers wait in a bounded queue; when
+     * that is full, the connection is refused with a 503. Because a worker is
+     * held for the whole keep-alive session, a connection that is idle between
+     * requests is closed after a short idle timeout, or immediately if other
+     * connections are queued. Queue depth and wait times are tracked so that
+     * the pool can be sized against real page loads.
+     * </p>
+     */
+    public static class BoundedAsyncRunner implements AsyncRunner {
+
+        /**
+         * A connection waiting for, or being served by, a worker.
+         */
+        private class QueuedClient implements Runnable {
+
+            private final ClientHandler clientHandler;
+
+            private final long enqueuedNanos = System.nanoTime();
+
+            QueuedClient(ClientHandler clientHandler) {
+                this.clientHandler = clientHandler;
+            }
+
+            @Override
+            public void run() {
+                long waitNanos = System.nanoTime() - this.enqueuedNanos;
+                BoundedAsyncRunner.this.totalQueueWaitNanos.addAndGet(waitNanos);
+                long max;
+                while (waitNanos > (max = BoundedAsyncRunner.this.maxQueueWaitNanos.get())) {
+                    if (BoundedAsyncRunner.this.maxQueueWaitNanos.compareAndSet(max, waitNanos)) {
+                        break;
+                    }
+                }
+                this.clientHandler.run();
+            }
+        }
+
+        private final int idleTimeout;
+
+        private final ThreadPoolExecutor executor;
+
+        private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+
+        private final AtomicLong requestCount = new AtomicLong();
+
+        private final AtomicLong acceptedCount = new AtomicLong();
+
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        private final AtomicLong yieldedCount = new AtomicLong();
+
+        private final AtomicLong idledOutCount = new AtomicLong();
+
+        private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+
+        private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        /**
+         * @param maxWorkers
+         *            number of worker threads.
+         * @param maxQueued
+         *            number of accepted connections that may wait for a worker.
+         * @param idleTimeout
+         *            milliseconds that a keep-alive connection may sit idle
+         *            between requests while holding a worker.
+         */
+        public BoundedAsyncRunner(int maxWorkers, int maxQueued, int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName("NanoHttpd Request Processor (#" + BoundedAsyncRunner.this.requestCount.incrementAndGet() + ")");
+                        return t;
+                    }
+                });
+            // release the workers when the server is not being used
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        public int getIdleTimeout() {
+            return this.idleTimeout;
+        }
+
+        /**
+         * @return true if accepted connections are waiting for a worker.
+         */
+        public boolean hasQueuedConnections() {
+            return !this.executor.getQueue().isEmpty();
+        }
+
+        void connectionYielded() {
+            this.yieldedCount.incrementAndGet();
+        }
+
+        void connectionIdledOut() {
+            this.idledOutCount.incrementAndGet();
+        }
+
+        /**
+         * @return number of connections currently waiting for a worker.
+         */
+        public int getQueueDepth() {
+            return this.executor.getQueue().size();
+        }
+
+        /**
+         * @return largest number of connections that have waited for a worker.
+         */
+        public int getMaxQueueDepth() {
+            return this.maxQueueDepth.get();
+        }
+
+        /**
+         * @return number of workers currently serving a connection.
+         */
+        public int getActiveWorkers() {
+            return this.executor.getActiveCount();
+        }
+
+        public long getAcceptedCount() {
+            return this.acceptedCount.get();
+        }
+
+        public long getRejectedCount() {
+            return this.rejectedCount.get();
+        }
+
+        public long getYieldedCount() {
+            return this.yieldedCount.get();
+        }
+
+        public long getIdledOutCount() {
+            return this.idledOutCount.get();
+        }
+
+        /**
+         * @return mean time, in microseconds, that a connection waited for a worker.
+         */
+        public long getMeanQueueWaitMicros() {
+            long accepted = this.acceptedCount.get();
+            return (accepted == 0) ? 0 : (this.totalQueueWaitNanos.get() / accepted) / 1000L;
+        }
+
+        public long getMaxQueueWaitMicros() {
+            return this.maxQueueWaitNanos.get() / 1000L;
+        }
+
+        /**
+         * @return a one-line summary of the metrics, for logging.
+         */
+        public String getStatistics() {
+            return "accepted=" + getAcceptedCount() + " rejected=" + getRejectedCount() + " active=" + getActiveWorkers() + " queued=" + getQueueDepth()
+                + " maxQueued=" + getMaxQueueDepth() + " meanWaitUs=" + getMeanQueueWaitMicros() + " maxWaitUs=" + getMaxQueueWaitMicros() + " yielded="
+                + getYieldedCount() + " idledOut=" + getIdledOutCount();
+        }
+
+        /**
+         * @return a list with currently running or queued clients.
+         */
+        public List<ClientHandler> getRunning() {
+            return running;
+        }
+
+        /**
+         * Close the connections and release the worker threads. Called when
+         * the server stops; the runner cannot be used again afterwards.
+         */
+        @Override
+        public void closeAll() {
+            this.executor.shutdown();
+            // copy of the list for concurrency
+            for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+                clientHandler.close();
+            }
+        }
+
+        /**
+         * @return true once {@link #closeAll()} has been called and every
+         *         worker thread has exited.
+         */
+        public boolean isTerminated() {
+            return this.executor.isTerminated();
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            this.running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            this.running.add(clientHandler);
+            try {
+                this.executor.execute(new QueuedClient(clientHandler));
+            } catch (RejectedExecutionException e) {
+                this.running.remove(clientHandler);
+                this.rejectedCount.incrementAndGet();
+                clientHandler.rejectBusy();
+                return;
+            }
+            this.acceptedCount.incrementAndGet();
+            int depth = this.executor.getQueue().size();
+            int max;
+            while (depth > (max = this.maxQueueDepth.get())) {
+                if (this.maxQueueDepth.compareAndSet(max, depth)) {
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -595,6 +886,29 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Socket output stream that also exposes the socket's channel, so that a
+     * FileResponse can transfer file contents directly to it.
+     */
+    private static class SocketChannelOutputStream extends FilterOutputStream {
+
+        private final SocketChannel channel;
+
+        public SocketChannelOutputStream(OutputStream out, SocketChannel channel) {
+            super(out);
+            this.channel = channel;
+        }
+
+        public SocketChannel getChannel() {
+            return this.channel;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+
     /**
      * Creates a normal ServerSocket for TCP connections
      */
@@ -607,6 +921,21 @@ public abstract class NanoHTTPD {
 
     }
 
+    /**
+     * Creates a ServerSocket backed by a ServerSocketChannel. Connections
+     * accepted from it expose their SocketChannel, which lets a FileResponse
+     * hand the file to the kernel (sendfile) instead of copying it through a
+     * heap buffer. The sockets are still used in blocking mode.
+     */
+    public static class ChannelServerSocketFactory implements ServerSocketFactory {
+
+        @Override
+        public ServerSocket create() throws IOException {
+            return ServerSocketChannel.open().socket();
+        }
+
+    }
+
     /**
      * Creates a new SSLServerSocket
      */
@@ -1071,6 +1400,15 @@ public abstract class NanoHTTPD {
                     this.cookies.unloadQueue(r);
                     r.setRequestMethod(this.method);
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
+                    if (keepAlive && (NanoHTTPD.this.asyncRunner instanceof BoundedAsyncRunner)) {
+                        BoundedAsyncRunner boundedRunner = (BoundedAsyncRunner) NanoHTTPD.this.asyncRunner;
+                        if (boundedRunner.hasQueuedConnections()) {
+                            // do not hold the worker on this keep-alive connection
+                            // while other connections are waiting for one.
+                            boundedRunner.connectionYielded();
+                            keepAlive = false;
+                        }
+                    }
                     r.setKeepAlive(keepAlive);
                     r.send(this.outputStream);
                 }
@@ -1775,12 +2113,8 @@ public abstract class NanoHTTPD {
                 pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
 
                 if (this.mimeType != null) {
-                    if (this.mimeType.toLowerCase(Locale.ENGLISH).contains("charset=utf-8")) {
-                        //printHeader(cw, "Content-Type", this.mimeType);
-                        printHeader(pw, "Content-Type", this.mimeType);
-                    } else {
-                        printHeader(pw, "Content-Type", this.mimeType +"; charset=utf-8");
-                    }
+                    //printHeader(cw, "Content-Type", this.mimeType);
+                    printHeader(pw, "Content-Type", contentTypeWithCharset(this.mimeType));
                 }
                 if (getHeader("date") == null) {
                     //printHeader(cw, "Date", gmtFrmt.format(new Date()));
@@ -1825,6 +2159,28 @@ public abstract class NanoHTTPD {
         }
 
         @SuppressWarnings("static-method")
+        /**
+         * @return the mimeType, with "; charset=utf-8" appended if it is a
+         *         textual type (text/*, JSON or JavaScript) that does not
+         *         name a charset. Binary and multipart types are left as is.
+         */
+        static String contentTypeWithCharset(String mimeType) {
+            String lower = mimeType.toLowerCase(Locale.ENGLISH);
+            if (lower.contains("charset=")) {
+                return mimeType;
+            }
+            String type = lower;
+            int semi = type.indexOf(';');
+            if (semi >= 0) {
+                type = type.substring(0, semi);
+            }
+            type = type.trim();
+            if (type.startsWith("text/") || type.endsWith("/json") || type.endsWith("+json") || type.endsWith("/javascript")) {
+                return mimeType + "; charset=utf-8";
+            }
+            return mimeType;
+        }
+
         protected void printHeader(PrintWriter pw, String key, String value) {
             pw.append(key).append(": ").append(value).append("\r\n");
         }
@@ -1862,7 +2218,11 @@ public abstract class NanoHTTPD {
         }
 
         private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
-            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+            if (this.requestMethod == Method.HEAD) {
+                // the headers describe the body, but it is not sent
+                return;
+            }
+            if (this.chunkedTransfer) {
                 ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
                 sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
                 chunkedOutputStream.finish();
@@ -1894,7 +2254,7 @@ public abstract class NanoHTTPD {
          * @throws IOException
          *             if something goes wrong while sending the data.
          */
-        private void sendBody(OutputStream outputStream, long pending) throws IOException {
+        protected void sendBody(OutputStream outputStream, long pending) throws IOException {
             long BUFFER_SIZE = 16 * 1024;
             byte[] buff = new byte[(int) BUFFER_SIZE];
             boolean sendEverything = pending == -1;
@@ -1932,6 +2292,236 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Response that sends the whole of a file, or one or more byte ranges of
+     * it, from the file's channel.
+     * <p/>
+     * <p>
+     * When the connection exposes its SocketChannel (see
+     * ChannelServerSocketFactory) the file is sent with
+     * FileChannel.transferTo, which the platform implements with sendfile;
+     * otherwise transferTo copies it to the output stream. Lengths are longs
+     * throughout, so files over 2GB are served correctly. Several ranges are
+     * sent as a multipart/byteranges body.
+     * </p>
+     */
+    public static class FileResponse extends Response {
+
+        /**
+         * Upper bound on the number of ranges honored in one request; a range
+         * header asking for more is ignored and the whole file is sent.
+         */
+        public static final int MAX_RANGES = 32;
+
+        /**
+         * Size of the buffer used when transferTo makes no progress.
+         */
+        private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+        /**
+         * An inclusive byte range of a file.
+         */
+        public static class ByteRange {
+
+            public final long start;
+
+            public final long end;
+
+            public ByteRange(long start, long end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            public long getLength() {
+                return this.end - this.start + 1;
+            }
+        }
+
+        private final FileChannel fileChannel;
+
+        private final long fileLength;
+
+        private final List<ByteRange> ranges;
+
+        /**
+         * For a multipart/byteranges body, the part header preceding each
+         * range, followed by the closing boundary. Null otherwise.
+         */
+        private final List<byte[]> partHeaders;
+
+        /**
+         * Parses a Range header value against a file of the given length.
+         *
+         * @param range
+         *            the Range header value
+         * @param fileLength
+         *            the length of the file
+         * @return the satisfiable ranges, in the order requested. Null if the
+         *         header is not a byte range set this server honors (the whole
+         *         file should be sent), or an empty list if no range is
+         *         satisfiable (respond with 416).
+         */
+        public static List<ByteRange> parseRangeHeader(String range, long fileLength) {
+            if (range == null) {
+                return null;
+            }
+            range = range.trim();
+            if (!range.startsWith("bytes=")) {
+                return null;
+            }
+            String[] specs = range.substring("bytes=".length()).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
+            }
+            List<ByteRange> ranges = new ArrayList<ByteRange>();
+            try {
+                for (String spec : specs) {
+                    spec = spec.trim();
+                    int minus = spec.indexOf('-');
+                    if (minus < 0) {
+                        return null;
+                    }
+                    String first = spec.substring(0, minus).trim();
+                    String last = spec.substring(minus + 1).trim();
+                    if (first.length() == 0) {
+                        // suffix range: the final N bytes
+                        long suffix = Long.parseLong(last);
+                        if (suffix < 0) {
+                            return null;
+                        }
+                        if (suffix > 0 && fileLength > 0) {
+                            ranges.add(new ByteRange(Math.max(0, fileLength - suffix), fileLength - 1));
+                        }
+                    } else {
+                        long start = Long.parseLong(first);
+                        long end = (last.length() == 0) ? Long.MAX_VALUE : Long.parseLong(last);
+                        if (start < 0 || end < start) {
+                            return null;
+                        }
+                        if (start < fileLength) {
+                            ranges.add(new ByteRange(start, Math.min(end, fileLength - 1)));
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return ranges;
+        }
+
+        /**
+         * Creates a 200 response with the whole file.
+         */
+        public FileResponse(String mimeType, File file) throws IOException {
+            this(Status.OK, mimeType, new FileInputStream(file), null);
+        }
+
+        /**
+         * Creates a 206 response with the given ranges of the file.
+         *
+         * @param ranges
+         *            one or more ranges, as returned by parseRangeHeader.
+         */
+        public FileResponse(String mimeType, File file, List<ByteRange> ranges) throws IOException {
+            this(Status.PARTIAL_CONTENT, mimeType, new FileInputStream(file), ranges);
+        }
+
+        private FileResponse(IStatus status, String mimeType, FileInputStream data, List<ByteRange> ranges) throws IOException {
+            super(status, mimeType, data, 0);
+            this.fileChannel = data.getChannel();
+            this.fileLength = this.fileChannel.size();
+            if (ranges == null || ranges.isEmpty()) {
+                this.ranges = Collections.singletonList(new ByteRange(0, this.fileLength - 1));
+                this.partHeaders = null;
+            } else {
+                this.ranges = ranges;
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    addHeader("Content-Range", "bytes " + range.start + "-" + range.end + "/" + this.fileLength);
+                    this.partHeaders = null;
+                } else {
+                    String boundary = UUID.randomUUID().toString();
+                    this.partHeaders = new ArrayList<byte[]>();
+                    for (ByteRange range : ranges) {
+                        this.partHeaders.add(("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: bytes " + range.start + "-" + range.end + "/"
+                            + this.fileLength + "\r\n\r\n").getBytes("US-ASCII"));
+                    }
+                    this.partHeaders.add(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+                    setMimeType("multipart/byteranges; boundary=" + boundary);
+                }
+            }
+            long contentLength = 0;
+            for (ByteRange range : this.ranges) {
+                contentLength += range.getLength();
+            }
+            if (this.partHeaders != null) {
+                for (byte[] partHeader : this.partHeaders) {
+                    contentLength += partHeader.length;
+                }
+            }
+            addHeader("Accept-Ranges", "bytes");
+            // an explicit length also keeps the file from being gzip-encoded
+            addHeader("Content-Length", Long.toString(contentLength));
+        }
+
+        @Override
+        protected void sendBody(OutputStream outputStream, long pending) throws IOException {
+            if (getRequestMethod() == Method.HEAD) {
+                return;
+            }
+            WritableByteChannel target;
+            if (outputStream instanceof SocketChannelOutputStream) {
+                outputStream.flush();
+                target = ((SocketChannelOutputStream) outputStream).getChannel();
+            } else {
+                target = Channels.newChannel(outputStream);
+            }
+            for (int i = 0; i < this.ranges.size(); ++i) {
+                if (this.partHeaders != null) {
+                    writeFully(target, ByteBuffer.wrap(this.partHeaders.get(i)));
+                }
+                ByteRange range = this.ranges.get(i);
+                transferFully(range.start, range.getLength(), target);
+            }
+            if (this.partHeaders != null) {
+                writeFully(target, ByteBuffer.wrap(this.partHeaders.get(this.ranges.size())));
+            }
+            outputStream.flush();
+        }
+
+        private void transferFully(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = null;
+            while (count > 0) {
+                long sent = this.fileChannel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    // no progress: copy the next chunk through a buffer, which
+                    // blocks until the target has taken it, rather than spin.
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+                    }
+                    buffer.clear();
+                    if (count < buffer.capacity()) {
+                        buffer.limit((int) count);
+                    }
+                    sent = this.fileChannel.read(buffer, position);
+                    if (sent <= 0) {
+                        throw new IOException("file was truncated while being sent");
+                    }
+                    buffer.flip();
+                    writeFully(target, buffer);
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+
+        private static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+    }
+
     public static final class ResponseException extends Exception {
 
         private static final long serialVersionUID = 6569838532917408380L;
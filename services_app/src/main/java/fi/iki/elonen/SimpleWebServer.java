@@ -35,10 +35,9 @@ package fi.iki.elonen;
 
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -50,6 +49,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 
@@ -92,6 +92,24 @@ public class SimpleWebServer extends NanoHTTPD {
     LICENCE = text;
   }
 
+  /**
+   * Serves requests that are not for files under the app folder. The uri
+   * passed to a handler has the leading /appName removed.
+   */
+  public interface RequestHandler {
+
+    /**
+     * @param appName
+     * @param uriWithinApp the request uri without the leading /appName
+     * @return true if this handler serves the request
+     */
+    boolean canServe(String appName, String uriWithinApp);
+
+    Response serve(IHTTPSession session, String appName, String uriWithinApp);
+  }
+
+  private final List<RequestHandler> requestHandlers = new CopyOnWriteArrayList<RequestHandler>();
+
   private final boolean quiet;
 
   private boolean shouldCreateLogFile;
@@ -100,6 +118,11 @@ public class SimpleWebServer extends NanoHTTPD {
 
   protected List<File> rootDirs;
 
+  /**
+   * Cache of small static assets, or null if caching is disabled.
+   */
+  private AssetCache assetCache = new AssetCache();
+
   public SimpleWebServer(String host, int port, File wwwroot, boolean quiet, String cors) {
     this(host, port, Collections.singletonList(wwwroot), quiet, cors);
   }
@@ -121,6 +144,27 @@ public class SimpleWebServer extends NanoHTTPD {
     init();
   }
 
+  /**
+   * Register a handler for requests that are not served from the file system.
+   *
+   * @param handler
+   */
+  public void addRequestHandler(RequestHandler handler) {
+    requestHandlers.add(handler);
+  }
+
+  public AssetCache getAssetCache() {
+    return assetCache;
+  }
+
+  /**
+   * @param assetCache the cache to serve small static assets from, or null to
+   *                   always read them from the file system.
+   */
+  public void setAssetCache(AssetCache assetCache) {
+    this.assetCache = assetCache;
+  }
+
   @Override
   protected boolean useGzipWhenAccepted(Response r) {
     return super.useGzipWhenAccepted(r) && r.getStatus() != Response.Status.NOT_MODIFIED;
@@ -373,7 +417,19 @@ public class SimpleWebServer extends NanoHTTPD {
       return getInternalErrorResponse("exception " + e.toString() + " accessing directory (" + root.getAbsolutePath() + ").");
     }
 
-    Response res = respond(Collections.unmodifiableMap(header), session, uri);
+    Response res = null;
+    if (uri.startsWith("/" + appName + "/")) {
+      String uriWithinApp = uri.substring(appName.length() + 1);
+      for (RequestHandler handler : requestHandlers) {
+        if (handler.canServe(appName, uriWithinApp)) {
+          res = handler.serve(session, appName, uriWithinApp);
+          break;
+        }
+      }
+    }
+    if (res == null) {
+      res = respond(Collections.unmodifiableMap(header), session, uri);
+    }
     res.setOdkAppName(appName);
     res.setRequestHeaders(header);
     res.setResponseUri(uri);
@@ -387,25 +443,19 @@ public class SimpleWebServer extends NanoHTTPD {
   Response serveFile(String uri, Map<String, String> header, File file, String mime) {
     Response res;
     try {
+      // Small assets are served from memory, with a strong etag computed
+      // from their contents
+      AssetCache.Entry cached = (assetCache == null) ? null : assetCache.get(file, mime);
+      String acceptEncoding = header.get("accept-encoding");
+      boolean useGzip = cached != null && cached.getGzipBody() != null
+          && acceptEncoding != null && acceptEncoding.contains("gzip");
+
       // Calculate etag
-      String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-      // Support (simple) skipping:
-      long startFrom = 0;
-      long endAt = -1;
-      String range = header.get("range");
-      if (range != null) {
-        if (range.startsWith("bytes=")) {
-          range = range.substring("bytes=".length());
-          int minus = range.indexOf('-');
-          try {
-            if (minus > 0) {
-              startFrom = Long.parseLong(range.substring(0, minus));
-              endAt = Long.parseLong(range.substring(minus + 1));
-            }
-          } catch (NumberFormatException ignored) {
-          }
-        }
+      String etag;
+      if (cached != null) {
+        etag = cached.getETag();
+      } else {
+        etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
       }
 
       // get if-range header. If present, it must match etag or else we
@@ -413,68 +463,44 @@ public class SimpleWebServer extends NanoHTTPD {
       String ifRange = header.get("if-range");
       boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
 
+      // the gzip variant of a cached asset has its own etag; ranges are
+      // always served from the identity variant
       String ifNoneMatch = header.get("if-none-match");
-      boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
+      String responseETag = useGzip ? cached.getGzipETag() : etag;
+      boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(responseETag));
 
-      // Change return code and add Content-Range header when skipping is
-      // requested
       long fileLen = file.length();
 
-      if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-        // range request that matches current etag
-        // and the startFrom of the range is satisfiable
-        if (headerIfNoneMatchPresentAndMatching) {
-          // range request that matches current etag
-          // and the startFrom of the range is satisfiable
-          // would return range from file
-          // respond with not-modified
-          res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-          res.addHeader("ETag", etag);
-        } else {
-          if (endAt < 0) {
-            endAt = fileLen - 1;
-          }
-          long newLen = endAt - startFrom + 1;
-          if (newLen < 0) {
-            newLen = 0;
-          }
-
-          FileInputStream fis = new FileInputStream(file);
-          fis.skip(startFrom);
+      // Support byte ranges, including several ranges in one request
+      List<NanoHTTPD.FileResponse.ByteRange> ranges = null;
+      if (headerIfRangeMissingOrMatching) {
+        ranges = NanoHTTPD.FileResponse.parseRangeHeader(header.get("range"), fileLen);
+      }
 
-          res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-          res.addHeader("Accept-Ranges", "bytes");
-          res.addHeader("Content-Length", "" + newLen);
-          res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-          res.addHeader("ETag", etag);
-        }
+      if (ranges != null && ranges.isEmpty()) {
+        // no range is satisfiable -- return the size of the file
+        // 4xx responses are not trumped by if-none-match
+        res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+        res.addHeader("Content-Range", "bytes */" + fileLen);
+        res.addHeader("ETag", etag);
+      } else if (headerIfNoneMatchPresentAndMatching) {
+        // would return the entire file or ranges of it, or, for a range
+        // request that doesn't match the current etag, the entire
+        // (different) file. Respond with not-modified
+        res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+        res.addHeader("ETag", responseETag);
+      } else if (ranges != null) {
+        // range request that matches current etag
+        res = new NanoHTTPD.FileResponse(mime, file, ranges);
+        res.addHeader("ETag", etag);
+      } else if (cached != null) {
+        // supply the file from memory
+        res = newCachedAssetResponse(cached, mime, useGzip);
+        res.addHeader("ETag", responseETag);
       } else {
-
-        if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-          // return the size of the file
-          // 4xx responses are not trumped by if-none-match
-          res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-          res.addHeader("Content-Range", "bytes */" + fileLen);
-          res.addHeader("ETag", etag);
-        } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-          // full-file-fetch request
-          // would return entire file
-          // respond with not-modified
-          res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-          res.addHeader("ETag", etag);
-        } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-          // range request that doesn't match current etag
-          // would return entire (different) file
-          // respond with not-modified
-
-          res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-          res.addHeader("ETag", etag);
-        } else {
-          // supply the file
-          res = newFixedFileResponse(file, mime);
-          res.addHeader("Content-Length", "" + fileLen);
-          res.addHeader("ETag", etag);
-        }
+        // supply the file
+        res = newFixedFileResponse(file, mime);
+        res.addHeader("ETag", etag);
       }
     } catch (IOException ioe) {
       res = getForbiddenResponse("Reading file failed.");
@@ -483,10 +509,25 @@ public class SimpleWebServer extends NanoHTTPD {
     return res;
   }
 
-  private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-    Response res;
-    res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
+  private Response newFixedFileResponse(File file, String mime) throws IOException {
+    return new NanoHTTPD.FileResponse(mime, file);
+  }
+
+  private Response newCachedAssetResponse(AssetCache.Entry cached, String mime, boolean useGzip) {
+    byte[] body = cached.getBody();
+    if (useGzip) {
+      body = cached.getGzipBody();
+    }
+    Response res = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mime, new ByteArrayInputStream(body), body.length);
     res.addHeader("Accept-Ranges", "bytes");
+    // an explicit length also keeps the body from being gzip-encoded again
+    res.addHeader("Content-Length", "" + body.length);
+    if (cached.getGzipBody() != null) {
+      res.addHeader("Vary", "Accept-Encoding");
+    }
+    if (useGzip) {
+      res.addHeader("Content-Encoding", "gzip");
+    }
     return res;
   }
 
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies, in microseconds, with log-linear buckets in the
+ * manner of HdrHistogram: each power of two is split into 16 buckets, so a
+ * recorded value is reported to within 1/16th (about 6%) of its true value.
+ * Values up to 2^40 microseconds (about 12 days) are tracked; larger values
+ * are counted in the last bucket.
+ * <p>
+ * Recording is lock-free and may be done from any number of threads. The
+ * read methods do not take a consistent snapshot; while values are being
+ * recorded, they may reflect some of the in-flight recordings and not others.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_VALUE_BITS = 40;
+
+  static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * @param micros the latency to record; negative values are recorded as 0.
+   */
+  public void record(long micros) {
+    if (micros < 0L) {
+      micros = 0L;
+    }
+    counts.incrementAndGet(bucketIndex(micros));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max;
+    while ((max = maxMicros.get()) < micros && !maxMicros.compareAndSet(max, micros)) {
+      // retry
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount.get();
+  }
+
+  public long getTotalMicros() {
+    return totalMicros.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public long getMeanMicros() {
+    long count = totalCount.get();
+    return (count == 0L) ? 0L : totalMicros.get() / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the largest value that could have been recorded in the bucket
+   * holding the given percentile, capped at the maximum recorded value; 0 if
+   * nothing has been recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = 0L;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0L) {
+      return 0L;
+    }
+    long target = (long) Math.ceil((Math.min(100.0, Math.max(0.0, percentile)) / 100.0) * count);
+    if (target < 1L) {
+      target = 1L;
+    }
+    long seen = 0L;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return Math.min(highestValueInBucket(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0L);
+    }
+    totalCount.set(0L);
+    totalMicros.set(0L);
+    maxMicros.set(0L);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    int index = (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    return Math.min(index, BUCKET_COUNT - 1);
+  }
+
+  static long lowestValueInBucket(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    return ((long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT)) << shift;
+  }
+
+  static long highestValueInBucket(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    return lowestValueInBucket(index) + (1L << shift) - 1L;
+  }
+}
@@ -138,14 +138,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
    * cross-thread interactions.
    */
   public final void dumpInfo(boolean asError) {
-    ArrayList<AppNameSharedStateContainer> containers = new ArrayList<AppNameSharedStateContainer>();
-    synchronized (mutex) {
-      for (String appName : appNameSharedStateMap.keySet()) {
-        containers.add(appNameSharedStateMap.get(appName));
-      }
-    }
-
-    for (AppNameSharedStateContainer container : containers) {
+    for (AppNameSharedStateContainer container : getAppNameSharedStateContainers()) {
       StringBuilder b = new StringBuilder();
       container.dumpInfo(b);
       if ( asError ) {
@@ -156,6 +149,30 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     }
   }
 
+  public final void dumpInfo(StringBuilder b) {
+    for (AppNameSharedStateContainer container : getAppNameSharedStateContainers()) {
+      container.dumpInfo(b);
+    }
+  }
+
+  public final OperationStatistics getOperationStatistics(String appName) {
+    AppNameSharedStateContainer container;
+    synchronized (mutex) {
+      container = appNameSharedStateMap.get(appName);
+    }
+    return (container == null) ? null : container.getOperationLog().getStatistics();
+  }
+
+  private ArrayList<AppNameSharedStateContainer> getAppNameSharedStateContainers() {
+    ArrayList<AppNameSharedStateContainer> containers = new ArrayList<AppNameSharedStateContainer>();
+    synchronized (mutex) {
+      for (String appName : appNameSharedStateMap.keySet()) {
+        containers.add(appNameSharedStateMap.get(appName));
+      }
+    }
+    return containers;
+  }
+
   private static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
             ODKFileUtils.getNameOfSQLiteDatabase());
@@ -45,6 +45,22 @@ public interface OdkConnectionFactoryInterface {
     */
    void dumpInfo(boolean asError);
 
+   /**
+    * Append the state and history of the database layer, including the
+    * latency statistics of each appName's operations.
+    *
+    * @param b
+    */
+   void dumpInfo(StringBuilder b);
+
+   /**
+    * Get the statistics of the operations on the given appName's database.
+    *
+    * @param appName
+    * @return null if no connection to that appName's database has been opened
+    */
+   OperationStatistics getOperationStatistics(String appName);
+
    /**
     * Get a connection to the database for the given dbHandleName.
     * If no connection exists, this will create a new connection for that dbHandleName
@@ -17,30 +17,108 @@ package org.opendatakit.services.database;
 import org.opendatakit.logging.WebLogger;
 import org.sqlite.database.sqlite.SQLiteDebug;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Extracted from the SQLiteDatabase class.
  * Thread-safe.
+ * <p>
+ * Every statement executed on a connection of the appName begins and ends an
+ * operation here, so the recording path takes no locks: each thread records
+ * into its own ring of the most recent {@link #RING_SIZE} operations. The
+ * cookie returned by {@link #beginOperation(String, String, String, Object[])}
+ * combines the id of the calling thread's ring with the sequence number of the
+ * operation within that ring, so the cookies of concurrent threads differ.
+ * The cookie must be passed back on the same thread (as all callers do);
+ * otherwise it is silently ignored. Timestamps are taken from the monotonic
+ * clock.
+ * <p>
+ * Beginning an operation allocates its {@link OperationLogEntry}, which holds
+ * the caller's bind args without copying them; the owning thread then updates
+ * the entry in place, so {@link #dump(StringBuilder, boolean)} merges the
+ * rings of all threads without blocking the threads that own them.
+ * <p>
+ * In addition to the most recent operations, every completed operation is
+ * aggregated into the {@link OperationStatistics} of the appName, which are
+ * reported by {@link #dump(StringBuilder, boolean)}.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class OperationLog {
 
+   /**
+    * Operations retained per thread. Must be a power of two.
+    */
+   static final int RING_SIZE = 16;
+   private static final int RING_MASK = RING_SIZE - 1;
    private static final int MAX_RECENT_OPERATIONS = 60;
-   private static final int COOKIE_GENERATION_SHIFT = 8;
-   private static final int COOKIE_INDEX_MASK = 0xff;
-   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+   /**
+    * Rings of threads that have exited are discarded once there are this many
+    * rings.
+    */
+   private static final int MAX_RINGS = 32;
+   /**
+    * A cookie holds the ring id in its high bits and the sequence number of the
+    * operation within the ring in its low {@link #COOKIE_SEQUENCE_BITS} bits.
+    * Ring ids repeat after 4096 rings.
+    */
+   private static final int COOKIE_SEQUENCE_BITS = 20;
+   private static final int COOKIE_SEQUENCE_MASK = (1 << COOKIE_SEQUENCE_BITS) - 1;
+   private static final int RING_ID_MASK = 0xfff;
 
+   /**
+    * The most recent operations of one thread. Written only by that thread.
+    */
+   private static final class Ring {
+      final WeakReference<Thread> mOwner;
+      final long mThreadId;
+      final int mGeneration;
+      final int mCookieBase;
+      final AtomicReferenceArray<OperationLogEntry> mEntries =
+          new AtomicReferenceArray<OperationLogEntry>(RING_SIZE);
+      int mSequence;
+
+      Ring(Thread owner, int generation, int ringId) {
+         mOwner = new WeakReference<Thread>(owner);
+         mThreadId = owner.getId();
+         mGeneration = generation;
+         mCookieBase = (ringId & RING_ID_MASK) << COOKIE_SEQUENCE_BITS;
+      }
 
-   private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
+      int nextCookie() {
+         mSequence = (mSequence + 1) & COOKIE_SEQUENCE_MASK;
+         return mCookieBase | mSequence;
+      }
+
+      boolean isOwnerAlive() {
+         Thread owner = mOwner.get();
+         return owner != null && owner.isAlive();
+      }
+   }
 
    private final String appName;
-   private int mIndex;
-   private int mGeneration;
+   private final OperationStatistics mStatistics = new OperationStatistics();
+   private final ConcurrentLinkedQueue<Ring> mRings = new ConcurrentLinkedQueue<Ring>();
+   private final ThreadLocal<Ring> mRing = new ThreadLocal<Ring>();
+   private final AtomicInteger mNextRingId = new AtomicInteger();
+   /**
+    * Incremented by {@link #clearOperations()}; threads start a new ring when
+    * they next begin an operation.
+    */
+   private volatile int mGeneration;
+
+   private final Object mActivityLock = new Object();
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mActivityLock
    *
    * tracks the number of opens in the last 65 seconds
    */
@@ -49,7 +127,7 @@ public final class OperationLog {
   private int lastOpenIdx = 0;
 
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mActivityLock
    *
    * tracks the number of closes in the last 65 seconds
    */
@@ -65,88 +143,45 @@ public final class OperationLog {
     * Invoked when AppNameSharedStateContainer becomes empty
     */
    public void clearOperations() {
-      synchronized (mOperations) {
-         for ( int i = 0 ; i < mOperations.length ; ++i ) {
-            mOperations[i] = null;
-         }
+      synchronized (mActivityLock) {
+         ++mGeneration;
+         mRings.clear();
       }
    }
 
    public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
-      synchronized (mOperations) {
-         final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
-         OperationLogEntry operation = mOperations[index];
-         if (operation == null) {
-            operation = new OperationLogEntry();
-            mOperations[index] = operation;
-         } else {
-            operation.mFinished = false;
-            operation.mThrowable = null;
-            if (operation.mBindArgs != null) {
-               operation.mBindArgs.clear();
-            }
-         }
-         operation.mSessionQualifier = sessionQualifier;
-         operation.mStartTime = System.currentTimeMillis();
-         operation.mKind = kind;
-         operation.mThreadId = Thread.currentThread().getId();
-         operation.mSql = sql;
-         if (bindArgs != null) {
-            if (operation.mBindArgs == null) {
-               operation.mBindArgs = new ArrayList<Object>();
-            } else {
-               operation.mBindArgs.clear();
-            }
-            for (int i = 0; i < bindArgs.length; i++) {
-               final Object arg = bindArgs[i];
-               if (arg != null && arg instanceof byte[]) {
-                  // Don't hold onto the real byte array longer than necessary.
-                  operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
-               } else {
-                  operation.mBindArgs.add(arg);
-               }
-            }
-         }
-         operation.mCookie = newOperationCookieLocked(index);
-         mIndex = index;
-         return operation.mCookie;
-      }
+      final Ring ring = getRingForCurrentThread();
+      final int cookie = ring.nextCookie();
+      // bindArgs are only copied if the entry is described
+      ring.mEntries.set(cookie & RING_MASK, new OperationLogEntry(cookie, ring.mThreadId,
+          sessionQualifier, kind, sql, bindArgs, System.nanoTime()));
+      return cookie;
    }
 
    public void failOperation(int cookie, Throwable t) {
-      String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
-         operation.mThrowable = t;
-         logString = logOperationLocked(operation, null);
-      }
-      if (logString != null) {
+         operation.setThrowable(t);
          WebLogger.getLogger(appName).i("operationLog",
-             "failOperation: " + logString);
+             "failOperation: " + describeOperation(operation, null));
       }
       // silently ignore if not found -- we are processing requests too fast!
    }
 
    public void endOperation(int cookie) {
-      String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      if (operation != null) {
-         if (endOperationDeferLogLocked(operation)) {
-            logString = logOperationLocked(operation, null);
-         }
-      }
-      if ( logString != null ) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null && endOperationDeferLog(operation)) {
          WebLogger.getLogger(appName).i("operationLog",
-             "endOperation (long runtime): " + logString);
+             "endOperation (long runtime): " + describeOperation(operation, null));
       }
       // silently ignore if not found -- we are processing requests too fast!
    }
 
    public void endOperationDeferLogAdditional(int cookie, String logString) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       boolean shouldLog = false;
       if (operation != null) {
-         shouldLog = endOperationDeferLogLocked(operation);
+         shouldLog = endOperationDeferLog(operation);
       }
       if ( logString != null && shouldLog ) {
          WebLogger.getLogger(appName).i("operationLog",
@@ -155,11 +190,39 @@ public final class OperationLog {
       // silently ignore if not found -- we are processing requests too fast!
    }
 
+   /**
+    * Record the size of the result set returned by a query operation.
+    *
+    * @param cookie
+    * @param rowCount
+    * @param byteCount the approximate size of the rows as held in memory
+    */
+   public void recordResultSet(int cookie, long rowCount, long byteCount) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null) {
+         operation.setResultSet(rowCount, byteCount);
+      }
+      // silently ignore if not found -- we are processing requests too fast!
+   }
+
+   /**
+    * Record a lookup in a connection's prepared statement cache.
+    *
+    * @param hit true if a cached statement was reused
+    */
+   public void recordStatementCacheLookup(boolean hit) {
+      mStatistics.recordStatementCacheLookup(hit);
+   }
+
+   public OperationStatistics getStatistics() {
+      return mStatistics;
+   }
+
   /**
    * Function to track the number of new connection opens within the last 65 seconds
    */
   public void tickOpen() {
-    synchronized (mOperations) {
+    synchronized (mActivityLock) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -176,7 +239,7 @@ public final class OperationLog {
    * Function to track the number of connection closes within the last 65 seconds
    */
   public void tickClose() {
-    synchronized (mOperations) {
+    synchronized (mActivityLock) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -190,31 +253,35 @@ public final class OperationLog {
   }
 
    public void logOperation(int cookie, String detail) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      String logString = null;
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
-         logString = logOperationLocked(operation, detail);
-      }
-      if (logString != null) {
-         WebLogger.getLogger(appName).i("operationLog", logString);
+         WebLogger.getLogger(appName).i("operationLog", describeOperation(operation, detail));
       }
       // silently ignore if not found -- we are processing requests too fast!
    }
 
+   /**
+    * @return the most recently started operation that has not yet finished,
+    * across all threads, or null if there is none.
+    */
    public String describeCurrentOperation() {
-      synchronized (mOperations) {
-         final OperationLogEntry operation = mOperations[mIndex];
-         if (operation != null && !operation.mFinished) {
-            StringBuilder msg = new StringBuilder();
-            operation.describe(msg, false);
-            return msg.toString();
+      OperationLogEntry current = null;
+      for (OperationLogEntry operation : snapshotOperations()) {
+         if (!operation.isFinished()) {
+            current = operation;
+            break;
          }
-         return null;
       }
+      if (current != null) {
+         StringBuilder msg = new StringBuilder();
+         current.describe(msg, false);
+         return msg.toString();
+      }
+      return null;
    }
 
    public void dump(StringBuilder b, boolean verbose) {
-      synchronized (mOperations) {
+      synchronized (mActivityLock) {
         //////////////////////////////////////////////////////
         // Display a time histogram of the number of opens and closes
         // in the last 65 seconds.
@@ -245,54 +312,52 @@ public final class OperationLog {
 
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
+      }
 
-        b.append("  Most recently executed operations:\n");
-         int index = mIndex;
-         OperationLogEntry operation = mOperations[index];
-         if (operation != null) {
-            int n = 0;
-            do {
-               b.append(" ").append(n).append(": ");
-               operation.describe(b, verbose);
-               b.append("\n");
-               if (index > 0) {
-                  index -= 1;
-               } else {
-                  index = MAX_RECENT_OPERATIONS - 1;
-               }
-               n += 1;
-               operation = mOperations[index];
-            } while (operation != null && n < MAX_RECENT_OPERATIONS);
-         } else {
-            b.append("    <none>\n");
+      mStatistics.dump(b, verbose);
+
+      b.append("  Most recently executed operations:\n");
+      List<OperationLogEntry> operations = snapshotOperations();
+      if (operations.isEmpty()) {
+         b.append("    <none>\n");
+      } else {
+         int n = 0;
+         for (OperationLogEntry operation : operations) {
+            if (n == MAX_RECENT_OPERATIONS) {
+               break;
+            }
+            b.append(" ").append(n).append(": ");
+            operation.describe(b, verbose);
+            b.append("\n");
+            n += 1;
          }
       }
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Marks the operation as finished and records it in the statistics.
+    * Called only on the thread that owns the operation.
     *
     * @param operation
-    * @return
+    * @return true if the operation ran long enough that it should be logged
     */
-   private boolean endOperationDeferLogLocked(OperationLogEntry operation) {
-      if (operation != null) {
-         if ( !operation.mFinished ) {
-            operation.mEndTime = System.currentTimeMillis();
-            operation.mFinished = true;
-         }
-         return SQLiteDebug.shouldLogSlowQuery(operation.mEndTime - operation.mStartTime);
+   private boolean endOperationDeferLog(OperationLogEntry operation) {
+      if ( !operation.isFinished() ) {
+         operation.finish(System.nanoTime());
+         mStatistics.record(operation.mKind, operation.mSql,
+             (operation.getEndNanos() - operation.mStartNanos) / 1000L,
+             operation.getThrowable() != null, operation.getRowCount(), operation.getByteCount());
       }
-      return false;
+      return SQLiteDebug.shouldLogSlowQuery(operation.getElapsedMillis());
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Called only on the thread that owns the operation.
     *
     * @param operation
     * @param detail
     */
-   private String logOperationLocked(OperationLogEntry operation, String detail) {
+   private String describeOperation(OperationLogEntry operation, String detail) {
       StringBuilder msg = new StringBuilder();
       operation.describe(msg, false);
       if (detail != null) {
@@ -301,34 +366,59 @@ public final class OperationLog {
       return msg.toString();
    }
 
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param index
-    * @return
-    */
-   private int newOperationCookieLocked(int index) {
-      final int generation = mGeneration++;
-      return generation << COOKIE_GENERATION_SHIFT | index;
+   private Ring getRingForCurrentThread() {
+      Ring ring = mRing.get();
+      final int generation = mGeneration;
+      if (ring == null || ring.mGeneration != generation) {
+         ring = new Ring(Thread.currentThread(), generation, mNextRingId.getAndIncrement());
+         mRing.set(ring);
+         if (mRings.size() >= MAX_RINGS) {
+            Iterator<Ring> it = mRings.iterator();
+            while (it.hasNext()) {
+               if (!it.next().isOwnerAlive()) {
+                  it.remove();
+               }
+            }
+         }
+         mRings.add(ring);
+      }
+      return ring;
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
     * @param cookie
-    * @return
+    * @return the operation, if the cookie was issued on the calling thread and
+    * its entry has not since been reused.
     */
-   private OperationLogEntry getOperationLocked(int cookie) {
-     final int index = cookie & COOKIE_INDEX_MASK;
-     synchronized (mOperations) {
-       if (index >= mOperations.length) {
-         return null;
-       }
-       final OperationLogEntry operation = mOperations[index];
-       if (operation == null) {
+   private OperationLogEntry getOperation(int cookie) {
+      final Ring ring = mRing.get();
+      if (ring == null) {
          return null;
-       }
-       return operation.mCookie == cookie ? operation : null;
-     }
+      }
+      final OperationLogEntry operation = ring.mEntries.get(cookie & RING_MASK);
+      return (operation != null && operation.mCookie == cookie) ? operation : null;
+   }
+
+   /**
+    * @return the operations in all of the rings, most recently started first.
+    */
+   private List<OperationLogEntry> snapshotOperations() {
+      List<OperationLogEntry> operations = new ArrayList<OperationLogEntry>();
+      for (Ring ring : mRings) {
+         for (int i = 0; i < RING_SIZE; ++i) {
+            OperationLogEntry entry = ring.mEntries.get(i);
+            if (entry != null) {
+               operations.add(entry);
+            }
+         }
+      }
+      Collections.sort(operations, new Comparator<OperationLogEntry>() {
+         @Override
+         public int compare(OperationLogEntry lhs, OperationLogEntry rhs) {
+            long diff = rhs.mStartNanos - lhs.mStartNanos;
+            return (diff == 0L) ? 0 : ((diff > 0L) ? 1 : -1);
+         }
+      });
+      return operations;
    }
 }
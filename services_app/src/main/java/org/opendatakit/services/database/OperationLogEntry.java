@@ -18,11 +18,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
 /**
+ * An operation in one of the per-thread rings of an {@link OperationLog}.
+ * <p>
+ * Only the thread that began the operation changes it, in place, so that
+ * recording its result set, failure and end allocates nothing. Other threads
+ * read it without locking: the end time is written before the volatile
+ * finished flag, and is only read once that flag has been seen set.
+ * <p>
+ * The bind args are the caller's own array, not a copy; they are copied,
+ * and formatted, only when the entry is described. An entry therefore shows
+ * the array as it is when it is read, and keeps its values (including any
+ * byte[]) reachable until the ring slot is reused.
+ *
  * @author mitchellsundt@gmail.com
  */
 final class OperationLogEntry {
@@ -40,39 +51,111 @@ final class OperationLogEntry {
      b.append(restrictedDateFormat.format(new Date(startTime)));
    }
 
-   public long mThreadId;
-   public String mSessionQualifier;
-   public long mStartTime;
-   public long mEndTime;
-   public String mKind;
-   public String mSql;
-   public ArrayList<Object> mBindArgs;
-   public boolean mFinished;
-   public Throwable mThrowable;
-   public int mCookie;
+   public final long mThreadId;
+   public final String mSessionQualifier;
+   public final long mStartNanos;
+   public final String mKind;
+   public final String mSql;
+   /**
+    * The caller's bind args. Never modified here.
+    */
+   public final Object[] mBindArgs;
+   public final int mCookie;
+
+   // written only by the thread that began the operation
+   private long mEndNanos;
+   private volatile long mRowCount = -1L;
+   private volatile long mByteCount = -1L;
+   private volatile Throwable mThrowable;
+   private volatile boolean mFinished;
+
+   /**
+    * A running operation.
+    */
+   OperationLogEntry(int cookie, long threadId, String sessionQualifier, String kind, String sql,
+       Object[] bindArgs, long startNanos) {
+      mCookie = cookie;
+      mThreadId = threadId;
+      mSessionQualifier = sessionQualifier;
+      mKind = kind;
+      mSql = sql;
+      mBindArgs = bindArgs;
+      mStartNanos = startNanos;
+   }
+
+   void setResultSet(long rowCount, long byteCount) {
+      mRowCount = rowCount;
+      mByteCount = byteCount;
+   }
+
+   void setThrowable(Throwable throwable) {
+      mThrowable = throwable;
+   }
+
+   void finish(long endNanos) {
+      mEndNanos = endNanos;
+      // publishes mEndNanos
+      mFinished = true;
+   }
+
+   public boolean isFinished() {
+      return mFinished;
+   }
+
+   /**
+    * Valid once {@link #isFinished()}.
+    */
+   public long getEndNanos() {
+      return mEndNanos;
+   }
+
+   public long getRowCount() {
+      return mRowCount;
+   }
+
+   public long getByteCount() {
+      return mByteCount;
+   }
+
+   public Throwable getThrowable() {
+      return mThrowable;
+   }
+
+   public long getElapsedMillis() {
+      return ((mFinished ? mEndNanos : System.nanoTime()) - mStartNanos) / 1000000L;
+   }
 
    public void describe(StringBuilder msg, boolean verbose) {
+      final boolean finished = mFinished;
+      final long rowCount = mRowCount;
+      final Throwable throwable = mThrowable;
       msg.append(mKind);
-      if (mFinished) {
-         msg.append(" took ").append(mEndTime - mStartTime).append("ms");
+      if (finished) {
+         msg.append(" took ").append(getElapsedMillis()).append("ms");
       } else {
-         msg.append(" started ").append(System.currentTimeMillis() - mStartTime)
-             .append("ms ago");
+         msg.append(" started ").append(getElapsedMillis()).append("ms ago");
+      }
+      msg.append(" - ").append(getStatus(finished, throwable));
+      if (rowCount >= 0) {
+         msg.append(", ").append(rowCount).append(" rows, ").append(mByteCount).append(" bytes");
       }
-      msg.append(" - ").append(getStatus());
       msg.append("\n      threadId:").append(mThreadId)
           .append(", sessionQualifier:").append(mSessionQualifier);
       msg.append(", startTime:");
-      getFormattedStartTime(msg, mStartTime);
+      // only the monotonic clock is read while recording; convert on display
+      getFormattedStartTime(msg,
+          System.currentTimeMillis() - (System.nanoTime() - mStartNanos) / 1000000L);
       if (mSql != null) {
          msg.append(", sql=\"")
              .append(AppNameSharedStateContainer.trimSqlForDisplay(mSql)).append("\"");
       }
-      if (verbose && mBindArgs != null && mBindArgs.size() != 0) {
+      if (verbose && mBindArgs != null && mBindArgs.length != 0) {
+         // the caller may be reusing its array
+         final Object[] bindArgs = mBindArgs.clone();
          msg.append(", bindArgs=[");
-         final int count = mBindArgs.size();
+         final int count = bindArgs.length;
          for (int i = 0; i < count; i++) {
-            final Object arg = mBindArgs.get(i);
+            final Object arg = bindArgs[i];
             if (i != 0) {
                msg.append(", ");
             }
@@ -88,15 +171,15 @@ final class OperationLogEntry {
          }
          msg.append("]");
       }
-      if (mThrowable != null) {
-         msg.append("\n      throwable=\"").append(mThrowable.getMessage()).append("\"");
+      if (throwable != null) {
+         msg.append("\n      throwable=\"").append(throwable.getMessage()).append("\"");
          msg.append("\n--------begin stacktrace----------\n");
          {
             ByteArrayOutputStream ba = new ByteArrayOutputStream();
             PrintStream w;
             try {
                w = new PrintStream(ba, false, "UTF-8");
-               mThrowable.printStackTrace(w);
+               throwable.printStackTrace(w);
                w.flush();
                w.close();
                msg.append(ba.toString("UTF-8")).append("\n--------end stacktrace----------");
@@ -108,10 +191,10 @@ final class OperationLogEntry {
       }
    }
 
-   private String getStatus() {
-      if (!mFinished) {
+   private static String getStatus(boolean finished, Throwable throwable) {
+      if (!finished) {
          return "running";
       }
-      return mThrowable != null ? "failed" : "succeeded";
+      return throwable != null ? "failed" : "succeeded";
    }
 }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregate statistics over the operations recorded in an {@link OperationLog}:
+ * latency histograms per kind of operation (e.g., executeForCursor,
+ * beginTransactionNonExclusive()) and per SQL template, the rows returned and
+ * bytes materialized by queries, and the hit ratio of the prepared statement
+ * caches of the app's connections.
+ * <p>
+ * SQL templates are the statements with their literals replaced by ? and
+ * their whitespace collapsed. At most {@link #MAX_SQL_TEMPLATES} distinct
+ * templates are tracked; any others are counted together.
+ * <p>
+ * Thread-safe. The recording path is lock-free but for the memo of SQL
+ * templates, whose lock is held only to look up or add an entry.
+ */
+public final class OperationStatistics {
+
+  static final int MAX_SQL_TEMPLATES = 200;
+  static final String OTHER_SQL_TEMPLATE = "<other statements>";
+
+  /**
+   * Number of SQL templates listed by {@link #dump(StringBuilder, boolean)}
+   * when not verbose.
+   */
+  private static final int DUMP_SQL_TEMPLATES = 25;
+
+  /**
+   * Bound on the memo of sql to template, which saves re-running the regular
+   * expressions for statements that are executed repeatedly. The least
+   * recently used statements are evicted.
+   */
+  static final int MAX_MEMOIZED_SQL = 1000;
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMERIC_LITERAL =
+      Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?(?![\\w.])");
+  private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+  /**
+   * The statistics of one kind of operation or SQL template.
+   */
+  public static final class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+
+    void record(long micros, boolean failed, long rowCount, long byteCount) {
+      latency.record(micros);
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      if (rowCount > 0L) {
+        rows.addAndGet(rowCount);
+      }
+      if (byteCount > 0L) {
+        bytes.addAndGet(byteCount);
+      }
+    }
+
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public long getFailures() {
+      return failures.get();
+    }
+
+    public long getRows() {
+      return rows.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+  }
+
+  private final ConcurrentHashMap<String, Stats> byKind = new ConcurrentHashMap<String, Stats>();
+  private final ConcurrentHashMap<String, Stats> bySqlTemplate =
+      new ConcurrentHashMap<String, Stats>();
+  // guarded by itself; access-ordered, so that the eldest entry is the least recently used
+  private final LinkedHashMap<String, String> sqlTemplates =
+      new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_MEMOIZED_SQL;
+        }
+      };
+  private final AtomicLong statementCacheHits = new AtomicLong();
+  private final AtomicLong statementCacheMisses = new AtomicLong();
+
+  /**
+   * Record a completed operation.
+   *
+   * @param kind      the kind passed to OperationLog.beginOperation()
+   * @param sql       the sql passed to OperationLog.beginOperation(), or null
+   * @param micros    the duration of the operation
+   * @param failed    true if the operation threw
+   * @param rowCount  the rows returned, or -1 if not a query
+   * @param byteCount the bytes materialized for those rows, or -1 if not a query
+   */
+  public void record(String kind, String sql, long micros, boolean failed, long rowCount,
+      long byteCount) {
+    if (kind != null) {
+      statsFor(byKind, kindOf(kind), Integer.MAX_VALUE)
+          .record(micros, failed, rowCount, byteCount);
+    }
+    if (sql != null) {
+      statsFor(bySqlTemplate, templateOf(sql), MAX_SQL_TEMPLATES)
+          .record(micros, failed, rowCount, byteCount);
+    }
+  }
+
+  /**
+   * Record a lookup in a connection's prepared statement cache.
+   *
+   * @param hit true if a cached statement was reused
+   */
+  public void recordStatementCacheLookup(boolean hit) {
+    if (hit) {
+      statementCacheHits.incrementAndGet();
+    } else {
+      statementCacheMisses.incrementAndGet();
+    }
+  }
+
+  public Map<String, Stats> getKindStatistics() {
+    return Collections.unmodifiableMap(byKind);
+  }
+
+  public Map<String, Stats> getSqlTemplateStatistics() {
+    return Collections.unmodifiableMap(bySqlTemplate);
+  }
+
+  public long getStatementCacheHits() {
+    return statementCacheHits.get();
+  }
+
+  public long getStatementCacheMisses() {
+    return statementCacheMisses.get();
+  }
+
+  public void clear() {
+    byKind.clear();
+    bySqlTemplate.clear();
+    synchronized (sqlTemplates) {
+      sqlTemplates.clear();
+    }
+    statementCacheHits.set(0L);
+    statementCacheMisses.set(0L);
+  }
+
+  private static Stats statsFor(ConcurrentHashMap<String, Stats> map, String key,
+      int maxEntries) {
+    Stats stats = map.get(key);
+    if (stats == null) {
+      if (map.size() >= maxEntries) {
+        key = OTHER_SQL_TEMPLATE;
+        stats = map.get(key);
+      }
+      if (stats == null) {
+        Stats newStats = new Stats();
+        stats = map.putIfAbsent(key, newStats);
+        if (stats == null) {
+          stats = newStats;
+        }
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * The kind of an operation, without its arguments; e.g., the kind of
+   * <code>delete("mytable",...)</code> is <code>delete</code>.
+   */
+  static String kindOf(String kind) {
+    int idx = kind.indexOf('(');
+    return (idx > 0) ? kind.substring(0, idx) : kind;
+  }
+
+  String templateOf(String sql) {
+    String template;
+    synchronized (sqlTemplates) {
+      template = sqlTemplates.get(sql);
+    }
+    if (template == null) {
+      // run the regular expressions outside the lock
+      template = toSqlTemplate(sql);
+      synchronized (sqlTemplates) {
+        sqlTemplates.put(sql, template);
+      }
+    }
+    return template;
+  }
+
+  boolean isMemoized(String sql) {
+    synchronized (sqlTemplates) {
+      return sqlTemplates.containsKey(sql);
+    }
+  }
+
+  /**
+   * Replace the literals in a SQL statement with ?, collapse lists of
+   * parameters (e.g., IN (?,?,?)) to a single (?...) and collapse whitespace.
+   */
+  static String toSqlTemplate(String sql) {
+    String template = STRING_LITERAL.matcher(sql).replaceAll("?");
+    template = NUMERIC_LITERAL.matcher(template).replaceAll("?");
+    template = WHITESPACE.matcher(template).replaceAll(" ").trim();
+    template = PARAMETER_LIST.matcher(template).replaceAll("(?...)");
+    return template;
+  }
+
+  /**
+   * Append a report of the statistics.
+   *
+   * @param b
+   * @param verbose true to list every SQL template rather than the most costly
+   */
+  public void dump(StringBuilder b, boolean verbose) {
+    long hits = statementCacheHits.get();
+    long misses = statementCacheMisses.get();
+    b.append("  Prepared statement cache: ").append(hits).append(" hits, ").append(misses)
+        .append(" misses");
+    if (hits + misses != 0L) {
+      b.append(String.format(Locale.US, " (%1$.1f%% hit ratio)", (100.0 * hits) / (hits + misses)));
+    }
+    b.append("\n\n");
+
+    b.append("  Latency by operation kind (ms):\n");
+    dumpStats(b, byKind, Integer.MAX_VALUE);
+    b.append("\n  Latency by SQL template (ms), by total time:\n");
+    dumpStats(b, bySqlTemplate, verbose ? Integer.MAX_VALUE : DUMP_SQL_TEMPLATES);
+    b.append("\n");
+  }
+
+  private static void dumpStats(StringBuilder b, Map<String, Stats> map, int limit) {
+    List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(map.entrySet());
+    if (entries.isEmpty()) {
+      b.append("    <none>\n");
+      return;
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+      @Override
+      public int compare(Map.Entry<String, Stats> lhs, Map.Entry<String, Stats> rhs) {
+        long l = lhs.getValue().latency.getTotalMicros();
+        long r = rhs.getValue().latency.getTotalMicros();
+        return (l == r) ? lhs.getKey().compareTo(rhs.getKey()) : ((l > r) ? -1 : 1);
+      }
+    });
+    b.append("      count   failed     total      mean       p50       p90       p99       max"
+        + "       rows      bytes\n");
+    int n = 0;
+    for (Map.Entry<String, Stats> e : entries) {
+      if (n++ == limit) {
+        b.append("    ... ").append(entries.size() - limit).append(" more\n");
+        break;
+      }
+      Stats s = e.getValue();
+      LatencyHistogram h = s.latency;
+      b.append(String.format(Locale.US,
+          "  %1$9d %2$8d %3$9.1f %4$9.3f %5$9.3f %6$9.3f %7$9.3f %8$9.3f %9$10d %10$10d  ",
+          h.getTotalCount(), s.failures.get(), h.getTotalMicros() / 1000.0,
+          h.getMeanMicros() / 1000.0, h.getValueAtPercentile(50.0) / 1000.0,
+          h.getValueAtPercentile(90.0) / 1000.0, h.getValueAtPercentile(99.0) / 1000.0,
+          h.getMaxMicros() / 1000.0, s.rows.get(), s.bytes.get()));
+      b.append(e.getKey()).append("\n");
+    }
+  }
+}
@@ -23,7 +23,10 @@ import org.opendatakit.database.service.DbChunk;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OperationStatistics;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +36,13 @@ public final class OdkDatabaseService extends Service {
 
   private static final String LOGTAG = OdkDatabaseService.class.getSimpleName();
 
+  /**
+   * dump() argument that selects the machine-readable report of the number of
+   * operations of each kind executed on an appName's database. See
+   * {@link #dump(FileDescriptor, PrintWriter, String[])}.
+   */
+  public static final String OPERATION_COUNTS_ARG = "--operation-counts";
+
   // A place to store pieces of large tables or other return values that won't fit across the
   // AIDL call
   private Map<UUID, DbChunk> parceledChunks;
@@ -96,6 +106,51 @@ public final class OdkDatabaseService extends Service {
     parceledChunks = null;
   }
 
+  /**
+   * Diagnostic reports on the state of the database layer. Retrieve them from a
+   * device with:
+   * <pre>
+   * adb shell dumpsys activity service org.opendatakit.services/.database.service.OdkDatabaseService [args]
+   * </pre>
+   * <ul>
+   * <li>With no arguments, the human-readable report of the open connections
+   * and, per appName, the latency histograms, result sizes and statement cache
+   * hit ratios of the SQL operations and the most recent operations.</li>
+   * <li>With the arguments <code>--operation-counts appName</code>, the number
+   * of operations of each kind executed on that appName's database since its
+   * statistics were created, one <code>kind count</code> pair per line, and
+   * nothing if the appName has no open database. This format is stable so that
+   * scripts and tests can compare the counts taken before and after an
+   * activity.</li>
+   * </ul>
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    if (args != null && args.length == 2 && OPERATION_COUNTS_ARG.equals(args[0])) {
+      dumpOperationCounts(writer, args[1]);
+      writer.flush();
+      return;
+    }
+    StringBuilder b = new StringBuilder();
+    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().dumpInfo(b);
+    writer.print(b.toString());
+    writer.flush();
+  }
+
+  private void dumpOperationCounts(PrintWriter writer, String appName) {
+    OperationStatistics statistics = OdkConnectionFactorySingleton
+        .getOdkConnectionFactoryInterface().getOperationStatistics(appName);
+    if (statistics == null) {
+      return;
+    }
+    for (Map.Entry<String, OperationStatistics.Stats> e : statistics.getKindStatistics()
+        .entrySet()) {
+      writer.print(e.getKey());
+      writer.print(' ');
+      writer.println(e.getValue().getLatency().getTotalCount());
+    }
+  }
+
   /**
    * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
    *
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import android.os.Build;
+import android.os.FileObserver;
+
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the form directories of a table whose formDef.json may have
+ * changed since the table was last scanned by FormTableUtils.updateFormDir.
+ * <p>
+ * inotify events are delivered asynchronously, so a change made just before a
+ * scan may not have been recorded yet. The scan therefore still compares the
+ * size and modification time of every formDef.json against the forms table;
+ * the forms recorded here are re-hashed even when those match, which catches
+ * rewrites that land within the file system's timestamp granularity.
+ */
+final class FormDirChangeTracker {
+
+  private static final int FORMS_FOLDER_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+      | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF
+      | FileObserver.MOVE_SELF;
+
+  private static final int FORM_DIR_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.CREATE
+      | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+      | FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+  /**
+   * The observers of one table: one on the table's forms folder and one per
+   * form directory. Observers stop watching when garbage collected, so they
+   * are held here.
+   */
+  private static class TableWatch {
+    FileObserver formsFolderObserver;
+    final Map<String, FileObserver> formDirObservers = new HashMap<String, FileObserver>();
+    final Set<String> dirtyFormIds = new HashSet<String>();
+  }
+
+  private static final Map<String, TableWatch> watches = new HashMap<String, TableWatch>();
+
+  /**
+   * Receives the events of an observer created by {@link #newObserver}.
+   */
+  private interface EventListener {
+    void onEvent(int event, String path);
+  }
+
+  private FormDirChangeTracker() {
+  }
+
+  /**
+   * The String constructor of FileObserver is deprecated from API 29 (Q),
+   * and the File constructor does not exist before it.
+   */
+  private static FileObserver newObserver(String path, int mask, final EventListener listener) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      return new FileObserver(new File(path), mask) {
+        @Override
+        public void onEvent(int event, String path) {
+          listener.onEvent(event, path);
+        }
+      };
+    }
+    return newLegacyObserver(path, mask, listener);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static FileObserver newLegacyObserver(String path, int mask,
+      final EventListener listener) {
+    return new FileObserver(path, mask) {
+      @Override
+      public void onEvent(int event, String path) {
+        listener.onEvent(event, path);
+      }
+    };
+  }
+
+  private static String key(String appName, String tableId) {
+    return appName + File.separator + tableId;
+  }
+
+  /**
+   * Return the formIds of this table that were changed since the last call,
+   * and clear them. Changes that arrive after this call are reported by the
+   * next one.
+   *
+   * @param appName
+   * @param tableId
+   * @return the formIds to re-hash
+   */
+  static synchronized Set<String> takeDirtyFormIds(String appName, String tableId) {
+    TableWatch watch = watches.get(key(appName, tableId));
+    if (watch == null || watch.dirtyFormIds.isEmpty()) {
+      return new HashSet<String>();
+    }
+    Set<String> dirty = new HashSet<String>(watch.dirtyFormIds);
+    watch.dirtyFormIds.clear();
+    return dirty;
+  }
+
+  /**
+   * Watch the forms folder of the table and the given form directories,
+   * which are the ones found by the scan that just completed. Directories no
+   * longer present are no longer watched.
+   *
+   * @param appName
+   * @param tableId
+   * @param formIds
+   */
+  static synchronized void watch(String appName, String tableId, Set<String> formIds) {
+    final String key = key(appName, tableId);
+    TableWatch watch = watches.get(key);
+    if (watch == null) {
+      watch = new TableWatch();
+      watches.put(key, watch);
+    }
+
+    if (watch.formsFolderObserver == null) {
+      final String formsFolder = ODKFileUtils.getFormsFolder(appName, tableId);
+      if (!new File(formsFolder).isDirectory()) {
+        return;
+      }
+      watch.formsFolderObserver = newObserver(formsFolder, FORMS_FOLDER_EVENTS,
+          new EventListener() {
+            @Override
+            public void onEvent(int event, String path) {
+              if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                forget(key);
+              } else if (path != null) {
+                markDirty(key, path);
+              }
+            }
+          });
+      watch.formsFolderObserver.startWatching();
+    }
+
+    for (String formId : new HashSet<String>(watch.formDirObservers.keySet())) {
+      if (!formIds.contains(formId)) {
+        watch.formDirObservers.remove(formId).stopWatching();
+      }
+    }
+
+    for (final String formId : formIds) {
+      if (watch.formDirObservers.containsKey(formId)) {
+        continue;
+      }
+      FileObserver observer = newObserver(
+          ODKFileUtils.getFormFolder(appName, tableId, formId), FORM_DIR_EVENTS,
+          new EventListener() {
+            @Override
+            public void onEvent(int event, String path) {
+              if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0
+                  || ODKFileUtils.FORMDEF_JSON_FILENAME.equals(path)) {
+                markDirty(key, formId);
+              }
+            }
+          });
+      observer.startWatching();
+      watch.formDirObservers.put(formId, observer);
+    }
+  }
+
+  private static synchronized void markDirty(String key, String formId) {
+    TableWatch watch = watches.get(key);
+    if (watch != null) {
+      watch.dirtyFormIds.add(formId);
+    }
+  }
+
+  /**
+   * The forms folder itself went away; stop watching the table. The next scan
+   * finds the folder again (if it was recreated) and re-registers.
+   */
+  private static synchronized void forget(String key) {
+    TableWatch watch = watches.remove(key);
+    if (watch == null) {
+      return;
+    }
+    if (watch.formsFolderObserver != null) {
+      watch.formsFolderObserver.stopWatching();
+    }
+    for (FileObserver observer : watch.formDirObservers.values()) {
+      observer.stopWatching();
+    }
+  }
+}
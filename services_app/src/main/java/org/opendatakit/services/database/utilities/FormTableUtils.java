@@ -316,15 +316,19 @@ public class FormTableUtils {
     // 2. If the form exists, check if it has already been processed, as evidenced by being in the
     //    changedFormIds, processedFormIds, or duplicateFormIds lists. If it has, remove it
     //    from these and add it to the duplicateFormIds list.
-    // 2. If the form exists in both, if the md5 hash of the form is unchanged, then remove
-    //    it from the formDirs list, since the matching hash indicates that the file is unchanged
-    //    and the information in the forms table is valid. Add to processedFormIds.
+    // 2. If the form exists in both, if the size and modification time of the formDef.json
+    //    match those recorded in the forms table and the change tracker has not seen it
+    //    being written, or if the md5 hash of the form is unchanged, then remove it from the
+    //    formDirs list, since the file is unchanged and the information in the forms table
+    //    is valid. Add to processedFormIds.
     // 3. If the form exists in both, but the md5 hash has changed, add it to the changedFormIds
     //    and processedFormIds sets and remove it from the formDirs list. These forms need to be
     //    updated.
     // 4. Finally, at the end, the formDirs will contain only the forms to be inserted.
+    // forms whose formDef.json was written since the last scan, as far as we know.
+    Set<String> dirtyFormIds = FormDirChangeTracker.takeDirtyFormIds(appName, tableIdFilter);
+    Set<String> processedIds = new HashSet<String>();
     {
-      Set<String> processedIds = new HashSet<String>();
 
       // Get the database and run the query
       DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
@@ -363,11 +367,22 @@ public class FormTableUtils {
                   duplicateFormIds.add(formId);
                 } else {
                   // formdef.json exists. See if it is unchanged...
-                  String json_md5 = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.JSON_MD5_HASH));
-                  String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
-                  if (json_md5 == null || !json_md5.equals(fileMd5)) {
-                    // it HAS changed -- add it to the changed list
-                    changedFormIds.add(formId);
+                  Long date = CursorUtils.getIndexAsType(c, Long.class,
+                      c.getColumnIndex(FormsColumns.DATE));
+                  Long fileLength = CursorUtils.getIndexAsType(c, Long.class,
+                      c.getColumnIndex(FormsColumns.FILE_LENGTH));
+                  boolean statUnchanged = date != null && fileLength != null
+                      && date == formDefJson.lastModified()
+                      && fileLength == formDefJson.length();
+                  if (!statUnchanged || dirtyFormIds.contains(formId)) {
+                    String json_md5 = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.JSON_MD5_HASH));
+                    String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
+                    if (json_md5 == null || !json_md5.equals(fileMd5) || !statUnchanged) {
+                      // it HAS changed -- add it to the changed list
+                      // (an unchanged hash with a new timestamp also updates the
+                      // recorded timestamp so that the next scan can skip hashing)
+                      changedFormIds.add(formId);
+                    }
                   }
                   // remove it from the formDirs list
                   formDirs.remove(f);
@@ -437,6 +452,15 @@ public class FormTableUtils {
       insert(appName, tableIdFilter, formId);
     }
 
+    // watch the form directories for changes before the next scan
+    for (File formDir : formDirs) {
+      processedIds.add(formDir.getName());
+    }
+    for (String formId : badFormIds) {
+      processedIds.remove(formId);
+    }
+    FormDirChangeTracker.watch(appName, tableIdFilter, processedIds);
+
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " end");
     return true;
   }
@@ -105,6 +105,13 @@ public final class ODKDatabaseImplUtils {
 
   private static final String K_DATATABLE_ID_EQUALS_PARAM = DataTableColumns.ID + S_EQUALS_PARAM;
 
+  /**
+   * Temporary tables used by resolveServerConflictsForTable
+   */
+  private static final String K_RESOLVE_ROW_IDS = "temp._resolve_row_ids";
+  private static final String K_RESOLVE_SERVER_ROWS_NAME = "_resolve_server_rows";
+  private static final String K_RESOLVE_SERVER_ROWS = "temp." + K_RESOLVE_SERVER_ROWS_NAME;
+
   /**
    * Also store an immutable cache of the roles for a tables administrator.
    * These are used for privileged requests.
@@ -2268,6 +2275,9 @@ public final class ODKDatabaseImplUtils {
     db.execSQL(createTableCmdWithCols.toString(), null);
 
     if (isSynchronized) {
+      // keep the uploads table in step with the instances in this table
+      createUploadsTrigger(db, tableId);
+
       // Create the metadata for the table - table def and KVS
       createTableMetadata(db, tableId);
 
@@ -2278,6 +2288,101 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * @param tableId
+   * @return the name of the trigger that maintains the UPLOADS_TABLE_NAME
+   * entries for the given table.
+   */
+  private static String getUploadsTriggerName(String tableId) {
+    return DatabaseConstants.UPLOADS_TABLE_NAME + "_" + tableId;
+  }
+
+  /*
+   * Create the trigger that adds an UPLOADS_TABLE_NAME entry whenever a row
+   * for a new instance (rowId) is inserted into the data table. Entries are
+   * never removed by the trigger; the InstanceProvider only reports entries
+   * that still have a data row.
+   */
+  private static void createUploadsTrigger(OdkConnectionInterface db, String tableId) {
+    String quotedTableId = "'" + tableId.replace("'", "''") + "'";
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(getUploadsTriggerName(tableId))
+        .append(" AFTER INSERT ON ").append(tableId)
+        .append(" WHEN NOT EXISTS (SELECT 1 FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+          .append(" WHERE ").append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=")
+          .append(quotedTableId).append(" AND ").append(InstanceColumns.DATA_INSTANCE_ID)
+          .append("=NEW.").append(DataTableColumns.ID).append(")")
+        .append(" BEGIN INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") VALUES (NEW.")
+          .append(DataTableColumns.ID).append(",").append(quotedTableId).append("); END");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @return true if the trigger that maintains the UPLOADS_TABLE_NAME entries
+   * for this table exists.
+   */
+  public boolean hasUploadsTrigger(OdkConnectionInterface db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='trigger' AND name=?",
+          new String[] { getUploadsTriggerName(tableId) });
+      return c.moveToFirst();
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * One-time reconciliation of the UPLOADS_TABLE_NAME entries for a table
+   * created before they were maintained by a trigger: adds an entry for every
+   * instance that lacks one and creates the trigger, so that later writes keep
+   * the entries up to date.
+   *
+   * @param db
+   * @param tableId
+   */
+  public void reconcileUploadsTable(OdkConnectionInterface db, String tableId) {
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      StringBuilder b = new StringBuilder();
+      //@formatter:off
+      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") ")
+        .append("SELECT DISTINCT T.").append(DataTableColumns.ID).append(", ? FROM ")
+          .append(tableId).append(" AS T WHERE NOT EXISTS (SELECT 1 FROM ")
+          .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" AS U WHERE U.")
+          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=? AND U.")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append("=T.").append(DataTableColumns.ID)
+          .append(")");
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] { tableId, tableId });
+
+      createUploadsTrigger(db, tableId);
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
   /*
    * Create a new column metadata in the database - add column values to KVS and
    * column definitions
@@ -4701,6 +4806,408 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Resolve all the server conflicts of a table by taking either the local or
+   * the server changes of every conflicting row, in one transaction.
+   * <p/>
+   * The outcome for each row is the same as that of
+   * {@link #resolveServerConflictTakeLocalRowWithId} or
+   * {@link #resolveServerConflictTakeServerRowWithId}, but the conflict
+   * records and the table's security settings are read once, the row access
+   * restrictions are checked in memory, and the changes are applied to all
+   * rows with a few set-based statements.
+   * <p/>
+   * When taking the local changes, rows the user is not allowed to change (or
+   * delete) are left in conflict, as are rows that do not have exactly one
+   * local and one server conflict record. These are reported in the returned
+   * map and do not prevent the other rows from being resolved.
+   *
+   * @param db
+   * @param tableId
+   * @param takeLocal  true to take the local changes; false to take the server changes
+   * @param activeUser
+   * @param rolesList  only used when taking the local changes
+   * @param locale
+   * @return map of rowId to the reason that row was left in conflict
+   */
+  public Map<String, String> resolveServerConflictsForTable(OdkConnectionInterface db,
+      String tableId, boolean takeLocal, String activeUser, String rolesList, String locale) {
+
+    final String localUpdated = Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES);
+    final String localDeleted = Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES);
+    final String serverUpdated = Integer.toString(ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+    final String serverDeleted = Integer.toString(ConflictType.SERVER_DELETED_OLD_VALUES);
+
+    TreeMap<String, String> unresolved = new TreeMap<String, String>();
+    // rows whose local (or, when taking the server changes, server) record
+    // is an update and those whose record is a delete.
+    ArrayList<String> updatedIds = new ArrayList<String>();
+    ArrayList<String> deletedIds = new ArrayList<String>();
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+      List<String> rolesArray = getRolesArray(rolesList);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      // get the filter values of all the conflict records.
+      // the local record is always before the server record (due to conflict_type values)
+      ArrayList<String[]> records = new ArrayList<String[]>();
+      Cursor c = null;
+      try {
+        c = db.query(tableId,
+            new String[] { DataTableColumns.ID, DataTableColumns.CONFLICT_TYPE,
+                DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+                DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+                DataTableColumns.GROUP_PRIVILEGED },
+            DataTableColumns.CONFLICT_TYPE + S_IS_NOT_NULL, null, null, null,
+            DataTableColumns.ID + " ASC, " + DataTableColumns.CONFLICT_TYPE + " ASC", null);
+        while (c.moveToNext()) {
+          String[] record = new String[c.getColumnCount()];
+          for (int i = 0; i < record.length; ++i) {
+            record[i] = c.isNull(i) ? null : c.getString(i);
+          }
+          records.add(record);
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+
+      int start = 0;
+      while (start < records.size()) {
+        String rowId = records.get(start)[0];
+        int end = start + 1;
+        while (end < records.size() && rowId.equals(records.get(end)[0])) {
+          ++end;
+        }
+        String[] localRecord = records.get(start);
+        String[] serverRecord = records.get(end - 1);
+        boolean isPair = (end - start == 2);
+        start = end;
+
+        if (!isPair) {
+          unresolved.put(rowId,
+              "Did not find a server and local row when resolving conflicts for rowId: " + rowId);
+          continue;
+        }
+        String localConflictType = localRecord[1];
+        String serverConflictType = serverRecord[1];
+        if (!localConflictType.equals(localUpdated) && !localConflictType.equals(localDeleted)) {
+          unresolved.put(rowId,
+              "Did not find local conflict row when resolving conflicts for rowId: " + rowId);
+          continue;
+        }
+        if (!serverConflictType.equals(serverUpdated) && !serverConflictType
+            .equals(serverDeleted)) {
+          unresolved.put(rowId,
+              "Did not find server conflict row when resolving conflicts for rowId: " + rowId);
+          continue;
+        }
+
+        if (!takeLocal) {
+          // all users can always take the server's changes
+          if (serverConflictType.equals(serverDeleted)) {
+            deletedIds.add(rowId);
+          } else {
+            updatedIds.add(rowId);
+          }
+          continue;
+        }
+
+        try {
+          // the local record is restored to the 'changed' state and updated
+          // with the user's roles, as in resolveServerConflictTakeLocalRowWithId
+          String priorDefaultAccess = (localRecord[2] == null) ?
+              DataTableColumns.DEFAULT_DEFAULT_ACCESS : localRecord[2];
+          tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+              priorDefaultAccess, localRecord[3], localRecord[4], localRecord[5],
+              localRecord[6], RowChange.CHANGE_ROW);
+
+          if (localConflictType.equals(localDeleted)) {
+            // by the time the row is deleted, it carries the server's filter values
+            tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+                serverRecord[2], serverRecord[3], serverRecord[4], serverRecord[5],
+                serverRecord[6], RowChange.DELETE_ROW);
+            deletedIds.add(rowId);
+          } else {
+            updatedIds.add(rowId);
+          }
+        } catch (ActionNotAuthorizedException e) {
+          String msg = e.getMessage();
+          unresolved.put(rowId, (msg == null) ? e.toString() : msg);
+        }
+      }
+
+      if (takeLocal) {
+        resolveServerConflictsTakeLocal(db, tableId, orderedColumns, updatedIds, deletedIds,
+            activeUser, locale);
+      } else {
+        resolveServerConflictsTakeServer(db, tableId, orderedColumns, updatedIds, deletedIds,
+            activeUser, locale);
+      }
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (db != null) {
+        if (!inTransaction) {
+          db.endTransaction();
+        }
+      }
+    }
+
+    if (!takeLocal) {
+      // the local rows were physically deleted; the server's attachments
+      // will be fetched on the next sync.
+      ArrayList<String> rowIds = new ArrayList<String>(updatedIds);
+      rowIds.addAll(deletedIds);
+      for (String rowId : rowIds) {
+        File instanceFolder = new File(
+            ODKFileUtils.getInstanceFolder(db.getAppName(), tableId, rowId));
+        try {
+          ODKFileUtils.deleteDirectory(instanceFolder);
+        } catch (Exception e) {
+          WebLogger.getLogger(db.getAppName())
+              .e(t, "Unable to delete this directory: " + instanceFolder.getAbsolutePath());
+          WebLogger.getLogger(db.getAppName()).printStackTrace(e);
+        }
+      }
+    }
+    return unresolved;
+  }
+
+  /**
+   * Replace the contents of the temporary table of rowIds used by the bulk
+   * conflict resolution statements.
+   *
+   * @param db
+   * @param rowIds
+   */
+  private void setResolveRowIds(OdkConnectionInterface db, Collection<String> rowIds) {
+    db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + K_RESOLVE_ROW_IDS + " ("
+        + DataTableColumns.ID + " TEXT PRIMARY KEY)", null);
+    db.execSQL("DELETE FROM " + K_RESOLVE_ROW_IDS, null);
+    String sql = "INSERT INTO " + K_RESOLVE_ROW_IDS + " VALUES (?)";
+    for (String rowId : rowIds) {
+      db.execSQL(sql, new Object[] { rowId });
+    }
+  }
+
+  /**
+   * Bulk equivalent of resolveServerConflictTakeServerRowWithId. The rows
+   * have already been verified to have one local and one server conflict
+   * record.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param updatedIds rows where the server record is an update
+   * @param deletedIds rows where the server record is a delete
+   * @param activeUser
+   * @param locale
+   */
+  private void resolveServerConflictsTakeServer(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, List<String> updatedIds, List<String> deletedIds,
+      String activeUser, String locale) {
+
+    final String inRowIds = DataTableColumns.ID + " IN (SELECT " + DataTableColumns.ID
+        + " FROM " + K_RESOLVE_ROW_IDS + ")";
+    StringBuilder b = new StringBuilder();
+
+    if (!deletedIds.isEmpty()) {
+      // the server deleted the row: delete the local and the server records.
+      setResolveRowIds(db, deletedIds);
+      b.append("DELETE FROM ").append(tableId).append(K_WHERE).append(inRowIds);
+      db.execSQL(b.toString(), null);
+    }
+
+    if (!updatedIds.isEmpty()) {
+      // the server updated the row: delete the local record and turn the
+      // server record into the local row.
+      setResolveRowIds(db, updatedIds);
+
+      b.setLength(0);
+      b.append("DELETE FROM ").append(tableId).append(K_WHERE).append(inRowIds).append(S_AND)
+          .append("(").append(DataTableColumns.CONFLICT_TYPE).append(S_IS_NULL).append(" OR ")
+          .append(DataTableColumns.CONFLICT_TYPE).append(" <> ?)");
+      db.execSQL(b.toString(),
+          new Object[] { Integer.toString(ConflictType.SERVER_UPDATED_UPDATED_VALUES) });
+
+      // rows with non-null, non-empty file attachments on the server row are
+      // synced_pending_files so that the attachments are fetched on the next sync.
+      StringBuilder hasUriFragments = new StringBuilder();
+      for (ColumnDefinition cd : orderedColumns.getColumnDefinitions()) {
+        if (cd.getType().getDataType() != ElementDataType.rowpath) {
+          continue;
+        }
+        if (hasUriFragments.length() != 0) {
+          hasUriFragments.append(" OR ");
+        }
+        hasUriFragments.append("(").append(cd.getElementKey()).append(S_IS_NOT_NULL)
+            .append(S_AND).append(cd.getElementKey()).append(" <> '')");
+      }
+      if (hasUriFragments.length() == 0) {
+        hasUriFragments.append("0");
+      }
+
+      String timeStamp = TableConstants.nanoSecondsFromMillis(
+          System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
+
+      b.setLength(0);
+      //@formatter:off
+      b.append("UPDATE ").append(tableId).append(" SET ")
+        .append(DataTableColumns.CONFLICT_TYPE).append(" = null, ")
+        .append(DataTableColumns.SYNC_STATE).append(" = CASE WHEN ").append(hasUriFragments)
+          .append(" THEN ? ELSE ? END, ")
+        .append(DataTableColumns.ROW_ETAG).append(" = COALESCE(")
+          .append(DataTableColumns.ROW_ETAG).append(", ?), ")
+        .append(DataTableColumns.LOCALE).append(" = COALESCE(")
+          .append(DataTableColumns.LOCALE).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_TYPE).append(" = COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" = COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_CREATOR).append(" = COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append(", ?)")
+        .append(K_WHERE).append(inRowIds).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM);
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] {
+          SyncState.synced_pending_files.name(), SyncState.synced.name(),
+          DataTableColumns.DEFAULT_ROW_ETAG, locale, SavepointTypeManipulator.complete(),
+          timeStamp, activeUser, Integer.toString(ConflictType.SERVER_UPDATED_UPDATED_VALUES) });
+    }
+
+    db.execSQL("DROP TABLE IF EXISTS " + K_RESOLVE_ROW_IDS, null);
+  }
+
+  /**
+   * Bulk equivalent of resolveServerConflictTakeLocalRowWithId. The rows have
+   * already been verified to have one local and one server conflict record,
+   * and the user has been verified to be allowed to make the changes.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param updatedIds rows where the local record is an update
+   * @param deletedIds rows where the local record is a delete
+   * @param activeUser
+   * @param locale
+   */
+  private void resolveServerConflictsTakeLocal(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns, List<String> updatedIds, List<String> deletedIds,
+      String activeUser, String locale) {
+
+    if (updatedIds.isEmpty() && deletedIds.isEmpty()) {
+      return;
+    }
+
+    final String inRowIds = DataTableColumns.ID + " IN (SELECT " + DataTableColumns.ID
+        + " FROM " + K_RESOLVE_ROW_IDS + ")";
+
+    ArrayList<String> rowIds = new ArrayList<String>(updatedIds);
+    rowIds.addAll(deletedIds);
+    setResolveRowIds(db, rowIds);
+
+    // copy the server records aside, indexed by rowId, so that the local
+    // records can take values from them with one statement.
+    StringBuilder b = new StringBuilder();
+    db.execSQL("DROP TABLE IF EXISTS " + K_RESOLVE_SERVER_ROWS, null);
+    b.append("CREATE TEMP TABLE ").append(K_RESOLVE_SERVER_ROWS_NAME).append(" AS ")
+        .append(K_SELECT_FROM).append(tableId).append(K_WHERE).append(inRowIds).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?)");
+    Object[] serverConflictTypes = new Object[] {
+        Integer.toString(ConflictType.SERVER_DELETED_OLD_VALUES),
+        Integer.toString(ConflictType.SERVER_UPDATED_UPDATED_VALUES) };
+    db.execSQL(b.toString(), serverConflictTypes);
+    db.execSQL("CREATE INDEX temp." + K_RESOLVE_SERVER_ROWS_NAME + "_idx ON "
+        + K_RESOLVE_SERVER_ROWS_NAME + " (" + DataTableColumns.ID + ")", null);
+
+    String timeStamp = TableConstants.nanoSecondsFromMillis(
+        System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
+
+    // take the server's row ETag and filter values
+    StringBuilder common = new StringBuilder();
+    common.append(DataTableColumns.CONFLICT_TYPE).append(" = null, ")
+        .append(DataTableColumns.SYNC_STATE).append(" = ?");
+    for (String columnName : new String[] { DataTableColumns.ROW_ETAG,
+        DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+        DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+        DataTableColumns.GROUP_PRIVILEGED }) {
+      common.append(", ").append(columnName).append(" = ")
+          .append(serverRowValue(tableId, columnName));
+    }
+
+    if (!updatedIds.isEmpty()) {
+      // keep the local values, with the server's savepoint timestamp and creator
+      b.setLength(0);
+      //@formatter:off
+      b.append("UPDATE ").append(tableId).append(" SET ").append(common).append(", ")
+        .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" = COALESCE(")
+          .append(serverRowValue(tableId, DataTableColumns.SAVEPOINT_TIMESTAMP)).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_CREATOR).append(" = COALESCE(")
+          .append(serverRowValue(tableId, DataTableColumns.SAVEPOINT_CREATOR)).append(", ?)")
+        .append(K_WHERE).append(inRowIds).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM);
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] { SyncState.changed.name(), timeStamp, activeUser,
+          Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES) });
+    }
+
+    if (!deletedIds.isEmpty()) {
+      // take everything from the server row and mark it as deleted
+      b.setLength(0);
+      //@formatter:off
+      b.append("UPDATE ").append(tableId).append(" SET ").append(common).append(", ")
+        .append(DataTableColumns.FORM_ID).append(" = ")
+          .append(serverRowValue(tableId, DataTableColumns.FORM_ID)).append(", ")
+        .append(DataTableColumns.LOCALE).append(" = COALESCE(")
+          .append(serverRowValue(tableId, DataTableColumns.LOCALE)).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_TYPE).append(" = COALESCE(")
+          .append(serverRowValue(tableId, DataTableColumns.SAVEPOINT_TYPE)).append(", ?), ")
+        .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" = ?, ")
+        .append(DataTableColumns.SAVEPOINT_CREATOR).append(" = COALESCE(")
+          .append(serverRowValue(tableId, DataTableColumns.SAVEPOINT_CREATOR)).append(", ?)");
+      for (String elementKey : orderedColumns.getRetentionColumnNames()) {
+        b.append(", ").append(elementKey).append(" = ")
+          .append(serverRowValue(tableId, elementKey));
+      }
+      b.append(K_WHERE).append(inRowIds).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM);
+      //@formatter:on
+      db.execSQL(b.toString(), new Object[] { SyncState.deleted.name(), locale,
+          SavepointTypeManipulator.complete(), timeStamp, activeUser,
+          Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES) });
+    }
+
+    // and delete the server records
+    b.setLength(0);
+    b.append("DELETE FROM ").append(tableId).append(K_WHERE).append(inRowIds).append(S_AND)
+        .append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?)");
+    db.execSQL(b.toString(), serverConflictTypes);
+
+    db.execSQL("DROP TABLE IF EXISTS " + K_RESOLVE_SERVER_ROWS, null);
+    db.execSQL("DROP TABLE IF EXISTS " + K_RESOLVE_ROW_IDS, null);
+  }
+
+  /**
+   * @return the expression selecting the value of columnName in the copy of the
+   * server conflict record for the row being updated in tableId.
+   */
+  private static String serverRowValue(String tableId, String columnName) {
+    return "(SELECT S." + columnName + " FROM " + K_RESOLVE_SERVER_ROWS + " AS S WHERE S."
+        + DataTableColumns.ID + " = " + tableId + "." + DataTableColumns.ID + ")";
+  }
+
   /**
    * Inserts a checkpoint row for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
@@ -5968,6 +6475,11 @@ public final class ODKDatabaseImplUtils {
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", "starting");
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", DatabaseConstants.UPLOADS_TABLE_NAME);
     db.execSQL(InstanceColumns.getTableCreateSql(DatabaseConstants.UPLOADS_TABLE_NAME), null);
+    // the uploads triggers and the InstanceProvider look entries up by table and instance
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + DatabaseConstants.UPLOADS_TABLE_NAME
+        + "_instance_idx ON " + DatabaseConstants.UPLOADS_TABLE_NAME + " ("
+        + InstanceColumns.DATA_TABLE_TABLE_ID + "," + InstanceColumns.DATA_INSTANCE_ID + ")",
+        null);
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", DatabaseConstants.FORMS_TABLE_NAME);
     db.execSQL(FormsColumns.getTableCreateSql(DatabaseConstants.FORMS_TABLE_NAME), null);
     WebLogger.getLogger(db.getAppName())
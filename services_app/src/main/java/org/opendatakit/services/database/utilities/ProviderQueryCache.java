@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OdkConnectionFactoryInterface;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory cache of the result sets returned by the Forms, Tables and
+ * Instance content providers, so that list screens re-querying the same URI
+ * on every resume are served without running the query again, or holding a
+ * database connection until the caller closes the cursor.
+ * <p>
+ * Entries are keyed by the query URI plus the projection, selection,
+ * selection arguments and sort order (and any caller-specific scope, such as
+ * the active user). They are dropped when:
+ * <ul>
+ * <li>a change is signalled for the URI, an ancestor or a descendant of it
+ * (see {@link #invalidate(Uri)}, called alongside ContentResolver.notifyChange)</li>
+ * <li>any change is committed to the database of the app after the entry was
+ * filled. Not every write to the underlying tables is followed by a
+ * notifyChange, and most are made by the :databaseservice and :sync
+ * processes, so before serving a hit the cache reads PRAGMA data_version on a
+ * connection of its own (see {@link #getGeneration(String)}). SQLite changes
+ * that value whenever another connection, in any process, commits.</li>
+ * </ul>
+ * Only small result sets are cached; a cached result is handed out as a fresh
+ * MatrixCursor on every hit.
+ */
+public final class ProviderQueryCache {
+
+  /**
+   * Maximum number of cached result sets, across all providers and apps.
+   */
+  static final int MAX_ENTRIES = 32;
+
+  /**
+   * Result sets with more rows than this are returned uncached.
+   */
+  static final int MAX_ROWS = 500;
+
+  /**
+   * Returned by {@link #getGeneration(String)} when the data version cannot be
+   * read. Nothing is cached or served against it.
+   */
+  static final long NO_GENERATION = -1L;
+
+  /**
+   * Handle of the connection on which PRAGMA data_version is read. It is kept
+   * open, and never used to write, so that the value it reports changes with
+   * every commit made by any other connection.
+   */
+  private static final DbHandle DATA_VERSION_HANDLE = new DbHandle(
+      "providerQueryCache" + OdkConnectionFactoryInterface.INTERNAL_TYPE_SUFFIX);
+
+  /**
+   * The data version connection last seen for an app. The data versions of
+   * two connections are not comparable, so the epoch is advanced whenever the
+   * connection has been closed and reopened.
+   */
+  private static final class DataVersionConnection {
+    final OdkConnectionInterface db;
+    final long epoch;
+
+    DataVersionConnection(OdkConnectionInterface db, long epoch) {
+      this.db = db;
+      this.epoch = epoch;
+    }
+  }
+
+  private static class Entry {
+    final Uri uri;
+    final long generation;
+    final String[] columnNames;
+    final List<Object[]> rows;
+
+    Entry(Uri uri, long generation, String[] columnNames, List<Object[]> rows) {
+      this.uri = uri;
+      this.generation = generation;
+      this.columnNames = columnNames;
+      this.rows = rows;
+    }
+  }
+
+  private static final Map<String, DataVersionConnection> dataVersionConnections =
+      new HashMap<String, DataVersionConnection>();
+
+  private static final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private ProviderQueryCache() {
+  }
+
+  /**
+   * @param appName
+   * @return the current generation of the app's database, which changes with
+   * every commit made by any process, or {@link #NO_GENERATION} if it cannot
+   * be read. Obtain this before running the query whose result is passed to
+   * {@link #put}.
+   */
+  public static long getGeneration(String appName) {
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(appName, DATA_VERSION_HANDLE);
+      if (db == null) {
+        return NO_GENERATION;
+      }
+      long dataVersion;
+      Cursor c = db.rawQuery("PRAGMA data_version", null);
+      try {
+        if (!c.moveToFirst()) {
+          return NO_GENERATION;
+        }
+        dataVersion = c.getLong(0);
+      } finally {
+        c.close();
+      }
+      return (getEpoch(appName, db) << 32) | (dataVersion & 0xffffffffL);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return NO_GENERATION;
+    } finally {
+      if (db != null) {
+        db.releaseReference();
+      }
+    }
+  }
+
+  private static long getEpoch(String appName, OdkConnectionInterface db) {
+    synchronized (dataVersionConnections) {
+      DataVersionConnection last = dataVersionConnections.get(appName);
+      if (last == null || last.db != db) {
+        last = new DataVersionConnection(db, (last == null) ? 0L : last.epoch + 1L);
+        dataVersionConnections.put(appName, last);
+      }
+      return last.epoch;
+    }
+  }
+
+  /**
+   * @return the key identifying a query, for use with {@link #get} and {@link #put}.
+   */
+  public static String key(Uri uri, String[] projection, String selection,
+      String[] selectionArgs, String sortOrder, String scope) {
+    StringBuilder b = new StringBuilder();
+    b.append(uri.toString()).append('\n')
+        .append(projection == null ? "*" : Arrays.toString(projection)).append('\n')
+        .append(selection).append('\n')
+        .append(selectionArgs == null ? "" : Arrays.toString(selectionArgs)).append('\n')
+        .append(sortOrder).append('\n')
+        .append(scope);
+    return b.toString();
+  }
+
+  /**
+   * @param appName
+   * @param key
+   * @return a cursor over the cached result set, or null if there is no valid
+   * cached result for this key.
+   */
+  public static Cursor get(String appName, String key) {
+    Entry entry;
+    synchronized (ProviderQueryCache.class) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      return null;
+    }
+    // read outside the lock; it is a query on the database
+    long generation = getGeneration(appName);
+    if (generation == NO_GENERATION || entry.generation != generation) {
+      synchronized (ProviderQueryCache.class) {
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+        }
+      }
+      return null;
+    }
+    MatrixCursor c = new MatrixCursor(entry.columnNames, entry.rows.size());
+    for (Object[] row : entry.rows) {
+      c.addRow(row);
+    }
+    return c;
+  }
+
+  /**
+   * Cache the result set of a query and return the cursor the provider should
+   * hand back to its caller. If the result set is too large to cache, the
+   * original cursor is returned, positioned before the first row. Otherwise
+   * the original cursor is read, closed, and a cursor over the cached copy is
+   * returned.
+   *
+   * @param appName
+   * @param uri        the query URI, used for invalidation
+   * @param key        from {@link #key}
+   * @param generation from {@link #getGeneration(String)}, before the query was run
+   * @param c          the result of the query
+   * @return the cursor to return to the caller.
+   */
+  public static Cursor put(String appName, Uri uri, String key, long generation, Cursor c) {
+    if (c.getCount() > MAX_ROWS) {
+      c.moveToPosition(-1);
+      return c;
+    }
+
+    String[] columnNames = c.getColumnNames();
+    List<Object[]> rows = new ArrayList<Object[]>(c.getCount());
+    try {
+      c.moveToPosition(-1);
+      while (c.moveToNext()) {
+        Object[] row = new Object[columnNames.length];
+        for (int i = 0; i < columnNames.length; ++i) {
+          switch (c.getType(i)) {
+          case Cursor.FIELD_TYPE_NULL:
+            row[i] = null;
+            break;
+          case Cursor.FIELD_TYPE_INTEGER:
+            row[i] = c.getLong(i);
+            break;
+          case Cursor.FIELD_TYPE_FLOAT:
+            row[i] = c.getDouble(i);
+            break;
+          case Cursor.FIELD_TYPE_BLOB:
+            row[i] = c.getBlob(i);
+            break;
+          default:
+            row[i] = c.getString(i);
+            break;
+          }
+        }
+        rows.add(row);
+      }
+    } finally {
+      c.close();
+    }
+
+    // do not cache a result that may already be stale
+    if (generation != NO_GENERATION && generation == getGeneration(appName)) {
+      synchronized (ProviderQueryCache.class) {
+        entries.put(key, new Entry(uri, generation, columnNames, rows));
+      }
+    }
+
+    MatrixCursor mc = new MatrixCursor(columnNames, rows.size());
+    for (Object[] row : rows) {
+      mc.addRow(row);
+    }
+    return mc;
+  }
+
+  /**
+   * Drop the cached results of queries against this URI, its ancestors and
+   * its descendants, matching the URIs that ContentResolver.notifyChange
+   * notifies.
+   *
+   * @param uri
+   */
+  public static synchronized void invalidate(Uri uri) {
+    String changed = uri.toString();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      String cached = it.next().uri.toString();
+      if (isSameOrNested(changed, cached) || isSameOrNested(cached, changed)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static boolean isSameOrNested(String ancestor, String uri) {
+    if (!uri.startsWith(ancestor)) {
+      return false;
+    }
+    return uri.length() == ancestor.length() || ancestor.endsWith("/")
+        || uri.charAt(ancestor.length()) == '/';
+  }
+}
@@ -39,6 +39,7 @@ public final class ProviderUtils {
       Uri formsUri =
           Uri.withAppendedPath(Uri.withAppendedPath(FormsProviderAPI.CONTENT_URI, appName),
               tableId);
+      ProviderQueryCache.invalidate(formsUri);
       context.getContentResolver().notifyChange(formsUri, null);
     } catch (Exception e) {
       // swallow error if we can't notify of change...
@@ -56,6 +57,7 @@ public final class ProviderUtils {
       Uri formsUri =
           Uri.withAppendedPath(Uri.withAppendedPath(TablesProviderAPI.CONTENT_URI, appName),
               tableId);
+      ProviderQueryCache.invalidate(formsUri);
       context.getContentResolver().notifyChange(formsUri, null);
     } catch (Exception e) {
       // swallow error if we can't notify of change...
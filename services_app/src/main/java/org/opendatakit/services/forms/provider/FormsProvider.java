@@ -39,6 +39,7 @@ import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.database.utilities.ProviderQueryCache;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -243,6 +244,15 @@ public class FormsProvider extends ContentProvider {
     PatchedFilter pf = extractUriFeatures(uri, segments, where, whereArgs);
     WebLoggerIf log = WebLogger.getLogger(pf.appName);
 
+    String cacheKey = ProviderQueryCache.key(uri, projection, where, whereArgs, sortOrder, null);
+    Cursor cached = ProviderQueryCache.get(pf.appName, cacheKey);
+    if (cached != null) {
+      if (getContext() != null) {
+        cached.setNotificationUri(getContext().getContentResolver(), uri);
+      }
+      return cached;
+    }
+    long generation = ProviderQueryCache.getGeneration(pf.appName);
 
     // Get the database and run the query
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
@@ -261,13 +271,17 @@ public class FormsProvider extends ContentProvider {
         log.w(t, "Unable to query database");
         return null;
       }
+      Cursor result = ProviderQueryCache.put(pf.appName, uri, cacheKey, generation, c);
       // Tell the cursor what uri to watch, so it knows when its source data changes
       if (getContext() != null) {
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+      }
+      if (result == c) {
+        c.registerDataSetObserver(new InvalidateMonitor(pf.appName, dbHandleName));
+        success = true;
       }
-      c.registerDataSetObserver(new InvalidateMonitor(pf.appName, dbHandleName));
-      success = true;
-      return c;
+      // otherwise, c has been copied and closed and the connection is closed below
+      return result;
     } catch (Exception e) {
       log.w(t, "Exception while querying database");
       log.printStackTrace(e);
@@ -289,17 +303,17 @@ public class FormsProvider extends ContentProvider {
   }
 
   @Override
-  public synchronized int delete(@NonNull Uri uri, String where, String[] whereArgs) {
+  public int delete(@NonNull Uri uri, String where, String[] whereArgs) {
     throw new UnsupportedOperationException("delete is not supported");
   }
 
   @Override
-  public synchronized int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
+  public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
     throw new UnsupportedOperationException("update is not supported");
   }
 
   @Override
-  public synchronized Uri insert(@NonNull Uri uri, ContentValues initialValues) {
+  public Uri insert(@NonNull Uri uri, ContentValues initialValues) {
     throw new UnsupportedOperationException("insert is not supported");
   }
 
@@ -16,7 +16,10 @@
 package org.opendatakit.services.instance.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DataSetObserver;
 import android.database.SQLException;
@@ -42,6 +45,7 @@ import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.database.utilities.ProviderQueryCache;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 import org.opendatakit.utilities.ODKFileUtils;
 
@@ -49,11 +53,15 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InstanceProvider extends ContentProvider {
 
@@ -75,6 +83,13 @@ public class InstanceProvider extends ContentProvider {
 
   private static final HashMap<String, String> sInstancesProjectionMap;
 
+  /**
+   * appName/tableId of the tables whose UPLOADS_TABLE_NAME entries are known
+   * to be maintained by a trigger in this process.
+   */
+  private static final Set<String> sUploadsMaintained =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   private class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
@@ -108,6 +123,32 @@ public class InstanceProvider extends ContentProvider {
     }
   }
 
+  /**
+   * The connection and transaction shared by the operations of an
+   * applyBatch() call on the calling thread.
+   */
+  private static class BatchConnection {
+    final String appName;
+    final OdkConnectionInterface db;
+    final Set<Uri> changedUris = new LinkedHashSet<Uri>();
+
+    BatchConnection(String appName, OdkConnectionInterface db) {
+      this.appName = appName;
+      this.db = db;
+    }
+  }
+
+  private final ThreadLocal<BatchConnection> batchConnection = new ThreadLocal<BatchConnection>();
+
+  private BatchConnection getBatchConnection(String appName) {
+    BatchConnection batch = batchConnection.get();
+    if (batch != null && !batch.appName.equals(appName)) {
+      throw new IllegalArgumentException(
+          "Batch operations must all be for appName " + batch.appName);
+    }
+    return batch;
+  }
+
   @Override
   public boolean onCreate() {
 
@@ -152,6 +193,18 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
+    // the rows returned depend upon the privileges of the active user
+    ActiveUserAndLocale aul =
+        ActiveUserAndLocale.getActiveUserAndLocale(getContext(), appName);
+    String cacheKey = ProviderQueryCache.key(uri, projection, selection, selectionArgs,
+        sortOrder, aul.activeUser + " " + aul.rolesList);
+    Cursor cached = ProviderQueryCache.get(appName, cacheKey);
+    if (cached != null) {
+      cached.setNotificationUri(getContext().getContentResolver(), uri);
+      return cached;
+    }
+    long generation = ProviderQueryCache.getGeneration(appName);
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
 
     boolean success = false;
@@ -160,7 +213,7 @@ public class InstanceProvider extends ContentProvider {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
 
-      internalUpdate(db, uri, appName, tableId);
+      ensureUploadsMaintained(db, uri, appName, tableId);
 
       Cursor c = internalQuery(db, uri,
           appName, tableId, instanceId,
@@ -170,12 +223,16 @@ public class InstanceProvider extends ContentProvider {
         return null;
       }
 
+      Cursor result = ProviderQueryCache.put(appName, uri, cacheKey, generation, c);
       // Tell the cursor what uri to watch, so it knows when its source data
       // changes
-      c.setNotificationUri(getContext().getContentResolver(), uri);
-      c.registerDataSetObserver(new InvalidateMonitor(appName, dbHandleName));
-      success = true;
-      return c;
+      result.setNotificationUri(getContext().getContentResolver(), uri);
+      if (result == c) {
+        c.registerDataSetObserver(new InvalidateMonitor(appName, dbHandleName));
+        success = true;
+      }
+      // otherwise, c has been copied and closed and the connection is closed below
+      return result;
     } finally {
       if ( db != null ) {
         try {
@@ -193,103 +250,86 @@ public class InstanceProvider extends ContentProvider {
   }
 
   /**
-   * Update the status columns for the instance upload table
+   * Ensure that the UPLOADS_TABLE_NAME entries for this table are maintained
+   * by the database. Entries are added by a trigger on the data table as
+   * instances are inserted; tables created before that trigger existed are
+   * reconciled once, here, which also creates the trigger.
    *
    * @param db
    * @param uri
    * @param appName
    * @param tableId
    */
-  void internalUpdate(OdkConnectionInterface db,
+  void ensureUploadsMaintained(OdkConnectionInterface db,
       Uri uri,
       String appName, String tableId ) {
 
-    String instanceName = null;
-    Cursor c = null;
-
-    StringBuilder b = new StringBuilder();
+    String key = appName + "/" + tableId;
+    if ( sUploadsMaintained.contains(key) ) {
+      return;
+    }
 
+    boolean success = false;
     try {
-      db.beginTransactionNonExclusive();
+      success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+    if (!success) {
+      throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    }
 
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
-      }
-      if (!success) {
-        throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
-      }
+    if ( !ODKDatabaseImplUtils.get().hasUploadsTrigger(db, tableId) ) {
+      WebLogger.getLogger(appName).i(t, "reconciling " + DatabaseConstants.UPLOADS_TABLE_NAME
+          + " entries for tableId " + tableId);
+      ODKDatabaseImplUtils.get().reconcileUploadsTable(db, tableId);
+    }
+    sUploadsMaintained.add(key);
+  }
 
-      try {
-        c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
-            new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
-                + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
-                + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
-                KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
-                KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
-        if ( c != null ) {
-          c.moveToFirst();
-          if (c.getCount() == 1) {
-            int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
-            instanceName = c.getString(idxInstanceName);
-          }
-        }
-      } finally {
-        if ( c != null ) {
-          c.close();
+  /**
+   * @param db
+   * @param tableId
+   * @param orderedDefns
+   * @return the data table column holding the instance name, per the
+   * XML_INSTANCE_NAME setting of the table, or the savepoint timestamp if
+   * that is not set or does not name a column of the table.
+   */
+  private String getInstanceNameColumn(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedDefns) {
+    String instanceName = null;
+    Cursor c = null;
+    try {
+      c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+          new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
+              + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
+              + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
+              KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+              KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
+      if ( c != null ) {
+        c.moveToFirst();
+        if (c.getCount() == 1) {
+          int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
+          instanceName = c.getString(idxInstanceName);
         }
       }
+    } finally {
+      if ( c != null ) {
+        c.close();
+      }
+    }
 
-      // ARGH! we must ensure that we have records in our UPLOADS_TABLE_NAME
-      // for every distinct instance in the data table.
-      b.setLength(0);
-      //@formatter:off
-      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append("(")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append("SELECT ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append(" FROM (")
-            .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(tableId).append(" EXCEPT SELECT DISTINCT ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(")");
-      //@formatter:on
-
-      String[] args = { tableId };
-      db.execSQL(b.toString(), args);
-
-      //@formatter:off
-      b.append("WITH idname AS (SELECT t.")
-              .append(DATA_TABLE_ID_COLUMN).append(" as ").append(InstanceColumns.DATA_INSTANCE_ID).append(", t.");
-      if ( instanceName == null ) {
-        b.append(DataTableColumns.SAVEPOINT_TIMESTAMP);
-      } else {
-        b.append(instanceName);
+    if ( instanceName != null ) {
+      for ( ColumnDefinition cd : orderedDefns.getColumnDefinitions() ) {
+        if ( cd.isUnitOfRetention() && cd.getElementKey().equals(instanceName) ) {
+          return instanceName;
+        }
       }
-      b.append(" as ").append(InstanceColumns.DATA_INSTANCE_NAME).append(" FROM ")
-              .append(tableId).append(" t WHERE t.").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=")
-              .append("(select max(v.").append(DataTableColumns.SAVEPOINT_TIMESTAMP)
-                  .append(") from ").append(tableId).append(" as v where v._id=t._id)")
-              .append(") UPDATE ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" SET ")
-                .append(InstanceColumns.DATA_INSTANCE_NAME).append("=idname.").append(InstanceColumns.DATA_INSTANCE_NAME)
-              .append(" WHERE ")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=? AND ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append("=idname.").append(InstanceColumns.DATA_INSTANCE_ID);
-      //@formatter:on
-      db.execSQL(b.toString(), args);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
+    return DataTableColumns.SAVEPOINT_TIMESTAMP;
   }
 
-
   Cursor internalQuery(OdkConnectionInterface db,
       Uri uri,
       String appName, String tableId, String instanceId,
@@ -396,7 +436,7 @@ public class InstanceProvider extends ContentProvider {
         .append(" > ").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" THEN null")
         .append(" ELSE ").append(InstanceColumns.DISPLAY_SUBTEXT).append(" END as ")
             .append(InstanceColumns.DISPLAY_SUBTEXT).append(",");
-    b.append(InstanceColumns.DATA_INSTANCE_NAME);
+    b.append(tableId).append(".").append(getInstanceNameColumn(db, tableId, orderedDefns));
     b.append(" as ").append(InstanceColumns.DISPLAY_NAME);
     b.append(" FROM ");
     b.append("( SELECT * FROM ").append(tableId).append(" AS T WHERE T.")
@@ -486,13 +526,81 @@ public class InstanceProvider extends ContentProvider {
     }
   }
 
+  /**
+   * Apply the operations on one connection, within one transaction, so that
+   * e.g., marking many instances as submitted does not commit once per
+   * instance. The operations must all be for the same appName. If any
+   * operation fails, none of the database changes are kept (but instance
+   * folders already removed by a delete remain removed).
+   */
+  @NonNull
+  @Override
+  public ContentProviderResult[] applyBatch(
+      @NonNull ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    if (operations.isEmpty()) {
+      return new ContentProviderResult[0];
+    }
+    if (batchConnection.get() != null) {
+      // nested within an outer batch -- use its transaction
+      return super.applyBatch(operations);
+    }
+
+    List<String> segments = operations.get(0).getUri().getPathSegments();
+    if (segments.isEmpty()) {
+      throw new SQLException("Unknown URI (missing appName) " + operations.get(0).getUri());
+    }
+    String appName = segments.get(0);
+
+    ContentProviderResult[] results;
+    BatchConnection batch;
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
+      db.beginTransactionNonExclusive();
+
+      batch = new BatchConnection(appName, db);
+      batchConnection.set(batch);
+      try {
+        results = super.applyBatch(operations);
+      } finally {
+        batchConnection.remove();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      if ( db != null ) {
+        try {
+          if (db.inTransaction()) {
+            db.endTransaction();
+          }
+        } finally {
+          try {
+            db.releaseReference();
+          } finally {
+            // this closes the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
+                appName, dbHandleName);
+          }
+        }
+      }
+    }
+
+    for (Uri uri : batch.changedUris) {
+      ProviderQueryCache.invalidate(uri);
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
+    return results;
+  }
+
   /**
    * This method removes the entry from the content provider, and also removes
    * any associated files. files: form.xml, [formmd5].formdef, formname
    * {directory}
    */
   @Override
-  public synchronized int delete(@NonNull Uri uri, String where, String[] whereArgs) {
+  public int delete(@NonNull Uri uri, String where, String[] whereArgs) {
     possiblyWaitForContentProviderDebugger();
 
     List<String> segments = uri.getPathSegments();
@@ -509,110 +617,24 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
+    List<IdStruct> idStructs = new ArrayList<IdStruct>();
+    BatchConnection batch = getBatchConnection(appName);
+    if (batch != null) {
+      internalDelete(batch.db, uri, appName, tableId, instanceId, segments, where, whereArgs,
+          idStructs);
+      batch.changedUris.add(uri);
+      return idStructs.size();
+    }
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
-    List<IdStruct> idStructs = new ArrayList<IdStruct>();
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
       db.beginTransactionNonExclusive();
 
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
-      }
-
-      if (success) {
-        // delete the entries matching the filter criteria
-        if (segments.size() == 2) {
-          where = "(" + where + ") AND (" + InstanceColumns.DATA_INSTANCE_ID + "=? )";
-          if (whereArgs != null) {
-            String[] args = new String[whereArgs.length + 1];
-            System.arraycopy(whereArgs, 0, args, 0, whereArgs.length);
-            args[whereArgs.length] = instanceId;
-            whereArgs = args;
-          } else {
-            whereArgs = new String[] { instanceId };
-          }
-        }
-
-        internalUpdate(db, uri, appName, tableId );
-
-        Cursor del = null;
-        try {
-          del = internalQuery(db,
-              uri,
-              appName, tableId, instanceId,
-              null, where, whereArgs, null);
-          del.moveToPosition(-1);
-          while (del.moveToNext()) {
-            String iId = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-            String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
-            File f = new File(path);
-            if (f.exists()) {
-              if (f.isDirectory()) {
-                ODKFileUtils.deleteDirectory(f);
-              } else {
-                f.delete();
-              }
-            }
-
-          }
-        } catch (IOException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-          throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
-        } finally {
-          if (del != null) {
-            del.close();
-          }
-        }
-      } else {
-        // delete anything we find, since the table doesn't exist
-        Cursor del = null;
-        try {
-          where = InstanceColumns.DATA_TABLE_TABLE_ID + "=?";
-          whereArgs = new String[] { tableId };
-          del = db.query(DatabaseConstants.UPLOADS_TABLE_NAME, null,
-              where, whereArgs, null, null, null, null);
-          del.moveToPosition(-1);
-          while (del.moveToNext()) {
-            String iId = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-            String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
-            File f = new File(path);
-            if (f.exists()) {
-              if (f.isDirectory()) {
-                ODKFileUtils.deleteDirectory(f);
-              } else {
-                f.delete();
-              }
-            }
-          }
-        } catch (IOException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-          throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
-        } finally {
-          if (del != null) {
-            del.close();
-          }
-        }
-      }
-
-      for (IdStruct idStruct : idStructs) {
-        db.delete(DatabaseConstants.UPLOADS_TABLE_NAME, InstanceColumns.DATA_INSTANCE_ID + "=?",
-            new String[] { idStruct.idUploadsTable });
-        db.delete(tableId, DATA_TABLE_ID_COLUMN + "=?", new String[] { idStruct.idDataTable });
-      }
+      internalDelete(db, uri, appName, tableId, instanceId, segments, where, whereArgs,
+          idStructs);
       db.setTransactionSuccessful();
     } finally {
       if ( db != null ) {
@@ -631,12 +653,13 @@ public class InstanceProvider extends ContentProvider {
         }
       }
     }
+    ProviderQueryCache.invalidate(uri);
     getContext().getContentResolver().notifyChange(uri, null);
     return idStructs.size();
   }
 
   @Override
-  public synchronized int update(@NonNull Uri uri, ContentValues cv, String where, String[] whereArgs) {
+  public int update(@NonNull Uri uri, ContentValues cv, String where, String[] whereArgs) {
     possiblyWaitForContentProviderDebugger();
 
     List<String> segments = uri.getPathSegments();
@@ -653,6 +676,14 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = segments.get(2);
 
+    BatchConnection batch = getBatchConnection(appName);
+    if (batch != null) {
+      int count = internalUpdate(batch.db, uri, appName, tableId, instanceId, cv, where,
+          whereArgs);
+      batch.changedUris.add(uri);
+      return count;
+    }
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
     int count = 0;
@@ -661,87 +692,208 @@ public class InstanceProvider extends ContentProvider {
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
       db.beginTransactionNonExclusive();
 
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+      count = internalUpdate(db, uri, appName, tableId, instanceId, cv, where, whereArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      if ( db != null ) {
+        try {
+          if (db.inTransaction()) {
+            db.endTransaction();
+          }
+        } finally {
+          try {
+            db.releaseReference();
+          } finally {
+            // this closes the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
+                appName, dbHandleName);
+          }
+        }
       }
-      if (!success) {
-        throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    }
+    ProviderQueryCache.invalidate(uri);
+    getContext().getContentResolver().notifyChange(uri, null);
+    return count;
+  }
+
+  /**
+   * Delete the matching instances and their instance folders, using the
+   * caller's connection and transaction.
+   */
+  private void internalDelete(OdkConnectionInterface db, Uri uri, String appName,
+      String tableId, String instanceId, List<String> segments, String where, String[] whereArgs,
+      List<IdStruct> idStructs) {
+
+    boolean success = false;
+    try {
+      success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+
+    if (success) {
+      // delete the entries matching the filter criteria
+      if (segments.size() == 2) {
+        where = "(" + where + ") AND (" + InstanceColumns.DATA_INSTANCE_ID + "=? )";
+        if (whereArgs != null) {
+          String[] args = new String[whereArgs.length + 1];
+          System.arraycopy(whereArgs, 0, args, 0, whereArgs.length);
+          args[whereArgs.length] = instanceId;
+          whereArgs = args;
+        } else {
+          whereArgs = new String[] { instanceId };
+        }
       }
 
-      internalUpdate(db, uri, appName, tableId );
+      ensureUploadsMaintained(db, uri, appName, tableId );
 
-      // run the query to get all the ids...
-      List<IdStruct> idStructs = new ArrayList<IdStruct>();
-      Cursor ref = null;
+      Cursor del = null;
       try {
-        // use this provider's query interface to get the set of ids that
-        // match (if any)
-        ref = internalQuery(db,
+        del = internalQuery(db,
             uri,
             appName, tableId, instanceId,
             null, where, whereArgs, null);
-        ref.moveToFirst();
-        if (ref.getCount() != 0) {
-          do {
-            String iId = CursorUtils.getIndexAsString(ref,
-                ref.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(ref,
-                ref.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-          } while (ref.moveToNext());
+        del.moveToPosition(-1);
+        while (del.moveToNext()) {
+          String iId = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+          String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
+          File f = new File(path);
+          if (f.exists()) {
+            if (f.isDirectory()) {
+              ODKFileUtils.deleteDirectory(f);
+            } else {
+              f.delete();
+            }
+          }
+
         }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
       } finally {
-        if (ref != null) {
-          ref.close();
+        if (del != null) {
+          del.close();
         }
       }
-
-      // update the values string...
-      if (cv.containsKey(InstanceColumns.XML_PUBLISH_STATUS)) {
-        Date xmlPublishDate = new Date();
-        cv.put(InstanceColumns.XML_PUBLISH_TIMESTAMP,
-            TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime(), Locale.ROOT));
-        String xmlPublishStatus = cv.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
-        if (!cv.containsKey(InstanceColumns.DISPLAY_SUBTEXT)) {
-          String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
-          cv.put(InstanceColumns.DISPLAY_SUBTEXT, text);
+    } else {
+      // delete anything we find, since the table doesn't exist
+      Cursor del = null;
+      try {
+        where = InstanceColumns.DATA_TABLE_TABLE_ID + "=?";
+        whereArgs = new String[] { tableId };
+        del = db.query(DatabaseConstants.UPLOADS_TABLE_NAME, null,
+            where, whereArgs, null, null, null, null);
+        del.moveToPosition(-1);
+        while (del.moveToNext()) {
+          String iId = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+          String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
+          File f = new File(path);
+          if (f.exists()) {
+            if (f.isDirectory()) {
+              ODKFileUtils.deleteDirectory(f);
+            } else {
+              f.delete();
+            }
+          }
+        }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
+      } finally {
+        if (del != null) {
+          del.close();
         }
       }
+    }
 
-      Map<String,Object> values = new HashMap<String,Object>();
-      for ( String key : cv.keySet()) {
-        values.put(key, cv.get(key));
-      }
+    for (IdStruct idStruct : idStructs) {
+      db.delete(DatabaseConstants.UPLOADS_TABLE_NAME, InstanceColumns.DATA_INSTANCE_ID + "=?",
+          new String[] { idStruct.idUploadsTable });
+      db.delete(tableId, DATA_TABLE_ID_COLUMN + "=?", new String[] { idStruct.idDataTable });
+    }
+  }
+
+  /**
+   * Update the matching instances, using the caller's connection and
+   * transaction.
+   *
+   * @return the number of UPLOADS_TABLE_NAME rows updated
+   */
+  private int internalUpdate(OdkConnectionInterface db, Uri uri, String appName,
+      String tableId, String instanceId, ContentValues cv, String where, String[] whereArgs) {
+
+    int count = 0;
+    boolean success = false;
+    try {
+      success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+    if (!success) {
+      throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    }
 
-      Object[] args = new String[1];
-      for (IdStruct idStruct : idStructs) {
-        args[0] = idStruct.idUploadsTable;
-        count += db.update(DatabaseConstants.UPLOADS_TABLE_NAME, values,
-            InstanceColumns._ID + "=?", args);
+    ensureUploadsMaintained(db, uri, appName, tableId );
+
+    // run the query to get all the ids...
+    List<IdStruct> idStructs = new ArrayList<IdStruct>();
+    Cursor ref = null;
+    try {
+      // use this provider's query interface to get the set of ids that
+      // match (if any)
+      ref = internalQuery(db,
+          uri,
+          appName, tableId, instanceId,
+          null, where, whereArgs, null);
+      ref.moveToFirst();
+      if (ref.getCount() != 0) {
+        do {
+          String iId = CursorUtils.getIndexAsString(ref,
+              ref.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(ref,
+              ref.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+        } while (ref.moveToNext());
       }
-      db.setTransactionSuccessful();
     } finally {
-      if ( db != null ) {
-        try {
-          if (db.inTransaction()) {
-            db.endTransaction();
-          }
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
-          }
-        }
+      if (ref != null) {
+        ref.close();
       }
     }
-    getContext().getContentResolver().notifyChange(uri, null);
+
+    // update the values string...
+    if (cv.containsKey(InstanceColumns.XML_PUBLISH_STATUS)) {
+      Date xmlPublishDate = new Date();
+      cv.put(InstanceColumns.XML_PUBLISH_TIMESTAMP,
+          TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime(), Locale.ROOT));
+      String xmlPublishStatus = cv.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
+      if (!cv.containsKey(InstanceColumns.DISPLAY_SUBTEXT)) {
+        String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
+        cv.put(InstanceColumns.DISPLAY_SUBTEXT, text);
+      }
+    }
+
+    Map<String,Object> values = new HashMap<String,Object>();
+    for ( String key : cv.keySet()) {
+      values.put(key, cv.get(key));
+    }
+
+    Object[] args = new String[1];
+    for (IdStruct idStruct : idStructs) {
+      args[0] = idStruct.idUploadsTable;
+      count += db.update(DatabaseConstants.UPLOADS_TABLE_NAME, values,
+          InstanceColumns._ID + "=?", args);
+    }
     return count;
   }
 
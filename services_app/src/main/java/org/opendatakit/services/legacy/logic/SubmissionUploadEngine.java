@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.legacy.logic;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.opendatakit.httpclientandroidlib.Header;
+import org.opendatakit.httpclientandroidlib.HttpResponse;
+import org.opendatakit.httpclientandroidlib.client.ClientProtocolException;
+import org.opendatakit.httpclientandroidlib.client.CookieStore;
+import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
+import org.opendatakit.httpclientandroidlib.client.protocol.HttpClientContext;
+import org.opendatakit.httpclientandroidlib.conn.ConnectTimeoutException;
+import org.opendatakit.httpclientandroidlib.conn.HttpHostConnectException;
+import org.opendatakit.httpclientandroidlib.entity.ContentType;
+import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
+import org.opendatakit.httpclientandroidlib.impl.client.BasicCookieStore;
+import org.opendatakit.httpclientandroidlib.impl.client.CloseableHttpClient;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.services.legacy.utilities.WebUtils;
+import org.opendatakit.utilities.FileSet;
+import org.opendatakit.utilities.FileSet.MimeFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends prepared submissions to an OpenRosa /submission endpoint, several at
+ * a time.
+ * <p>
+ * The caller generates each submission (the instance XML, its attachments and
+ * any encryption) and hands it to {@link #submit}. It is sent on one of
+ * maxConcurrent worker threads while the caller prepares the next one.
+ * submit() blocks while 2 * maxConcurrent submissions are queued or in flight,
+ * so preparation never runs far ahead of the network.
+ * <p>
+ * The workers share one HTTP client with a pool of keep-alive connections to
+ * the server. They also share the cookies, the credentials and the result of
+ * the OpenRosa HEAD request, which is issued once rather than before every
+ * submission. Each worker uses its own HttpClientContext, as the context holds
+ * authentication state that cannot be shared across threads.
+ * <p>
+ * Once the server asks for credentials, the remaining submissions are not
+ * sent. The outcomes are returned, in completion order, by {@link #poll()} and
+ * {@link #take()}; this class does not update the instance status itself.
+ */
+public class SubmissionUploadEngine {
+
+  private static final String TAG = SubmissionUploadEngine.class.getSimpleName();
+  private static final String fail = "Error: ";
+
+  /**
+   * The outcome of sending one submission.
+   */
+  public static final class Result {
+    public final String id;
+    public final String submissionInstanceId;
+    /**
+     * InstanceColumns.STATUS_SUBMITTED or InstanceColumns.STATUS_SUBMISSION_FAILED,
+     * or null if the submission was not sent because the server asked for
+     * credentials.
+     */
+    public final String status;
+    public final String message;
+
+    Result(String id, String submissionInstanceId, String status, String message) {
+      this.id = id;
+      this.submissionInstanceId = submissionInstanceId;
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  private final String appName;
+  private final String urlString;
+  private final URI submissionUri;
+  private final String successMessage;
+  private final CredentialsProvider credsProvider;
+  private final CookieStore cookieStore = new BasicCookieStore();
+  private final CloseableHttpClient httpclient;
+
+  private final ExecutorService executor;
+  private final CompletionService<Result> completionService;
+  private final Semaphore slots;
+  private int outstanding = 0;
+
+  private final Object headLock = new Object();
+  private final Map<URI, URI> uriRemap = new ConcurrentHashMap<URI, URI>();
+  private volatile URI mAuthRequestingServer = null;
+
+  /**
+   * @param appName
+   * @param urlString      the /submission url, as configured (used in messages)
+   * @param submissionUri  the parsed urlString
+   * @param successMessage the message reported for a successful submission
+   * @param credsProvider  the credentials to present to the server
+   * @param maxConcurrent  the number of submissions to send at the same time
+   */
+  public SubmissionUploadEngine(final String appName, String urlString, URI submissionUri,
+      String successMessage, CredentialsProvider credsProvider, int maxConcurrent) {
+    this.appName = appName;
+    this.urlString = urlString;
+    this.submissionUri = submissionUri;
+    this.successMessage = successMessage;
+    this.credsProvider = credsProvider;
+    this.httpclient = WebUtils.createPooledHttpClient(WebUtils.CONNECTION_TIMEOUT, maxConcurrent);
+    this.executor = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, appName + "-submission-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.completionService = new ExecutorCompletionService<Result>(executor);
+    this.slots = new Semaphore(2 * maxConcurrent);
+  }
+
+  /**
+   * @return the server that asked for credentials, or null if none has.
+   */
+  public URI getAuthRequestingServer() {
+    return mAuthRequestingServer;
+  }
+
+  /**
+   * Queue a prepared submission for sending. Blocks while the queue is full.
+   * Must be called from a single thread, the same one that calls
+   * {@link #poll()} and {@link #take()}.
+   *
+   * @param id                   _ID in the InstanceColumns table
+   * @param submissionInstanceId
+   * @param instanceFiles
+   * @throws InterruptedException
+   */
+  public void submit(final String id, final String submissionInstanceId,
+      final FileSet instanceFiles) throws InterruptedException {
+    slots.acquire();
+    try {
+      completionService.submit(new Callable<Result>() {
+        @Override
+        public Result call() {
+          try {
+            return uploadOneSubmission(id, submissionInstanceId, instanceFiles);
+          } finally {
+            slots.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      slots.release();
+      throw e;
+    }
+    ++outstanding;
+  }
+
+  /**
+   * @return the outcome of a submission that has completed, or null if none
+   * has completed since the last call.
+   */
+  public Result poll() {
+    Future<Result> f = completionService.poll();
+    return (f == null) ? null : resultOf(f);
+  }
+
+  /**
+   * Wait for the next submission to complete.
+   *
+   * @return its outcome, or null if there are no more submissions outstanding.
+   * @throws InterruptedException
+   */
+  public Result take() throws InterruptedException {
+    if (outstanding == 0) {
+      return null;
+    }
+    return resultOf(completionService.take());
+  }
+
+  private Result resultOf(Future<Result> f) {
+    --outstanding;
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      // uploadOneSubmission does not throw
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Stop the workers and release the connections. Submissions that have not
+   * completed are abandoned.
+   */
+  public void close() {
+    executor.shutdownNow();
+    try {
+      httpclient.close();
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+
+  /**
+   * Issue the OpenRosa HEAD request for this url, unless it has already been
+   * answered, and return the url to post to.
+   *
+   * @return the url to post to, or null if the submission has failed or the
+   * server has asked for credentials (in which case mAuthRequestingServer is set).
+   */
+  private URI resolveSubmissionUri(HttpClientContext localContext,
+      String[] failure) {
+    URI u = submissionUri;
+    synchronized (headLock) {
+      if (uriRemap.containsKey(u)) {
+        // we already issued a head request and got a response,
+        // so we know the proper URL to send the submission to
+        // and the proper scheme. We also know that it was an
+        // OpenRosa compliant server.
+        return uriRemap.get(u);
+      }
+      if (mAuthRequestingServer != null) {
+        return null;
+      }
+
+      // we need to issue a head request
+      HttpHead httpHead = WebUtils.get().createOpenRosaHttpHead(u);
+
+      try {
+        HttpResponse response = httpclient.execute(httpHead, localContext);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 401) {
+          WebUtils.get().discardEntityBytes(response);
+          // we need authentication, so stop and return what we've
+          // done so far.
+          mAuthRequestingServer = u;
+          return null;
+        } else if (statusCode == 204) {
+          Header[] locations = response.getHeaders("Location");
+          WebUtils.get().discardEntityBytes(response);
+          if (locations != null && locations.length == 1) {
+            try {
+              URL url = new URL(URLDecoder.decode(locations[0].getValue(), CharEncoding.UTF_8));
+              URI uNew = url.toURI();
+              if (u.getHost().equalsIgnoreCase(uNew.getHost())) {
+                // trust the server to tell us a new location
+                // ... and possibly to use https instead.
+                uriRemap.put(u, uNew);
+                return uNew;
+              } else {
+                // Don't follow a redirection attempt to a
+                // different host.
+                // We can't tell if this is a spoof or not.
+                failure[0] = fail + "Unexpected redirection attempt to a different host: "
+                    + uNew.toString();
+                return null;
+              }
+            } catch (Exception e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+              failure[0] = fail + urlString + " " + e.getMessage();
+              return null;
+            }
+          }
+          // an OpenRosa server that is happy with this url
+          uriRemap.put(u, u);
+          return u;
+        } else {
+          // may be a server that does not handle
+          WebUtils.get().discardEntityBytes(response);
+
+          WebLogger.getLogger(appName).w(TAG, "Status code on Head request: " + statusCode);
+          if (statusCode >= 200 && statusCode <= 299) {
+            failure[0] = fail + "Invalid status code on Head request.  If you have a web proxy, "
+                + "you may need to login to your network. ";
+            return null;
+          }
+          return u;
+        }
+      } catch (ClientProtocolException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.getMessage());
+        failure[0] = fail + "Client Protocol Exception";
+      } catch (ConnectTimeoutException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.getMessage());
+        failure[0] = fail + "Connection Timeout";
+      } catch (UnknownHostException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.getMessage());
+        failure[0] = fail + e.getMessage() + " :: Network Connection Failed";
+      } catch (SocketTimeoutException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.getMessage());
+        failure[0] = fail + "Connection Timeout";
+      } catch (HttpHostConnectException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.toString());
+        failure[0] = fail + "Network Connection Refused";
+      } catch (Exception e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, e.getMessage());
+        failure[0] = fail + "Generic Exception";
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Uploads the submission identified by id. Runs on a worker thread.
+   *
+   * @param id                   _ID in the InstanceColumns table
+   * @param submissionInstanceId
+   * @param instanceFiles
+   * @return the outcome of the upload
+   */
+  private Result uploadOneSubmission(String id, String submissionInstanceId,
+      FileSet instanceFiles) {
+
+    if (mAuthRequestingServer != null) {
+      return new Result(id, submissionInstanceId, null, null);
+    }
+
+    // context holds authentication state machine, so it cannot be
+    // shared across independent activities.
+    HttpClientContext localContext = HttpClientContext.create();
+    localContext.setCookieStore(cookieStore);
+    localContext.setCredentialsProvider(credsProvider);
+
+    // NOTE: ODK Survey assumes you are interfacing with an
+    // OpenRosa-compliant server
+    String[] failure = new String[1];
+    URI u = resolveSubmissionUri(localContext, failure);
+    if (u == null) {
+      if (failure[0] == null) {
+        // credentials are required
+        return new Result(id, submissionInstanceId, null, null);
+      }
+      return failed(id, submissionInstanceId, failure[0]);
+    }
+
+    // At this point, we may have updated the uri to use https.
+    // This occurs only if the Location header keeps the host name
+    // the same. If it specifies a different host name, we error
+    // out.
+    //
+    // And we may have set authentication cookies in our
+    // cookiestore (shared by every localContext) that will enable
+    // authenticated publication to the server.
+    //
+    // get instance file
+    File instanceFile = instanceFiles.instanceFile;
+
+    if (!instanceFile.exists()) {
+      return failed(id, submissionInstanceId, fail + "instance XML file does not exist!");
+    }
+
+    List<MimeFile> files = instanceFiles.attachmentFiles;
+    boolean first = true;
+    int j = 0;
+    int lastJ;
+    while (j < files.size() || first) {
+      lastJ = j;
+      first = false;
+
+      HttpPost httppost = WebUtils.get().createOpenRosaHttpPost(u);
+
+      long byteCount = 0L;
+
+      // mime post
+      MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+
+      // add the submission file first...
+      builder.addBinaryBody("xml_submission_file", instanceFile,
+          ContentType.TEXT_XML.withCharset(Charset.forName(CharEncoding.UTF_8)),
+          instanceFile.getName());
+      WebLogger.getLogger(appName).i(TAG, "added xml_submission_file: " + instanceFile.getName());
+      byteCount += instanceFile.length();
+
+      for (; j < files.size(); j++) {
+        MimeFile mf = files.get(j);
+        File f = mf.file;
+        String contentType = mf.contentType;
+
+        builder.addBinaryBody(f.getName(), f, ContentType.create(contentType), f.getName());
+        byteCount += f.length();
+        WebLogger.getLogger(appName).i(TAG, "added " + contentType + " file " + f.getName());
+
+        // we've added at least one attachment to the request...
+        if (j + 1 < files.size()) {
+          long nextFileLength = (files.get(j + 1).file.length());
+          if ((j - lastJ + 1 > 100) || (byteCount + nextFileLength > 10000000L)) {
+            // the next file would exceed the 10MB threshold...
+            WebLogger.getLogger(appName).i(TAG, "Extremely long post is being split into multiple posts");
+            try {
+              builder.addTextBody("*isIncomplete*", "yes",
+                  ContentType.TEXT_PLAIN.withCharset(Charset.forName((CharEncoding.UTF_8))));
+            } catch (Exception e) {
+              WebLogger.getLogger(appName).printStackTrace(e); // never happens...
+            }
+            ++j; // advance over the last attachment added...
+            break;
+          }
+        }
+      }
+
+      httppost.setEntity(builder.build());
+
+      // prepare response and return uploaded
+      try {
+        HttpResponse response = httpclient.execute(httppost, localContext);
+        int responseCode = response.getStatusLine().getStatusCode();
+        // consume the response so that the connection returns to the pool
+        WebUtils.get().discardEntityBytes(response);
+
+        WebLogger.getLogger(appName).i(TAG, "Response code:" + responseCode);
+        // verify that the response was a 201 or 202.
+        // If it wasn't, the submission has failed.
+        if (responseCode != 201 && responseCode != 202) {
+          if (responseCode == 200) {
+            return failed(id, submissionInstanceId, fail + "Network login failure? Again?");
+          } else {
+            return failed(id, submissionInstanceId, fail
+                + response.getStatusLine().getReasonPhrase() + " (" + responseCode + ") at "
+                + urlString);
+          }
+        }
+      } catch (Exception e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        return failed(id, submissionInstanceId, fail + "Generic Exception. " + e.getMessage());
+      }
+    }
+
+    // if it got here, it must have worked
+    return new Result(id, submissionInstanceId, InstanceColumns.STATUS_SUBMITTED,
+        successMessage);
+  }
+
+  private static Result failed(String id, String submissionInstanceId, String message) {
+    return new Result(id, submissionInstanceId, InstanceColumns.STATUS_SUBMISSION_FAILED,
+        message);
+  }
+}
@@ -116,6 +116,25 @@ public final class WebUtils {
   }
 
   public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects) {
+    return newHttpClientBuilder(timeout).build();
+  }
+
+  /**
+   * Create a client that can be used by several threads at once. It keeps up
+   * to maxConnections keep-alive connections open to each server.
+   *
+   * @param timeout
+   * @param maxConnections
+   * @return
+   */
+  public static CloseableHttpClient createPooledHttpClient(int timeout, int maxConnections) {
+    return newHttpClientBuilder(timeout)
+        .setMaxConnPerRoute(maxConnections)
+        .setMaxConnTotal(maxConnections)
+        .build();
+  }
+
+  private static HttpClientBuilder newHttpClientBuilder(int timeout) {
     // configure connection
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
         .setSoTimeout(2*timeout)
@@ -137,18 +156,18 @@ public final class WebUtils {
         .build();
 
     // setup client
-    CloseableHttpClient httpclient = HttpClientBuilder.create()
+    return HttpClientBuilder.create()
         .setDefaultSocketConfig(socketConfig)
-        .setDefaultRequestConfig(requestConfig)
-        .build();
-
-    return httpclient;
+        .setDefaultRequestConfig(requestConfig);
   }
 
   private void setOpenRosaHeaders(HttpRequest req) {
     req.setHeader(OPEN_ROSA_VERSION_HEADER, OPEN_ROSA_VERSION);
-    g.setTime(new Date());
-    req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    // the calendar is shared by concurrent uploads
+    synchronized (g) {
+      g.setTime(new Date());
+      req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    }
   }
 
   public HttpHead createOpenRosaHttpHead(URI uri) {
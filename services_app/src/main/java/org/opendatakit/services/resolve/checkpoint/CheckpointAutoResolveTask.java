@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.resolve.checkpoint;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.R;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.resolve.listener.ResolutionListener;
+import org.opendatakit.services.resolve.views.components.ResolveActionList;
+import org.opendatakit.services.utilities.ActiveUserAndLocale;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Background sweep over the checkpoints of a table that resolves the ones the
+ * user cannot or need not act upon:
+ * <ul>
+ * <li>checkpoints that differ from the row only in their metadata are
+ * discarded.</li>
+ * <li>checkpoints on rows that are hidden from the user, or that the user
+ * cannot modify, are discarded.</li>
+ * </ul>
+ * This runs while the first page of checkpoints is already on screen.
+ * Progress is reported per row and the sweep stops at the next row when
+ * cancelled; the rows it has already resolved stay resolved.
+ * <p>
+ * The result is the message reporting the checkpoints that were silently
+ * rolled back, or an empty string if there were none.
+ */
+class CheckpointAutoResolveTask extends AsyncTask<Void, String, String> {
+
+  private final Context mContext;
+  private final ActiveUserAndLocale aul;
+  private final String formatStrCheckingRowNofM;
+  private final String formatStrSilentlyRevertedSingle;
+  private final String formatStrSilentlyReverted;
+
+  private final String mAppName;
+  private final String mTableId;
+  private ResolutionListener rl;
+  private String mProgress = "";
+  private String mResult = null;
+
+  CheckpointAutoResolveTask(Context context, String appName, String tableId) {
+    super();
+    this.mContext = context.getApplicationContext();
+    this.mAppName = appName;
+    this.mTableId = tableId;
+    aul = ActiveUserAndLocale.getActiveUserAndLocale(context, mAppName);
+
+    formatStrCheckingRowNofM = context.getString(R.string.checking_row_n_of_m);
+    formatStrSilentlyRevertedSingle =
+        context.getString(R.string.silently_resolved_single_checkpoint);
+    formatStrSilentlyReverted = context.getString(R.string.silently_resolved_checkpoints);
+  }
+
+  @Override protected String doInBackground(Void... params) {
+
+    OdkConnectionInterface db = null;
+
+    DbHandle dbHandleName = new DbHandle(UUID.randomUUID().toString());
+
+    int numberRowsSilentlyReverted = 0;
+
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(mAppName, dbHandleName);
+
+      OrderedColumns orderedDefns = ODKDatabaseImplUtils.get()
+          .getUserDefinedColumns(db, mTableId);
+      String whereClause = DataTableColumns.SAVEPOINT_TYPE + " IS NULL";
+      String[] groupBy = { DataTableColumns.ID };
+      String[] orderByKeys = new String[] { DataTableColumns.SAVEPOINT_TIMESTAMP };
+      String[] orderByDir = new String[] { "DESC" };
+
+      List<String> adminColumns = ODKDatabaseImplUtils.get().getAdminColumns();
+      String[] adminColArr = adminColumns.toArray(new String[adminColumns.size()]);
+
+      ODKDatabaseImplUtils.AccessContext accessContextBase =
+          ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
+              aul.rolesList);
+
+      ODKDatabaseImplUtils.AccessContext accessContextPrivileged =
+          ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
+              RoleConsts.ADMIN_ROLES_LIST);
+
+      BaseTable baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
+              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+          null, null, accessContextPrivileged);
+      UserTable table = new UserTable(baseTable, orderedDefns, adminColArr);
+
+      // resolve the automatically-resolvable ones
+      // (the ones that differ only in their metadata).
+      Set<String> ids = new HashSet<String>();
+      int total = table.getNumberOfRows();
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        if (isCancelled()) {
+          return null;
+        }
+        this.publishProgress(String.format(formatStrCheckingRowNofM, i + 1, total));
+
+        TypedRow row = table.getRowAtIndex(i);
+        String rowId = row.getRawStringByKey(DataTableColumns.ID);
+
+        OdkResolveCheckpointFieldLoader loader = new OdkResolveCheckpointFieldLoader(mContext,
+            mAppName, mTableId, rowId);
+        ResolveActionList resolveActionList = loader.doWork(dbHandleName);
+
+        if (resolveActionList.noChangesInUserDefinedFieldValues()) {
+          // act as a privileged user so that we always restore to original row
+          ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId,
+              rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+        } else {
+          ids.add(rowId);
+        }
+      }
+
+      // Now run the same query --  but as an unprivileged query (with the current user's
+      // permissions).
+      // Then revert the checkpoints on the remaining rows that were either not in the
+      // unprivileged result set (i.e., are hidden to this user) or for which the current
+      // user does not have modify ("w") access.
+      BaseTable unprivilegedBaseTable = ODKDatabaseImplUtils.get().query(db, mTableId, QueryUtil
+              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+          null, null, accessContextBase);
+      UserTable unprivilegedTable = new UserTable(unprivilegedBaseTable, orderedDefns,
+          adminColArr);
+
+      for (int i = 0; i < unprivilegedTable.getNumberOfRows(); ++i) {
+        TypedRow theRow = unprivilegedTable.getRowAtIndex(i);
+        // only display a checkpoint if the user is able to modify the row
+        if (theRow.getRawStringByKey(DataTableColumns.EFFECTIVE_ACCESS).contains("w")) {
+          ids.remove(unprivilegedTable.getRowId(i));
+        }
+      }
+
+      int reverted = 0;
+      for (String rowId : ids) {
+        if (isCancelled()) {
+          return null;
+        }
+        this.publishProgress(String.format(formatStrCheckingRowNofM, ++reverted, ids.size()));
+
+        // act as a privileged user so that we always restore to original row
+        ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId, rowId,
+            aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+        ++numberRowsSilentlyReverted;
+      }
+    } catch (Exception e) {
+      String msg = e.getLocalizedMessage();
+      if (msg == null)
+        msg = e.getMessage();
+      if (msg == null)
+        msg = e.toString();
+      msg = "Exception: " + msg;
+      WebLogger.getLogger(mAppName).e("CheckpointAutoResolveTask",
+          mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      return msg;
+    } finally {
+      if (db != null) {
+        // release the reference...
+        // this does not necessarily close the db handle
+        // or terminate any pending transaction
+        db.releaseReference();
+      }
+    }
+
+    if (numberRowsSilentlyReverted == 0) {
+      return "";
+    } else if (numberRowsSilentlyReverted == 1) {
+      return formatStrSilentlyRevertedSingle;
+    } else {
+      return String.format(formatStrSilentlyReverted, numberRowsSilentlyReverted);
+    }
+  }
+
+  @Override
+  protected void onProgressUpdate(String... progress) {
+    synchronized (this) {
+      mProgress = progress[0];
+      if (rl != null) {
+        rl.resolutionProgress(mProgress);
+      }
+    }
+  }
+
+  @Override
+  protected void onPostExecute(String result) {
+    synchronized (this) {
+      mResult = result;
+      if (rl != null) {
+        rl.resolutionComplete(mResult);
+      }
+    }
+  }
+
+  public String getProgress() {
+    return mProgress;
+  }
+
+  public String getResult() {
+    return mResult;
+  }
+
+  public String getTableId() {
+    return mTableId;
+  }
+
+  public void setResolutionListener(ResolutionListener listener) {
+    synchronized (this) {
+      rl = listener;
+    }
+  }
+
+  public void clearResolutionListener(ResolutionListener listener) {
+    synchronized (this) {
+      if (rl == listener) {
+        rl = null;
+      }
+    }
+  }
+}
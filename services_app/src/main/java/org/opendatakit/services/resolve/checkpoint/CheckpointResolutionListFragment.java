@@ -21,9 +21,11 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.fragment.app.ListFragment;
@@ -55,24 +57,64 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
   private static final String PROGRESS_DIALOG_TAG = "progressCheckpoint";
 
   private static final String HAVE_RESOLVED_METADATA_CONFLICTS = "haveResolvedMetadataConflicts";
+  private static final String ROW_LIMIT = "rowLimit";
+
+  /**
+   * Number of rows loaded at a time. The next page is loaded when the list is
+   * scrolled near its end.
+   */
+  private static final int ROWS_PER_PAGE = 100;
 
   private static CheckpointResolutionListTask checkpointResolutionListTask = null;
+  private static CheckpointAutoResolveTask checkpointAutoResolveTask = null;
 
   private String mAppName;
   private String mTableId;
   private boolean mHaveResolvedMetadataConflicts = false;
+  /**
+   * The rows requested from the loader: a page to append when mRowOffset is
+   * not zero; otherwise the rows to show in place of the current ones.
+   */
+  private int mRowOffset = 0;
+  private int mRowLimit = ROWS_PER_PAGE;
+  private boolean mHasMoreRows = false;
   private ArrayAdapter<ResolveRowEntry> mAdapter;
 
   private ProgressDialogFragment progressDialog = null;
 
   private Button buttonTakeAllOldest;
   private Button buttonTakeAllNewest;
+  private TextView statusText;
+
+  /**
+   * Receives the progress and outcome of the background auto-resolution sweep.
+   */
+  private final ResolutionListener autoResolveListener = new ResolutionListener() {
+    @Override public void resolutionProgress(String progress) {
+      statusText.setText(progress);
+    }
+
+    @Override public void resolutionComplete(String result) {
+      checkpointAutoResolveTask = null;
+      // we have resolved the metadata conflicts -- no need to try this again
+      mHaveResolvedMetadataConflicts = true;
+      statusText.setText(R.string.select_checkpoint_to_resolve);
+
+      if ( result != null && result.length() != 0 ) {
+        Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
+      }
+      reloadRows();
+    }
+  };
 
   @Override
   public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
 
     outState.putBoolean(HAVE_RESOLVED_METADATA_CONFLICTS, mHaveResolvedMetadataConflicts);
+    // the number of rows to reload
+    outState.putInt(ROW_LIMIT,
+        (mAdapter == null) ? ROWS_PER_PAGE : Math.max(ROWS_PER_PAGE, mAdapter.getCount()));
   }
 
 
@@ -99,12 +141,28 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
         (savedInstanceState.containsKey(HAVE_RESOLVED_METADATA_CONFLICTS) ?
          savedInstanceState.getBoolean(HAVE_RESOLVED_METADATA_CONFLICTS) :
          false);
+    if ( savedInstanceState != null && savedInstanceState.containsKey(ROW_LIMIT) ) {
+      mRowLimit = savedInstanceState.getInt(ROW_LIMIT);
+    }
 
     // render total instance view
     mAdapter = new ArrayAdapter<ResolveRowEntry>(getActivity(), android.R.layout.simple_list_item_1);
     setListAdapter(mAdapter);
 
-    LoaderManager.getInstance(this).initLoader(RESOLVE_ROW_LOADER, null, this);
+    getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+      @Override public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+
+      @Override public void onScroll(AbsListView view, int firstVisibleItem,
+          int visibleItemCount, int totalItemCount) {
+        if ( mHasMoreRows && firstVisibleItem + 2 * visibleItemCount >= totalItemCount ) {
+          loadMoreRows();
+        }
+      }
+    });
+
+    // a retained loader may hold a later page rather than the whole list
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
   }
 
   @Override
@@ -115,6 +173,7 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
 
     buttonTakeAllNewest = view.findViewById(R.id.take_all_newest);
     buttonTakeAllOldest = view.findViewById(R.id.take_all_oldest);
+    statusText = view.findViewById(R.id.status_text);
 
     if(buttonTakeAllNewest == null || buttonTakeAllOldest == null) {
       throw new RuntimeException("Android failed to locate references to buttons");
@@ -139,6 +198,7 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
     });
 
     showProgressDialog();
+    startAutoResolveIfNeeded();
   }
 
   private void takeAllNewest() {
@@ -159,6 +219,8 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
     WebLogger.getLogger(mAppName).e(TAG,
         "[onListItemClick] clicked position: " + position + " rowId: " + e.rowId);
     if ( checkpointResolutionListTask == null ) {
+      // the user wants to act now; the sweep restarts when we return to this list.
+      cancelAutoResolve();
       launchRowResolution(e);
     } else {
       Toast.makeText(getActivity(), R.string.resolver_already_active, Toast.LENGTH_LONG).show();
@@ -177,37 +239,31 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
   public Loader<ArrayList<ResolveRowEntry>> onCreateLoader(int id, Bundle args) {
     // Now create and return a OdkResolveCheckpointRowLoader that will take care of
     // creating an ArrayList<ResolveRowEntry> for the data being displayed.
-    return new OdkResolveCheckpointRowLoader(getActivity(), mAppName, mTableId,
-        mHaveResolvedMetadataConflicts);
+    return new OdkResolveCheckpointRowLoader(getActivity(), mAppName, mTableId, mRowOffset,
+        mRowLimit);
   }
 
   @Override
   public void onLoadFinished(Loader<ArrayList<ResolveRowEntry>> loader,
       ArrayList<ResolveRowEntry> resolveRowEntryArrayList) {
-    // we have resolved the metadata conflicts -- no need to try this again
-    mHaveResolvedMetadataConflicts = true;
-
-    // this toast may be silently swallowed if there is only one remaining checkpoint in the table.
-    int silentlyResolvedCheckpoints =
-        ((OdkResolveCheckpointRowLoader) loader).getNumberRowsSilentlyReverted();
+    OdkResolveCheckpointRowLoader rowLoader = (OdkResolveCheckpointRowLoader) loader;
+    mHasMoreRows = rowLoader.hasMoreRows();
 
-    if ( silentlyResolvedCheckpoints != 0 ) {
-      if ( silentlyResolvedCheckpoints == 1 ) {
-        Toast.makeText(getActivity(), getActivity().getString(R.string
-                .silently_resolved_single_checkpoint), Toast.LENGTH_LONG).show();
-      } else {
-        Toast.makeText(getActivity(), getActivity().getString(R.string.silently_resolved_checkpoints,
-            silentlyResolvedCheckpoints), Toast.LENGTH_LONG).show();
-      }
+    if ( rowLoader.getOffset() != 0 ) {
+      // the next page
+      mAdapter.addAll(resolveRowEntryArrayList);
+      mAdapter.notifyDataSetChanged();
+      return;
     }
 
     // Swap the new cursor in. (The framework will take care of closing the
     // old cursor once we return.)
     mAdapter.clear();
-    if ( resolveRowEntryArrayList.size() == 1 ) {
+    // until the sweep has completed, more of these rows may yet be auto-resolved.
+    if ( mHaveResolvedMetadataConflicts && resolveRowEntryArrayList.size() == 1 ) {
       launchRowResolution(resolveRowEntryArrayList.get(0));
       return;
-    } else if ( resolveRowEntryArrayList.isEmpty() ){
+    } else if ( mHaveResolvedMetadataConflicts && resolveRowEntryArrayList.isEmpty() ){
       Toast.makeText(getActivity(), R.string.checkpoint_auto_apply_all, Toast.LENGTH_SHORT).show();
       getActivity().setResult(Activity.RESULT_OK);
       getActivity().finish();
@@ -234,12 +290,78 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
     if ( checkpointResolutionListTask != null ) {
       checkpointResolutionListTask.clearResolutionListener(null);
     }
+    if ( checkpointAutoResolveTask != null ) {
+      if ( getActivity() != null && getActivity().isFinishing() ) {
+        cancelAutoResolve();
+      } else {
+        checkpointAutoResolveTask.clearResolutionListener(autoResolveListener);
+      }
+    }
     super.onDestroy();
   }
 
+  private void loadMoreRows() {
+    mHasMoreRows = false;
+    mRowOffset = mAdapter.getCount();
+    mRowLimit = ROWS_PER_PAGE;
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+  }
+
+  /**
+   * Re-read the rows from the first one, as many as are shown now, after rows
+   * may have been resolved.
+   */
+  private void reloadRows() {
+    mHasMoreRows = false;
+    mRowOffset = 0;
+    mRowLimit = Math.max(ROWS_PER_PAGE, mAdapter.getCount());
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+  }
+
+  /**
+   * Start (or re-attach to) the background sweep that resolves the checkpoints
+   * the user cannot or need not act upon. It runs once per visit to this list,
+   * and not while a resolve-all action is in progress.
+   */
+  private void startAutoResolveIfNeeded() {
+    if ( mHaveResolvedMetadataConflicts ) {
+      return;
+    }
+    if ( checkpointAutoResolveTask != null &&
+        !mTableId.equals(checkpointAutoResolveTask.getTableId()) ) {
+      cancelAutoResolve();
+    }
+    if ( checkpointAutoResolveTask == null ) {
+      if ( checkpointResolutionListTask != null ) {
+        return;
+      }
+      checkpointAutoResolveTask = new CheckpointAutoResolveTask(getActivity(), mAppName, mTableId);
+      checkpointAutoResolveTask.setResolutionListener(autoResolveListener);
+      checkpointAutoResolveTask.execute();
+    } else {
+      checkpointAutoResolveTask.setResolutionListener(autoResolveListener);
+      if ( checkpointAutoResolveTask.getResult() != null ) {
+        autoResolveListener.resolutionComplete(checkpointAutoResolveTask.getResult());
+        return;
+      }
+      statusText.setText(checkpointAutoResolveTask.getProgress());
+    }
+  }
+
+  private void cancelAutoResolve() {
+    if ( checkpointAutoResolveTask != null ) {
+      checkpointAutoResolveTask.clearResolutionListener(autoResolveListener);
+      checkpointAutoResolveTask.cancel(false);
+      checkpointAutoResolveTask = null;
+      statusText.setText(R.string.select_checkpoint_to_resolve);
+    }
+  }
+
   private void resolveConflictList(boolean takeNewest) {
     if (mAdapter.getCount() > 0) {
       if (checkpointResolutionListTask == null) {
+        // this resolves every checkpoint in the table
+        cancelAutoResolve();
         checkpointResolutionListTask = new CheckpointResolutionListTask(getActivity(), takeNewest, mAppName);
         checkpointResolutionListTask.setTableId(mTableId);
         checkpointResolutionListTask.setResolveRowEntryAdapter(mAdapter);
@@ -292,10 +414,11 @@ public class CheckpointResolutionListFragment extends ListFragment implements Lo
     ProgressDialogFragment.dismissDialogs(PROGRESS_DIALOG_TAG, progressDialog,
             getParentFragmentManager());
     progressDialog = null;
-    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+    reloadRows();
 
     if ( result != null && result.length() != 0 ) {
       Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
     }
+    startAutoResolveIfNeeded();
   }
 }
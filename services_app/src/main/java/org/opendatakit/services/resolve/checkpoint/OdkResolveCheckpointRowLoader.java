@@ -28,6 +28,7 @@ import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.QueryBounds;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.utilities.QueryUtil;
 import org.opendatakit.logging.WebLogger;
@@ -39,16 +40,13 @@ import org.opendatakit.services.R;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
-import org.opendatakit.services.resolve.views.components.ResolveActionList;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.NameUtil;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -58,8 +56,9 @@ class OdkResolveCheckpointRowLoader extends AsyncTaskLoader<ArrayList<ResolveRow
 
   private final String mAppName;
   private final String mTableId;
-  private final boolean mHaveResolvedMetadataConflicts;
-  private int mNumberRowsSilentlyReverted = 0;
+  private final int mOffset;
+  private final int mLimit;
+  private boolean mHasMoreRows = false;
 
   private static class FormDefinition {
     String instanceName;
@@ -67,16 +66,38 @@ class OdkResolveCheckpointRowLoader extends AsyncTaskLoader<ArrayList<ResolveRow
     String formId;
   }
 
+  /**
+   * Loads a page of limit rows of the table that have checkpoints, most recent
+   * first, starting at offset. The checkpoints the user cannot or need not act
+   * upon are resolved separately, by the {@link CheckpointAutoResolveTask}.
+   *
+   * @param context
+   * @param appName
+   * @param tableId
+   * @param offset  the number of rows to skip
+   * @param limit   the number of rows to load
+   */
   public OdkResolveCheckpointRowLoader(Context context, String appName, String tableId,
-      boolean haveResolvedMetadataConflicts) {
+      int offset, int limit) {
     super(context);
     this.mAppName = appName;
     this.mTableId = tableId;
-    this.mHaveResolvedMetadataConflicts = haveResolvedMetadataConflicts;
+    this.mOffset = offset;
+    this.mLimit = limit;
   }
 
-  public int getNumberRowsSilentlyReverted() {
-    return mNumberRowsSilentlyReverted;
+  /**
+   * @return the position of the first loaded row among all the rows
+   */
+  public int getOffset() {
+    return mOffset;
+  }
+
+  /**
+   * @return true if the table has more rows with checkpoints than were loaded.
+   */
+  public boolean hasMoreRows() {
+    return mHasMoreRows;
   }
 
   @Override
@@ -126,85 +147,12 @@ class OdkResolveCheckpointRowLoader extends AsyncTaskLoader<ArrayList<ResolveRow
           ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
               RoleConsts.ADMIN_ROLES_LIST);
 
+      // fetch one more row than was asked for, to know whether there are more
       BaseTable baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
               .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-          null, null, accessContextPrivileged);
+          null, new QueryBounds(mLimit + 1, mOffset), accessContextPrivileged);
       table = new UserTable(baseTable, orderedDefns, adminColArr);
 
-      if ( !mHaveResolvedMetadataConflicts ) {
-
-        boolean tableSetChanged = false;
-        // resolve the automatically-resolvable ones
-        // (the ones that differ only in their metadata).
-        for (int i = 0; i < table.getNumberOfRows(); ++i) {
-          TypedRow row = table.getRowAtIndex(i);
-          String rowId = row.getRawStringByKey(DataTableColumns.ID);
-
-          OdkResolveCheckpointFieldLoader loader = new OdkResolveCheckpointFieldLoader(getContext(),
-              mAppName, mTableId, rowId);
-          ResolveActionList resolveActionList = loader.doWork(dbHandleName);
-
-          if (resolveActionList.noChangesInUserDefinedFieldValues()) {
-            tableSetChanged = true;
-            // act as a privileged user so that we always restore to original row
-            ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId,
-                rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
-          }
-        }
-
-        if ( tableSetChanged ) {
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              null, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
-        }
-      }
-
-      // Now run the same query --  but as an unprivileged query (with the current user's
-      // permissions).
-      // Then construct a set of ids that were returned by the privileged query but that were
-      // either not in the unprivileged result set (i.e., are hidden to this user) or for which
-      // the current user does not have modify ("w") access. Revert these, as the user does not
-      // have permission to modify them. And, finally, if that set is non-empty, re-fetch the
-      // table, as it will now have fewer rows.
-      {
-        BaseTable unprivilegedBaseTable = ODKDatabaseImplUtils.get().query(db, mTableId, QueryUtil
-                .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir), null,
-            null, accessContextBase);
-        UserTable unprivilegedTable = new UserTable(unprivilegedBaseTable, orderedDefns, adminColArr);
-
-        // build up the set of ids missing from the unprivilegedTable vs. the (privilegedQuery)
-        // table and any ids that the user does not have the ability to modify ("w" access).
-        Set<String> ids = new HashSet<String>();
-        for (int i = 0; i < table.getNumberOfRows(); ++i) {
-          ids.add(table.getRowId(i));
-        }
-        for (int i = 0; i < unprivilegedTable.getNumberOfRows(); ++i) {
-          TypedRow theRow = unprivilegedTable.getRowAtIndex(i);
-          // only display a checkpoint if the user is able to modify the row
-          if (theRow.getRawStringByKey(DataTableColumns.EFFECTIVE_ACCESS).contains("w")) {
-            ids.remove(unprivilegedTable.getRowId(i));
-          }
-        }
-        mNumberRowsSilentlyReverted = ids.size();
-
-        // the ids remaining in 'ids' are either hidden to the user or the user does not have
-        // the ability to modify those rows. Resolve all of these by deleting the checkpoints.
-        for (String rowId : ids) {
-          // act as a privileged user so that we always restore to original row
-          ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId, rowId, aul.activeUser,
-              RoleConsts.ADMIN_ROLES_LIST);
-        }
-
-        if ( mNumberRowsSilentlyReverted != 0 ) {
-          // update the privileged query table again
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-                  .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              null, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
-        }
-      }
-
       // The display name is the table display name, not the form display name...
       ArrayList<KeyValueStoreEntry> entries = ODKDatabaseImplUtils.get().getTableMetadata(db,
           mTableId, KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
@@ -297,8 +245,10 @@ class OdkResolveCheckpointRowLoader extends AsyncTaskLoader<ArrayList<ResolveRow
     String formDisplayName = LocalizationUtils.getLocalizedDisplayName(mAppName, mTableId,
         userSelectedDefaultLocale, nameToUse.formDisplayName);
 
+    mHasMoreRows = table.getNumberOfRows() > mLimit;
+
     ArrayList<ResolveRowEntry> results = new ArrayList<ResolveRowEntry>();
-    for (int i = 0; i < table.getNumberOfRows(); i++) {
+    for (int i = 0; i < Math.min(table.getNumberOfRows(), mLimit); i++) {
       TypedRow row = table.getRowAtIndex(i);
       String rowId = row.getRawStringByKey(DataTableColumns.ID);
       String instanceName = row.getRawStringByKey(nameToUse.instanceName);
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.resolve.conflict;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.R;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.resolve.listener.ResolutionListener;
+import org.opendatakit.services.resolve.views.components.ResolveActionList;
+import org.opendatakit.services.utilities.ActiveUserAndLocale;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Background sweep over the conflicts of a table that resolves the ones the
+ * user cannot or need not act upon:
+ * <ul>
+ * <li>conflicts on rows the user can no longer modify (or delete) are
+ * resolved by taking the server's changes.</li>
+ * <li>the permissions-change restrictions are enforced on the remaining
+ * conflicts, which may resolve them.</li>
+ * <li>conflicts that differ only in their metadata are resolved by taking the
+ * server's changes.</li>
+ * </ul>
+ * This runs while the first page of conflicts is already on screen. Progress
+ * is reported per row and the sweep stops at the next row when cancelled; the
+ * rows it has already resolved stay resolved.
+ * <p>
+ * The result is the message reporting the conflicts that were silently
+ * resolved, or an empty string if there were none.
+ */
+class ConflictAutoResolveTask extends AsyncTask<Void, String, String> {
+
+  private final Context mContext;
+  private final ActiveUserAndLocale aul;
+  private final String formatStrCheckingRowNofM;
+  private final String formatStrSilentlyResolvedSingle;
+  private final String formatStrSilentlyResolved;
+
+  private final String mAppName;
+  private final String mTableId;
+  private ResolutionListener rl;
+  private String mProgress = "";
+  private String mResult = null;
+
+  ConflictAutoResolveTask(Context context, String appName, String tableId) {
+    super();
+    this.mContext = context.getApplicationContext();
+    this.mAppName = appName;
+    this.mTableId = tableId;
+    aul = ActiveUserAndLocale.getActiveUserAndLocale(context, mAppName);
+
+    formatStrCheckingRowNofM = context.getString(R.string.checking_row_n_of_m);
+    formatStrSilentlyResolvedSingle = context.getString(R.string.silently_resolved_single_conflict);
+    formatStrSilentlyResolved = context.getString(R.string.silently_resolved_conflicts);
+  }
+
+  @Override protected String doInBackground(Void... params) {
+
+    OdkConnectionInterface db = null;
+
+    DbHandle dbHandleName = new DbHandle(UUID.randomUUID().toString());
+
+    int numberRowsSilentlyResolved = 0;
+
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(mAppName, dbHandleName);
+
+      OrderedColumns orderedDefns = ODKDatabaseImplUtils.get()
+          .getUserDefinedColumns(db, mTableId);
+      String whereClause = DataTableColumns.CONFLICT_TYPE + " IN ( ?, ?)";
+      Object[] selectionArgs = new Object[] {
+          ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
+      Object[] serverSelectionArgs = new Object[] {
+          ConflictType.SERVER_DELETED_OLD_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES };
+      String[] groupBy = { DataTableColumns.ID };
+      String[] orderByKeys = new String[] { DataTableColumns.SAVEPOINT_TIMESTAMP };
+      String[] orderByDir = new String[] { "DESC" };
+      List<String> adminColumns = ODKDatabaseImplUtils.get().getAdminColumns();
+      String[] adminColArr = adminColumns.toArray(new String[adminColumns.size()]);
+
+      ODKDatabaseImplUtils.AccessContext accessContextBase =
+          ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
+              aul.rolesList);
+
+      ODKDatabaseImplUtils.AccessContext accessContextPrivileged =
+          ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
+              RoleConsts.ADMIN_ROLES_LIST);
+
+      BaseTable baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
+              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+          selectionArgs, null, accessContextPrivileged);
+      UserTable table = new UserTable(baseTable, orderedDefns, adminColArr);
+
+      // The server conflict row imposes its privilege restrictions prior to consideration
+      // of the user's row changes. If the user does not have "w" access and is trying to do
+      // a local update, or does not have "d" access and is trying to do a local delete, the
+      // conflict is resolved by taking the server's change. See the matching logic in
+      // ODKDatabaseImplUtils.privilegedPerhapsPlaceRowIntoConflictWithId(); this handles
+      // loss-of-privilege between the time of Sync and the time we open this screen.
+      //
+      // For bookkeeping, we first create a map of rowId -> local conflict type
+      // and then iterate over the result set from the server query.
+      HashMap<String, Integer> localConflictTypeMap = new HashMap<>();
+      Set<String> ids = new HashSet<String>();
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        // full set of ids in conflict
+        ids.add(table.getRowId(i));
+        TypedRow theRow = table.getRowAtIndex(i);
+        String strLocalConflictValue = theRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE);
+        // the strLocalConflictValue will always be an integer because of the where clause
+        int localConflictValue = Integer.valueOf(strLocalConflictValue);
+        localConflictTypeMap.put(table.getRowId(i), localConflictValue);
+      }
+      int total = table.getNumberOfRows();
+      int checked = 0;
+
+      // do the unprivileged query to get the server rows
+      BaseTable unprivilegedBaseTable = ODKDatabaseImplUtils.get().query(db, mTableId, QueryUtil
+              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+          serverSelectionArgs, null, accessContextBase);
+      UserTable unprivilegedTable = new UserTable(unprivilegedBaseTable, orderedDefns,
+          adminColArr);
+
+      for (int i = 0; i < unprivilegedTable.getNumberOfRows(); ++i) {
+        if (isCancelled()) {
+          return null;
+        }
+        this.publishProgress(String.format(formatStrCheckingRowNofM, ++checked, total));
+
+        String rowId = unprivilegedTable.getRowId(i);
+        // the unprivileged query is always a subset of the privileged query result set.
+        Integer localConflictValue = localConflictTypeMap.get(rowId);
+        if (localConflictValue == null) {
+          // resolved since the privileged query
+          ids.remove(rowId);
+          continue;
+        }
+
+        TypedRow theRow = unprivilegedTable.getRowAtIndex(i);
+        String effectiveAccess = theRow.getRawStringByKey(DataTableColumns.EFFECTIVE_ACCESS);
+
+        if ((localConflictValue == ConflictType.LOCAL_UPDATED_UPDATED_VALUES &&
+            effectiveAccess.contains("w")) ||
+            (localConflictValue == ConflictType.LOCAL_DELETED_OLD_VALUES &&
+                effectiveAccess.contains("d"))) {
+          // the user can make their local change -- do not auto-resolve this
+          // HOWEVER: enforce permissions-update rules (whether the user has "p" privileges)
+          // this may resolve the conflict...
+          if (!ODKDatabaseImplUtils.get().enforcePermissionsAndOptimizeConflictProcessing(db,
+              mTableId, orderedDefns, rowId, SyncState.in_conflict, accessContextBase,
+              aul.locale)) {
+            ++numberRowsSilentlyResolved;
+          }
+          // and then present it to the user (remove it from this list).
+          ids.remove(rowId);
+        }
+      }
+
+      // the ids remaining in 'ids' are either hidden to the user or the user does not have
+      // the ability to perform the local change they want in those rows.
+      for (String rowId : ids) {
+        if (isCancelled()) {
+          return null;
+        }
+        this.publishProgress(String.format(formatStrCheckingRowNofM, ++checked, total));
+
+        // act as a privileged user so that we always restore to original row
+        ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db, mTableId, rowId,
+            aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+        ++numberRowsSilentlyResolved;
+      }
+
+      // and now scan to see if we can resolve the conflicts because the rows are
+      // identical in all fields that the user should be able to select. This is after
+      // the above processing because the
+      // ODKDatabaseImplUtils.enforcePermissionsAndOptimizeConflictProcessing()
+      // function may have eliminated all of the differences in the row (if they were
+      // only impacting the permissions fields).
+      baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
+              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+          selectionArgs, null, accessContextPrivileged);
+      table = new UserTable(baseTable, orderedDefns, adminColArr);
+
+      total = table.getNumberOfRows();
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        if (isCancelled()) {
+          return null;
+        }
+        this.publishProgress(String.format(formatStrCheckingRowNofM, i + 1, total));
+
+        TypedRow row = table.getRowAtIndex(i);
+        String rowId = row.getRawStringByKey(DataTableColumns.ID);
+        OdkResolveConflictFieldLoader loader = new OdkResolveConflictFieldLoader(mContext,
+            mAppName, mTableId, rowId);
+        ResolveActionList resolveActionList = loader.doWork(dbHandleName);
+
+        if (resolveActionList.noChangesInUserDefinedFieldValues()) {
+          // all users can resolve taking the server's changes
+          ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db,
+              mTableId, rowId, aul.activeUser, aul.locale);
+        }
+      }
+    } catch (Exception e) {
+      String msg = e.getLocalizedMessage();
+      if (msg == null)
+        msg = e.getMessage();
+      if (msg == null)
+        msg = e.toString();
+      msg = "Exception: " + msg;
+      WebLogger.getLogger(mAppName).e("ConflictAutoResolveTask",
+          mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      return msg;
+    } finally {
+      if (db != null) {
+        // release the reference...
+        // this does not necessarily close the db handle
+        // or terminate any pending transaction
+        db.releaseReference();
+      }
+    }
+
+    if (numberRowsSilentlyResolved == 0) {
+      return "";
+    } else if (numberRowsSilentlyResolved == 1) {
+      return formatStrSilentlyResolvedSingle;
+    } else {
+      return String.format(formatStrSilentlyResolved, numberRowsSilentlyResolved);
+    }
+  }
+
+  @Override
+  protected void onProgressUpdate(String... progress) {
+    synchronized (this) {
+      mProgress = progress[0];
+      if (rl != null) {
+        rl.resolutionProgress(mProgress);
+      }
+    }
+  }
+
+  @Override
+  protected void onPostExecute(String result) {
+    synchronized (this) {
+      mResult = result;
+      if (rl != null) {
+        rl.resolutionComplete(mResult);
+      }
+    }
+  }
+
+  public String getProgress() {
+    return mProgress;
+  }
+
+  public String getResult() {
+    return mResult;
+  }
+
+  public String getTableId() {
+    return mTableId;
+  }
+
+  public void setResolutionListener(ResolutionListener listener) {
+    synchronized (this) {
+      rl = listener;
+    }
+  }
+
+  public void clearResolutionListener(ResolutionListener listener) {
+    synchronized (this) {
+      if (rl == listener) {
+        rl = null;
+      }
+    }
+  }
+}
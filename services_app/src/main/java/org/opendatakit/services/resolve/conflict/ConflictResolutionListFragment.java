@@ -22,9 +22,11 @@ import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.fragment.app.ListFragment;
@@ -56,16 +58,31 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
   private static final String PROGRESS_DIALOG_TAG = "progressConflict";
 
   private static final String HAVE_RESOLVED_METADATA_CONFLICTS = "haveResolvedMetadataConflicts";
+  private static final String ROW_LIMIT = "rowLimit";
+
+  /**
+   * Number of rows loaded at a time. The next page is loaded when the list is
+   * scrolled near its end.
+   */
+  private static final int ROWS_PER_PAGE = 100;
 
   private enum DialogState {
     Progress, Alert, None
   }
 
   private static ConflictResolutionListTask conflictResolutionListTask = null;
+  private static ConflictAutoResolveTask conflictAutoResolveTask = null;
 
   private String mAppName;
   private String mTableId;
   private boolean mHaveResolvedMetadataConflicts = false;
+  /**
+   * The rows requested from the loader: a page to append when mRowOffset is
+   * not zero; otherwise the rows to show in place of the current ones.
+   */
+  private int mRowOffset = 0;
+  private int mRowLimit = ROWS_PER_PAGE;
+  private boolean mHasMoreRows = false;
   private ArrayAdapter<ResolveRowEntry> mAdapter;
 
   private Handler handler = new Handler();
@@ -73,12 +90,37 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
 
   private Button buttonTakeAllServer;
   private Button buttonTakeAllLocal;
+  private TextView statusText;
+
+  /**
+   * Receives the progress and outcome of the background auto-resolution sweep.
+   */
+  private final ResolutionListener autoResolveListener = new ResolutionListener() {
+    @Override public void resolutionProgress(String progress) {
+      statusText.setText(progress);
+    }
+
+    @Override public void resolutionComplete(String result) {
+      conflictAutoResolveTask = null;
+      // we have resolved the metadata conflicts -- no need to try this again
+      mHaveResolvedMetadataConflicts = true;
+      statusText.setText(R.string.select_conflict_to_resolve);
+
+      if ( result != null && result.length() != 0 ) {
+        Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
+      }
+      reloadRows();
+    }
+  };
 
   @Override
   public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
 
     outState.putBoolean(HAVE_RESOLVED_METADATA_CONFLICTS, mHaveResolvedMetadataConflicts);
+    // the number of rows to reload
+    outState.putInt(ROW_LIMIT,
+        (mAdapter == null) ? ROWS_PER_PAGE : Math.max(ROWS_PER_PAGE, mAdapter.getCount()));
   }
 
 
@@ -89,6 +131,7 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     View view = inflater.inflate(ID, container, false);
     buttonTakeAllServer = view.findViewById(R.id.take_all_server);
     buttonTakeAllLocal = view.findViewById(R.id.take_all_local);
+    statusText = view.findViewById(R.id.status_text);
 
     if(buttonTakeAllServer == null || buttonTakeAllLocal == null) {
       throw new RuntimeException("Android failed to locate references to buttons");
@@ -120,12 +163,28 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
         (savedInstanceState.containsKey(HAVE_RESOLVED_METADATA_CONFLICTS) ?
             savedInstanceState.getBoolean(HAVE_RESOLVED_METADATA_CONFLICTS) :
             false);
+    if ( savedInstanceState != null && savedInstanceState.containsKey(ROW_LIMIT) ) {
+      mRowLimit = savedInstanceState.getInt(ROW_LIMIT);
+    }
 
     // render total instance view
     mAdapter = new ArrayAdapter<ResolveRowEntry>(getActivity(), android.R.layout.simple_list_item_1);
     setListAdapter(mAdapter);
 
-    LoaderManager.getInstance(this).initLoader(RESOLVE_ROW_LOADER, null, this);
+    getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+      @Override public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+
+      @Override public void onScroll(AbsListView view, int firstVisibleItem,
+          int visibleItemCount, int totalItemCount) {
+        if ( mHasMoreRows && firstVisibleItem + 2 * visibleItemCount >= totalItemCount ) {
+          loadMoreRows();
+        }
+      }
+    });
+
+    // a retained loader may hold a later page rather than the whole list
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
   }
 
   @Override
@@ -144,6 +203,7 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     });
 
     showProgressDialog();
+    startAutoResolveIfNeeded();
   }
 
   private void takeAllLocal() {
@@ -164,6 +224,8 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     WebLogger.getLogger(mAppName).e(TAG,
         "[onListItemClick] clicked position: " + position + " rowId: " + e.rowId);
     if ( conflictResolutionListTask == null ) {
+      // the user wants to act now; the sweep restarts when we return to this list.
+      cancelAutoResolve();
       launchRowResolution(e);
     } else {
       Toast.makeText(getActivity(), R.string.resolver_already_active, Toast.LENGTH_LONG).show();
@@ -180,39 +242,33 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
 
   @Override
   public Loader<ArrayList<ResolveRowEntry>> onCreateLoader(int id, Bundle args) {
-    // Now create and return a OdkResolveCheckpointRowLoader that will take care of
+    // Now create and return a OdkResolveConflictRowLoader that will take care of
     // creating an ArrayList<ResolveRowEntry> for the data being displayed.
-    return new OdkResolveConflictRowLoader(getActivity(), mAppName, mTableId,
-        mHaveResolvedMetadataConflicts);
+    return new OdkResolveConflictRowLoader(getActivity(), mAppName, mTableId, mRowOffset,
+        mRowLimit);
   }
 
   @Override
   public void onLoadFinished(Loader<ArrayList<ResolveRowEntry>> loader,
       ArrayList<ResolveRowEntry> resolveRowEntryArrayList) {
-    // we have resolved the metadata conflicts -- no need to try this again
-    mHaveResolvedMetadataConflicts = true;
-
-    // this toast may be silently swallowed if there is only one remaining checkpoint in the table.
-    int silentlyResolvedConflicts =
-        ((OdkResolveConflictRowLoader) loader).getNumberRowsSilentlyResolved();
+    OdkResolveConflictRowLoader rowLoader = (OdkResolveConflictRowLoader) loader;
+    mHasMoreRows = rowLoader.hasMoreRows();
 
-    if ( silentlyResolvedConflicts != 0 ) {
-      if ( silentlyResolvedConflicts == 1 ) {
-        Toast.makeText(getActivity(), getActivity().getString(R.string
-            .silently_resolved_single_conflict), Toast.LENGTH_LONG).show();
-      } else {
-        Toast.makeText(getActivity(), getActivity().getString(R.string.silently_resolved_conflicts,
-            silentlyResolvedConflicts), Toast.LENGTH_LONG).show();
-      }
+    if ( rowLoader.getOffset() != 0 ) {
+      // the next page
+      mAdapter.addAll(resolveRowEntryArrayList);
+      mAdapter.notifyDataSetChanged();
+      return;
     }
 
     // Swap the new cursor in. (The framework will take care of closing the
     // old cursor once we return.)
     mAdapter.clear();
-    if ( resolveRowEntryArrayList.size() == 1 ) {
+    // until the sweep has completed, more of these rows may yet be auto-resolved.
+    if ( mHaveResolvedMetadataConflicts && resolveRowEntryArrayList.size() == 1 ) {
       launchRowResolution(resolveRowEntryArrayList.get(0));
       return;
-    } else if ( resolveRowEntryArrayList.isEmpty() ){
+    } else if ( mHaveResolvedMetadataConflicts && resolveRowEntryArrayList.isEmpty() ){
       Toast.makeText(getActivity(), R.string.conflict_auto_apply_all, Toast.LENGTH_SHORT).show();
       getActivity().setResult(Activity.RESULT_OK);
       getActivity().finish();
@@ -241,12 +297,77 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     if ( conflictResolutionListTask != null ) {
       conflictResolutionListTask.clearResolutionListener(null);
     }
+    if ( conflictAutoResolveTask != null ) {
+      if ( getActivity() != null && getActivity().isFinishing() ) {
+        cancelAutoResolve();
+      } else {
+        conflictAutoResolveTask.clearResolutionListener(autoResolveListener);
+      }
+    }
     super.onDestroy();
   }
 
+  private void loadMoreRows() {
+    mHasMoreRows = false;
+    mRowOffset = mAdapter.getCount();
+    mRowLimit = ROWS_PER_PAGE;
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+  }
+
+  /**
+   * Re-read the rows from the first one, as many as are shown now, after rows
+   * may have been resolved.
+   */
+  private void reloadRows() {
+    mHasMoreRows = false;
+    mRowOffset = 0;
+    mRowLimit = Math.max(ROWS_PER_PAGE, mAdapter.getCount());
+    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+  }
+
+  /**
+   * Start (or re-attach to) the background sweep that resolves the conflicts
+   * the user cannot or need not act upon. It runs once per visit to this list,
+   * and not while a resolve-all action is in progress.
+   */
+  private void startAutoResolveIfNeeded() {
+    if ( mHaveResolvedMetadataConflicts ) {
+      return;
+    }
+    if ( conflictAutoResolveTask != null && !mTableId.equals(conflictAutoResolveTask.getTableId()) ) {
+      cancelAutoResolve();
+    }
+    if ( conflictAutoResolveTask == null ) {
+      if ( conflictResolutionListTask != null ) {
+        return;
+      }
+      conflictAutoResolveTask = new ConflictAutoResolveTask(getActivity(), mAppName, mTableId);
+      conflictAutoResolveTask.setResolutionListener(autoResolveListener);
+      conflictAutoResolveTask.execute();
+    } else {
+      conflictAutoResolveTask.setResolutionListener(autoResolveListener);
+      if ( conflictAutoResolveTask.getResult() != null ) {
+        autoResolveListener.resolutionComplete(conflictAutoResolveTask.getResult());
+        return;
+      }
+      statusText.setText(conflictAutoResolveTask.getProgress());
+    }
+  }
+
+  private void cancelAutoResolve() {
+    if ( conflictAutoResolveTask != null ) {
+      conflictAutoResolveTask.clearResolutionListener(autoResolveListener);
+      conflictAutoResolveTask.cancel(false);
+      conflictAutoResolveTask = null;
+      statusText.setText(R.string.select_conflict_to_resolve);
+    }
+  }
+
   private void resolveConflictList(boolean takeLocal) {
     if (mAdapter.getCount() > 0) {
       if (conflictResolutionListTask == null) {
+        // this resolves every conflict in the table
+        cancelAutoResolve();
         conflictResolutionListTask = new ConflictResolutionListTask(getActivity(), takeLocal, mAppName);
         conflictResolutionListTask.setTableId(mTableId);
         conflictResolutionListTask.setResolveRowEntryAdapter(mAdapter);
@@ -300,10 +421,11 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     ProgressDialogFragment.dismissDialogs(PROGRESS_DIALOG_TAG, progressDialog,
             getParentFragmentManager());
     progressDialog = null;
-    LoaderManager.getInstance(this).restartLoader(RESOLVE_ROW_LOADER, null, this);
+    reloadRows();
 
     if ( result != null && result.length() != 0 ) {
       Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
     }
+    startAutoResolveIfNeeded();
   }
 }
@@ -1,12 +1,18 @@
 package org.opendatakit.services.resolve.task;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.AsyncTask;
 import android.widget.ArrayAdapter;
 
 import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.utilities.QueryUtil;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
@@ -15,6 +21,10 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -57,21 +67,43 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
+      // the adapter only holds the rows that have been paged in;
+      // resolve every row in the table that has checkpoints.
+      List<String> rowIds = new ArrayList<String>();
+      Cursor c = null;
+      try {
+        c = db.queryDistinct(mTableId, new String[] { DataTableColumns.ID },
+            DataTableColumns.SAVEPOINT_TYPE + " IS NULL", null, null, null, null, null);
+        int idxId = c.getColumnIndex(DataTableColumns.ID);
+        while (c.moveToNext()) {
+          rowIds.add(c.getString(idxId));
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+
+      // Taking the newest checkpoint modifies the row, so it is only done for
+      // the rows the user can see and modify. The checkpoints on the other
+      // rows are rolled back, as the CheckpointAutoResolveTask (which this
+      // task cancels) would have done.
+      Set<String> modifiableRowIds = mTakeNewest ? getModifiableRowIds(db) : null;
+
+      for ( int i = 0 ; i < rowIds.size() ; ++i ) {
         this.publishProgress(
-            String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
+            String.format(formatStrResolvingRowNofM, i+1, rowIds.size()));
 
-        ResolveRowEntry entry = mAdapter.getItem(i);
+        String rowId = rowIds.get(i);
         try {
 
-          if ( mTakeNewest ) {
-            // this may fail if user does not have permissions for modifying row
+          if ( mTakeNewest && modifiableRowIds.contains(rowId) ) {
             ODKDatabaseImplUtils.get()
-                .saveAsCompleteMostRecentCheckpointRowWithId(db, mTableId, entry.rowId);
+                .saveAsCompleteMostRecentCheckpointRowWithId(db, mTableId, rowId);
           } else {
             // allow all users to automatically roll back
             ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId,
-                entry.rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+                rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
           }
 
         } catch (Exception e) {
@@ -121,6 +153,38 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
     return (exceptions != null) ? exceptions.toString() : null;
   }
 
+  /**
+   * @return the ids of the rows with checkpoints that the active user can see
+   * and modify.
+   */
+  private Set<String> getModifiableRowIds(OdkConnectionInterface db) {
+    OrderedColumns orderedDefns = ODKDatabaseImplUtils.get()
+        .getUserDefinedColumns(db, mTableId);
+    String whereClause = DataTableColumns.SAVEPOINT_TYPE + " IS NULL";
+    String[] groupBy = { DataTableColumns.ID };
+
+    List<String> adminColumns = ODKDatabaseImplUtils.get().getAdminColumns();
+    String[] adminColArr = adminColumns.toArray(new String[adminColumns.size()]);
+
+    ODKDatabaseImplUtils.AccessContext accessContextBase =
+        ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
+            aul.rolesList);
+
+    BaseTable baseTable = ODKDatabaseImplUtils.get().query(db, mTableId, QueryUtil
+            .buildSqlStatement(mTableId, whereClause, groupBy, null, null, null),
+        null, null, accessContextBase);
+    UserTable table = new UserTable(baseTable, orderedDefns, adminColArr);
+
+    Set<String> rowIds = new HashSet<String>();
+    for (int i = 0; i < table.getNumberOfRows(); ++i) {
+      if (table.getRowAtIndex(i).getRawStringByKey(DataTableColumns.EFFECTIVE_ACCESS)
+          .contains("w")) {
+        rowIds.add(table.getRowId(i));
+      }
+    }
+    return rowIds;
+  }
+
   @Override
   protected void onProgressUpdate(String... progress) {
     synchronized (this) {
@@ -14,6 +14,7 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -62,34 +63,20 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
-        this.publishProgress(String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
+      this.publishProgress(String.format(formatStrResolvingRowNofM, 1, mAdapter.getCount()));
 
-        ResolveRowEntry entry = mAdapter.getItem(i);
-        try {
+      try {
+        // resolve all the rows in one transaction. When taking the local
+        // changes, rows the user no longer has the privileges to change are
+        // left in conflict and reported back.
+        Map<String, String> unresolved = ODKDatabaseImplUtils.get()
+            .resolveServerConflictsForTable(db, mTableId, mTakeLocal, aul.activeUser,
+                aul.rolesList, aul.locale);
 
-          if ( mTakeLocal ) {
-            // this might fail due to lowered user privileges
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeLocalRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.rolesList, aul.locale);
-          } else {
-            // all users can always take the server's changes
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeServerRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.locale);
-          }
-
-        } catch (Exception e) {
-          String msg = e.getLocalizedMessage();
-          if (msg == null)
-            msg = e.getMessage();
-          if (msg == null)
-            msg = e.toString();
-          msg = "Exception: " + msg;
+        for (Map.Entry<String, String> e : unresolved.entrySet()) {
+          String msg = "Exception: " + e.getValue();
           WebLogger.getLogger(mAppName).e("takeAllLocal",
-              mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
-          WebLogger.getLogger(mAppName).printStackTrace(e);
+              mAppName + " " + dbHandleName.getDatabaseHandle() + " " + e.getKey() + " " + msg);
 
           if (exceptions == null) {
             exceptions = new StringBuilder();
@@ -97,21 +84,21 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
             exceptions.append("\n");
           }
           exceptions.append(msg);
-
-          // and to be sure, try to release this database connection and create a new one...
-          OdkConnectionInterface dbOld = db;
-          db = null;
-
-          dbHandleName = new DbHandle(UUID.randomUUID().toString());
-
-          if ( dbOld != null ) {
-            dbOld.releaseReference();
-          }
-
-          // +1 referenceCount if db is returned (non-null)
-          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-              .getConnection(mAppName, dbHandleName);
         }
+
+      } catch (Exception e) {
+        String msg = e.getLocalizedMessage();
+        if (msg == null)
+          msg = e.getMessage();
+        if (msg == null)
+          msg = e.toString();
+        msg = "Exception: " + msg;
+        WebLogger.getLogger(mAppName).e("takeAllLocal",
+            mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+
+        exceptions = new StringBuilder();
+        exceptions.append(msg);
       }
       this.publishProgress(formatStrDone);
 
@@ -52,35 +52,24 @@ import org.opendatakit.services.utilities.EncryptionUtils;
 import org.opendatakit.services.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.ODKFileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 /**
  * The WebKit does better if there is a content provider vending files to it.
@@ -155,64 +144,6 @@ public class SubmissionProvider extends ContentProvider {
     elem.put(defn.getElementName(), value);
   }
 
-  @SuppressWarnings("unchecked")
-  private static int generateXmlHelper(Document d, Element data, int idx, String key,
-      Map<String, Object> values, WebLoggerIf logger) {
-    Object o = values.get(key);
-
-    Element e = d.createElement(key);
-
-    if (o == null) {
-      logger.e(t, "Unexpected null value");
-    } else if (o instanceof Integer) {
-      Text txtNode = d.createTextNode(((Integer) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Double) {
-      Text txtNode = d.createTextNode(((Double) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Boolean) {
-      Text txtNode = d.createTextNode(((Boolean) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof String) {
-      Text txtNode = d.createTextNode(((String) o));
-      e.appendChild(txtNode);
-    } else if (o instanceof List) {
-      StringBuilder b = new StringBuilder();
-      List<Object> al = (List<Object>) o;
-      for (Object ob : al) {
-        if (ob instanceof Integer) {
-          b.append(((Integer) ob).toString());
-        } else if (ob instanceof Double) {
-          b.append(((Double) ob).toString());
-        } else if (ob instanceof Boolean) {
-          b.append(((Boolean) ob).toString());
-        } else if (ob instanceof String) {
-          b.append(((String) ob));
-        } else {
-          throw new IllegalArgumentException("Unexpected type in XML submission serializer");
-        }
-        b.append(" ");
-      }
-      Text txtNode = d.createTextNode(b.toString().trim());
-      e.appendChild(txtNode);
-    } else if (o instanceof Map) {
-      // it is an object...
-      Map<String, Object> m = (Map<String, Object>) o;
-      int nidx = 0;
-
-      ArrayList<String> entryNames = new ArrayList<String>();
-      entryNames.addAll(m.keySet());
-      Collections.sort(entryNames);
-      for (String name : entryNames) {
-        nidx = generateXmlHelper(d, e, nidx, name, m, logger);
-      }
-    } else {
-      throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
-    }
-    data.appendChild(e);
-    return idx;
-  }
-
   /**
    * The incoming URI is of the form:
    * ..../appName/tableId/instanceId?formId=&formVersion=
@@ -523,195 +454,74 @@ public class SubmissionProvider extends ContentProvider {
               datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
                   .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp, Locale.ROOT)));
 
-              // For XML, we traverse the map to serialize it
-              DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-              DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-              
-              Document d = docBuilder.newDocument();
-
-              d.setXmlStandalone(true);
-              
-              Element e = d.createElement(
-                  (xmlRootElementName == null) ? "data" : xmlRootElementName);
-              d.appendChild(e);
-              e.setAttribute("id", tableId);
-              DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
-                  tableId, instanceId, aul.activeUser, aul.locale);
-
-              int idx = 0;
-              Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
-              meta.setPrefix("jr");
-
-              Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, "instanceID");
-              Text txtNode = d.createTextNode(submissionInstanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              if (xmlDeviceIdPropertyName != null) {
-                String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
-                if (deviceId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "deviceID");
-                  txtNode = d.createTextNode(deviceId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
-                }
-              }
-              if (xmlUserIdPropertyName != null) {
-                String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
-                if (userId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "userID");
-                  txtNode = d.createTextNode(userId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
-                }
-              }
-              v = d.createElementNS(XML_OPENROSA_NAMESPACE, "timeEnd");
-              txtNode = d.createTextNode(datestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
+              // see if the form is encrypted and we can
+              // encrypt it...
+              EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
+                  appName, tableId, xmlBase64RsaPublicKey, instanceId);
 
-              // these are extra metadata tags...
-              if (instanceName != null) {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(instanceName);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
+              // For XML, we traverse the map and stream it out. Unencrypted
+              // submissions go straight to the file; the encryption path
+              // needs the document as a String.
+              StringWriter docWriter = null;
+              Writer w;
+              if (formInfo != null) {
+                docWriter = new StringWriter();
+                w = docWriter;
               } else {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(savepointTimestamp);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              }
-
-              // these are extra metadata tags...
-              // rowID
-              v = d.createElement("rowID");
-              txtNode = d.createTextNode(instanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // rowETag
-              v = d.createElement("rowETag");
-              if (rowETag != null) {
-                txtNode = d.createTextNode(rowETag);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // defaultAccess
-              v = d.createElement("defaultAccess");
-              if (defaultAccess != null) {
-                txtNode = d.createTextNode(defaultAccess);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // owner
-              v = d.createElement("owner");
-              if (owner != null) {
-                txtNode = d.createTextNode(owner);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupReadOnly
-              v = d.createElement("groupReadOnly");
-              if (groupReadOnly != null) {
-                txtNode = d.createTextNode(groupReadOnly);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupModify
-              v = d.createElement("groupModify");
-              if (groupModify != null) {
-                txtNode = d.createTextNode(groupModify);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupPrivileged
-              v = d.createElement("groupPrivileged");
-              if (groupPrivileged != null) {
-                txtNode = d.createTextNode(groupPrivileged);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // formID
-              v = d.createElement("formID");
-              txtNode = d.createTextNode(formId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // locale
-              v = d.createElement("locale");
-              txtNode = d.createTextNode(locale);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointType
-              v = d.createElement("savepointType");
-              txtNode = d.createTextNode(savepointType);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointCreator
-              v = d.createElement("savepointCreator");
-              if (savepointCreator != null) {
-                txtNode = d.createTextNode(savepointCreator);
-                v.appendChild(txtNode);
+                w = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(submissionXml, false), CharEncoding.UTF_8));
               }
-              meta.appendChild(v);
-
-              // savepointTimestamp
-              v = d.createElement("savepointTimestamp");
-              txtNode = d.createTextNode(savepointTimestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
+              try {
+                SubmissionXmlWriter xw = new SubmissionXmlWriter(w);
+                xw.startTag((xmlRootElementName == null) ? "data" : xmlRootElementName);
+                xw.attribute("id", tableId);
+                DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
+                    tableId, instanceId, aul.activeUser, aul.locale);
 
-              // and insert the meta block into the XML
+                xw.startTag("jr", "meta", XML_OPENROSA_NAMESPACE);
 
-              e.appendChild(meta);
+                xw.element(XML_OPENROSA_NAMESPACE, "instanceID", submissionInstanceId);
 
-              idx = 3;
-              ArrayList<String> entryNames = new ArrayList<String>();
-              entryNames.addAll(values.keySet());
-              Collections.sort(entryNames);
-              for (String name : entryNames) {
-                idx = generateXmlHelper(d, e, idx, name, values, logger);
+                if (xmlDeviceIdPropertyName != null) {
+                  String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
+                  if (deviceId != null) {
+                    xw.element(XML_OPENROSA_NAMESPACE, "deviceID", deviceId);
+                  }
+                }
+                if (xmlUserIdPropertyName != null) {
+                  String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
+                  if (userId != null) {
+                    xw.element(XML_OPENROSA_NAMESPACE, "userID", userId);
+                  }
+                }
+                xw.element(XML_OPENROSA_NAMESPACE, "timeEnd", datestamp);
+
+                // these are extra metadata tags...
+                xw.element("instanceName",
+                    (instanceName != null) ? instanceName : savepointTimestamp);
+                xw.element("rowID", instanceId);
+                xw.element("rowETag", rowETag);
+                xw.element("defaultAccess", defaultAccess);
+                xw.element("owner", owner);
+                xw.element("groupReadOnly", groupReadOnly);
+                xw.element("groupModify", groupModify);
+                xw.element("groupPrivileged", groupPrivileged);
+                xw.element("formID", formId);
+                xw.element("locale", locale);
+                xw.element("savepointType", savepointType);
+                xw.element("savepointCreator", savepointCreator);
+                xw.element("savepointTimestamp", savepointTimestamp);
+
+                // close the meta block and emit the values
+                xw.endTag();
+                xw.values(values);
+                xw.finish();
+              } finally {
+                w.close();
               }
 
-              TransformerFactory factory = TransformerFactory.newInstance();
-              Transformer transformer = factory.newTransformer();
-              Properties outFormat = new Properties();
-              outFormat.setProperty( OutputKeys.INDENT, "no" );
-              outFormat.setProperty( OutputKeys.METHOD, "xml" );
-              outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
-              outFormat.setProperty( OutputKeys.VERSION, "1.0" );
-              outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
-              transformer.setOutputProperties( outFormat );
-
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-              DOMSource domSource = new DOMSource( d.getDocumentElement() );
-              StreamResult result = new StreamResult( out );
-              transformer.transform( domSource, result );
-
-              out.flush();
-              out.close();
-
-              b.append(out.toString(CharEncoding.UTF_8));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-
               freturn.instanceFile = submissionXml;
 
-              // see if the form is encrypted and we can
-              // encrypt it...
-              EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
-                  appName, tableId, xmlBase64RsaPublicKey, instanceId);
               if (formInfo != null) {
                 File submissionXmlEnc = new File(submissionXml.getParentFile(),
                     submissionXml.getName() + ".enc");
@@ -720,15 +530,13 @@ public class SubmissionProvider extends ContentProvider {
                 // reopened afterward
                 // and encrypt the submission (this is a
                 // one-way operation)...
-                if (!EncryptionUtils.generateEncryptedSubmission(freturn, doc, submissionXml,
-                    submissionXmlEnc, formInfo)) {
+                if (!EncryptionUtils.generateEncryptedSubmission(freturn, docWriter.toString(),
+                    submissionXml, submissionXmlEnc, formInfo)) {
                   return null;
                 }
                 // at this point, the freturn object has
                 // been re-written with the encrypted media
                 // and xml files.
-              } else {
-                exportFile(doc, submissionXml, logger);
               }
 
             } else {
@@ -794,11 +602,14 @@ public class SubmissionProvider extends ContentProvider {
               elem.put("saved", "COMPLETE");
               elem.put("timestamp", datestamp);
 
-              b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-              exportFile(doc, submissionXml, logger);
+              // stream the document to the file
+              OutputStream os = new BufferedOutputStream(
+                  new FileOutputStream(submissionXml, false));
+              try {
+                ODKFileUtils.mapper.writeValue(os, wrapper);
+              } finally {
+                os.close();
+              }
             }
             exportFile(freturn.serializeUriFragmentList(), manifest, logger);
             return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
@@ -811,10 +622,6 @@ public class SubmissionProvider extends ContentProvider {
           }
         }
 
-      } catch (ParserConfigurationException e) {
-        logger.printStackTrace(e);
-      } catch (TransformerException e) {
-        logger.printStackTrace(e);
       } catch (JsonParseException e) {
         logger.printStackTrace(e);
       } catch (JsonMappingException e) {
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.submissions.provider;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming writer for XML submissions.
+ * <p>
+ * Submissions used to be assembled as a DOM and serialized with a Transformer
+ * (no indent, no XML declaration, UTF-8). This writer emits the same bytes
+ * directly to the underlying Writer so that neither the DOM nor the
+ * serialized document has to be held in memory:
+ * <ul>
+ * <li>elements without content are written as {@code <name/>}</li>
+ * <li>text escapes {@code & < >}, {@code \r}, the C0 controls other than tab
+ * and newline, and the C1 controls as character references</li>
+ * <li>attribute values escape {@code & < > "} and all C0 controls</li>
+ * <li>characters outside the Basic Multilingual Plane are written as
+ * character references</li>
+ * </ul>
+ * The caller supplies a Writer that encodes UTF-8 (or a StringWriter).
+ */
+public class SubmissionXmlWriter {
+
+  private final Writer out;
+  private final List<String> openTags = new ArrayList<String>();
+  /**
+   * true while the start tag of the innermost element is not yet closed, so
+   * that attributes can still be added or the element written as empty.
+   */
+  private boolean startTagOpen = false;
+
+  public SubmissionXmlWriter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Start an element without a namespace.
+   *
+   * @param name
+   * @throws IOException
+   */
+  public void startTag(String name) throws IOException {
+    closeStartTag();
+    out.write('<');
+    out.write(name);
+    openTags.add(name);
+    startTagOpen = true;
+  }
+
+  /**
+   * Start an element and declare its namespace on it, as a DOM element created
+   * with createElementNS is serialized. If prefix is null, the namespace is
+   * declared as the default namespace.
+   *
+   * @param prefix       namespace prefix, or null
+   * @param name         local name
+   * @param namespaceUri
+   * @throws IOException
+   */
+  public void startTag(String prefix, String name, String namespaceUri) throws IOException {
+    if (prefix == null) {
+      startTag(name);
+      attribute("xmlns", namespaceUri);
+    } else {
+      startTag(prefix + ":" + name);
+      attribute("xmlns:" + prefix, namespaceUri);
+    }
+  }
+
+  public void attribute(String name, String value) throws IOException {
+    if (!startTagOpen) {
+      throw new IllegalStateException("attributes must immediately follow the start tag");
+    }
+    out.write(' ');
+    out.write(name);
+    out.write("=\"");
+    escape(value, true);
+    out.write('"');
+  }
+
+  /**
+   * Write character data into the current element.
+   *
+   * @param text
+   * @throws IOException if the text contains an unpaired high surrogate
+   */
+  public void text(String text) throws IOException {
+    if (text.length() == 0) {
+      return;
+    }
+    closeStartTag();
+    escape(text, false);
+  }
+
+  public void endTag() throws IOException {
+    String name = openTags.remove(openTags.size() - 1);
+    if (startTagOpen) {
+      out.write("/>");
+      startTagOpen = false;
+    } else {
+      out.write("</");
+      out.write(name);
+      out.write('>');
+    }
+  }
+
+  /**
+   * Write an element holding the given text. A null text writes an empty
+   * element.
+   *
+   * @param name
+   * @param text
+   * @throws IOException
+   */
+  public void element(String name, String text) throws IOException {
+    startTag(name);
+    if (text != null) {
+      text(text);
+    }
+    endTag();
+  }
+
+  /**
+   * Write an element holding the given text, in the given default namespace.
+   *
+   * @param namespaceUri
+   * @param name
+   * @param text
+   * @throws IOException
+   */
+  public void element(String namespaceUri, String name, String text) throws IOException {
+    startTag(null, name, namespaceUri);
+    if (text != null) {
+      text(text);
+    }
+    endTag();
+  }
+
+  /**
+   * Write the submission values as child elements of the current element, in
+   * sorted order of their names. Nested maps become nested elements and lists
+   * become space-separated text.
+   *
+   * @param values
+   * @throws IOException
+   */
+  public void values(Map<String, Object> values) throws IOException {
+    ArrayList<String> entryNames = new ArrayList<String>(values.keySet());
+    Collections.sort(entryNames);
+    for (String name : entryNames) {
+      value(name, values.get(name));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void value(String key, Object o) throws IOException {
+    startTag(key);
+    if (o == null) {
+      // empty element
+    } else if (o instanceof Map) {
+      // it is an object...
+      values((Map<String, Object>) o);
+    } else if (o instanceof List) {
+      StringBuilder b = new StringBuilder();
+      for (Object ob : (List<Object>) o) {
+        if (!isScalar(ob)) {
+          throw new IllegalArgumentException("Unexpected type in XML submission serializer");
+        }
+        b.append(ob.toString());
+        b.append(" ");
+      }
+      text(b.toString().trim());
+    } else if (isScalar(o)) {
+      text(o.toString());
+    } else {
+      throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
+    }
+    endTag();
+  }
+
+  private static boolean isScalar(Object o) {
+    return (o instanceof Integer) || (o instanceof Long) || (o instanceof Double)
+        || (o instanceof Boolean) || (o instanceof String);
+  }
+
+  /**
+   * Close any open elements and flush the underlying writer. The underlying
+   * writer is not closed.
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    while (!openTags.isEmpty()) {
+      endTag();
+    }
+    out.flush();
+  }
+
+  private void closeStartTag() throws IOException {
+    if (startTagOpen) {
+      out.write('>');
+      startTagOpen = false;
+    }
+  }
+
+  private void escape(String s, boolean inAttribute) throws IOException {
+    int len = s.length();
+    int start = 0;
+    for (int i = 0; i < len; ++i) {
+      char c = s.charAt(i);
+      String replacement = null;
+      int codePoint = -1;
+      if (c == '&') {
+        replacement = "&amp;";
+      } else if (c == '<') {
+        replacement = "&lt;";
+      } else if (c == '>') {
+        replacement = "&gt;";
+      } else if (c == '"') {
+        replacement = inAttribute ? "&quot;" : null;
+      } else if (c < 0x20) {
+        if (inAttribute || (c != '\t' && c != '\n')) {
+          codePoint = c;
+        }
+      } else if (c >= 0x7f && c <= 0x9f) {
+        if (!inAttribute) {
+          codePoint = c;
+        }
+      } else if (Character.isHighSurrogate(c)) {
+        if (i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+          codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+        } else {
+          throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+        }
+      } else if (Character.isLowSurrogate(c)) {
+        codePoint = c;
+      }
+
+      if (replacement == null && codePoint == -1) {
+        continue;
+      }
+      out.write(s, start, i - start);
+      if (replacement != null) {
+        out.write(replacement);
+      } else {
+        out.write("&#");
+        out.write(Integer.toString(codePoint));
+        out.write(';');
+        if (codePoint > Character.MAX_VALUE) {
+          ++i;
+        }
+      }
+      start = i + 1;
+    }
+    out.write(s, start, len - start);
+  }
+}
@@ -26,6 +26,8 @@ import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedExcept
 import org.opendatakit.services.sync.service.logic.AggregateSynchronizer;
 import org.opendatakit.services.sync.service.logic.ProcessAppAndTableLevelChanges;
 import org.opendatakit.services.sync.service.logic.ProcessRowDataOrchestrateChanges;
+import org.opendatakit.services.sync.service.logic.SyncJournal;
+import org.opendatakit.services.sync.service.logic.SyncTelemetry;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.SynchronizerFactory;
 import org.opendatakit.sync.service.SyncAttachmentState;
@@ -37,8 +39,11 @@ import org.opendatakit.sync.service.SyncStatus;
 import org.opendatakit.sync.service.TableLevelResult;
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 public class AppSynchronizer {
 
@@ -48,23 +53,32 @@ public class AppSynchronizer {
   private final String versionCodeString;
   private final String appName;
   private final GlobalSyncNotificationManager globalNotificationManager;
+  private final SyncScheduler syncScheduler;
 
   private SyncStatus status;
   private Long threadStartTime = null;
   private Long threadEndTime = null;
-  private Thread curThread;
   private SyncTask curTask;
+  /**
+   * true from the time a sync is requested until its task finishes (or is
+   * cancelled before it starts)
+   */
+  private volatile boolean taskActive;
   private SyncProgressTracker syncProgressTracker;
   private SyncOverallResult syncResult;
+  private SyncTelemetry syncTelemetry;
 
   public AppSynchronizer(Context context, String versionCodeString, String appName,
-                  GlobalSyncNotificationManager globalNotificationManager) {
+                  GlobalSyncNotificationManager globalNotificationManager,
+                  SyncScheduler syncScheduler) {
     this.context = context;
     this.versionCodeString = versionCodeString;
     this.appName = appName;
     this.status = SyncStatus.NONE;
-    this.curThread = null;
+    this.curTask = null;
+    this.taskActive = false;
     this.globalNotificationManager = globalNotificationManager;
+    this.syncScheduler = syncScheduler;
     this.syncProgressTracker = new SyncProgressTracker(this.context, this.globalNotificationManager, appName);
     this.syncResult = new SyncOverallResult();
   }
@@ -76,40 +90,58 @@ public class AppSynchronizer {
    * @param attachmentState
    */
   public synchronized void directSynchronize(boolean push, SyncAttachmentState attachmentState) {
-    curThread = Thread.currentThread();
     curTask = new SyncTask(context, versionCodeString, push, attachmentState);
     threadStartTime = System.currentTimeMillis();
     status = SyncStatus.SYNCING;
+    taskActive = true;
     curTask.run();
   }
 
-  public synchronized boolean synchronize(boolean push, SyncAttachmentState attachmentState) {
-    if (curThread == null) {
+  public synchronized boolean synchronize(boolean push, SyncAttachmentState attachmentState,
+      SyncScheduler.Priority priority) {
+    if (curTask == null) {
       curTask = new SyncTask(context, versionCodeString, push, attachmentState);
       threadStartTime = System.currentTimeMillis();
-      curThread = new Thread(curTask);
       status = SyncStatus.SYNCING;
-      curThread.start();
+      taskActive = true;
+      syncScheduler.submit(appName, priority, curTask);
       return true;
     }
     return false;
   }
 
   public synchronized boolean verifyServerSettings() {
-    if (curThread == null) {
+    if (curTask == null) {
       curTask = new SyncTask(context, versionCodeString);
       threadStartTime = System.currentTimeMillis();
-      curThread = new Thread(curTask);
       status = SyncStatus.SYNCING;
-      curThread.start();
+      taskActive = true;
+      syncScheduler.submit(appName, SyncScheduler.Priority.USER_INITIATED, curTask);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Cancel the requested sync if it is still waiting for the
+   * {@link SyncScheduler}. A sync that has started runs to completion.
+   *
+   * @return true if the sync was cancelled
+   */
+  public synchronized boolean cancel() {
+    if (curTask != null && syncScheduler.cancel(curTask)) {
+      WebLogger.getLogger(appName).i(TAG, "cancel: queued sync of " + appName + " cancelled");
+      status = SyncStatus.NONE;
+      taskActive = false;
+      threadEndTime = System.currentTimeMillis();
       return true;
     }
     return false;
   }
 
   private synchronized boolean isRunning() {
-    // if the thread is alive, we are running
-    if ( curThread != null && curThread.isAlive() ) {
+    // if the task is queued or running, we are running
+    if ( taskActive ) {
       return true;
     }
 
@@ -156,6 +188,14 @@ public class AppSynchronizer {
     return syncResult;
   }
 
+  /**
+   * @return the per-table, per-phase timing and throughput of the last sync, or
+   * null if there has not been one.
+   */
+  public SyncTelemetry getSyncTelemetry() {
+    return syncTelemetry;
+  }
+
   private class SyncTask implements Runnable {
 
     private final Context context;
@@ -203,6 +243,7 @@ public class AppSynchronizer {
           // impossible to get here
         }
         threadEndTime = System.currentTimeMillis();
+        taskActive = false;
       }
 
     }
@@ -265,6 +306,31 @@ public class AppSynchronizer {
       return status;
     }
 
+    /**
+     * @param tables
+     * @param interruptedTables tableIds whose last data sync did not complete
+     * @return the tables, with the interrupted ones moved to the front; the
+     * order is otherwise unchanged.
+     */
+    private List<TableResource> interruptedTablesFirst(List<TableResource> tables,
+        Set<String> interruptedTables) {
+      if (interruptedTables.isEmpty()) {
+        return tables;
+      }
+      List<TableResource> ordered = new ArrayList<TableResource>(tables.size());
+      for (TableResource tr : tables) {
+        if (interruptedTables.contains(tr.getTableId())) {
+          ordered.add(tr);
+        }
+      }
+      for (TableResource tr : tables) {
+        if (!interruptedTables.contains(tr.getTableId())) {
+          ordered.add(tr);
+        }
+      }
+      return ordered;
+    }
+
     private void sync() {
 
       SyncExecutionContext sharedContext = null;
@@ -292,6 +358,21 @@ public class AppSynchronizer {
 
         sharedContext.setSynchronizer(SynchronizerFactory.create(sharedContext));
 
+        Set<String> interruptedTables = Collections.emptySet();
+        try {
+          // pick up where an interrupted sync left off
+          SyncJournal journal = SyncJournal.open(sharedContext);
+          interruptedTables = journal.getInterruptedTables();
+          for (String tableId : interruptedTables) {
+            WebLogger.getLogger(appName).i(TAG, "resuming interrupted sync of " + tableId
+                + " at phase " + journal.getInterruptedPhase(tableId));
+          }
+          sharedContext.setSyncJournal(journal);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          WebLogger.getLogger(appName).e(TAG, "Unable to open sync journal -- not resumable");
+        }
+
         ProcessAppAndTableLevelChanges appAndTableLevelProcessor = new ProcessAppAndTableLevelChanges(
                 sharedContext);
 
@@ -312,6 +393,10 @@ public class AppSynchronizer {
           WebLogger.getLogger(appName)
                   .e(TAG, "Abandoning data row update -- app-level sync was not successful!");
         } else if (workingListOfTables != null) {
+          // finish the interrupted tables first, while their resume points
+          // are most likely to still apply on the server
+          workingListOfTables = interruptedTablesFirst(workingListOfTables, interruptedTables);
+
           // and now sync the data rows. This does not proceed if there
           // was an app-level sync failure or if the particular tableId
           // experienced a table-level sync failure in the preceeding step.
@@ -386,6 +471,19 @@ public class AppSynchronizer {
         status = finalStatus;
       }
 
+      // keep the timing of this sync alongside its result
+      if (sharedContext != null) {
+        syncTelemetry = sharedContext.getSyncTelemetry();
+        syncTelemetry.finish();
+        WebLogger.getLogger(appName).i(TAG, "sync telemetry: " + syncTelemetry.getSummaryMap());
+        try {
+          syncTelemetry.save(sharedContext);
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          WebLogger.getLogger(appName).e(TAG, "Unable to save sync telemetry");
+        }
+      }
+
       // Only attempt to write a device status record if we are not the anonymous
       // user, the server is an ODK server, its appName matches ours,
       // accepts our authentication, and there isn't a network transport error
@@ -398,6 +496,7 @@ public class AppSynchronizer {
             status == SyncStatus.NETWORK_TRANSPORT_ERROR )) {
         HashMap<String, Object> deviceInfo = sharedContext.getDeviceInfo();
         deviceInfo.put("status", status.name());
+        deviceInfo.put("syncTelemetry", sharedContext.getSyncTelemetry().getSummaryMap());
         try {
           sharedContext.getSynchronizer().publishDeviceInformation(deviceInfo);
         } catch (Exception e) {
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands values to a {@link Sink} on a background thread, at most once per
+ * interval. Values offered while one is waiting to be published replace it;
+ * i.e., only the latest value is published.
+ * <p>
+ * {@link #offer(Object)} never blocks, so it can be called once per row from
+ * the sync thread. The sink is never called concurrently with itself or with
+ * {@link #discardPending()}.
+ *
+ * @param <T> the type of the published values
+ */
+final class CoalescingPublisher<T> {
+
+  interface Sink<T> {
+    void publish(T value);
+  }
+
+  interface Scheduler {
+    void schedule(Runnable task, long delayMillis);
+  }
+
+  interface Ticker {
+    long nanoTime();
+  }
+
+  private static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * One daemon thread shared by the publishers of all the apps.
+   */
+  private static final class SharedScheduler implements Scheduler {
+    private static final ScheduledExecutorService EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SyncProgressPublisher");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+      EXECUTOR.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private final long minIntervalNanos;
+  private final Scheduler scheduler;
+  private final Ticker ticker;
+  private final Sink<T> sink;
+
+  private final AtomicReference<T> pending = new AtomicReference<T>();
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final Object publishLock = new Object();
+  private volatile long lastPublishNanos;
+
+  private final Runnable publishTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (publishLock) {
+        // clear the flag first, so that a concurrent offer() schedules another run
+        scheduled.set(false);
+        T value = pending.getAndSet(null);
+        if (value != null) {
+          lastPublishNanos = ticker.nanoTime();
+          sink.publish(value);
+        }
+      }
+    }
+  };
+
+  CoalescingPublisher(long minIntervalMillis, Sink<T> sink) {
+    this(minIntervalMillis, new SharedScheduler(), SYSTEM_TICKER, sink);
+  }
+
+  CoalescingPublisher(long minIntervalMillis, Scheduler scheduler, Ticker ticker, Sink<T> sink) {
+    this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+    this.scheduler = scheduler;
+    this.ticker = ticker;
+    this.sink = sink;
+    this.lastPublishNanos = ticker.nanoTime() - minIntervalNanos;
+  }
+
+  /**
+   * Publish value at the end of the current interval, unless a later value is
+   * offered or {@link #discardPending()} is called before then.
+   *
+   * @param value
+   */
+  void offer(T value) {
+    if (value == null) {
+      throw new IllegalArgumentException("value cannot be null");
+    }
+    pending.set(value);
+    if (scheduled.compareAndSet(false, true)) {
+      long waitNanos = lastPublishNanos + minIntervalNanos - ticker.nanoTime();
+      scheduler.schedule(publishTask,
+          (waitNanos > 0) ? TimeUnit.NANOSECONDS.toMillis(waitNanos) : 0L);
+    }
+  }
+
+  /**
+   * Drop the value waiting to be published, if any. Upon return, the sink is
+   * not running and will not be called until the next {@link #offer(Object)}.
+   * Used before posting a state that must not be overwritten by a stale one.
+   */
+  void discardPending() {
+    synchronized (publishLock) {
+      pending.set(null);
+    }
+  }
+}
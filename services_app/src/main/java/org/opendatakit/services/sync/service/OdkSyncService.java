@@ -22,6 +22,7 @@ import android.os.IBinder;
 import org.opendatakit.application.IToolAware;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.sync.service.logic.HttpRestProtocolWrapper;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOverallResult;
 import org.opendatakit.sync.service.SyncProgressEvent;
@@ -54,6 +55,8 @@ public class OdkSyncService extends Service {
   private IOdkSyncServiceInterfaceImpl serviceInterface;
   private GlobalSyncNotificationManager notificationManager;
   private ScheduledExecutorService shutdownTester;
+  // runs the syncs of all the apps
+  private SyncScheduler syncScheduler;
 
   // NOTE: syncs is used for synchronized(syncs) {...} wraps when accessing
   // all of: syncs, lastStartId, shutdownActorNotYetStarted, isBound
@@ -140,6 +143,7 @@ public class OdkSyncService extends Service {
     serviceInterface = new IOdkSyncServiceInterfaceImpl(this);
     notificationManager = new GlobalSyncNotificationManagerImpl(this);
     shutdownTester = Executors.newSingleThreadScheduledExecutor();
+    syncScheduler = new SyncScheduler();
   }
 
   @Override
@@ -179,6 +183,10 @@ public class OdkSyncService extends Service {
     WebLogger.getLogger(ODKFileUtils.getOdkDefaultAppName()).i(TAG,
         "Sync Service is shutting down");
     shutdownTester.shutdownNow();
+    syncScheduler.shutdown();
+    // release the keep-alive connections held for the next sync; a sync that
+    // is still running fails its remaining requests
+    HttpRestProtocolWrapper.shutdownConnectionPools();
     try {
       shutdownTester.awaitTermination(100L, TimeUnit.MILLISECONDS);
     } catch (Exception e) {
@@ -193,7 +201,8 @@ public class OdkSyncService extends Service {
         sync = new AppSynchronizer(this.getApplicationContext(),
             ((IToolAware) this.getApplication()).getVersionCodeString(),
             appName,
-            notificationManager);
+            notificationManager,
+            syncScheduler);
         syncs.put(appName, sync);
       }
       return sync;
@@ -203,12 +212,12 @@ public class OdkSyncService extends Service {
 
   public boolean resetServer(String appName, SyncAttachmentState attachmentState) {
     AppSynchronizer sync = getSync(appName);
-    return sync.synchronize(true, attachmentState);
+    return sync.synchronize(true, attachmentState, SyncScheduler.Priority.USER_INITIATED);
   }
 
   public boolean synchronizeWithServer(String appName, SyncAttachmentState attachmentState) {
     AppSynchronizer sync = getSync(appName);
-    return sync.synchronize(false, attachmentState);
+    return sync.synchronize(false, attachmentState, SyncScheduler.Priority.USER_INITIATED);
   }
 
   public SyncStatus getStatus(String appName) {
@@ -231,7 +240,14 @@ public class OdkSyncService extends Service {
   }
 
   public boolean clearAppSynchronizer(String appName) {
-    AppSynchronizer appSync = syncs.remove(appName);
+    AppSynchronizer appSync;
+    synchronized (syncs) {
+      appSync = syncs.remove(appName);
+    }
+    if (appSync != null) {
+      // a sync that has not started yet will not be started
+      appSync.cancel();
+    }
     return appSync != null;
   }
 
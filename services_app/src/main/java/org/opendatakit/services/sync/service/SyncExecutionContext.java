@@ -37,6 +37,8 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.services.sync.service.logic.SyncJournal;
+import org.opendatakit.services.sync.service.logic.SyncTelemetry;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer.SynchronizerStatus;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -88,6 +90,9 @@ public class SyncExecutionContext implements SynchronizerStatus {
 
   // set this later
   private Synchronizer synchronizer;
+  private SyncJournal syncJournal;
+
+  private final SyncTelemetry syncTelemetry = new SyncTelemetry();
 
   private DbHandle odkDbHandle = null;
 
@@ -127,6 +132,21 @@ public class SyncExecutionContext implements SynchronizerStatus {
     this.synchronizer = synchronizer;
   }
 
+  public void setSyncJournal(SyncJournal syncJournal) {
+    this.syncJournal = syncJournal;
+  }
+
+  public SyncJournal getSyncJournal() {
+    return syncJournal;
+  }
+
+  /**
+   * @return the per-table, per-phase timing and throughput of this sync
+   */
+  public SyncTelemetry getSyncTelemetry() {
+    return syncTelemetry;
+  }
+
   public String getString(int resId) {
     return application.getString(resId);
   }
@@ -452,16 +472,9 @@ public class SyncExecutionContext implements SynchronizerStatus {
   @Override
   public void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
                                  Double progressPercentage, boolean indeterminateProgress) {
-    String text = "Bad text resource id: " + textResource + "!";
-    String fmt = application.getString(textResource);
-    if (fmt != null) {
-      if (formatArgVals == null) {
-        text = fmt;
-      } else {
-        text = String.format(fmt, formatArgVals);
-      }
-    }
-    syncProgressTracker.updateNotification(state, text, OVERALL_PROGRESS_BAR_LENGTH, (int) (iMajorSyncStep
+    // the text is formatted by the tracker, only when it is displayed or polled
+    syncProgressTracker.updateNotification(state, textResource, formatArgVals,
+        OVERALL_PROGRESS_BAR_LENGTH, (int) (iMajorSyncStep
         * GRAINS_PER_MAJOR_SYNC_STEP + ((progressPercentage != null) ? (progressPercentage
         * GRAINS_PER_MAJOR_SYNC_STEP / 100.0) : 0.0)), indeterminateProgress);
   }
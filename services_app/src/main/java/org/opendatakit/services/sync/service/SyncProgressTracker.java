@@ -22,38 +22,153 @@ import org.opendatakit.services.R;
 import org.opendatakit.sync.service.SyncProgressEvent;
 import org.opendatakit.sync.service.SyncProgressState;
 
+/**
+ * Tracks the progress of the sync of one app, for the progress notification
+ * and for clients polling {@link #getProgressStatus()}.
+ * <p>
+ * Progress updates arrive once per row, i.e., far more often than they can be
+ * usefully displayed. The latest update is always returned by
+ * {@link #getProgressStatus()}, but the notification is only refreshed
+ * {@link #PUBLISH_INTERVAL_MILLIS} after the previous refresh, off the sync
+ * thread. The text of an update is not formatted until it is needed.
+ */
 public final class SyncProgressTracker {
   // Used for logging
   private static final String TAG = SyncProgressTracker.class.getSimpleName();
 
+  /**
+   * Minimum time between two refreshes of the progress notification (4 Hz)
+   */
+  static final long PUBLISH_INTERVAL_MILLIS = 250L;
+
+  /**
+   * A progress update; the text is formatted on first use.
+   */
+  private final class ProgressUpdate {
+    private final SyncProgressState pgrState;
+    private final int textResource;
+    private final Object[] formatArgVals;
+    private final int maxProgress;
+    private final int progress;
+    private final boolean indeterminateProgress;
+    private String text;
+    private SyncProgressEvent event;
+
+    ProgressUpdate(SyncProgressState pgrState, String text, int textResource,
+        Object[] formatArgVals, int maxProgress, int progress, boolean indeterminateProgress) {
+      this.pgrState = pgrState;
+      this.text = text;
+      this.textResource = textResource;
+      this.formatArgVals = formatArgVals;
+      this.maxProgress = maxProgress;
+      this.progress = progress;
+      this.indeterminateProgress = indeterminateProgress;
+    }
+
+    synchronized String getText() {
+      if (text == null) {
+        text = "Bad text resource id: " + textResource + "!";
+        String fmt = cntxt.getString(textResource);
+        if (fmt != null) {
+          if (formatArgVals == null) {
+            text = fmt;
+          } else {
+            text = String.format(fmt, formatArgVals);
+          }
+        }
+      }
+      return text;
+    }
+
+    synchronized SyncProgressEvent getEvent() {
+      if (event == null) {
+        event = new SyncProgressEvent(getText(), pgrState, progress, maxProgress);
+      }
+      return event;
+    }
+  }
+
   private final Context cntxt;
   private final String appName;
   private final GlobalSyncNotificationManager notificationManager;
-  private SyncProgressEvent progressStatus;
+  private final CoalescingPublisher<ProgressUpdate> publisher;
+  private volatile ProgressUpdate latestUpdate;
+  private volatile SyncProgressEvent progressStatus;
 
   public SyncProgressTracker(Context context, GlobalSyncNotificationManager notificationManager,
                              String appName) {
     this.cntxt = context;
     this.appName = appName;
     this.notificationManager = notificationManager;
+    this.publisher = new CoalescingPublisher<ProgressUpdate>(PUBLISH_INTERVAL_MILLIS,
+        new CoalescingPublisher.Sink<ProgressUpdate>() {
+          @Override
+          public void publish(ProgressUpdate update) {
+            publishNotification(update);
+          }
+        });
+    this.latestUpdate = null;
     this.progressStatus = new SyncProgressEvent(null, SyncProgressState.INACTIVE, -1, 0);
   }
 
-  public synchronized void updateNotification(SyncProgressState pgrState, String text,
+  private void publishNotification(ProgressUpdate update) {
+    String text = update.getText();
+    notificationManager.updateNotification(appName, text, update.maxProgress, update.progress,
+        update.indeterminateProgress);
+    WebLogger.getLogger(appName)
+        .i(TAG, "Update SYNC Notification -" + appName + " TEXT:" + text + " PROG:" + update.progress);
+  }
+
+  private void offer(ProgressUpdate update) {
+    this.latestUpdate = update;
+    publisher.offer(update);
+  }
+
+  public void updateNotification(SyncProgressState pgrState, String text,
       int maxProgress, int progress, boolean indeterminateProgress) {
-    this.progressStatus = new SyncProgressEvent(text, pgrState, progress, maxProgress);
+    offer(new ProgressUpdate(pgrState, text, 0, null, maxProgress, progress,
+        indeterminateProgress));
+  }
 
-    notificationManager.updateNotification(appName, text, maxProgress, progress, indeterminateProgress);
-    WebLogger.getLogger(appName)
-        .i(TAG, "Update SYNC Notification -" + appName + " TEXT:" + text + " PROG:" + progress);
+  /**
+   * As {@link #updateNotification(SyncProgressState, String, int, int, boolean)},
+   * but the text is only formatted if the update is displayed or polled.
+   *
+   * @param pgrState
+   * @param textResource  string resource id of the format of the text
+   * @param formatArgVals format arguments, or null if the resource is not a format
+   * @param maxProgress
+   * @param progress
+   * @param indeterminateProgress
+   */
+  public void updateNotification(SyncProgressState pgrState, int textResource,
+      Object[] formatArgVals, int maxProgress, int progress, boolean indeterminateProgress) {
+    offer(new ProgressUpdate(pgrState, null, textResource, formatArgVals, maxProgress, progress,
+        indeterminateProgress));
   }
 
-  public synchronized SyncProgressEvent getProgressStatus() {
+  public SyncProgressEvent getProgressStatus() {
+    ProgressUpdate update = latestUpdate;
+    if (update != null) {
+      return update.getEvent();
+    }
     return progressStatus;
   }
 
-  public synchronized void finalErrorNotification(String text) {
+  /**
+   * Record a final state. Any progress update not yet displayed is dropped, so
+   * that it cannot replace the final notification.
+   *
+   * @param text
+   */
+  private void setFinalStatus(String text) {
+    publisher.discardPending();
     this.progressStatus = new SyncProgressEvent(text, SyncProgressState.FINISHED, -1, 0);
+    this.latestUpdate = null;
+  }
+
+  public synchronized void finalErrorNotification(String text) {
+    setFinalStatus(text);
 
     notificationManager.finalErrorNotification(appName, text);
     WebLogger.getLogger(appName).e(TAG, "FINAL SYNC Notification -" + appName + " TEXT:" + text);
@@ -61,7 +176,7 @@ public final class SyncProgressTracker {
 
   public synchronized void finalConflictNotification(int tablesWithProblems) {
     String text = cntxt.getString(R.string.sync_notification_conflicts_text, tablesWithProblems);
-    this.progressStatus = new SyncProgressEvent(text, SyncProgressState.FINISHED, -1, 0);
+    setFinalStatus(text);
 
     notificationManager.finalConflictNotification(appName, text);
     WebLogger.getLogger(appName).w(TAG, "FINAL SYNC Notification -" + appName + " TEXT:" + text);
@@ -78,7 +193,7 @@ public final class SyncProgressTracker {
       text = cntxt.getString(R.string.sync_notification_success_complete_text);
       title = cntxt.getString(R.string.sync_notification_success_complete, appName);
     }
-    this.progressStatus = new SyncProgressEvent(text, SyncProgressState.FINISHED, -1, 0);
+    setFinalStatus(text);
 
     notificationManager.clearNotification(appName, title, text);
     WebLogger.getLogger(appName).i(TAG, "FINAL SYNC Notification -" + appName + " TEXT:" + text);
@@ -87,7 +202,7 @@ public final class SyncProgressTracker {
   public synchronized void clearVerificationNotification() {
     String text = cntxt.getString(R.string.sync_notification_success_verify_complete_text);
     String title = cntxt.getString(R.string.sync_notification_success_verify_complete, appName);
-    this.progressStatus = new SyncProgressEvent(text, SyncProgressState.FINISHED, -1, 0);
+    setFinalStatus(text);
 
     notificationManager.clearVerificationNotification(appName, title, text);
     WebLogger.getLogger(appName).i(TAG, "FINAL SYNC Notification -" + appName + " TEXT:" + text);
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the syncs of all the apps on a shared, bounded set of threads.
+ * <ul>
+ * <li>at most {@link #MAX_CONCURRENT_SYNCS} syncs run at once</li>
+ * <li>at most one sync of an app runs at once; a second one waits for the
+ * first to finish, without holding up the syncs of other apps</li>
+ * <li>{@link Priority#USER_INITIATED} syncs start before
+ * {@link Priority#PERIODIC} ones; within a priority, syncs start in the order
+ * they were submitted, so that an app syncing back to back cannot starve the
+ * others</li>
+ * <li>a sync can be cancelled until it starts</li>
+ * </ul>
+ */
+public final class SyncScheduler {
+
+  /**
+   * Maximum number of syncs (of different apps) running at once
+   */
+  static final int MAX_CONCURRENT_SYNCS = 2;
+
+  /**
+   * Priority classes, highest first.
+   */
+  public enum Priority {
+    USER_INITIATED, PERIODIC
+  }
+
+  private static final class ScheduledSync implements Comparable<ScheduledSync> {
+    final String appName;
+    final Priority priority;
+    final long sequence;
+    final Runnable task;
+
+    ScheduledSync(String appName, Priority priority, long sequence, Runnable task) {
+      this.appName = appName;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(ScheduledSync other) {
+      int cmp = priority.compareTo(other.priority);
+      if (cmp != 0) {
+        return cmp;
+      }
+      return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+    }
+  }
+
+  private final int maxConcurrentSyncs;
+  private final Executor executor;
+  /**
+   * the executor to shut down, if it was created here
+   */
+  private final ExecutorService ownedExecutor;
+
+  // guarded by this
+  private final TreeSet<ScheduledSync> queue = new TreeSet<ScheduledSync>();
+  private final Set<String> runningApps = new HashSet<String>();
+  private long nextSequence = 0L;
+  private boolean isShutdown = false;
+
+  public SyncScheduler() {
+    this(MAX_CONCURRENT_SYNCS, newThreadPool(), true);
+  }
+
+  SyncScheduler(int maxConcurrentSyncs, Executor executor) {
+    this(maxConcurrentSyncs, executor, false);
+  }
+
+  private SyncScheduler(int maxConcurrentSyncs, Executor executor, boolean ownsExecutor) {
+    this.maxConcurrentSyncs = maxConcurrentSyncs;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+  }
+
+  private static ExecutorService newThreadPool() {
+    // threads are bounded by maxConcurrentSyncs, not by the pool
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "SyncThread-" + count.incrementAndGet());
+      }
+    });
+  }
+
+  /**
+   * Queue a sync of appName. It runs once a thread is free and no other sync
+   * of appName is running.
+   *
+   * @param appName
+   * @param priority
+   * @param task     the sync; identifies it to {@link #cancel(Runnable)}
+   */
+  public void submit(String appName, Priority priority, Runnable task) {
+    List<ScheduledSync> toStart;
+    synchronized (this) {
+      if (isShutdown) {
+        throw new IllegalStateException("SyncScheduler has been shut down");
+      }
+      queue.add(new ScheduledSync(appName, priority, nextSequence++, task));
+      toStart = takeRunnable();
+    }
+    start(toStart);
+  }
+
+  /**
+   * Remove a sync that has not started yet.
+   *
+   * @param task as passed to {@link #submit(String, Priority, Runnable)}
+   * @return true if it was removed; false if it has started or is unknown
+   */
+  public synchronized boolean cancel(Runnable task) {
+    Iterator<ScheduledSync> it = queue.iterator();
+    while (it.hasNext()) {
+      ScheduledSync s = it.next();
+      if (s.task == task) {
+        it.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized int getQueuedCount() {
+    return queue.size();
+  }
+
+  public synchronized int getRunningCount() {
+    return runningApps.size();
+  }
+
+  /**
+   * Drop the queued syncs and stop accepting new ones. Running syncs are
+   * allowed to finish.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      isShutdown = true;
+      queue.clear();
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Remove from the queue the syncs that can start now. Must hold the lock.
+   *
+   * @return the syncs to hand to the executor, once the lock is released
+   */
+  private List<ScheduledSync> takeRunnable() {
+    List<ScheduledSync> toStart = new ArrayList<ScheduledSync>();
+    Iterator<ScheduledSync> it = queue.iterator();
+    while (it.hasNext() && runningApps.size() < maxConcurrentSyncs) {
+      ScheduledSync s = it.next();
+      if (runningApps.contains(s.appName)) {
+        // leave it queued, in place, for when that sync finishes
+        continue;
+      }
+      it.remove();
+      runningApps.add(s.appName);
+      toStart.add(s);
+    }
+    return toStart;
+  }
+
+  private void start(List<ScheduledSync> toStart) {
+    for (final ScheduledSync s : toStart) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            s.task.run();
+          } finally {
+            finished(s);
+          }
+        }
+      });
+    }
+  }
+
+  private void finished(ScheduledSync s) {
+    List<ScheduledSync> toStart;
+    synchronized (this) {
+      runningApps.remove(s.appName);
+      toStart = takeRunnable();
+    }
+    start(toStart);
+  }
+}
@@ -42,7 +42,6 @@ import org.opendatakit.httpclientandroidlib.HttpEntity;
 import org.opendatakit.httpclientandroidlib.HttpHeaders;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.httpclientandroidlib.NameValuePair;
-import org.opendatakit.httpclientandroidlib.client.entity.GzipCompressingEntity;
 import org.opendatakit.httpclientandroidlib.client.methods.CloseableHttpResponse;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpDelete;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
@@ -50,7 +49,6 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPut;
 import org.opendatakit.httpclientandroidlib.conn.ConnectTimeoutException;
 import org.opendatakit.httpclientandroidlib.entity.ContentType;
-import org.opendatakit.httpclientandroidlib.entity.StringEntity;
 import org.opendatakit.httpclientandroidlib.entity.mime.FormBodyPartBuilder;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.ByteArrayBody;
@@ -191,16 +189,18 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     URI uri = wrapper.constructListOfUserRolesAndDefaultGroupUri();
 
     wrapper.buildNoContentJsonResponseRequest(uri, request);
+    ConditionalGetCache.Entry cached = wrapper.addConditionalGetHeaders(request);
 
     try {
-      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_FOUND);
+      response = wrapper.httpClientExecute(request,
+          HttpRestProtocolWrapper.SC_OK_SC_NOT_MODIFIED_SC_NOT_FOUND);
 
       if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
         // perhaps an older server (pre-v1.4.11) ?
         return null;
       }
 
-      String res = wrapper.convertResponseToString(response);
+      String res = wrapper.convertResponseToCachedString(request, cached, response);
 
       PrivilegesInfo privilegesInfo = ODKFileUtils.mapper.readValue(res, PrivilegesInfo.class);
 
@@ -236,16 +236,18 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     URI uri = wrapper.constructListOfUsersUri();
 
     wrapper.buildNoContentJsonResponseRequest(uri, request);
+    ConditionalGetCache.Entry cached = wrapper.addConditionalGetHeaders(request);
 
     try {
-      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_FOUND);
+      response = wrapper.httpClientExecute(request,
+          HttpRestProtocolWrapper.SC_OK_SC_NOT_MODIFIED_SC_NOT_FOUND);
 
       if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
         // perhaps an older server (pre-v1.4.11) ?
         return new UserInfoList();
       }
 
-      String res = wrapper.convertResponseToString(response);
+      String res = wrapper.convertResponseToCachedString(request, cached, response);
 
       UserInfoList rolesList = ODKFileUtils.mapper.readValue(res, UserInfoList.class);
 
@@ -280,11 +282,12 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     URI uri = wrapper.constructListOfTablesUri(webSafeResumeCursor);
 
     wrapper.buildNoContentJsonResponseRequest(uri, request);
+    ConditionalGetCache.Entry cached = wrapper.addConditionalGetHeaders(request);
 
     try {
-      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
+      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_MODIFIED);
 
-      String res = wrapper.convertResponseToString(response);
+      String res = wrapper.convertResponseToCachedString(request, cached, response);
 
       tableResources = ODKFileUtils.mapper.readValue(res, TableResourceList.class);
 
@@ -336,11 +339,12 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     TableDefinitionResource definitionRes = null;
 
     wrapper.buildNoContentJsonResponseRequest(uri, request);
+    ConditionalGetCache.Entry cached = wrapper.addConditionalGetHeaders(request);
 
     try {
-      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
+      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_MODIFIED);
 
-      String res = wrapper.convertResponseToString(response);
+      String res = wrapper.convertResponseToCachedString(request, cached, response);
 
       definitionRes = ODKFileUtils.mapper.readValue(res, TableDefinitionResource.class);
 
@@ -360,7 +364,6 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     // build request
     URI uri = wrapper.constructTableIdUri(tableId);
     TableDefinition definition = new TableDefinition(tableId, schemaETag, columns);
-    String tableDefinitionJSON = ODKFileUtils.mapper.writeValueAsString(definition);
 
     // create table
     TableResource resource;
@@ -369,7 +372,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     HttpPut request = new HttpPut();
     wrapper.buildJsonContentJsonResponseRequest(uri, request);
 
-    HttpEntity entity = new GzipCompressingEntity(new StringEntity(tableDefinitionJSON, Charset.forName("UTF-8")));
+    HttpEntity entity = wrapper.makeJsonEntity(definition);
     request.setEntity(entity);
 
     try {
@@ -424,7 +427,13 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     wrapper.buildNoContentJsonResponseRequest(uri, request);
 
     try {
-      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_ONLY);
+      response = wrapper.httpClientExecute(request, HttpRestProtocolWrapper.SC_OK_SC_NOT_FOUND);
+
+      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+        // an older server, without the changeSets API
+        return null;
+      }
+
       String res = wrapper.convertResponseToString(response);
 
       ChangeSetList changeSets = ODKFileUtils.mapper.readValue(res, ChangeSetList.class);
@@ -506,6 +515,30 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     }
   }
 
+  @Override
+  public RowResourceListStream getUpdatesStream(TableResource table, String dataETag,
+      String websafeResumeCursor, int fetchLimit)
+          throws HttpClientWebException, IOException {
+
+    URI uri;
+
+    HttpGet request = new HttpGet();
+
+    if ((table.getDataETag() == null) || dataETag == null) {
+      uri = wrapper.constructTableDataUri(table.getDataUri(), websafeResumeCursor, fetchLimit);
+    } else {
+      uri = wrapper.constructTableDataDiffUri(table.getDiffUri(), dataETag, websafeResumeCursor, fetchLimit);
+    }
+
+    wrapper.buildNoContentJsonResponseRequest(uri, request);
+
+    // the response is closed when the caller closes the returned stream
+    CloseableHttpResponse response = wrapper.httpClientExecute(request,
+        HttpRestProtocolWrapper.SC_OK_ONLY);
+
+    return HttpRestProtocolWrapper.convertResponseToRowResourceListStream(response);
+  }
+
   @Override
   public RowOutcomeList pushLocalRows(TableResource resource, OrderedColumns orderedColumns,
       List<org.opendatakit.database.data.TypedRow> rowsToInsertUpdateOrDelete) throws IOException,
@@ -545,9 +578,8 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     HttpPut request = new HttpPut();
     CloseableHttpResponse response = null;
 
-    String rowListJSON = ODKFileUtils.mapper.writeValueAsString(rlist);
-    HttpEntity entity = new GzipCompressingEntity(new StringEntity(rowListJSON,
-        Charset.forName("UTF-8")));
+    // serialize and compress the rows as they are written to the connection
+    HttpEntity entity = wrapper.makeJsonEntity(rlist);
 
     URI uri = URI.create(resource.getDataUri());
     wrapper.buildJsonContentJsonResponseRequest(uri, request);
@@ -878,6 +910,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
         if (attemptCount != 1) {
           throw e;
         }
+        sc.getSyncTelemetry().recordRetry();
       } finally {
         if ( response != null ) {
           EntityUtils.consumeQuietly(response.getEntity());
@@ -1078,10 +1111,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     wrapper.buildBasicRequest(instanceFilesDownloadUri, request);
     request.addHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
 
-    String fileManifestEntries = ODKFileUtils.mapper.writeValueAsString(manifest);
-
-    HttpEntity entity = new StringEntity(fileManifestEntries,
-        Charset.forName("UTF-8"));
+    HttpEntity entity = wrapper.makeJsonEntity(manifest);
 
     request.setEntity(entity);
 
@@ -1169,8 +1199,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     wrapper.buildJsonContentJsonResponseRequest(uri, request);
 
     // and augment with info about the
-    HttpEntity entity = new GzipCompressingEntity(
-        new StringEntity(ODKFileUtils.mapper.writeValueAsString(statusMap), Charset.forName("UTF-8")));
+    HttpEntity entity = wrapper.makeJsonEntity(statusMap);
     request.setEntity(entity);
 
     try {
@@ -1194,8 +1223,7 @@ public class AggregateSynchronizer implements HttpSynchronizer {
     wrapper.buildJsonContentJsonResponseRequest(uri, request);
 
     // and augment with info about the
-    HttpEntity entity = new GzipCompressingEntity(
-        new StringEntity(ODKFileUtils.mapper.writeValueAsString(statusMap), Charset.forName("UTF-8")));
+    HttpEntity entity = wrapper.makeJsonEntity(statusMap);
     request.setEntity(entity);
 
     try {
@@ -234,6 +234,12 @@ class AidlSynchronizer implements Synchronizer {
     }
   }
 
+  @Override
+  public RowResourceListStream getUpdatesStream(TableResource tableResource, String dataETag, String websafeResumeCursor, int fetchLimit) throws HttpClientWebException {
+    return new MaterializedRowResourceListStream(
+        getUpdates(tableResource, dataETag, websafeResumeCursor, fetchLimit));
+  }
+
   @Override
   public RowOutcomeList pushLocalRows(TableResource tableResource, OrderedColumns orderedColumns, List<TypedRow> rowsToInsertUpdateOrDelete) throws HttpClientWebException {
     try {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.logging.WebLoggerIf;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of the bodies of idempotent JSON GET responses, keyed by
+ * request URI and the identity of the requesting user.
+ * <p>
+ * Entries record the ETag and Last-Modified validators returned by the server.
+ * These are sent back as If-None-Match / If-Modified-Since so that an unchanged
+ * resource costs only a 304 response, in which case the cached body is reused.
+ * <p>
+ * The cache is only an optimization: any failure to read or write an entry is
+ * logged and treated as a cache miss.
+ */
+public class ConditionalGetCache {
+
+  private static final String TAG = ConditionalGetCache.class.getSimpleName();
+
+  /**
+   * Upper bound on the number of cached responses. When exceeded, the least
+   * recently written entries are discarded.
+   */
+  static final int MAX_ENTRIES = 256;
+
+  private static final String ENTRY_SUFFIX = ".json";
+
+  /**
+   * A cached response. Public fields for Jackson serialization.
+   */
+  public static class Entry {
+    public String uri;
+    public String eTag;
+    public String lastModified;
+    public String body;
+
+    public Entry() {
+    }
+
+    Entry(String uri, String eTag, String lastModified, String body) {
+      this.uri = uri;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.body = body;
+    }
+  }
+
+  private final File cacheDir;
+  private final String identity;
+  private final WebLoggerIf log;
+
+  /**
+   * @param cacheDir directory holding the cached entries
+   * @param identity distinguishes the responses of different users / auth types
+   *                 for the same URI (e.g., privilegesInfo).
+   * @param log
+   */
+  public ConditionalGetCache(File cacheDir, String identity, WebLoggerIf log) {
+    this.cacheDir = cacheDir;
+    this.identity = (identity == null) ? "" : identity;
+    this.log = log;
+  }
+
+  private File entryFile(URI uri) {
+    String key = identity + "|" + uri.toString();
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(key.getBytes(Charset.forName("UTF-8")));
+      StringBuilder b = new StringBuilder();
+      for (byte d : digest) {
+        b.append(String.format("%02x", d & 0xff));
+      }
+      return new File(cacheDir, b.toString() + ENTRY_SUFFIX);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 should always be available");
+    }
+  }
+
+  /**
+   * @param uri
+   * @return the cached entry for this uri, or null if there is none.
+   */
+  public Entry get(URI uri) {
+    File f = entryFile(uri);
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      Entry entry = ODKFileUtils.mapper.readValue(f, Entry.class);
+      if (entry == null || !uri.toString().equals(entry.uri) || entry.body == null) {
+        return null;
+      }
+      return entry;
+    } catch (IOException e) {
+      log.w(TAG, "unable to read cached response for " + uri.toString());
+      f.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Store the response body if the server supplied a validator for it.
+   *
+   * @param uri
+   * @param eTag         the ETag header value or null
+   * @param lastModified the Last-Modified header value or null
+   * @param body
+   */
+  public void put(URI uri, String eTag, String lastModified, String body) {
+    File f = entryFile(uri);
+    if (eTag == null && lastModified == null) {
+      // nothing to revalidate against -- drop any stale entry
+      f.delete();
+      return;
+    }
+    if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+      log.w(TAG, "unable to create response cache directory");
+      return;
+    }
+    File tmp = new File(cacheDir, f.getName() + ".tmp");
+    try {
+      ODKFileUtils.mapper.writeValue(tmp, new Entry(uri.toString(), eTag, lastModified, body));
+      if (!tmp.renameTo(f)) {
+        log.w(TAG, "unable to save cached response for " + uri.toString());
+        tmp.delete();
+        return;
+      }
+    } catch (IOException e) {
+      log.w(TAG, "unable to save cached response for " + uri.toString());
+      tmp.delete();
+      return;
+    }
+    trim();
+  }
+
+  /**
+   * Remove the entry for this uri.
+   *
+   * @param uri
+   */
+  public void remove(URI uri) {
+    entryFile(uri).delete();
+  }
+
+  private void trim() {
+    File[] entries = cacheDir.listFiles();
+    if (entries == null || entries.length <= MAX_ENTRIES) {
+      return;
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return (l < r) ? -1 : ((l == r) ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < entries.length - MAX_ENTRIES; ++i) {
+      entries[i].delete();
+    }
+  }
+}
@@ -33,14 +33,17 @@ import org.opendatakit.httpclientandroidlib.client.config.CookieSpecs;
 import org.opendatakit.httpclientandroidlib.client.config.RequestConfig;
 import org.opendatakit.httpclientandroidlib.client.entity.GzipCompressingEntity;
 import org.opendatakit.httpclientandroidlib.client.methods.CloseableHttpResponse;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpEntityEnclosingRequestBase;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPut;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpRequestBase;
 import org.opendatakit.httpclientandroidlib.client.protocol.HttpClientContext;
 import org.opendatakit.httpclientandroidlib.client.utils.URIBuilder;
 import org.opendatakit.httpclientandroidlib.config.SocketConfig;
-import org.opendatakit.httpclientandroidlib.entity.ByteArrayEntity;
 import org.opendatakit.httpclientandroidlib.entity.ContentType;
+import org.opendatakit.httpclientandroidlib.entity.FileEntity;
+import org.opendatakit.httpclientandroidlib.entity.HttpEntityWrapper;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicCookieStore;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicCredentialsProvider;
 import org.opendatakit.httpclientandroidlib.impl.client.CloseableHttpClient;
@@ -63,12 +66,14 @@ import org.opendatakit.services.sync.service.exceptions.NotOpenDataKitServerExce
 import org.opendatakit.services.sync.service.exceptions.ServerDetectedVersionMismatchedClientRequestException;
 import org.opendatakit.services.sync.service.exceptions.UnexpectedServerRedirectionStatusCodeException;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.MalformedURLException;
@@ -118,6 +123,8 @@ public class HttpRestProtocolWrapper {
 
   private static final String FORWARD_SLASH = "/";
 
+  static final String RESPONSE_CACHE_DIR = "sync_response_cache";
+
   private CloseableHttpClient httpClient = null;
   private CloseableHttpClient httpAuthClient = null;
 
@@ -134,6 +141,7 @@ public class HttpRestProtocolWrapper {
   static List<Integer> SC_OK_SC_NOT_MODIFIED;
   static List<Integer> SC_OK_SC_CONFLICT;
   static List<Integer> SC_OK_SC_NOT_FOUND;
+  static List<Integer> SC_OK_SC_NOT_MODIFIED_SC_NOT_FOUND;
   static List<Integer> SC_CREATED;
   static List<Integer> SC_CREATED_SC_ACCEPTED;
 
@@ -200,6 +208,12 @@ public class HttpRestProtocolWrapper {
     al.add(HttpStatus.SC_NOT_FOUND);
     SC_OK_SC_NOT_FOUND = al;
 
+    al = new ArrayList<Integer>();
+    al.add(HttpStatus.SC_OK);
+    al.add(HttpStatus.SC_NOT_MODIFIED);
+    al.add(HttpStatus.SC_NOT_FOUND);
+    SC_OK_SC_NOT_MODIFIED_SC_NOT_FOUND = al;
+
     al = new ArrayList<Integer>();
     al.add(HttpStatus.SC_CREATED);
     SC_CREATED = al;
@@ -217,6 +231,10 @@ public class HttpRestProtocolWrapper {
   private final WebLoggerIf log;
   // cookie manager
   private final CookieManager cm;
+  // bodies of idempotent GET responses, revalidated with If-None-Match / If-Modified-Since
+  private final ConditionalGetCache responseCache;
+  // cleared if the server rejects a gzip-encoded request body
+  private boolean compressRequestBodies = true;
 
   private final URI normalizeUri(String aggregateUri, String additionalPathPortion) {
     URI uriBase = URI.create(aggregateUri).normalize();
@@ -429,7 +447,7 @@ public class HttpRestProtocolWrapper {
     try {
       if (activeOnly) {
         uri = new URIBuilder(uri.toString())
-            .addParameter(HttpRestProtocolWrapper.QUERY_DATA_ETAG, "true").build();
+            .addParameter(HttpRestProtocolWrapper.QUERY_ACTIVE_ONLY, "true").build();
       }
 
       // and apply the cursor...
@@ -671,6 +689,11 @@ public class HttpRestProtocolWrapper {
     cm = new CookieManager();
     CookieHandler.setDefault(cm);
 
+    // cached responses can be user-specific (e.g., privilegesInfo)
+    responseCache = new ConditionalGetCache(
+        new File(new File(sc.getApplication().getCacheDir(), RESPONSE_CACHE_DIR), sc.getAppName()),
+        sc.getAuthenticationType() + "|" + sc.getUsername(), log);
+
     // HttpClient for auth tokens
     localAuthContext = new BasicHttpContext();
 
@@ -765,12 +788,23 @@ public class HttpRestProtocolWrapper {
             .setCookieSpec(CookieSpecs.DEFAULT)
             .build();
 
+    // connections are pooled across the syncs of all the apps using this server
     httpClient = HttpClientBuilder.create()
+            .setConnectionManager(SyncConnectionPools.getPool(destination, socketConfig))
+            .setConnectionManagerShared(true)
             .setDefaultSocketConfig(socketConfig)
             .setDefaultRequestConfig(requestConfig).build();
 
   }
 
+  /**
+   * Close the pooled connections to all the servers. Called when the sync
+   * service is destroyed.
+   */
+  public static void shutdownConnectionPools() {
+    SyncConnectionPools.shutdownAll();
+  }
+
   public static String convertResponseToString(CloseableHttpResponse response) throws IOException {
 
     if (response == null) {
@@ -794,6 +828,95 @@ public class HttpRestProtocolWrapper {
     }
   }
 
+  /**
+   * Wrap the response body in a streaming parser of a RowResourceList.
+   * The rows are decoded one at a time as they are consumed, rather than
+   * materializing the entire response as a String and then as a RowResourceList.
+   * <p>
+   * Closing the returned stream closes the response.
+   *
+   * @param response
+   * @return
+   * @throws IOException
+   */
+  public static RowResourceListStream convertResponseToRowResourceListStream(
+      CloseableHttpResponse response) throws IOException {
+
+    if (response == null) {
+      throw new IllegalArgumentException("Can't convert null response to a row stream!!");
+    }
+
+    boolean success = false;
+    try {
+      RowResourceListStream rows = new JsonRowResourceListStream(
+          response.getEntity().getContent(), response);
+      success = true;
+      return rows;
+    } finally {
+      if (!success) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        response.close();
+      }
+    }
+  }
+
+  /**
+   * Add If-None-Match / If-Modified-Since headers to an idempotent GET request
+   * if we hold a cached response for its URI. The returned entry must be passed
+   * to {@link #convertResponseToCachedString} together with the response.
+   *
+   * @param request GET request whose URI has already been set
+   * @return the cached entry, or null if there is none.
+   */
+  public ConditionalGetCache.Entry addConditionalGetHeaders(HttpRequestBase request) {
+    ConditionalGetCache.Entry cached = responseCache.get(request.getURI());
+    if (cached != null) {
+      if (cached.eTag != null) {
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, cached.eTag);
+      }
+      if (cached.lastModified != null) {
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Counterpart of {@link #addConditionalGetHeaders}. On a 304 Not Modified
+   * response, returns the cached body. Otherwise, returns the response body
+   * and updates the cache with it.
+   *
+   * @param request
+   * @param cached   the entry returned by addConditionalGetHeaders
+   * @param response a 200 or 304 response
+   * @return
+   * @throws IOException
+   */
+  public String convertResponseToCachedString(HttpRequestBase request,
+      ConditionalGetCache.Entry cached, CloseableHttpResponse response)
+      throws IOException, HttpClientWebException {
+    URI uri = request.getURI();
+    if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      if (cached == null) {
+        // we did not send a conditional request
+        throw new ClientDetectedVersionMismatchedServerResponseException(
+            "unexpected Not Modified response", request, response);
+      }
+      log.i(LOGTAG, "using cached response for " + uri.toString());
+      EntityUtils.consumeQuietly(response.getEntity());
+      response.close();
+      return cached.body;
+    }
+
+    Header eTagHdr = response.getFirstHeader(HttpHeaders.ETAG);
+    Header lastModifiedHdr = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+    String res = convertResponseToString(response);
+    responseCache.put(uri,
+        (eTagHdr == null) ? null : eTagHdr.getValue(),
+        (lastModifiedHdr == null) ? null : lastModifiedHdr.getValue(), res);
+    return res;
+  }
+
   public CloseableHttpResponse httpClientExecute(HttpRequestBase request, List<Integer>
       handledReturnCodes) throws HttpClientWebException {
 
@@ -804,6 +927,13 @@ public class HttpRestProtocolWrapper {
     // When we exit the outer try, if success is false,
     // consume any response entity and close the response.
     boolean success = false;
+    SyncTelemetry.HttpExchange exchange = sc.getSyncTelemetry().beginHttpRequest();
+    if (exchange != null && request instanceof HttpEntityEnclosingRequestBase) {
+      HttpEntityEnclosingRequestBase enclosingRequest = (HttpEntityEnclosingRequestBase) request;
+      if (enclosingRequest.getEntity() != null) {
+        enclosingRequest.setEntity(new CountingEntity(enclosingRequest.getEntity(), exchange));
+      }
+    }
     try {
       try {
         if (localContext != null) {
@@ -812,6 +942,12 @@ public class HttpRestProtocolWrapper {
           response = httpClient.execute(request);
         }
 
+        if (exchange != null) {
+          exchange.responseReceived();
+          if (response.getEntity() != null) {
+            response.setEntity(new CountingEntity(response.getEntity(), exchange));
+          }
+        }
       } catch (MalformedURLException e) {
         log.e(LOGTAG, "Bad client config -- malformed URL");
         log.printStackTrace(e);
@@ -852,6 +988,38 @@ public class HttpRestProtocolWrapper {
         throw new AccessDeniedException(errorText, request, response);
       }
 
+      // the resource is gone; drop the validators and body we hold for it
+      if ((statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_GONE) &&
+          request instanceof HttpGet) {
+        responseCache.remove(request.getURI());
+      }
+
+      // not all servers (or the proxies in front of them) accept a gzip-encoded
+      // request body. If the body was compressed and was refused as such, resend
+      // it uncompressed, and do not compress any further request bodies. A 400
+      // that carries our version header comes from the ODK server itself and
+      // reports a problem with the content, not with its encoding.
+      if (!handledReturnCodes.contains(statusCode) &&
+          (statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE ||
+           (statusCode == HttpStatus.SC_BAD_REQUEST &&
+            !response.containsHeader(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)))) {
+        HttpEntity uncompressed = getUncompressedRequestEntity(request);
+        if (uncompressed != null) {
+          log.w(LOGTAG, errorText + " to a gzip-encoded request body -- resending it uncompressed");
+          compressRequestBodies = false;
+          EntityUtils.consumeQuietly(response.getEntity());
+          try {
+            response.close();
+          } catch (IOException e) {
+            log.e(LOGTAG, "failed to close response");
+            log.printStackTrace(e);
+          }
+          response = null;
+          ((HttpEntityEnclosingRequestBase) request).setEntity(uncompressed);
+          return httpClientExecute(request, handledReturnCodes);
+        }
+      }
+
       // if we do not find our header in the response, then this is most likely a
       // wifi network login screen.
       Header[] odkHeaders = response.getHeaders(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER);
@@ -904,6 +1072,108 @@ public class HttpRestProtocolWrapper {
     }
   }
 
+  /**
+   * @param request
+   * @return the uncompressed body of the request, if the body is gzip-encoded
+   * and can be sent again; otherwise null
+   */
+  private static HttpEntity getUncompressedRequestEntity(HttpRequestBase request) {
+    if (!(request instanceof HttpEntityEnclosingRequestBase)) {
+      return null;
+    }
+    HttpEntity entity = ((HttpEntityEnclosingRequestBase) request).getEntity();
+    if (entity instanceof CountingEntity) {
+      entity = ((CountingEntity) entity).getWrappedEntity();
+    }
+    if (entity instanceof GzipRequestEntity) {
+      HttpEntity uncompressed = ((GzipRequestEntity) entity).getUncompressedEntity();
+      if (uncompressed.isRepeatable()) {
+        return uncompressed;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A gzip-encoded request body that can give back the body it compresses.
+   */
+  private static final class GzipRequestEntity extends GzipCompressingEntity {
+    GzipRequestEntity(HttpEntity entity) {
+      super(entity);
+    }
+
+    HttpEntity getUncompressedEntity() {
+      return wrappedEntity;
+    }
+  }
+
+  /**
+   * Entity wrapper that charges the bytes of the request or response body to
+   * the sync phase that issued the request.
+   */
+  private static final class CountingEntity extends HttpEntityWrapper {
+    private final SyncTelemetry.HttpExchange exchange;
+
+    CountingEntity(HttpEntity entity, SyncTelemetry.HttpExchange exchange) {
+      // do not count the bytes twice if the request is re-issued
+      super((entity instanceof CountingEntity) ? ((CountingEntity) entity).wrappedEntity : entity);
+      this.exchange = exchange;
+    }
+
+    HttpEntity getWrappedEntity() {
+      return wrappedEntity;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            exchange.addBytesReceived(1L);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int n = super.read(buffer, offset, length);
+          if (n > 0) {
+            exchange.addBytesReceived(n);
+          }
+          return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          long skipped = super.skip(n);
+          if (skipped > 0L) {
+            exchange.addBytesReceived(skipped);
+          }
+          return skipped;
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      super.writeTo(new FilterOutputStream(outstream) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+          exchange.addBytesSent(1L);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+          out.write(buffer, offset, length);
+          exchange.addBytesSent(length);
+        }
+      });
+    }
+  }
+
   public static String determineContentType(String fileName) {
     int ext = fileName.lastIndexOf('.');
     if (ext == -1) {
@@ -934,20 +1204,28 @@ public class HttpRestProtocolWrapper {
       throw new IllegalArgumentException("makeHttpEntity: localFile cannot be null");
     }
 
-    int size = (int) localFile.length();
-    byte[] bytes = new byte[size];
-    try {
-      BufferedInputStream buf = new BufferedInputStream(new FileInputStream(localFile));
-      buf.read(bytes, 0, bytes.length);
-      buf.close();
-    } catch (IOException ioe) {
-      log.e(LOGTAG, "makeHttpEntity: exception while tyring to read file");
-      log.printStackTrace(ioe);
-      throw ioe;
+    // stream the file through the compressor rather than reading it into memory
+    HttpEntity entity = new FileEntity(localFile);
+    if (compressRequestBodies) {
+      return new GzipRequestEntity(entity);
     }
+    return entity;
+  }
 
-    return new GzipCompressingEntity(new ByteArrayEntity(bytes));
-    //return new ByteArrayEntity(bytes);
+  /**
+   * Create a request entity that serializes the given value as JSON while it is
+   * being sent, gzip-compressing it on the fly (Content-Encoding: gzip).
+   * The body is not compressed once the server has rejected a compressed one.
+   *
+   * @param value    the object to serialize
+   * @return
+   */
+  public HttpEntity makeJsonEntity(Object value) {
+    HttpEntity entity = new JsonStreamingEntity(value);
+    if (compressRequestBodies) {
+      return new GzipRequestEntity(entity);
+    }
+    return entity;
   }
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull-parses a RowResourceList JSON response body, returning one RowResource
+ * at a time. Only a single row is materialized at any point; all other
+ * top-level fields are collected into a JSON tree and bound to a
+ * RowResourceList (without rows) once the end of the object is reached.
+ */
+class JsonRowResourceListStream implements RowResourceListStream {
+
+  /**
+   * JSON field name of the rows array within a RowResourceList
+   */
+  static final String ROWS_FIELD = "rows";
+
+  private final JsonParser parser;
+  private final Closeable source;
+  private final ObjectNode metadata;
+
+  private boolean inRows = false;
+  private boolean finished = false;
+
+  /**
+   * @param content the response body
+   * @param source  closed (together with the parser) when this stream is closed.
+   *                May be null.
+   * @throws IOException
+   */
+  JsonRowResourceListStream(InputStream content, Closeable source) throws IOException {
+    this.source = source;
+    this.parser = ODKFileUtils.mapper.getFactory().createParser(content);
+    this.metadata = ODKFileUtils.mapper.createObjectNode();
+
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new JsonParseException(parser, "expected start of RowResourceList object");
+    }
+  }
+
+  @Override
+  public RowResource nextRow() throws IOException {
+    if (inRows) {
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        return ODKFileUtils.mapper.readValue(parser, RowResource.class);
+      }
+      if (token != JsonToken.END_ARRAY) {
+        throw new JsonParseException(parser, "expected RowResource object or end of rows array");
+      }
+      inRows = false;
+    }
+
+    while (!finished) {
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.END_OBJECT) {
+        finished = true;
+        break;
+      }
+      if (token != JsonToken.FIELD_NAME) {
+        throw new JsonParseException(parser, "expected field name within RowResourceList");
+      }
+      String fieldName = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (ROWS_FIELD.equals(fieldName) && value == JsonToken.START_ARRAY) {
+        inRows = true;
+        return nextRow();
+      }
+      if (ROWS_FIELD.equals(fieldName)) {
+        // null rows array -- nothing to return
+        continue;
+      }
+      JsonNode node = ODKFileUtils.mapper.readTree(parser);
+      metadata.set(fieldName, (node == null) ? NullNode.getInstance() : node);
+    }
+    return null;
+  }
+
+  @Override
+  public RowResourceList getPageMetadata() throws IOException {
+    while (!finished) {
+      if (inRows) {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+          inRows = false;
+        } else {
+          parser.skipChildren();
+        }
+      } else {
+        nextRow();
+      }
+    }
+    return ODKFileUtils.mapper.treeToValue(metadata, RowResourceList.class);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      parser.close();
+    } finally {
+      if (source != null) {
+        source.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.opendatakit.httpclientandroidlib.entity.AbstractHttpEntity;
+import org.opendatakit.httpclientandroidlib.entity.ContentType;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Request entity that serializes an object as JSON directly into the
+ * connection's output stream (or into the compressing stream of a
+ * GzipCompressingEntity wrapping it). Unlike a StringEntity, the serialized
+ * form is never held in memory as a whole.
+ * <p>
+ * The entity is repeatable -- the value is re-serialized on each write -- so
+ * it can be resent after an authentication challenge.
+ */
+public class JsonStreamingEntity extends AbstractHttpEntity {
+
+  private final Object value;
+
+  public JsonStreamingEntity(Object value) {
+    if (value == null) {
+      throw new IllegalArgumentException("JsonStreamingEntity: value cannot be null");
+    }
+    this.value = value;
+    setContentType(ContentType.APPLICATION_JSON.toString());
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    // unknown -- sent chunked
+    return -1;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    // only used for logging and debugging; callers that send the entity use writeTo()
+    return new ByteArrayInputStream(ODKFileUtils.mapper.writeValueAsBytes(value));
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException {
+    if (outstream == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+        .createGenerator(outstream, JsonEncoding.UTF8);
+    // the owner of the output stream is responsible for closing it
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    try {
+      ODKFileUtils.mapper.writeValue(generator, value);
+    } finally {
+      generator.close();
+    }
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+
+import java.util.List;
+
+/**
+ * Adapts an already-materialized RowResourceList to the RowResourceListStream
+ * interface. Used by synchronizers that cannot stream their responses (e.g., AIDL).
+ */
+class MaterializedRowResourceListStream implements RowResourceListStream {
+
+  private final RowResourceList rows;
+  private int idx = 0;
+
+  MaterializedRowResourceListStream(RowResourceList rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public RowResource nextRow() {
+    List<RowResource> list = rows.getRows();
+    if (list == null || idx >= list.size()) {
+      return null;
+    }
+    return list.get(idx++);
+  }
+
+  @Override
+  public RowResourceList getPageMetadata() {
+    return rows;
+  }
+
+  @Override
+  public void close() {
+    // no-op
+  }
+}
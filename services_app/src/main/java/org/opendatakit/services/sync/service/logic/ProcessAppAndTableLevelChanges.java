@@ -228,6 +228,16 @@ public class ProcessAppAndTableLevelChanges {
    */
   public List<TableResource> synchronizeConfigurationAndContent(boolean pushToServer) throws
       ServicesAvailabilityException {
+    sc.getSyncTelemetry().beginPhase(SyncTelemetry.APP_LEVEL, SyncTelemetry.Phase.MANIFESTS);
+    try {
+      return synchronizeAppAndTableConfigurationAndContent(pushToServer);
+    } finally {
+      sc.getSyncTelemetry().endPhase();
+    }
+  }
+
+  private List<TableResource> synchronizeAppAndTableConfigurationAndContent(
+      boolean pushToServer) throws ServicesAvailabilityException {
     log.i(TAG, "entered synchronizeConfigurationAndContent()");
 
     boolean issueDeletes = false;
@@ -428,8 +438,14 @@ public class ProcessAppAndTableLevelChanges {
             serverTablesToDelete.remove(matchingResource);
           }
 
-          TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
-              orderedDefns, matchingResource, true);
+          TableResource updatedResource;
+          sc.getSyncTelemetry().beginPhase(localTableId, SyncTelemetry.Phase.MANIFESTS);
+          try {
+            updatedResource = synchronizeTableConfigurationAndContent(entry,
+                orderedDefns, matchingResource, true);
+          } finally {
+            sc.getSyncTelemetry().endPhase();
+          }
           if (updatedResource != null) {
             // there were no errors sync'ing the table-level info.
             // allow client to sync instance-level data...
@@ -528,8 +544,14 @@ public class ProcessAppAndTableLevelChanges {
               false);
 
           try {
-            TableDefinitionResource definitionResource = sc.getSynchronizer().getTableDefinition(table
-                .getDefinitionUri());
+            TableDefinitionResource definitionResource;
+            sc.getSyncTelemetry().beginPhase(serverTableId, SyncTelemetry.Phase.MANIFESTS);
+            try {
+              definitionResource = sc.getSynchronizer().getTableDefinition(table
+                  .getDefinitionUri());
+            } finally {
+              sc.getSyncTelemetry().endPhase();
+            }
 
             try {
               db = sc.getDatabase();
@@ -557,8 +579,14 @@ public class ProcessAppAndTableLevelChanges {
           // Sync the local media files with the server if the table
           // existed locally before we attempted downloading it.
 
-          TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
-              orderedDefns, table, false);
+          TableResource updatedResource;
+          sc.getSyncTelemetry().beginPhase(serverTableId, SyncTelemetry.Phase.MANIFESTS);
+          try {
+            updatedResource = synchronizeTableConfigurationAndContent(entry,
+                orderedDefns, table, false);
+          } finally {
+            sc.getSyncTelemetry().endPhase();
+          }
           if (updatedResource != null) {
             // there were no errors sync'ing the table-level info.
             // allow client to sync instance-level data...
@@ -46,6 +46,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -339,6 +340,7 @@ class ProcessManifestContentAndFileChanges {
         File localFile = ODKFileUtils.asAppFile(sc.getAppName(), relativePath);
 
         sc.getSynchronizer().uploadConfigFile(localFile);
+        sc.getSyncTelemetry().addFiles(1);
 
         ++stepCount;
       }
@@ -506,6 +508,7 @@ class ProcessManifestContentAndFileChanges {
 
         File localFile = ODKFileUtils.asAppFile(sc.getAppName(), relativePath);
         sc.getSynchronizer().uploadConfigFile(localFile);
+        sc.getSyncTelemetry().addFiles(1);
 
         ++stepCount;
       }
@@ -696,6 +699,32 @@ class ProcessManifestContentAndFileChanges {
     return true;
   }
 
+  /**
+   * Count the completed transfer of a batch of row-level attachments and, for
+   * downloads, record it in the sync journal so that an interrupted sync does
+   * not need to verify those files again. Uploads are not journaled; see
+   * {@link SyncJournal#recordAttachmentTransfer}.
+   *
+   * @param journal    may be null
+   * @param tableId
+   * @param instanceId
+   * @param batch
+   * @param serverMd5s md5 hashes reported by the server, or null for uploads
+   * @throws ServicesAvailabilityException
+   */
+  private void recordAttachmentTransfers(SyncJournal journal, String tableId, String instanceId,
+      List<CommonFileAttachmentTerms> batch, Map<CommonFileAttachmentTerms, String> serverMd5s)
+      throws ServicesAvailabilityException {
+    sc.getSyncTelemetry().addFiles(batch.size());
+    if (journal == null || serverMd5s == null) {
+      return;
+    }
+    for (CommonFileAttachmentTerms cat : batch) {
+      journal.recordAttachmentTransfer(tableId, instanceId, cat.rowPathUri, cat.localFile,
+          serverMd5s.get(cat));
+    }
+  }
+
   /**
    * If attachmentState is NONE, then this just returns false and is a no-op.
    * Otherwise, it always fetches the row-level file manifest and builds up the
@@ -778,10 +807,13 @@ class ProcessManifestContentAndFileChanges {
       return false;
     }
 
+    SyncJournal journal = sc.getSyncJournal();
+
     // 5) Create a list of files that need to be uploaded to or downloaded from the server.
     // Track the sizes of the files to download so we can fetch them in smaller groups.
     List<CommonFileAttachmentTerms> filesToUpload = new ArrayList<CommonFileAttachmentTerms>();
     HashMap<CommonFileAttachmentTerms, Long> filesToDownloadSizes = new HashMap<>();
+    HashMap<CommonFileAttachmentTerms, String> serverMd5s = new HashMap<>();
 
     // If the row is repeatedly updated, we only want to pull or push the
     // files required by the current version of the row.
@@ -813,6 +845,13 @@ class ProcessManifestContentAndFileChanges {
         } else {
           // server has the file
           if (cat.localFile.exists()) {
+            if (journal != null && journal.isAttachmentTransferred(tableId, instanceId,
+                entry.filename, cat.localFile, entry.md5hash)) {
+              // downloaded by an interrupted sync and unchanged since -- skip the md5 hash
+              log.i(LOGTAG, "syncRowLevelFileAttachments file already transferred for " + instanceId);
+              continue;
+            }
+
             // Check if the server and local versions match
             String localMd5 = ODKFileUtils.getMd5Hash(sc.getAppName(), cat.localFile);
 
@@ -820,11 +859,13 @@ class ProcessManifestContentAndFileChanges {
               // Found, but it is wrong locally, so we need to pull it
               log.e(LOGTAG, "syncRowLevelFileAttachments Row-level Manifest: md5Hash on server does not match local file hash!");
               filesToDownloadSizes.put(cat, entry.contentLength);
+              serverMd5s.put(cat, entry.md5hash);
             }
           } else {
             log.i(LOGTAG, "syncRowLevelFileAttachments local file does not exist; server has entry and file. Add to downloads list for " + instanceId);
             // we don't have it -- we need to download it.
             filesToDownloadSizes.put(cat, entry.contentLength);
+            serverMd5s.put(cat, entry.md5hash);
           }
         }
       }
@@ -881,6 +922,7 @@ class ProcessManifestContentAndFileChanges {
           log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
           sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
               instanceId, tableId);
+          recordAttachmentTransfers(journal, tableId, instanceId, batch, null);
           batch.clear();
           batchSize = 0;
         }
@@ -894,6 +936,7 @@ class ProcessManifestContentAndFileChanges {
         log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
         sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
             instanceId, tableId);
+        recordAttachmentTransfers(journal, tableId, instanceId, batch, null);
       }
 
       fullySyncedUploads = true;
@@ -918,6 +961,7 @@ class ProcessManifestContentAndFileChanges {
           log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
           sc.getSynchronizer().downloadInstanceFileBatch(batch,
               serverInstanceFileUri, instanceId, tableId);
+          recordAttachmentTransfers(journal, tableId, instanceId, batch, serverMd5s);
           batch.clear();
           batchSize = 0;
         }
@@ -931,6 +975,7 @@ class ProcessManifestContentAndFileChanges {
         log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
         sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri,
             instanceId, tableId);
+        recordAttachmentTransfers(journal, tableId, instanceId, batch, serverMd5s);
       }
 
       fullySyncedDownloads = !impossibleToFullySyncDownloadsServerMissingFileToDownload;
@@ -1006,11 +1051,18 @@ class ProcessManifestContentAndFileChanges {
 
     boolean hashMatch;
 
-    do {
+    for (;;) {
       sc.getSynchronizer().downloadFile(destFile, downloadUri);
       hashMatch = ODKFileUtils.getMd5Hash(sc.getAppName(), destFile).equals(expectedMd5Hash);
-    } while (maxRetry-- > 0 && !hashMatch);
+      if (hashMatch || maxRetry-- <= 0) {
+        break;
+      }
+      sc.getSyncTelemetry().recordRetry();
+    }
 
+    if (hashMatch) {
+      sc.getSyncTelemetry().addFiles(1);
+    }
     return hashMatch;
   }
 
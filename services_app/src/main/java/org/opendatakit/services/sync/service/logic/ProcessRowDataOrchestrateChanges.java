@@ -205,6 +205,7 @@ public class ProcessRowDataOrchestrateChanges {
         statusMap.put("localNumCheckpoints", checkpoints);
         statusMap.put("localNumConflicts", conflicts);
         statusMap.put("localNumRows", rows);
+        statusMap.put("syncTelemetry", sc.getSyncTelemetry().getTableStatusMap(tableId));
         sc.getSynchronizer().publishTableSyncStatus(tableResource, statusMap);
       } catch (Exception e) {
         log.e(
@@ -288,7 +289,13 @@ public class ProcessRowDataOrchestrateChanges {
             R.string.sync_verifying_table_schema_on_server, new Object[] { tableId }, 0.0, false);
 
 
-        TableResource tableResource = sc.getSynchronizer().getTable(tableId);
+        TableResource tableResource;
+        sc.getSyncTelemetry().beginPhase(tableId, SyncTelemetry.Phase.PULL);
+        try {
+          tableResource = sc.getSynchronizer().getTable(tableId);
+        } finally {
+          sc.getSyncTelemetry().endPhase();
+        }
 
         // test that the schemaETag matches
         // if it doesn't, the user MUST sync app-level files and
@@ -306,6 +313,7 @@ public class ProcessRowDataOrchestrateChanges {
           return;
         }
 
+        sc.getSyncTelemetry().beginPhase(tableId, SyncTelemetry.Phase.PULL);
         try {
           serverUpdateProcessor
               .updateLocalRowsFromServer(tableResource, te, orderedColumns, fileAttachmentColumns);
@@ -313,12 +321,15 @@ public class ProcessRowDataOrchestrateChanges {
           exception("synchronizeTableDataRowsAndAttachments -  pulling data down from server", tableId, e,
               tableLevelResult);
           return;
+        } finally {
+          sc.getSyncTelemetry().endPhase();
         }
 
         if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
           return;
         }
 
+        sc.getSyncTelemetry().beginPhase(tableId, SyncTelemetry.Phase.PUSH);
         try {
           refreshFromServer = localChangesProcessor
               .pushLocalChanges(tableResource, te, orderedColumns, fileAttachmentColumns);
@@ -326,6 +337,8 @@ public class ProcessRowDataOrchestrateChanges {
           exception("synchronizeTableDataRowsAndAttachments -  pushing data up to server", tableId, e,
               tableLevelResult);
           return;
+        } finally {
+          sc.getSyncTelemetry().endPhase();
         }
 
         if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
@@ -333,6 +346,7 @@ public class ProcessRowDataOrchestrateChanges {
         }
 
         if (!refreshFromServer) {
+          sc.getSyncTelemetry().beginPhase(tableId, SyncTelemetry.Phase.ATTACHMENTS);
           try {
             syncAttachmentsProcessor
                 .syncAttachments(tableResource, te, orderedColumns, fileAttachmentColumns, attachmentState);
@@ -340,6 +354,8 @@ public class ProcessRowDataOrchestrateChanges {
             exception("synchronizeTableDataRowsAndAttachments -  syncing attachments with server", tableId, e,
                 tableLevelResult);
             return;
+          } finally {
+            sc.getSyncTelemetry().endPhase();
           }
         }
       } while ( refreshFromServer );
@@ -412,6 +428,30 @@ public class ProcessRowDataOrchestrateChanges {
         sc.updateNotification(SyncProgressState.ROWS, R.string.sync_table_data_sync_complete,
             new Object[]{tableId}, 100.0, false);
       }
+      completeSyncJournal(tableId, tableLevelResult.getSyncOutcome());
+    }
+  }
+
+  /**
+   * Discard the sync journal of a table once its row data has been fully
+   * exchanged with the server. Failed or aborted tables keep their journal
+   * so that the next sync resumes where this one stopped.
+   *
+   * @param tableId
+   * @param outcome
+   */
+  private void completeSyncJournal(String tableId, SyncOutcome outcome) {
+    if (sc.getSyncJournal() == null) {
+      return;
+    }
+    if (outcome == SyncOutcome.SUCCESS || outcome == SyncOutcome.TABLE_PENDING_ATTACHMENTS ||
+        outcome == SyncOutcome.TABLE_CONTAINS_CONFLICTS) {
+      try {
+        sc.getSyncJournal().tableCompleted(tableId);
+      } catch (ServicesAvailabilityException e) {
+        log.e(TAG, "completeSyncJournal - unable to discard sync journal: " + tableId);
+        log.printStackTrace(e);
+      }
     }
   }
 }
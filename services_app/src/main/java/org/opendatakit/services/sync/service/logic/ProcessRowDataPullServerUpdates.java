@@ -19,18 +19,21 @@ import android.content.ContentValues;
 
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
@@ -43,8 +46,11 @@ import org.opendatakit.sync.service.TableLevelResult;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The refactored control loop for retrieving row changes from the server and
@@ -67,6 +73,13 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
   private static final double maxPercentage = 50.0;
   private static final int numberOfPhases = 2;
 
+  /**
+   * Columns of the local-only table that records the dataETags of the server
+   * change sets that have already been applied to each local table.
+   */
+  private static final String TABLE_ID_COLUMN = "tableId";
+  private static final String DATA_ETAG_COLUMN = "dataETag";
+
   private final ProcessManifestContentAndFileChanges manifestProcessor;
 
   public ProcessRowDataPullServerUpdates(SyncExecutionContext sharedContext) {
@@ -77,7 +90,8 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
   }
 
   /**
-   * Processes one set of changed Rows reported by the server.
+   * Processes one batch of changed Rows reported by the server. A page of
+   * server changes is applied as a sequence of these batches.
    * <p/>
    * This will set the tableResult SyncOutcome if there is a non-recoverable error of
    * some sort. It may also throw an exception if there are internal errors or database
@@ -95,21 +109,23 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
    */
   private void updateLocalRowsFromServerRowResourceList(TableResource tableResource,
       OrderedColumns orderedColumns, ArrayList<ColumnDefinition> fileAttachmentColumns,
-      RowResourceList rows) throws IOException, ServicesAvailabilityException {
+      List<RowResource> rows) throws IOException, ServicesAvailabilityException {
     String tableId = tableResource.getTableId();
     TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
 
-    if (rows.getRows().isEmpty()) {
+    if (rows.isEmpty()) {
       // nothing here -- let caller determine whether we are done or
       // whether we need to issue another request to the server.
       return;
     }
 
+    sc.getSyncTelemetry().addRows(rows.size());
+
     publishUpdateNotification(R.string.sync_applying_batch_server_row_changes, tableId, -1.0);
 
     HashMap<String,Integer> serverElementKeyToIndex = new HashMap<String,Integer>();
     {
-      RowResource serverRow = rows.getRows().get(0);
+      RowResource serverRow = rows.get(0);
       for (int i = 0; i < serverRow.getValues().size(); ++i) {
         DataKeyValue dkv = serverRow.getValues().get(i);
         serverElementKeyToIndex.put(dkv.column, i);
@@ -117,15 +133,20 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
     }
 
     Map<String, RowResource> changedServerRows = new HashMap<String, RowResource>();
-    for (RowResource row : rows.getRows()) {
+    for (RowResource row : rows) {
       changedServerRows.put(row.getRowId(), row);
     }
 
     {
       DbHandle db = null;
+      // true while reconciling the server rows with the local rows they change
+      boolean reconciling = false;
       try {
         db = sc.getDatabase();
 
+        sc.getSyncTelemetry().beginPhase(tableId, SyncTelemetry.Phase.CONFLICTS);
+        reconciling = true;
+
         /**************************
          * PART 2: UPDATE THE DATA
          **************************/
@@ -180,6 +201,8 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
                     null, null);
         }
 
+        sc.getSyncTelemetry().addRows(localDataTable.getNumberOfRows());
+
         // //////////////////////////////////////////////////
         // //////////////////////////////////////////////////
         // fail the sync on this table if there are checkpoint rows.
@@ -254,6 +277,9 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
           changedServerRows.remove(rowId);
         }
 
+        reconciling = false;
+        sc.getSyncTelemetry().endPhase();
+
         // Now, go through the remaining serverRows in the rows map. That
         // map now contains only row changes that don't affect any existing
         // localRow. If the server change is not a row-deletion / revoke-row
@@ -310,6 +336,9 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
         }
 
       } finally {
+        if (reconciling) {
+          sc.getSyncTelemetry().endPhase();
+        }
         if (db != null) {
           sc.releaseDatabase(db);
           db = null;
@@ -318,6 +347,194 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
     }
   }
 
+  /**
+   * Local-only table recording, per tableId, the change sets that have been
+   * applied but that are not yet reflected in the table's lastDataETag.
+   * <p/>
+   * Tables named "L__" + tableId hold the row ids of a table; tableIds begin
+   * with a letter, so this name cannot collide with any of them.
+   */
+  private static final String APPLIED_CHANGE_SETS_TABLE = "L___sync_applied_change_sets";
+
+  /**
+   * Retrieve the dataETags of the change sets that a previous, interrupted,
+   * change-set pull already applied to the local table.
+   *
+   * @param tableId
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  private Set<String> getAppliedChangeSets(String tableId) throws ServicesAvailabilityException {
+    Set<String> applied = new HashSet<String>();
+
+    DbHandle db = null;
+    try {
+      db = sc.getDatabase();
+
+      // this is a no-op if the table already exists
+      List<Column> columns = new ArrayList<Column>();
+      columns.add(new Column(TABLE_ID_COLUMN, TABLE_ID_COLUMN, ElementDataType.string.name(),
+          "[]"));
+      columns.add(new Column(DATA_ETAG_COLUMN, DATA_ETAG_COLUMN, ElementDataType.string.name(),
+          "[]"));
+      sc.getDatabaseService().createLocalOnlyTableWithColumns(sc.getAppName(), db,
+          APPLIED_CHANGE_SETS_TABLE, new ColumnList(columns));
+
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT ").append(DATA_ETAG_COLUMN).append(" FROM ")
+          .append(APPLIED_CHANGE_SETS_TABLE).append(" WHERE ").append(TABLE_ID_COLUMN)
+          .append(" = ?");
+
+      BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+          b.toString(), new BindArgs(new Object[] { tableId }), null, null);
+      for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+        applied.add(bt.getRowAtIndex(i).getDataType(0, String.class));
+      }
+    } finally {
+      sc.releaseDatabase(db);
+      db = null;
+    }
+    return applied;
+  }
+
+  /**
+   * Pull the server changes to the table change set by change set, starting
+   * from the dataETag at which we last synced.
+   * <p/>
+   * Change sets recorded as already applied (by an earlier, interrupted, pull)
+   * are skipped. Each change set is fetched with activeOnly set, so a row that
+   * was changed several times since our last sync is only returned, in its
+   * final state, by the change set holding its current version.
+   * <p/>
+   * This will set the tableResult SyncOutcome if there is a non-recoverable error of
+   * some sort. If the server does not provide change sets, or there are too many
+   * of them, nothing is applied and null is returned so that the caller pages
+   * through getUpdates instead.
+   *
+   * @param tableResource
+   * @param te
+   * @param orderedColumns
+   * @param fileAttachmentColumns
+   * @return the dataETag that the table reached, or null if nothing was applied.
+   * @throws IOException
+   * @throws ServicesAvailabilityException
+   */
+  private String updateLocalRowsFromServerChangeSets(TableResource tableResource,
+      TableDefinitionEntry te, OrderedColumns orderedColumns,
+      ArrayList<ColumnDefinition> fileAttachmentColumns)
+      throws IOException, ServicesAvailabilityException {
+
+    String tableId = te.getTableId();
+    TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
+
+    ChangeSetList changeSetList;
+    try {
+      changeSetList = sc.getSynchronizer().getChangeSets(tableResource, te.getLastDataETag());
+    } catch (Exception e) {
+      exception("synchronizeTable - retrieving change sets from server", tableId, e,
+          tableLevelResult);
+      return null;
+    }
+    if (changeSetList == null) {
+      // older server -- fall back to paging through the updates
+      getLogger().i(TAG, "updateLocalRowsFromServerChangeSets server does not provide change "
+          + "sets for " + tableId + " -- using getUpdates");
+      return null;
+    }
+
+    List<String> changeSets = changeSetList.getChangeSets();
+    if (changeSets == null || changeSets.isEmpty()) {
+      // no changes since our last sync
+      return (changeSetList.getDataETag() != null) ? changeSetList.getDataETag()
+          : te.getLastDataETag();
+    }
+
+    if (changeSets.size() > maxChangeSetsForChangeSetPull) {
+      // a request per change set would cost more than paging through the updates
+      getLogger().i(TAG, "updateLocalRowsFromServerChangeSets " + changeSets.size()
+          + " change sets for " + tableId + " -- using getUpdates");
+      return null;
+    }
+
+    Set<String> appliedChangeSets = getAppliedChangeSets(tableId);
+
+    setUpdateNotificationBounds(minPercentage, maxPercentage, changeSets.size());
+
+    for (String changeSetDataETag : changeSets) {
+      if (appliedChangeSets.contains(changeSetDataETag)) {
+        getLogger().i(TAG, "updateLocalRowsFromServerChangeSets skipping already-applied "
+            + "change set " + changeSetDataETag + " for " + tableId);
+        publishUpdateNotification(R.string.sync_getting_changed_rows_on_server, tableId);
+        continue;
+      }
+
+      publishUpdateNotification(R.string.sync_getting_changed_rows_on_server, tableId);
+
+      // apply each page as it arrives, so that memory use does not grow with
+      // the size of the change set. A row repeated on a later page is applied
+      // again, in the state that page returned.
+      String websafeResumeCursor = null;
+      for (;;) {
+        RowResourceList page;
+        try {
+          page = sc.getSynchronizer().getChangeSet(tableResource, changeSetDataETag, true,
+              websafeResumeCursor);
+        } catch (Exception e) {
+          exception("synchronizeTable - pulling change set down from server", tableId, e,
+              tableLevelResult);
+          return null;
+        }
+
+        if (page.getRows() != null) {
+          // the rows of one batch are keyed by rowId; split the page where a
+          // row repeats so that both of its states are applied, in order
+          Map<String, RowResource> batch = new LinkedHashMap<String, RowResource>();
+          for (RowResource row : page.getRows()) {
+            if (batch.size() >= rowApplyBatchSize || batch.containsKey(row.getRowId())) {
+              updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
+                  fileAttachmentColumns, new ArrayList<RowResource>(batch.values()));
+              batch.clear();
+              if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
+                return null;
+              }
+            }
+            batch.put(row.getRowId(), row);
+          }
+          updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
+              fileAttachmentColumns, new ArrayList<RowResource>(batch.values()));
+          if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
+            return null;
+          }
+        }
+
+        if (page.isHasMoreResults()) {
+          websafeResumeCursor = page.getWebSafeResumeCursor();
+        } else {
+          break;
+        }
+      }
+
+      // record that this change set is now reflected in the local table
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        ContentValues cv = new ContentValues();
+        cv.put(TABLE_ID_COLUMN, tableId);
+        cv.put(DATA_ETAG_COLUMN, changeSetDataETag);
+        sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db,
+            APPLIED_CHANGE_SETS_TABLE, cv);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    // the change sets are listed in the order they were applied on the server,
+    // so the last of them holds the table's current dataETag
+    return (changeSetList.getDataETag() != null) ? changeSetList.getDataETag()
+        : changeSets.get(changeSets.size() - 1);
+  }
+
   /**
    * Synchronize the table data rows.
    * <p/>
@@ -355,16 +572,42 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
       String lastDataETag = null;
 
-      {
+      SyncJournal journal = sc.getSyncJournal();
+      if (journal != null) {
+        journal.beginPhase(tableId, SyncJournal.Phase.PULL, tableResource.getSchemaETag(),
+            te.getLastDataETag());
+      }
+
+      if (useChangeSetPull && te.getLastDataETag() != null && tableResource.getDataETag() != null) {
+        lastDataETag = updateLocalRowsFromServerChangeSets(tableResource, te, orderedColumns,
+            fileAttachmentColumns);
+        if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
+          // something went wrong -- do not proceed.
+          return;
+        }
+      }
+
+      if (lastDataETag == null) {
         String firstDataETag = null;
         String websafeResumeCursor = null;
 
         int serverFetchNumber = -1;
 
+        if (journal != null) {
+          // resume a page series that an interrupted sync did not finish
+          String[] resumePoint = journal.getPullResumePoint(tableId,
+              tableResource.getSchemaETag(), te.getLastDataETag());
+          if (resumePoint != null) {
+            getLogger().i(TAG, "updateLocalRowsFromServer resuming pull of " + tableId);
+            firstDataETag = resumePoint[0];
+            websafeResumeCursor = resumePoint[1];
+          }
+        }
+
         // may set tableResult syncOutcome
         for (; ; ) {
           ++serverFetchNumber;
-          RowResourceList rows = null;
+          RowResourceList page = null;
 
           // By default, the server uses a 2000-row limit in what it returns.
           // if the table has more than 200 columns, reduce this to 200 rows.
@@ -377,26 +620,51 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
           publishUpdateNotification(R.string.sync_getting_changed_rows_on_server, tableId, baseForPhase);
 
+          RowResourceListStream rowStream = null;
           try {
-            rows = sc.getSynchronizer()
-                .getUpdates(tableResource, te.getLastDataETag(), websafeResumeCursor, fetchLimit);
-            if (firstDataETag == null) {
-              firstDataETag = rows.getDataETag();
-            }
-            lastDataETag = rows.getDataETag();
+            rowStream = sc.getSynchronizer()
+                .getUpdatesStream(tableResource, te.getLastDataETag(), websafeResumeCursor,
+                    fetchLimit);
           } catch (Exception e) {
             exception("synchronizeTable -  pulling data down from server", tableId, e,
                 tableLevelResult);
             return;
           }
 
-          updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
-              fileAttachmentColumns, rows);
+          try {
+            // decode the server rows one at a time and apply them in batches
+            // so that we never hold the entire page in memory.
+            List<RowResource> batch = new ArrayList<RowResource>();
+            for (;;) {
+              RowResource serverRow = rowStream.nextRow();
+              if (serverRow != null) {
+                batch.add(serverRow);
+              }
+              if (!batch.isEmpty() &&
+                  (serverRow == null || batch.size() >= rowApplyBatchSize)) {
+                updateLocalRowsFromServerRowResourceList(tableResource, orderedColumns,
+                    fileAttachmentColumns, batch);
+                batch.clear();
+
+                if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
+                  // something went wrong -- do not proceed.
+                  return;
+                }
+              }
+              if (serverRow == null) {
+                break;
+              }
+            }
 
-          if (tableLevelResult.getSyncOutcome() != SyncOutcome.WORKING) {
-            // something went wrong -- do not proceed.
-            return;
+            page = rowStream.getPageMetadata();
+          } finally {
+            rowStream.close();
+          }
+
+          if (firstDataETag == null) {
+            firstDataETag = page.getDataETag();
           }
+          lastDataETag = page.getDataETag();
 
           if ( lastDataETag == null ) {
             // there were no rows for this table on the server
@@ -407,13 +675,19 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
             // until we have no updates pending.
             websafeResumeCursor = null;
             firstDataETag = null;
-          } else if (rows.isHasMoreResults()) {
-            websafeResumeCursor = rows.getWebSafeResumeCursor();
+          } else if (page.isHasMoreResults()) {
+            websafeResumeCursor = page.getWebSafeResumeCursor();
           } else {
             // there were no intervening updates by other clients.
             // success -- exit the update loop...
             break;
           }
+
+          if (journal != null) {
+            // the rows of this page are applied; record where to continue
+            journal.recordPulledPage(tableId, tableResource.getSchemaETag(),
+                te.getLastDataETag(), firstDataETag, websafeResumeCursor);
+          }
         }
       }
 
@@ -441,6 +715,10 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
           te.setSchemaETag(tableResource.getSchemaETag());
           te.setLastDataETag(lastDataETag);
           tableResource.setDataETag(lastDataETag);
+          // the individually-applied change sets are now covered by the dataETag
+          sc.getDatabaseService().deleteLocalOnlyRows(sc.getAppName(), db,
+              APPLIED_CHANGE_SETS_TABLE, TABLE_ID_COLUMN + " = ?",
+              new BindArgs(new Object[] { tableId }));
         } finally {
           sc.releaseDatabase(db);
           db = null;
@@ -431,6 +431,7 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
               // process outcomes...
               processRowOutcomes(tableResource, tableLevelResult,
                   orderedColumns, fileAttachmentColumns, segmentAlter, outcomes.getRows());
+              sc.getSyncTelemetry().addRows(segmentAlter.size());
 
               publishUpdateNotification(R.string.sync_updating_data_etag_after_push_to_server,
                   tableId, -1.0);
@@ -457,6 +458,11 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
                 }
               }
 
+              if (sc.getSyncJournal() != null) {
+                sc.getSyncJournal().recordPushedBatch(tableId, tableResource.getSchemaETag(),
+                    outcomes.getDataETag());
+              }
+
               // process next segment...
               sendOffset = max;
             }
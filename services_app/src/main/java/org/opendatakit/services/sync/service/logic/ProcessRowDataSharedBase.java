@@ -28,6 +28,12 @@ public abstract class ProcessRowDataSharedBase implements IProcessRowData {
   int maxColumnsToUseLargeFetchLimit = 80;
   int smallFetchLimit = 200;
   int largeFetchLimit = 1000;
+  // number of streamed server rows to accumulate before applying them to the database
+  int rowApplyBatchSize = 200;
+  // pull server changes change set by change set when we have previously synced the table
+  boolean useChangeSetPull = true;
+  // above this many outstanding change sets, fall back to paging through getUpdates
+  int maxChangeSetsForChangeSetPull = 100;
 
   ProcessRowDataSharedBase(SyncExecutionContext sharedContext) {
     this.sc = sharedContext;
@@ -102,6 +102,11 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
 
     publishUpdateNotification(R.string.sync_count_attachment_changes, tableId, minPercentage);
 
+    if (sc.getSyncJournal() != null) {
+      sc.getSyncJournal().beginPhase(tableId, SyncJournal.Phase.ATTACHMENTS,
+          tableResource.getSchemaETag(), te.getLastDataETag());
+    }
+
     String local_id_table = "L__" + tableId;
 
     // figure out how many rows there are to sync.
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One page of server row changes that is consumed a row at a time.
+ * <p>
+ * Rows are handed out in the order the server returned them. The page-level
+ * values (dataETag, resume cursor, hasMoreResults) are only guaranteed to be
+ * available once all the rows have been consumed, since the server is free to
+ * emit them after the rows array.
+ * <p>
+ * The stream must always be closed, whether or not it was fully consumed.
+ */
+public interface RowResourceListStream extends Closeable {
+
+  /**
+   * @return the next row in the page, or null if there are no more rows.
+   * @throws IOException
+   */
+  RowResource nextRow() throws IOException;
+
+  /**
+   * Skips any unconsumed rows and returns the page-level values of the
+   * RowResourceList. Callers must not rely on the rows list of the returned
+   * object; it may not be populated.
+   *
+   * @return the RowResourceList without its rows.
+   * @throws IOException
+   */
+  RowResourceList getPageMetadata() throws IOException;
+}
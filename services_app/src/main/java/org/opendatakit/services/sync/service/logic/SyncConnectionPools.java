@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import org.opendatakit.httpclientandroidlib.config.SocketConfig;
+import org.opendatakit.httpclientandroidlib.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One HTTP connection pool per server, shared by the syncs of all the apps
+ * that target that server, so that back-to-back syncs of several apps reuse
+ * the keep-alive connections (and TLS sessions) of the previous ones.
+ * <p>
+ * The pools only hold connections; authentication and cookie state is kept in
+ * the HttpContext of each {@link HttpRestProtocolWrapper}.
+ */
+final class SyncConnectionPools {
+
+  /**
+   * Connections per server; a sync uses one at a time, and at most
+   * SyncScheduler.MAX_CONCURRENT_SYNCS syncs run at once.
+   */
+  static final int MAX_CONNECTIONS_PER_SERVER = 4;
+
+  /**
+   * Keep-alive connections idle for longer than this are closed.
+   */
+  static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 60000L;
+
+  private static final Map<String, PoolingHttpClientConnectionManager> pools =
+      new HashMap<String, PoolingHttpClientConnectionManager>();
+
+  private SyncConnectionPools() {
+  }
+
+  /**
+   * @param uri any URI on the server
+   * @return the key of the pool of the server: scheme://host:port
+   */
+  static String getServerKey(URI uri) {
+    String scheme = uri.getScheme().toLowerCase(Locale.US);
+    int port = uri.getPort();
+    if (port == -1) {
+      port = "https".equals(scheme) ? 443 : 80;
+    }
+    return scheme + "://" + uri.getHost().toLowerCase(Locale.US) + ":" + port;
+  }
+
+  /**
+   * Get the pool of the server of uri, creating it if needed. Connections
+   * that have been idle for too long are closed first.
+   * <p>
+   * Clients built on the pool must be marked with
+   * HttpClientBuilder.setConnectionManagerShared(true), so that closing them
+   * does not shut the pool down.
+   *
+   * @param uri
+   * @param socketConfig used for new connections
+   * @return
+   */
+  static synchronized PoolingHttpClientConnectionManager getPool(URI uri,
+      SocketConfig socketConfig) {
+    String key = getServerKey(uri);
+    PoolingHttpClientConnectionManager pool = pools.get(key);
+    if (pool == null) {
+      pool = new PoolingHttpClientConnectionManager();
+      pool.setMaxTotal(MAX_CONNECTIONS_PER_SERVER);
+      pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_SERVER);
+      pools.put(key, pool);
+    } else {
+      pool.closeExpiredConnections();
+      pool.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    pool.setDefaultSocketConfig(socketConfig);
+    return pool;
+  }
+
+  /**
+   * Close all the connections of all the pools and discard the pools. Pools
+   * are created anew if a sync starts afterwards.
+   */
+  static synchronized void shutdownAll() {
+    for (PoolingHttpClientConnectionManager pool : pools.values()) {
+      pool.shutdown();
+    }
+    pools.clear();
+  }
+}
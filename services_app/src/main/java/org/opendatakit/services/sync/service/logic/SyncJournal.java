@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import android.content.ContentValues;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.ColumnList;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Write-ahead journal of the row-data sync of each table. Progress is recorded
+ * as soon as it is durable locally so that a sync that is interrupted (app
+ * killed, sync thread death, loss of power) resumes where it stopped rather
+ * than from the table's last dataETag:
+ * <ul>
+ * <li>the phase the table was in (pulling, pushing, syncing attachments)</li>
+ * <li>the resume cursor of a paged pull of server changes, and the dataETag
+ * of the page series it belongs to</li>
+ * <li>that row batches were pushed to the server, advancing the dataETag</li>
+ * <li>the attachment downloads that have completed</li>
+ * </ul>
+ * The journal entry of a table is discarded once its data sync completes.
+ * Entries are only honored if they were recorded against the same server,
+ * user, schemaETag and dataETag as the current sync.
+ */
+public class SyncJournal {
+
+  /**
+   * Row-data sync phases of a table.
+   */
+  public enum Phase {
+    PULL, PUSH, ATTACHMENTS
+  }
+
+  /**
+   * Journal state of one table.
+   */
+  static final class TableEntry {
+    final String tableId;
+    Phase phase;
+    String schemaETag;
+    // the table's lastDataETag when the phase started or was last advanced
+    String baseDataETag;
+    // first dataETag of the series of pages being pulled
+    String pageDataETag;
+    String resumeCursor;
+
+    TableEntry(String tableId) {
+      this.tableId = tableId;
+    }
+  }
+
+  /**
+   * A completed download of a row-level attachment.
+   */
+  static final class AttachmentEntry {
+    final String tableId;
+    final String rowId;
+    final String fileName;
+    // md5 reported by the server manifest
+    final String md5;
+    final long length;
+    final long lastModified;
+
+    AttachmentEntry(String tableId, String rowId, String fileName, String md5, long length,
+        long lastModified) {
+      this.tableId = tableId;
+      this.rowId = rowId;
+      this.fileName = fileName;
+      this.md5 = md5;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * Persistence of the journal entries.
+   */
+  interface Store {
+    List<TableEntry> loadTables(String serverKey) throws ServicesAvailabilityException;
+
+    List<AttachmentEntry> loadAttachments(String serverKey) throws ServicesAvailabilityException;
+
+    void saveTable(String serverKey, TableEntry entry) throws ServicesAvailabilityException;
+
+    void saveAttachment(String serverKey, AttachmentEntry entry)
+        throws ServicesAvailabilityException;
+
+    void deleteTable(String tableId) throws ServicesAvailabilityException;
+  }
+
+  private final Store store;
+  private final String serverKey;
+  private final Map<String, TableEntry> tables = new HashMap<String, TableEntry>();
+  private final Map<String, AttachmentEntry> attachments = new HashMap<String, AttachmentEntry>();
+
+  SyncJournal(Store store, String serverKey) throws ServicesAvailabilityException {
+    this.store = store;
+    this.serverKey = serverKey;
+    for (TableEntry entry : store.loadTables(serverKey)) {
+      tables.put(entry.tableId, entry);
+    }
+    for (AttachmentEntry entry : store.loadAttachments(serverKey)) {
+      attachments.put(attachmentKey(entry.tableId, entry.rowId, entry.fileName), entry);
+    }
+  }
+
+  /**
+   * Open the journal persisted in the database of this sync's appName.
+   *
+   * @param sc
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  public static SyncJournal open(SyncExecutionContext sc) throws ServicesAvailabilityException {
+    String serverKey = sc.getAggregateUri() + "|" + sc.getAuthenticationType() + "|"
+        + sc.getUsername();
+    return new SyncJournal(new DatabaseStore(sc), serverKey);
+  }
+
+  private static String attachmentKey(String tableId, String rowId, String fileName) {
+    return tableId + "/" + rowId + "/" + fileName;
+  }
+
+  private TableEntry entryFor(String tableId) {
+    TableEntry entry = tables.get(tableId);
+    if (entry == null) {
+      entry = new TableEntry(tableId);
+      tables.put(tableId, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * @return the tableIds whose last data sync did not complete.
+   */
+  public synchronized Set<String> getInterruptedTables() {
+    return Collections.unmodifiableSet(new TreeSet<String>(tables.keySet()));
+  }
+
+  /**
+   * @param tableId
+   * @return the phase the table was in when its data sync was interrupted, or null.
+   */
+  public synchronized Phase getInterruptedPhase(String tableId) {
+    TableEntry entry = tables.get(tableId);
+    return (entry == null) ? null : entry.phase;
+  }
+
+  /**
+   * Record that the table has entered the given phase.
+   *
+   * @param tableId
+   * @param phase
+   * @param schemaETag
+   * @param dataETag   the table's current lastDataETag
+   * @throws ServicesAvailabilityException
+   */
+  public synchronized void beginPhase(String tableId, Phase phase, String schemaETag,
+      String dataETag) throws ServicesAvailabilityException {
+    TableEntry entry = entryFor(tableId);
+    boolean sameBase = phase == entry.phase && eq(schemaETag, entry.schemaETag) &&
+        eq(dataETag, entry.baseDataETag);
+    if (sameBase) {
+      // resuming this phase -- keep the cursor
+      return;
+    }
+    entry.phase = phase;
+    entry.schemaETag = schemaETag;
+    entry.baseDataETag = dataETag;
+    entry.pageDataETag = null;
+    entry.resumeCursor = null;
+    store.saveTable(serverKey, entry);
+  }
+
+  /**
+   * The point at which to resume a paged pull of server changes.
+   *
+   * @param tableId
+   * @param schemaETag
+   * @param dataETag   the table's current lastDataETag
+   * @return { pageDataETag, resumeCursor } or null if the pull should start from
+   * the first page.
+   */
+  public synchronized String[] getPullResumePoint(String tableId, String schemaETag,
+      String dataETag) {
+    TableEntry entry = tables.get(tableId);
+    if (entry == null || entry.phase != Phase.PULL || entry.resumeCursor == null ||
+        entry.pageDataETag == null || !eq(schemaETag, entry.schemaETag) ||
+        !eq(dataETag, entry.baseDataETag)) {
+      return null;
+    }
+    return new String[] { entry.pageDataETag, entry.resumeCursor };
+  }
+
+  /**
+   * Record that a page of server changes has been applied to the local table.
+   *
+   * @param tableId
+   * @param schemaETag
+   * @param dataETag     the table's lastDataETag (unchanged during the pull)
+   * @param pageDataETag dataETag of the first page of the series
+   * @param resumeCursor cursor of the next page, or null to restart the series
+   * @throws ServicesAvailabilityException
+   */
+  public synchronized void recordPulledPage(String tableId, String schemaETag, String dataETag,
+      String pageDataETag, String resumeCursor) throws ServicesAvailabilityException {
+    TableEntry entry = entryFor(tableId);
+    entry.phase = Phase.PULL;
+    entry.schemaETag = schemaETag;
+    entry.baseDataETag = dataETag;
+    entry.pageDataETag = (resumeCursor == null) ? null : pageDataETag;
+    entry.resumeCursor = resumeCursor;
+    store.saveTable(serverKey, entry);
+  }
+
+  /**
+   * Record that a batch of row changes has been accepted by the server and the
+   * table's dataETag advanced accordingly.
+   *
+   * @param tableId
+   * @param schemaETag
+   * @param dataETag the table's new lastDataETag
+   * @throws ServicesAvailabilityException
+   */
+  public synchronized void recordPushedBatch(String tableId, String schemaETag, String dataETag)
+      throws ServicesAvailabilityException {
+    TableEntry entry = entryFor(tableId);
+    entry.phase = Phase.PUSH;
+    entry.schemaETag = schemaETag;
+    entry.baseDataETag = dataETag;
+    entry.pageDataETag = null;
+    entry.resumeCursor = null;
+    store.saveTable(serverKey, entry);
+  }
+
+  /**
+   * Record that a row-level attachment was downloaded from the server.
+   * <p>
+   * Uploads are not recorded: the server reports no md5 for them at the time
+   * of the upload, and the length and modification time of the local file are
+   * not enough to tell that the server holds the same content.
+   *
+   * @param tableId
+   * @param rowId
+   * @param fileName  the uriFragment of the attachment
+   * @param localFile
+   * @param md5       md5 reported by the server manifest
+   * @throws ServicesAvailabilityException
+   */
+  public synchronized void recordAttachmentTransfer(String tableId, String rowId,
+      String fileName, File localFile, String md5) throws ServicesAvailabilityException {
+    if (md5 == null || !localFile.exists()) {
+      return;
+    }
+    AttachmentEntry entry = new AttachmentEntry(tableId, rowId, fileName, md5,
+        localFile.length(), localFile.lastModified());
+    attachments.put(attachmentKey(tableId, rowId, fileName), entry);
+    store.saveAttachment(serverKey, entry);
+  }
+
+  /**
+   * Determine whether the local file is known to match the server's copy
+   * because we downloaded it, with the md5 the server still reports, during
+   * an earlier, interrupted, sync and it has not changed since. This avoids
+   * recomputing its md5 hash.
+   *
+   * @param tableId
+   * @param rowId
+   * @param fileName
+   * @param localFile
+   * @param serverMd5 md5 from the server manifest
+   * @return
+   */
+  public synchronized boolean isAttachmentTransferred(String tableId, String rowId,
+      String fileName, File localFile, String serverMd5) {
+    AttachmentEntry entry = attachments.get(attachmentKey(tableId, rowId, fileName));
+    return entry != null && entry.md5.equals(serverMd5) && localFile.exists() &&
+        localFile.length() == entry.length && localFile.lastModified() == entry.lastModified;
+  }
+
+  /**
+   * Discard the journal of a table whose data sync has completed.
+   *
+   * @param tableId
+   * @throws ServicesAvailabilityException
+   */
+  public synchronized void tableCompleted(String tableId) throws ServicesAvailabilityException {
+    boolean hadAttachments = false;
+    for (Iterator<AttachmentEntry> it = attachments.values().iterator(); it.hasNext(); ) {
+      if (it.next().tableId.equals(tableId)) {
+        it.remove();
+        hadAttachments = true;
+      }
+    }
+    if (tables.remove(tableId) != null || hadAttachments) {
+      store.deleteTable(tableId);
+    }
+  }
+
+  private static boolean eq(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /**
+   * Journal persisted in two local-only tables of the app's database.
+   * <p>
+   * Every save is a single insert or update statement, and so is atomic: the
+   * entries that have a row (those loaded, and those inserted since) are
+   * tracked so that a later save of the same entry updates that row in place.
+   * The names begin with L___ so that they cannot collide with the L__tableId
+   * tables of the sync.
+   */
+  private static final class DatabaseStore implements Store {
+
+    private static final String TABLES_JOURNAL = "L___sync_journal";
+    private static final String ATTACHMENTS_JOURNAL = "L___sync_journal_attachments";
+
+    private static final String SERVER_KEY = "serverKey";
+    private static final String TABLE_ID = "tableId";
+    private static final String PHASE = "phase";
+    private static final String SCHEMA_ETAG = "schemaETag";
+    private static final String BASE_DATA_ETAG = "baseDataETag";
+    private static final String PAGE_DATA_ETAG = "pageDataETag";
+    private static final String RESUME_CURSOR = "resumeCursor";
+    private static final String ROW_ID = "rowId";
+    private static final String FILE_NAME = "fileName";
+    private static final String MD5 = "md5";
+    private static final String LENGTH = "length";
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private final SyncExecutionContext sc;
+    // tableIds and attachment keys that have a row in the journal tables
+    private final Set<String> savedTables = new HashSet<String>();
+    private final Set<String> savedAttachments = new HashSet<String>();
+
+    DatabaseStore(SyncExecutionContext sc) throws ServicesAvailabilityException {
+      this.sc = sc;
+
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        // these are no-ops if the tables already exist
+        sc.getDatabaseService().createLocalOnlyTableWithColumns(sc.getAppName(), db,
+            TABLES_JOURNAL, columns(new String[] { SERVER_KEY, TABLE_ID, PHASE, SCHEMA_ETAG,
+                BASE_DATA_ETAG, PAGE_DATA_ETAG, RESUME_CURSOR }, new String[0]));
+        sc.getDatabaseService().createLocalOnlyTableWithColumns(sc.getAppName(), db,
+            ATTACHMENTS_JOURNAL, columns(new String[] { SERVER_KEY, TABLE_ID, ROW_ID, FILE_NAME,
+                MD5 }, new String[] { LENGTH, LAST_MODIFIED }));
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    private static ColumnList columns(String[] stringColumns, String[] integerColumns) {
+      List<Column> columns = new ArrayList<Column>();
+      for (String name : stringColumns) {
+        columns.add(new Column(name, name, ElementDataType.string.name(), "[]"));
+      }
+      for (String name : integerColumns) {
+        columns.add(new Column(name, name, ElementDataType.integer.name(), "[]"));
+      }
+      return new ColumnList(columns);
+    }
+
+    private BaseTable query(String table, String serverKey) throws ServicesAvailabilityException {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        // discard anything recorded against a different server or user
+        sc.getDatabaseService().deleteLocalOnlyRows(sc.getAppName(), db, table,
+            SERVER_KEY + " IS NULL OR " + SERVER_KEY + " != ?",
+            new BindArgs(new Object[] { serverKey }));
+        return sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+            "SELECT * FROM " + table, null, null, null);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    private static Long getLong(Row row, String key) {
+      String value = row.getRawStringByKey(key);
+      return (value == null) ? null : Long.valueOf(value);
+    }
+
+    @Override
+    public List<TableEntry> loadTables(String serverKey) throws ServicesAvailabilityException {
+      List<TableEntry> entries = new ArrayList<TableEntry>();
+      BaseTable bt = query(TABLES_JOURNAL, serverKey);
+      for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+        Row row = bt.getRowAtIndex(i);
+        TableEntry entry = new TableEntry(row.getRawStringByKey(TABLE_ID));
+        String phase = row.getRawStringByKey(PHASE);
+        entry.phase = (phase == null) ? null : Phase.valueOf(phase);
+        entry.schemaETag = row.getRawStringByKey(SCHEMA_ETAG);
+        entry.baseDataETag = row.getRawStringByKey(BASE_DATA_ETAG);
+        entry.pageDataETag = row.getRawStringByKey(PAGE_DATA_ETAG);
+        entry.resumeCursor = row.getRawStringByKey(RESUME_CURSOR);
+        savedTables.add(entry.tableId);
+        entries.add(entry);
+      }
+      return entries;
+    }
+
+    @Override
+    public List<AttachmentEntry> loadAttachments(String serverKey)
+        throws ServicesAvailabilityException {
+      List<AttachmentEntry> entries = new ArrayList<AttachmentEntry>();
+      BaseTable bt = query(ATTACHMENTS_JOURNAL, serverKey);
+      for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+        Row row = bt.getRowAtIndex(i);
+        String tableId = row.getRawStringByKey(TABLE_ID);
+        String rowId = row.getRawStringByKey(ROW_ID);
+        String fileName = row.getRawStringByKey(FILE_NAME);
+        String md5 = row.getRawStringByKey(MD5);
+        Long length = getLong(row, LENGTH);
+        Long lastModified = getLong(row, LAST_MODIFIED);
+        savedAttachments.add(attachmentKey(tableId, rowId, fileName));
+        if (md5 == null || length == null || lastModified == null) {
+          continue;
+        }
+        entries.add(new AttachmentEntry(tableId, rowId, fileName, md5, length, lastModified));
+      }
+      return entries;
+    }
+
+    @Override
+    public void saveTable(String serverKey, TableEntry entry)
+        throws ServicesAvailabilityException {
+      ContentValues cv = new ContentValues();
+      cv.put(SERVER_KEY, serverKey);
+      cv.put(TABLE_ID, entry.tableId);
+      cv.put(PHASE, (entry.phase == null) ? null : entry.phase.name());
+      cv.put(SCHEMA_ETAG, entry.schemaETag);
+      cv.put(BASE_DATA_ETAG, entry.baseDataETag);
+      cv.put(PAGE_DATA_ETAG, entry.pageDataETag);
+      cv.put(RESUME_CURSOR, entry.resumeCursor);
+
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        if (savedTables.contains(entry.tableId)) {
+          sc.getDatabaseService().updateLocalOnlyRows(sc.getAppName(), db, TABLES_JOURNAL, cv,
+              TABLE_ID + " = ?", new BindArgs(new Object[] { entry.tableId }));
+        } else {
+          sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, TABLES_JOURNAL, cv);
+          savedTables.add(entry.tableId);
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    @Override
+    public void saveAttachment(String serverKey, AttachmentEntry entry)
+        throws ServicesAvailabilityException {
+      ContentValues cv = new ContentValues();
+      cv.put(SERVER_KEY, serverKey);
+      cv.put(TABLE_ID, entry.tableId);
+      cv.put(ROW_ID, entry.rowId);
+      cv.put(FILE_NAME, entry.fileName);
+      cv.put(MD5, entry.md5);
+      cv.put(LENGTH, entry.length);
+      cv.put(LAST_MODIFIED, entry.lastModified);
+
+      String key = attachmentKey(entry.tableId, entry.rowId, entry.fileName);
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        if (savedAttachments.contains(key)) {
+          sc.getDatabaseService().updateLocalOnlyRows(sc.getAppName(), db, ATTACHMENTS_JOURNAL,
+              cv, TABLE_ID + " = ? AND " + ROW_ID + " = ? AND " + FILE_NAME + " = ?",
+              new BindArgs(new Object[] { entry.tableId, entry.rowId, entry.fileName }));
+        } else {
+          sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, ATTACHMENTS_JOURNAL,
+              cv);
+          savedAttachments.add(key);
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    @Override
+    public void deleteTable(String tableId) throws ServicesAvailabilityException {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        BindArgs bindArgs = new BindArgs(new Object[] { tableId });
+        sc.getDatabaseService().deleteLocalOnlyRows(sc.getAppName(), db, TABLES_JOURNAL,
+            TABLE_ID + " = ?", bindArgs);
+        sc.getDatabaseService().deleteLocalOnlyRows(sc.getAppName(), db, ATTACHMENTS_JOURNAL,
+            TABLE_ID + " = ?", bindArgs);
+        savedTables.remove(tableId);
+        for (Iterator<String> it = savedAttachments.iterator(); it.hasNext(); ) {
+          if (it.next().startsWith(tableId + "/")) {
+            it.remove();
+          }
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+  }
+}
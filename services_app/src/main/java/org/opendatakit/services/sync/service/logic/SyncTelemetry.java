@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import android.content.ContentValues;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.ColumnList;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.services.database.LatencyHistogram;
+import org.opendatakit.services.sync.service.SyncExecutionContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing and throughput of one sync, per table and per phase of its sync:
+ * <ul>
+ * <li>the time spent in the phase</li>
+ * <li>the rows pulled, placed in conflict or pushed, and the files transferred</li>
+ * <li>the request and response body bytes, the number of requests and the
+ * latency of those requests (to the response headers)</li>
+ * <li>the number of retried transfers</li>
+ * </ul>
+ * Phases nest (e.g., conflict processing happens while pulling); time is
+ * charged to the innermost phase only, so that the times of the phases of a
+ * table add up to the time spent on that table. Work that is not specific to
+ * a table (e.g., the app-level files) is charged to {@link #APP_LEVEL}.
+ * HTTP requests issued outside of any phase are not recorded.
+ * <p>
+ * Response bytes are counted as they are read, i.e., after any gzip content
+ * encoding has been removed; request bytes are counted as they are written,
+ * i.e., after any compression.
+ */
+public final class SyncTelemetry {
+
+  /**
+   * The tableId under which work that is not specific to a table is recorded.
+   */
+  public static final String APP_LEVEL = "";
+
+  /**
+   * Phases of the sync of a table.
+   */
+  public enum Phase {
+    /**
+     * app-level and table-level manifests, files and table definitions
+     */
+    MANIFESTS,
+    PULL,
+    /**
+     * reconciling pulled rows with the local rows that they change
+     */
+    CONFLICTS,
+    PUSH,
+    ATTACHMENTS
+  }
+
+  /**
+   * Source of time; replaced in tests.
+   */
+  interface Ticker {
+    long nanoTime();
+  }
+
+  private static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * The statistics of one phase of one table, or of one phase across all tables.
+   */
+  public static final class PhaseStats {
+    final AtomicLong elapsedNanos = new AtomicLong();
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong files = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final LatencyHistogram httpLatency = new LatencyHistogram();
+
+    public long getElapsedMillis() {
+      return elapsedNanos.get() / 1000000L;
+    }
+
+    public long getRows() {
+      return rows.get();
+    }
+
+    public long getFiles() {
+      return files.get();
+    }
+
+    public long getBytesSent() {
+      return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+      return bytesReceived.get();
+    }
+
+    public long getRequests() {
+      return httpLatency.getTotalCount();
+    }
+
+    public long getRetries() {
+      return retries.get();
+    }
+
+    public LatencyHistogram getHttpLatency() {
+      return httpLatency;
+    }
+
+    /**
+     * @return the statistics as reported to the server
+     */
+    public Map<String, Object> toMap() {
+      Map<String, Object> map = new TreeMap<String, Object>();
+      map.put("elapsedMillis", getElapsedMillis());
+      map.put("rows", getRows());
+      map.put("files", getFiles());
+      map.put("bytesSent", getBytesSent());
+      map.put("bytesReceived", getBytesReceived());
+      map.put("requests", getRequests());
+      map.put("retries", getRetries());
+      map.put("httpLatencyMeanMillis", httpLatency.getMeanMicros() / 1000L);
+      map.put("httpLatencyP90Millis", httpLatency.getValueAtPercentile(90.0) / 1000L);
+      map.put("httpLatencyMaxMillis", httpLatency.getMaxMicros() / 1000L);
+      return map;
+    }
+  }
+
+  /**
+   * An HTTP request issued during a phase. Its bytes are charged to that
+   * phase even if they are read after the phase has ended.
+   */
+  public static final class HttpExchange {
+    private final PhaseStats stats;
+    private final PhaseStats totals;
+    private final long startNanos;
+    private final Ticker ticker;
+
+    HttpExchange(PhaseStats stats, PhaseStats totals, Ticker ticker) {
+      this.stats = stats;
+      this.totals = totals;
+      this.ticker = ticker;
+      this.startNanos = ticker.nanoTime();
+    }
+
+    /**
+     * Record that the response headers have been received.
+     */
+    public void responseReceived() {
+      long micros = (ticker.nanoTime() - startNanos) / 1000L;
+      stats.httpLatency.record(micros);
+      totals.httpLatency.record(micros);
+    }
+
+    public void addBytesSent(long bytes) {
+      stats.bytesSent.addAndGet(bytes);
+      totals.bytesSent.addAndGet(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+      stats.bytesReceived.addAndGet(bytes);
+      totals.bytesReceived.addAndGet(bytes);
+    }
+  }
+
+  /**
+   * Persistence of the telemetry of the last sync.
+   */
+  interface Store {
+    void save(long startTimeMillis, Map<String, Map<Phase, PhaseStats>> tables)
+        throws ServicesAvailabilityException;
+  }
+
+  private static final class ActivePhase {
+    final PhaseStats stats;
+    final PhaseStats totals;
+    long resumedNanos;
+
+    ActivePhase(PhaseStats stats, PhaseStats totals, long resumedNanos) {
+      this.stats = stats;
+      this.totals = totals;
+      this.resumedNanos = resumedNanos;
+    }
+
+    void charge(long nowNanos) {
+      long elapsed = nowNanos - resumedNanos;
+      stats.elapsedNanos.addAndGet(elapsed);
+      totals.elapsedNanos.addAndGet(elapsed);
+      resumedNanos = nowNanos;
+    }
+  }
+
+  private final Ticker ticker;
+  private final long startTimeMillis;
+  private final long startNanos;
+  private final Map<String, Map<Phase, PhaseStats>> tables =
+      new TreeMap<String, Map<Phase, PhaseStats>>();
+  private final Map<Phase, PhaseStats> totals = new EnumMap<Phase, PhaseStats>(Phase.class);
+  private final ArrayDeque<ActivePhase> active = new ArrayDeque<ActivePhase>();
+  private Long endNanos = null;
+
+  public SyncTelemetry() {
+    this(SYSTEM_TICKER);
+  }
+
+  SyncTelemetry(Ticker ticker) {
+    this.ticker = ticker;
+    this.startTimeMillis = System.currentTimeMillis();
+    this.startNanos = ticker.nanoTime();
+    for (Phase phase : Phase.values()) {
+      totals.put(phase, new PhaseStats());
+    }
+  }
+
+  private PhaseStats statsFor(String tableId, Phase phase) {
+    Map<Phase, PhaseStats> phases = tables.get(tableId);
+    if (phases == null) {
+      phases = new EnumMap<Phase, PhaseStats>(Phase.class);
+      tables.put(tableId, phases);
+    }
+    PhaseStats stats = phases.get(phase);
+    if (stats == null) {
+      stats = new PhaseStats();
+      phases.put(phase, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Start charging work to the given table and phase. Every call must be
+   * matched by a call to {@link #endPhase()}, in a finally block.
+   *
+   * @param tableId the table, or {@link #APP_LEVEL}
+   * @param phase
+   */
+  public synchronized void beginPhase(String tableId, Phase phase) {
+    long now = ticker.nanoTime();
+    ActivePhase enclosing = active.peek();
+    if (enclosing != null) {
+      enclosing.charge(now);
+    }
+    active.push(new ActivePhase(statsFor(tableId, phase), totals.get(phase), now));
+  }
+
+  /**
+   * End the innermost phase and resume charging work to the enclosing one.
+   */
+  public synchronized void endPhase() {
+    ActivePhase ending = active.poll();
+    if (ending == null) {
+      throw new IllegalStateException("endPhase() without beginPhase()");
+    }
+    long now = ticker.nanoTime();
+    ending.charge(now);
+    ActivePhase enclosing = active.peek();
+    if (enclosing != null) {
+      enclosing.resumedNanos = now;
+    }
+  }
+
+  /**
+   * @param count rows pulled, placed in conflict or pushed in the current phase
+   */
+  public synchronized void addRows(long count) {
+    ActivePhase current = active.peek();
+    if (current != null) {
+      current.stats.rows.addAndGet(count);
+      current.totals.rows.addAndGet(count);
+    }
+  }
+
+  /**
+   * @param count files uploaded or downloaded in the current phase
+   */
+  public synchronized void addFiles(long count) {
+    ActivePhase current = active.peek();
+    if (current != null) {
+      current.stats.files.addAndGet(count);
+      current.totals.files.addAndGet(count);
+    }
+  }
+
+  /**
+   * Record that a failed or corrupted transfer is being retried.
+   */
+  public synchronized void recordRetry() {
+    ActivePhase current = active.peek();
+    if (current != null) {
+      current.stats.retries.incrementAndGet();
+      current.totals.retries.incrementAndGet();
+    }
+  }
+
+  /**
+   * Record the start of an HTTP request.
+   *
+   * @return the exchange to record the response and bytes against, or null if
+   * no phase is active.
+   */
+  public synchronized HttpExchange beginHttpRequest() {
+    ActivePhase current = active.peek();
+    if (current == null) {
+      return null;
+    }
+    return new HttpExchange(current.stats, current.totals, ticker);
+  }
+
+  /**
+   * Mark the end of the sync; {@link #getElapsedMillis()} stops advancing.
+   */
+  public synchronized void finish() {
+    if (endNanos == null) {
+      endNanos = ticker.nanoTime();
+    }
+  }
+
+  public long getStartTimeMillis() {
+    return startTimeMillis;
+  }
+
+  public synchronized long getElapsedMillis() {
+    long end = (endNanos == null) ? ticker.nanoTime() : endNanos;
+    return (end - startNanos) / 1000000L;
+  }
+
+  /**
+   * @param tableId
+   * @param phase
+   * @return the statistics of that phase of the table, or null if there was no such phase.
+   */
+  public synchronized PhaseStats getPhaseStats(String tableId, Phase phase) {
+    Map<Phase, PhaseStats> phases = tables.get(tableId);
+    return (phases == null) ? null : phases.get(phase);
+  }
+
+  /**
+   * @param phase
+   * @return the statistics of that phase summed across all tables.
+   */
+  public PhaseStats getTotals(Phase phase) {
+    return totals.get(phase);
+  }
+
+  /**
+   * @return the tableIds for which something was recorded, including
+   * {@link #APP_LEVEL} if anything was recorded for the app.
+   */
+  public synchronized List<String> getTableIds() {
+    return new ArrayList<String>(tables.keySet());
+  }
+
+  /**
+   * @param tableId
+   * @return the statistics of each phase of the table, keyed by phase name,
+   * for publishTableSyncStatus().
+   */
+  public synchronized Map<String, Object> getTableStatusMap(String tableId) {
+    Map<String, Object> map = new TreeMap<String, Object>();
+    Map<Phase, PhaseStats> phases = tables.get(tableId);
+    if (phases != null) {
+      for (Map.Entry<Phase, PhaseStats> e : phases.entrySet()) {
+        map.put(e.getKey().name(), e.getValue().toMap());
+      }
+    }
+    return map;
+  }
+
+  /**
+   * @return the totals of each phase across all tables, and the overall elapsed
+   * time, for publishDeviceInformation().
+   */
+  public synchronized Map<String, Object> getSummaryMap() {
+    Map<String, Object> map = new TreeMap<String, Object>();
+    map.put("startTime", startTimeMillis);
+    map.put("elapsedMillis", getElapsedMillis());
+    int tableCount = tables.size() - (tables.containsKey(APP_LEVEL) ? 1 : 0);
+    map.put("tables", tableCount);
+    Map<String, Object> phases = new TreeMap<String, Object>();
+    for (Map.Entry<Phase, PhaseStats> e : totals.entrySet()) {
+      phases.put(e.getKey().name(), e.getValue().toMap());
+    }
+    map.put("phases", phases);
+    return map;
+  }
+
+  /**
+   * Persist the statistics in the app's database, replacing those of the
+   * previous sync.
+   *
+   * @param sc
+   * @throws ServicesAvailabilityException
+   */
+  public void save(SyncExecutionContext sc) throws ServicesAvailabilityException {
+    save(new DatabaseStore(sc));
+  }
+
+  synchronized void save(Store store) throws ServicesAvailabilityException {
+    store.save(startTimeMillis, tables);
+  }
+
+  /**
+   * Telemetry persisted in a local-only table of the app's database, one row
+   * per table and phase.
+   */
+  private static final class DatabaseStore implements Store {
+
+    /**
+     * The local-only tables of the app are named "L__" + tableId. A tableId
+     * must begin with a letter, so the third underscore keeps this table from
+     * colliding with any of them.
+     */
+    private static final String TELEMETRY_TABLE = "L___sync_telemetry";
+
+    private static final String START_TIME = "startTime";
+    private static final String TABLE_ID = "tableId";
+    private static final String PHASE = "phase";
+    private static final String ELAPSED_MILLIS = "elapsedMillis";
+    private static final String ROWS = "rows";
+    private static final String FILES = "files";
+    private static final String BYTES_SENT = "bytesSent";
+    private static final String BYTES_RECEIVED = "bytesReceived";
+    private static final String REQUESTS = "requests";
+    private static final String RETRIES = "retries";
+    private static final String HTTP_LATENCY_MEAN_MICROS = "httpLatencyMeanMicros";
+    private static final String HTTP_LATENCY_P90_MICROS = "httpLatencyP90Micros";
+    private static final String HTTP_LATENCY_MAX_MICROS = "httpLatencyMaxMicros";
+
+    private final SyncExecutionContext sc;
+
+    DatabaseStore(SyncExecutionContext sc) {
+      this.sc = sc;
+    }
+
+    private static ColumnList columns() {
+      List<Column> columns = new ArrayList<Column>();
+      for (String name : new String[] { TABLE_ID, PHASE }) {
+        columns.add(new Column(name, name, ElementDataType.string.name(), "[]"));
+      }
+      for (String name : new String[] { START_TIME, ELAPSED_MILLIS, ROWS, FILES, BYTES_SENT,
+          BYTES_RECEIVED, REQUESTS, RETRIES, HTTP_LATENCY_MEAN_MICROS, HTTP_LATENCY_P90_MICROS,
+          HTTP_LATENCY_MAX_MICROS }) {
+        columns.add(new Column(name, name, ElementDataType.integer.name(), "[]"));
+      }
+      return new ColumnList(columns);
+    }
+
+    @Override
+    public void save(long startTimeMillis, Map<String, Map<Phase, PhaseStats>> tables)
+        throws ServicesAvailabilityException {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        // drop it first -- to discard the previous sync's rows
+        sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, TELEMETRY_TABLE);
+        sc.getDatabaseService().createLocalOnlyTableWithColumns(sc.getAppName(), db,
+            TELEMETRY_TABLE, columns());
+
+        ContentValues cv = new ContentValues();
+        for (Map.Entry<String, Map<Phase, PhaseStats>> table : tables.entrySet()) {
+          for (Map.Entry<Phase, PhaseStats> phase : table.getValue().entrySet()) {
+            PhaseStats s = phase.getValue();
+            cv.clear();
+            cv.put(START_TIME, startTimeMillis);
+            cv.put(TABLE_ID, table.getKey());
+            cv.put(PHASE, phase.getKey().name());
+            cv.put(ELAPSED_MILLIS, s.getElapsedMillis());
+            cv.put(ROWS, s.getRows());
+            cv.put(FILES, s.getFiles());
+            cv.put(BYTES_SENT, s.getBytesSent());
+            cv.put(BYTES_RECEIVED, s.getBytesReceived());
+            cv.put(REQUESTS, s.getRequests());
+            cv.put(RETRIES, s.getRetries());
+            cv.put(HTTP_LATENCY_MEAN_MICROS, s.httpLatency.getMeanMicros());
+            cv.put(HTTP_LATENCY_P90_MICROS, s.httpLatency.getValueAtPercentile(90.0));
+            cv.put(HTTP_LATENCY_MAX_MICROS, s.httpLatency.getMaxMicros());
+            sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, TELEMETRY_TABLE, cv);
+          }
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+  }
+}
@@ -207,7 +207,8 @@ public interface Synchronizer {
    *
    * @param tableResource
    * @param dataETag
-   * @return
+   * @return the changeSets, or null if the server does not provide them (e.g., an
+   * older server)
    * @throws HttpClientWebException
    * @throws IOException
    */
@@ -247,6 +248,25 @@ public interface Synchronizer {
                              String websafeResumeCursor, int fetchLimit)
       throws HttpClientWebException, IOException;
 
+  /**
+   * Retrieve changes in the server state since the last synchronization as a
+   * stream of rows. This is equivalent to {@link #getUpdates} but allows the
+   * rows to be decoded and applied one at a time rather than holding the whole
+   * page in memory. The caller must close the returned stream.
+   *
+   * @param tableResource       the TableResource from the server for a tableId
+   * @param dataETag            tracks the last dataETag successfully pulled into
+   *                            the local data table. Fetches changes after that dataETag.
+   * @param websafeResumeCursor either null or a value used to resume a prior query.
+   * @param fetchLimit          the number of rows that should be returned in one chunk.
+   * @return a stream over the changes on the server since that dataETag.
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  RowResourceListStream getUpdatesStream(TableResource tableResource, String dataETag,
+                                         String websafeResumeCursor, int fetchLimit)
+      throws HttpClientWebException, IOException;
+
   /**
    * Apply inserts, updates and deletes in a collection up to the server.
    * This depends upon knowing the current dataETag of the server.
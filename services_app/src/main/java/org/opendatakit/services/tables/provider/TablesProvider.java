@@ -33,6 +33,7 @@ import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ProviderQueryCache;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -141,6 +142,14 @@ public class TablesProvider extends ContentProvider {
       }
     }
 
+    String cacheKey = ProviderQueryCache.key(uri, projection, where, whereArgs, sortOrder, null);
+    Cursor cached = ProviderQueryCache.get(appName, cacheKey);
+    if (cached != null) {
+      if (getContext() != null) cached.setNotificationUri(getContext().getContentResolver(), uri);
+      return cached;
+    }
+    long generation = ProviderQueryCache.getGeneration(appName);
+
     // Get the database and run the query
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
@@ -156,11 +165,15 @@ public class TablesProvider extends ContentProvider {
         logger.w(t, "Unable to query database for appName: " + appName);
         return null;
       }
+      Cursor result = ProviderQueryCache.put(appName, uri, cacheKey, generation, c);
       // Tell the cursor what uri to watch, so it knows when its source data changes
-      if (getContext() != null) c.setNotificationUri(getContext().getContentResolver(), uri);
-      c.registerDataSetObserver(new InvalidateMonitor(appName, dbHandleName));
-      success = true;
-      return c;
+      if (getContext() != null) result.setNotificationUri(getContext().getContentResolver(), uri);
+      if (result == c) {
+        c.registerDataSetObserver(new InvalidateMonitor(appName, dbHandleName));
+        success = true;
+      }
+      // otherwise, c has been copied and closed and the connection is closed below
+      return result;
     } catch (Exception e) {
       logger.w(t, "Exception while querying database for appName: " + appName);
       logger.printStackTrace(e);
@@ -203,7 +216,7 @@ public class TablesProvider extends ContentProvider {
   }
 
   @Override
-  public synchronized int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+  public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
     throw new UnsupportedOperationException("Not implemented");
   }
 
@@ -23,14 +23,10 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Text;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -47,7 +43,6 @@ import java.util.Properties;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -205,6 +200,18 @@ public class EncryptionUtils {
       appendElementSignatureSource(file.getName() + "::" + md5Hash);
     }
 
+    /**
+     * Append the signature source for a file whose MD5 digest was computed
+     * while it was being encrypted.
+     *
+     * @param file      the unencrypted file
+     * @param md5Digest MD5 digest of its contents
+     */
+    public void appendFileSignatureSource(File file, byte[] md5Digest) {
+      appendElementSignatureSource(
+          file.getName() + "::" + SubmissionFileEncryptor.toNakedMd5Hash(md5Digest));
+    }
+
     public String getBase64EncryptedElementSignature() {
       // Step 0: construct the text of the elements in
       // elementSignatureSource (done)
@@ -344,49 +351,39 @@ public class EncryptionUtils {
     return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId, pk, wrapper);
   }
 
-  private static void encryptFile(File file, File encryptedFile, EncryptedFormInformation formInfo)
-      throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-      InvalidAlgorithmParameterException {
+  /**
+   * Encrypt the attachments, hashing each one in the same pass that encrypts
+   * it. The ciphers (and their IVs) are assigned in file order before any
+   * encryption starts, and the signature sources are appended in file order
+   * afterward, so the result does not depend on the order in which the
+   * parallel encryptions complete.
+   */
+  private static void encryptFiles(List<File> files, List<File> encryptedFiles,
+      EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
 
-    // add elementSignatureSource for this file...
-    formInfo.appendFileSignatureSource(file);
+    List<Cipher> ciphers = new ArrayList<Cipher>(files.size());
+    for (int i = 0; i < files.size(); ++i) {
+      ciphers.add(formInfo.getCipher());
+    }
 
+    int parallelism = Math.min(SubmissionFileEncryptor.MAX_PARALLEL_ENCRYPTIONS,
+        Runtime.getRuntime().availableProcessors());
     try {
-      Cipher c = formInfo.getCipher();
-
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new FileInputStream(file);
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      List<byte[]> digests = SubmissionFileEncryptor.encryptFiles(files, encryptedFiles, ciphers,
+          parallelism);
+      for (int i = 0; i < files.size(); ++i) {
+        // add elementSignatureSource for this file...
+        formInfo.appendFileSignatureSource(files.get(i), digests.get(i));
+        WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted:" + files.get(i).getName() + " -> "
+            + encryptedFiles.get(i).getName());
       }
-      fin.close();
-      fout.flush();
-      fout.close();
-      WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
     } catch (IOException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting attachments of " + formInfo.instanceId);
       WebLogger.getLogger(formInfo.appName).printStackTrace(e);
       throw e;
     } catch (NoSuchAlgorithmException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidKeyException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting attachments of " + formInfo.instanceId);
       WebLogger.getLogger(formInfo.appName).printStackTrace(e);
       throw e;
     }
@@ -396,26 +393,13 @@ public class EncryptionUtils {
       EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
       NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
 
-    // add elementSignatureSource for this file...
-    formInfo.appendSubmissionFileSignatureSource(contents, submissionFile);
-
     try {
       Cipher c = formInfo.getCipher();
 
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new ByteArrayInputStream(contents.getBytes(CharEncoding.UTF_8));
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
-      }
-      fin.close();
-      fout.flush();
-      fout.close();
+      byte[] md5Digest = SubmissionFileEncryptor.encryptBytes(contents.getBytes(CharEncoding.UTF_8),
+          encryptedFile, c);
+      // add elementSignatureSource for this file...
+      formInfo.appendFileSignatureSource(submissionFile, md5Digest);
       WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted: content -> " + encryptedFile.getName());
     } catch (IOException e) {
       WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: content -> " + encryptedFile.getName());
@@ -476,23 +460,29 @@ public class EncryptionUtils {
       }
     }
     // encrypt here...
+    List<File> files = new ArrayList<File>(filesToProcess.size());
+    List<File> encryptedFiles = new ArrayList<File>(filesToProcess.size());
     for (MimeFile f : filesToProcess) {
-      try {
-        File encryptedFile = new File(f.file.getParentFile(), f.file.getName() + ".enc");
-        encryptFile(f.file, encryptedFile, formInfo);
-        f.file = encryptedFile;
-        f.contentType = APPLICATION_OCTET_STREAM;
-      } catch (IOException e) {
-        return null;
-      } catch (InvalidKeyException e) {
-        return null;
-      } catch (NoSuchAlgorithmException e) {
-        return null;
-      } catch (NoSuchPaddingException e) {
-        return null;
-      } catch (InvalidAlgorithmParameterException e) {
-        return null;
-      }
+      files.add(f.file);
+      encryptedFiles.add(new File(f.file.getParentFile(), f.file.getName() + ".enc"));
+    }
+    try {
+      encryptFiles(files, encryptedFiles, formInfo);
+    } catch (IOException e) {
+      return null;
+    } catch (InvalidKeyException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (NoSuchPaddingException e) {
+      return null;
+    } catch (InvalidAlgorithmParameterException e) {
+      return null;
+    }
+    for (int i = 0; i < filesToProcess.size(); ++i) {
+      MimeFile f = filesToProcess.get(i);
+      f.file = encryptedFiles.get(i);
+      f.contentType = APPLICATION_OCTET_STREAM;
     }
 
     // encrypt the submission.xml as the last file...
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+/**
+ * Single-pass hash-and-encrypt of submission files.
+ * <p>
+ * The plaintext is read once, in large buffers. Each buffer updates
+ * the MD5 digest used for the submission's element signature and is then run
+ * through the cipher and written to the encrypted file. The ciphertext is
+ * identical to that produced by writing the plaintext through a
+ * CipherOutputStream, and the digest to that of ODKFileUtils.getNakedMd5Hash.
+ * <p>
+ * Ciphers carry the per-file IV, so they must be obtained from
+ * EncryptedFormInformation.getCipher() in file order by the caller; the
+ * encryption itself can then proceed in parallel.
+ */
+public final class SubmissionFileEncryptor {
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Upper bound on the number of attachments encrypted at the same time.
+   */
+  public static final int MAX_PARALLEL_ENCRYPTIONS = 4;
+
+  private SubmissionFileEncryptor() {
+  }
+
+  /**
+   * Encrypt a file into another file.
+   *
+   * @param file          plaintext file
+   * @param encryptedFile destination; overwritten
+   * @param cipher        initialized for encryption
+   * @return the MD5 digest of the plaintext
+   * @throws IOException
+   * @throws NoSuchAlgorithmException if MD5 is not available
+   */
+  public static byte[] encryptFile(File file, File encryptedFile, Cipher cipher)
+      throws IOException, NoSuchAlgorithmException {
+    FileInputStream fin = new FileInputStream(file);
+    try {
+      return encrypt(fin.getChannel(), encryptedFile, cipher);
+    } finally {
+      fin.close();
+    }
+  }
+
+  /**
+   * Encrypt in-memory contents into a file.
+   *
+   * @param contents      plaintext
+   * @param encryptedFile destination; overwritten
+   * @param cipher        initialized for encryption
+   * @return the MD5 digest of the plaintext
+   * @throws IOException
+   * @throws NoSuchAlgorithmException if MD5 is not available
+   */
+  public static byte[] encryptBytes(byte[] contents, File encryptedFile, Cipher cipher)
+      throws IOException, NoSuchAlgorithmException {
+    return encrypt(Channels.newChannel(new ByteArrayInputStream(contents)), encryptedFile, cipher);
+  }
+
+  /**
+   * Encrypt several files, up to parallelism of them at a time.
+   *
+   * @param files          plaintext files
+   * @param encryptedFiles destinations, one per file
+   * @param ciphers        one per file, already initialized with that file's IV
+   * @param parallelism    number of files to encrypt at the same time
+   * @return the MD5 digests of the plaintext files, in file order
+   * @throws IOException              if any file could not be encrypted
+   * @throws NoSuchAlgorithmException if MD5 is not available
+   */
+  public static List<byte[]> encryptFiles(final List<File> files, final List<File> encryptedFiles,
+      final List<Cipher> ciphers, int parallelism) throws IOException, NoSuchAlgorithmException {
+    List<byte[]> digests = new ArrayList<byte[]>(files.size());
+    int threads = Math.min(parallelism, files.size());
+    if (threads <= 1) {
+      for (int i = 0; i < files.size(); ++i) {
+        digests.add(encryptFile(files.get(i), encryptedFiles.get(i), ciphers.get(i)));
+      }
+      return digests;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(files.size());
+      for (int i = 0; i < files.size(); ++i) {
+        final int idx = i;
+        results.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return encryptFile(files.get(idx), encryptedFiles.get(idx), ciphers.get(idx));
+          }
+        }));
+      }
+      for (Future<byte[]> result : results) {
+        digests.add(result.get());
+      }
+      return digests;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while encrypting attachments");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Error encrypting attachments", cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @param digest MD5 digest
+   * @return the digest as a zero-padded 32-character lower-case hex string,
+   * as ODKFileUtils.getNakedMd5Hash formats it.
+   */
+  public static String toNakedMd5Hash(byte[] digest) {
+    StringBuilder b = new StringBuilder(2 * digest.length);
+    for (byte d : digest) {
+      b.append(Character.forDigit((d >> 4) & 0xf, 16));
+      b.append(Character.forDigit(d & 0xf, 16));
+    }
+    return b.toString();
+  }
+
+  private static byte[] encrypt(ReadableByteChannel in, File encryptedFile, Cipher cipher)
+      throws IOException, NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    ByteBuffer plain = ByteBuffer.allocate(BUFFER_SIZE);
+    ByteBuffer encrypted = ByteBuffer.allocate(cipher.getOutputSize(BUFFER_SIZE));
+
+    FileOutputStream fout = new FileOutputStream(encryptedFile);
+    try {
+      FileChannel out = fout.getChannel();
+      boolean eof = false;
+      while (!eof) {
+        eof = (in.read(plain) == -1);
+        if (!eof && plain.hasRemaining()) {
+          // keep filling the buffer; channels may return short reads
+          continue;
+        }
+        plain.flip();
+        int position = plain.position();
+        md.update(plain);
+        plain.position(position);
+
+        int outputSize = cipher.getOutputSize(plain.remaining());
+        if (encrypted.capacity() < outputSize) {
+          encrypted = ByteBuffer.allocate(outputSize);
+        }
+        encrypted.clear();
+        try {
+          if (eof) {
+            cipher.doFinal(plain, encrypted);
+          } else {
+            cipher.update(plain, encrypted);
+          }
+        } catch (GeneralSecurityException e) {
+          throw new IOException("Error encrypting " + encryptedFile.getName(), e);
+        }
+        encrypted.flip();
+        while (encrypted.hasRemaining()) {
+          out.write(encrypted);
+        }
+        plain.clear();
+      }
+    } finally {
+      fout.close();
+    }
+    return md.digest();
+  }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.webkitservice.service;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.utilities.CursorUtils;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.utilities.ActiveUserAndLocale;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.sqlite.database.sqlite.SQLiteConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.SimpleWebServer;
+
+/**
+ * Serves read-only database queries over the local webkit server, so that web
+ * pages can fetch query results without going through the Java bridge and the
+ * chunked AIDL database service.
+ * <p>
+ * Requests are made to /appName/_query, either as a GET with query
+ * parameters or as a POST with a JSON object body, holding:
+ * <ul>
+ * <li>tableId -- the table the query is against (may be omitted)</li>
+ * <li>sqlCommand -- a SELECT statement</li>
+ * <li>bindArgs -- a JSON array of the bind parameters</li>
+ * <li>limit, offset -- optional query bounds</li>
+ * </ul>
+ * The query is run with ODKDatabaseImplUtils.rawQuery under the active user's
+ * AccessContext, exactly as OdkDatabaseServiceImpl.simpleQuery does, so the
+ * same row-level filtering and effective access values apply. The result is
+ * streamed from the cursor as chunked JSON:
+ * <pre>
+ * {"tableId":..., "effectiveAccessCreateRow":..., "columns":[...], "rows":[[...],...], "rowCount":n}
+ * </pre>
+ * with each value rendered as CursorUtils.getIndexAsString renders it for a
+ * BaseTable.
+ * <p>
+ * The endpoint is off unless an app enables it by setting the
+ * {@link #KEY_ENABLE_DATABASE_QUERIES} property to true; the handler is only
+ * created when some app has. Each time the webkit server starts, a new secret
+ * token is generated and stored in the enabled apps' {@link #KEY_QUERY_TOKEN}
+ * property, from which the tool hosting the WebView hands it to its pages.
+ * Requests must carry it in the {@link #HEADER_QUERY_TOKEN} header and have an
+ * Origin or Referer that is a page served by this server. Only a single
+ * SELECT is accepted, and not one that reads from the internal tables.
+ */
+public class DatabaseQueryHandler implements SimpleWebServer.RequestHandler {
+
+  private static final String TAG = DatabaseQueryHandler.class.getSimpleName();
+
+  public static final String QUERY_URI = "/_query";
+
+  /**
+   * App property that enables the endpoint for that app ("true").
+   */
+  public static final String KEY_ENABLE_DATABASE_QUERIES = "webkit.enableDatabaseQueries";
+  /**
+   * App property holding the secret token of the current webkit server session.
+   */
+  public static final String KEY_QUERY_TOKEN = "webkit.queryToken";
+  /**
+   * Request header carrying the secret token.
+   */
+  public static final String HEADER_QUERY_TOKEN = "x-odk-query-token";
+
+  public static final String PARAM_TABLE_ID = "tableId";
+  public static final String PARAM_SQL_COMMAND = "sqlCommand";
+  public static final String PARAM_BIND_ARGS = "bindArgs";
+  public static final String PARAM_LIMIT = "limit";
+  public static final String PARAM_OFFSET = "offset";
+
+  private static final String MIME_JSON = "application/json";
+
+  /**
+   * Rows written between flushes of the response, so that long results
+   * reach the page progressively.
+   */
+  private static final int ROWS_PER_FLUSH = 100;
+
+  private static final int TOKEN_BYTES = 16;
+
+  private final Context context;
+  private final String[] allowedOrigins;
+  private final Set<String> enabledAppNames;
+  private final byte[] token;
+
+  /**
+   * @param context
+   * @param port            the port of the webkit server; pages served from it
+   *                        are the only allowed origins.
+   * @param enabledAppNames the apps the endpoint is served for
+   * @param token           the secret token requests must carry
+   */
+  DatabaseQueryHandler(Context context, int port, Set<String> enabledAppNames, String token) {
+    this.context = context.getApplicationContext();
+    this.allowedOrigins = new String[] { "http://127.0.0.1:" + port, "http://localhost:" + port };
+    this.enabledAppNames = Collections.unmodifiableSet(new HashSet<String>(enabledAppNames));
+    this.token = toBytes(token);
+  }
+
+  /**
+   * Create the handler for a new webkit server session, if any app enables
+   * the endpoint, and store the session's token in those apps' properties.
+   *
+   * @param context
+   * @param port    the port of the webkit server
+   * @return the handler, or null if no app enables the endpoint
+   */
+  public static DatabaseQueryHandler createIfEnabled(Context context, int port) {
+    Set<String> enabledAppNames = new HashSet<String>();
+    File[] appFolders = new File(ODKFileUtils.getOdkFolder()).listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        return f.isDirectory();
+      }
+    });
+    if (appFolders != null) {
+      for (File appFolder : appFolders) {
+        String appName = appFolder.getName();
+        if (!new File(ODKFileUtils.getConfigFolder(appName)).isDirectory()) {
+          // not an app
+          continue;
+        }
+        PropertiesSingleton props = CommonToolProperties.get(context, appName);
+        if (Boolean.TRUE.equals(props.getBooleanProperty(KEY_ENABLE_DATABASE_QUERIES))) {
+          enabledAppNames.add(appName);
+        }
+      }
+    }
+    if (enabledAppNames.isEmpty()) {
+      return null;
+    }
+    String token = newToken();
+    for (String appName : enabledAppNames) {
+      CommonToolProperties.get(context, appName)
+          .setProperties(Collections.singletonMap(KEY_QUERY_TOKEN, token));
+    }
+    return new DatabaseQueryHandler(context, port, enabledAppNames, token);
+  }
+
+  private static String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder b = new StringBuilder(2 * bytes.length);
+    for (byte d : bytes) {
+      b.append(String.format("%02x", d & 0xff));
+    }
+    return b.toString();
+  }
+
+  private static byte[] toBytes(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException("UTF-8 should always be available");
+    }
+  }
+
+  @Override
+  public boolean canServe(String appName, String uriWithinApp) {
+    return QUERY_URI.equals(uriWithinApp) && enabledAppNames.contains(appName);
+  }
+
+  @Override
+  public NanoHTTPD.Response serve(NanoHTTPD.IHTTPSession session, String appName,
+      String uriWithinApp) {
+
+    if (session.getMethod() != NanoHTTPD.Method.GET
+        && session.getMethod() != NanoHTTPD.Method.POST) {
+      return error(NanoHTTPD.Response.Status.METHOD_NOT_ALLOWED, "GET or POST required");
+    }
+    if (!isAllowedOrigin(session.getHeaders())) {
+      return error(NanoHTTPD.Response.Status.FORBIDDEN, "request is not from a local page");
+    }
+    if (!hasToken(session.getHeaders())) {
+      return error(NanoHTTPD.Response.Status.FORBIDDEN, "missing or wrong " + HEADER_QUERY_TOKEN);
+    }
+
+    String tableId;
+    String sqlCommand;
+    Object[] bindArgs;
+    QueryBounds queryBounds = null;
+    try {
+      Map<String, Object> request = getRequest(session);
+      tableId = (String) request.get(PARAM_TABLE_ID);
+      sqlCommand = (String) request.get(PARAM_SQL_COMMAND);
+      bindArgs = getBindArgs(request.get(PARAM_BIND_ARGS));
+      Object limit = request.get(PARAM_LIMIT);
+      if (limit != null) {
+        Object offset = request.get(PARAM_OFFSET);
+        queryBounds = new QueryBounds(toInt(limit), (offset == null) ? 0 : toInt(offset));
+      }
+    } catch (Exception e) {
+      return error(NanoHTTPD.Response.Status.BAD_REQUEST, "malformed request: " + e.toString());
+    }
+    if (tableId != null && tableId.trim().length() == 0) {
+      tableId = null;
+    }
+    // validate and run the same text
+    sqlCommand = QueryTableReferences.normalize(sqlCommand);
+    if (!isReadOnlyQuery(sqlCommand)) {
+      return error(NanoHTTPD.Response.Status.BAD_REQUEST, "sqlCommand must be a single SELECT");
+    }
+    String internalTable = QueryTableReferences.findInternalTable(sqlCommand);
+    if (internalTable != null) {
+      return error(NanoHTTPD.Response.Status.FORBIDDEN,
+          "sqlCommand may not read from " + internalTable);
+    }
+
+    ActiveUserAndLocale aul = ActiveUserAndLocale.getActiveUserAndLocale(context, appName);
+
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    Cursor c = null;
+    boolean handedOff = false;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(appName, dbHandleName);
+
+      ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
+          .getAccessContext(db, tableId, aul.activeUser, aul.rolesList);
+
+      c = ODKDatabaseImplUtils.get()
+          .rawQuery(db, sqlCommand, bindArgs, queryBounds, accessContext);
+
+      NanoHTTPD.Response res = new CursorJsonResponse(appName, dbHandleName, db, c, tableId,
+          accessContext.canCreateRow);
+      handedOff = true;
+      return res;
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).e(TAG, "query failed: " + e.toString());
+      return error(NanoHTTPD.Response.Status.BAD_REQUEST, "query failed: " + e.toString());
+    } finally {
+      if (!handedOff) {
+        release(appName, dbHandleName, db, c);
+      }
+    }
+  }
+
+  boolean isAllowedOrigin(Map<String, String> headers) {
+    String origin = headers.get("origin");
+    if (origin != null) {
+      for (String allowed : allowedOrigins) {
+        if (allowed.equals(origin)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String referer = headers.get("referer");
+    if (referer != null) {
+      for (String allowed : allowedOrigins) {
+        if (referer.startsWith(allowed + "/")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  boolean hasToken(Map<String, String> headers) {
+    String value = headers.get(HEADER_QUERY_TOKEN);
+    // constant-time comparison
+    return value != null && MessageDigest.isEqual(token, toBytes(value));
+  }
+
+  /**
+   * @param sqlCommand as returned by {@link QueryTableReferences#normalize}
+   * @return true if it is a single SELECT statement
+   */
+  static boolean isReadOnlyQuery(String sqlCommand) {
+    if (sqlCommand == null) {
+      return false;
+    }
+    // no second statement; literals containing ';' can be bind arguments
+    return SQLiteConnection.getSqlStatementType(sqlCommand) == SQLiteConnection.STATEMENT_SELECT
+        && sqlCommand.indexOf(';') == -1;
+  }
+
+  private static Map<String, Object> getRequest(NanoHTTPD.IHTTPSession session) throws Exception {
+    Map<String, Object> request = new HashMap<String, Object>();
+    if (session.getMethod() == NanoHTTPD.Method.POST) {
+      Map<String, String> files = new HashMap<String, String>();
+      session.parseBody(files);
+      String postData = files.get("postData");
+      if (postData != null) {
+        request.putAll(ODKFileUtils.mapper.<Map<String, Object>>readValue(postData,
+            new TypeReference<Map<String, Object>>() {}));
+        return request;
+      }
+    }
+    for (Map.Entry<String, List<String>> e : session.getParameters().entrySet()) {
+      if (!e.getValue().isEmpty()) {
+        request.put(e.getKey(), e.getValue().get(0));
+      }
+    }
+    return request;
+  }
+
+  private static Object[] getBindArgs(Object value) throws IOException {
+    if (value == null) {
+      return null;
+    }
+    List<?> list;
+    if (value instanceof String) {
+      list = ODKFileUtils.mapper.readValue((String) value, List.class);
+    } else {
+      list = (List<?>) value;
+    }
+    return list.toArray();
+  }
+
+  private static int toInt(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    return Integer.parseInt(value.toString());
+  }
+
+  private static NanoHTTPD.Response error(NanoHTTPD.Response.IStatus status, String message) {
+    Map<String, Object> body = new HashMap<String, Object>();
+    body.put("error", message);
+    String json;
+    try {
+      json = ODKFileUtils.mapper.writeValueAsString(body);
+    } catch (IOException e) {
+      json = "{}";
+    }
+    return NanoHTTPD.newFixedLengthResponse(status, MIME_JSON, json);
+  }
+
+  private static void release(String appName, DbHandle dbHandleName, OdkConnectionInterface db,
+      Cursor c) {
+    if (c != null && !c.isClosed()) {
+      c.close();
+    }
+    if (db != null) {
+      try {
+        // release the reference...
+        // this does not necessarily close the db handle
+        // or terminate any pending transaction
+        db.releaseReference();
+      } finally {
+        // this will release the final reference and close the database
+        OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+            .removeConnection(appName, dbHandleName);
+      }
+    }
+  }
+
+  /**
+   * Streams the rows of an open cursor as JSON, releasing the cursor and the
+   * database connection once sent (or when the response is closed unsent).
+   */
+  private static class CursorJsonResponse extends NanoHTTPD.Response {
+
+    private final String appName;
+    private final DbHandle dbHandleName;
+    private final String tableId;
+    private final boolean canCreateRow;
+    private OdkConnectionInterface db;
+    private Cursor cursor;
+
+    CursorJsonResponse(String appName, DbHandle dbHandleName, OdkConnectionInterface db,
+        Cursor cursor, String tableId, boolean canCreateRow) {
+      // a negative length selects chunked transfer
+      super(Status.OK, MIME_JSON, new ByteArrayInputStream(new byte[0]), -1);
+      this.appName = appName;
+      this.dbHandleName = dbHandleName;
+      this.db = db;
+      this.cursor = cursor;
+      this.tableId = tableId;
+      this.canCreateRow = canCreateRow;
+    }
+
+    @Override
+    public void setGzipEncoding(boolean encodeAsGzip) {
+      // rows are flushed as they are read; gzip would hold them back
+      super.setGzipEncoding(false);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+      try {
+        super.send(outputStream);
+      } finally {
+        releaseCursor();
+      }
+    }
+
+    @Override
+    protected void sendBody(OutputStream outputStream, long pending) throws IOException {
+      if (getRequestMethod() == NanoHTTPD.Method.HEAD) {
+        return;
+      }
+      JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+          .createGenerator(outputStream, JsonEncoding.UTF8);
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      try {
+        generator.writeStartObject();
+        if (tableId == null) {
+          generator.writeNullField("tableId");
+        } else {
+          generator.writeStringField("tableId", tableId);
+        }
+        generator.writeBooleanField("effectiveAccessCreateRow", canCreateRow);
+        int rowCount = 0;
+        try {
+          int columnCount = cursor.getColumnCount();
+          generator.writeArrayFieldStart("columns");
+          for (int i = 0; i < columnCount; ++i) {
+            generator.writeString(cursor.getColumnName(i));
+          }
+          generator.writeEndArray();
+
+          generator.writeArrayFieldStart("rows");
+          if (cursor.moveToFirst()) {
+            do {
+              generator.writeStartArray();
+              for (int i = 0; i < columnCount; ++i) {
+                String value = CursorUtils.getIndexAsString(cursor, i);
+                if (value == null) {
+                  generator.writeNull();
+                } else {
+                  generator.writeString(value);
+                }
+              }
+              generator.writeEndArray();
+              if ((++rowCount % ROWS_PER_FLUSH) == 0) {
+                generator.flush();
+              }
+            } while (cursor.moveToNext());
+          }
+          generator.writeEndArray();
+        } catch (RuntimeException e) {
+          // the status line has already been sent -- report the failure
+          // in the body instead
+          WebLogger.getLogger(appName).e(TAG, "query failed while streaming: " + e.toString());
+          JsonStreamContext ctxt = generator.getOutputContext();
+          while (!(ctxt.inObject() && ctxt.getParent().inRoot())) {
+            if (ctxt.inArray()) {
+              generator.writeEndArray();
+            } else {
+              generator.writeEndObject();
+            }
+            ctxt = generator.getOutputContext();
+          }
+          generator.writeStringField("error", e.toString());
+        }
+        generator.writeNumberField("rowCount", rowCount);
+        generator.writeEndObject();
+        generator.flush();
+      } finally {
+        generator.close();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        releaseCursor();
+      } finally {
+        super.close();
+      }
+    }
+
+    private void releaseCursor() {
+      if (db != null) {
+        release(appName, dbHandleName, db, cursor);
+        db = null;
+        cursor = null;
+      }
+    }
+  }
+}
@@ -26,13 +26,31 @@ import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.webkitserver.service.IWebkitServerInterface;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
+import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.SimpleWebServer;
 
 public class OdkWebkitServerService extends Service {
 
   private static final String LOGTAG = OdkWebkitServerService.class.getSimpleName();
+
+  /**
+   * Worker threads serving the local webkit server. A page load issues a burst
+   * of parallel asset requests; more workers than this only adds contention.
+   */
+  private static final int MAX_WORKER_THREADS = 8;
+  /**
+   * Connections that may wait for a worker before being refused with a 503.
+   */
+  private static final int MAX_QUEUED_CONNECTIONS = 64;
+  /**
+   * Milliseconds an idle keep-alive connection may hold a worker.
+   */
+  private static final int IDLE_CONNECTION_TIMEOUT = 2000;
+
   /**
    * change to true expression if you want to debug this webkit service
    */
@@ -44,6 +62,7 @@ public class OdkWebkitServerService extends Service {
   }
 
   private SimpleWebServer server = null;
+  private volatile NanoHTTPD.BoundedAsyncRunner asyncRunner = null;
   private volatile Thread webServer = null;
   private WebkitServiceInterface servInterface;
 
@@ -97,14 +116,42 @@ public class OdkWebkitServerService extends Service {
     super.onDestroy();
   }
 
+  /**
+   * Report the connection metrics of the running webkit server: accepted,
+   * rejected and queued connections, worker queue waits and keep-alive
+   * connections released early. Retrieve it from a device with:
+   * <pre>
+   * adb shell dumpsys activity service org.opendatakit.services/.webkitservice.service.OdkWebkitServerService
+   * </pre>
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    NanoHTTPD.BoundedAsyncRunner runner = asyncRunner;
+    writer.println((runner == null) ? "webkit server is not running" : runner.getStatistics());
+    writer.flush();
+  }
+
   private synchronized void startServer() {
     if (server == null || !server.isAlive()) {
       stopServer();
       SimpleWebServer testing = new SimpleWebServer(WebkitServerConsts.HOSTNAME, WebkitServerConsts.PORT, new File(ODKFileUtils.getOdkFolder()).getAbsoluteFile(), false);
       //SimpleWebServer testing = new SimpleWebServer();
+      NanoHTTPD.BoundedAsyncRunner runner = new NanoHTTPD.BoundedAsyncRunner(MAX_WORKER_THREADS,
+          MAX_QUEUED_CONNECTIONS, IDLE_CONNECTION_TIMEOUT);
+      testing.setAsyncRunner(runner);
+      // channel-backed sockets let static files be sent with sendfile
+      testing.setServerSocketFactory(new NanoHTTPD.ChannelServerSocketFactory());
+      // lets pages stream query results without going through the Java bridge,
+      // for the apps that enable it
+      DatabaseQueryHandler queryHandler =
+          DatabaseQueryHandler.createIfEnabled(this, WebkitServerConsts.PORT);
+      if (queryHandler != null) {
+        testing.addRequestHandler(queryHandler);
+      }
       try {
         testing.start();
         server = testing;
+        asyncRunner = runner;
       } catch (IOException e) {
         Log.v("Sync.Thread.WebServer", "Exception: " + e.toString());
       }
@@ -118,6 +165,13 @@ public class OdkWebkitServerService extends Service {
       } catch (Exception e) {
         // ignore...
       }
+      if (asyncRunner != null) {
+        Log.i(LOGTAG, "stopServer: " + asyncRunner.getStatistics());
+        asyncRunner = null;
+      }
+      if (server.getAssetCache() != null) {
+        Log.i(LOGTAG, "stopServer: asset cache " + server.getAssetCache().getStatistics());
+      }
       server = null;
     }
   }
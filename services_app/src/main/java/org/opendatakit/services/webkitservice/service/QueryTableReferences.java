@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.webkitservice.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Finds the tables a SELECT statement reads from: the names that follow FROM,
+ * JOIN and IN, and the comma-separated names of a FROM list, at every level
+ * of nesting. String literals are skipped and quoted identifiers are unquoted.
+ * <p>
+ * Used by DatabaseQueryHandler to refuse queries against the internal tables
+ * (_table_definitions, _column_definitions, ..., and the L__ local-only
+ * tables), which are otherwise only reachable through the database service.
+ */
+final class QueryTableReferences {
+
+  /**
+   * Keywords that end the list of tables of a FROM clause.
+   */
+  private static final Set<String> END_OF_FROM_LIST = new HashSet<String>(Arrays.asList(
+      "where", "group", "having", "order", "limit", "union", "intersect", "except",
+      "window"));
+
+  private QueryTableReferences() {
+  }
+
+  /**
+   * Trim the statement and strip its terminating ';', if any, so that it can
+   * be validated and then run, with a LIMIT appended, as the same text.
+   *
+   * @param sql
+   * @return the statement without surrounding whitespace or terminating ';'
+   */
+  static String normalize(String sql) {
+    if (sql == null) {
+      return null;
+    }
+    String trimmed = sql.trim();
+    if (trimmed.endsWith(";")) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+    }
+    return trimmed;
+  }
+
+  /**
+   * @param tableName as it appears in a statement, unquoted
+   * @return true if it names a table that is internal to ODK Services or to
+   *         SQLite, rather than a user-defined data table
+   */
+  static boolean isInternalTable(String tableName) {
+    String name = tableName.toLowerCase(Locale.US);
+    return name.startsWith("_") || name.startsWith("l__") || name.startsWith("sqlite_");
+  }
+
+  /**
+   * @param sql
+   * @return the first internal table the statement reads from, or null if
+   *         there is none
+   */
+  static String findInternalTable(String sql) {
+    for (String tableName : getTableNames(sql)) {
+      if (isInternalTable(tableName)) {
+        return tableName;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param sql
+   * @return the names of the tables the statement reads from, in order
+   */
+  static List<String> getTableNames(String sql) {
+    List<String> tokens = tokenize(sql);
+    List<String> tableNames = new ArrayList<String>();
+    // whether each open parenthesis level is within a FROM list
+    List<Boolean> inFromList = new ArrayList<Boolean>();
+    inFromList.add(false);
+    boolean expectTable = false;
+    for (int i = 0; i < tokens.size(); ++i) {
+      String token = tokens.get(i);
+      int level = inFromList.size() - 1;
+      if (token.equals("(")) {
+        // a sub-select in place of a table name
+        expectTable = false;
+        inFromList.add(false);
+      } else if (token.equals(")")) {
+        if (level > 0) {
+          inFromList.remove(level);
+        }
+      } else if (expectTable) {
+        expectTable = false;
+        // schema-qualified names: the table name is the last part
+        while (i + 2 < tokens.size() && tokens.get(i + 1).equals(".")) {
+          i += 2;
+          token = tokens.get(i);
+        }
+        tableNames.add(unquote(token));
+      } else if (isKeyword(token, "from")) {
+        expectTable = true;
+        inFromList.set(level, true);
+      } else if (isKeyword(token, "join")) {
+        expectTable = true;
+      } else if (isKeyword(token, "in") && i + 1 < tokens.size()
+          && !tokens.get(i + 1).equals("(")) {
+        // "expr IN tableName"
+        expectTable = true;
+      } else if (token.equals(",") && inFromList.get(level)) {
+        expectTable = true;
+      } else if (!isQuoted(token) && END_OF_FROM_LIST.contains(token.toLowerCase(Locale.US))) {
+        inFromList.set(level, false);
+      } else if (isKeyword(token, "select")) {
+        inFromList.set(level, false);
+      }
+    }
+    return tableNames;
+  }
+
+  private static boolean isKeyword(String token, String keyword) {
+    return token.equalsIgnoreCase(keyword);
+  }
+
+  private static boolean isQuoted(String token) {
+    char c = token.charAt(0);
+    return c == '"' || c == '`' || c == '[';
+  }
+
+  private static String unquote(String token) {
+    if (isQuoted(token) && token.length() >= 2) {
+      return token.substring(1, token.length() - 1);
+    }
+    return token;
+  }
+
+  /**
+   * Split the statement into words, quoted identifiers and single punctuation
+   * characters. String literals and comments are dropped.
+   */
+  private static List<String> tokenize(String sql) {
+    List<String> tokens = new ArrayList<String>();
+    int len = sql.length();
+    int i = 0;
+    while (i < len) {
+      char c = sql.charAt(i);
+      if (Character.isWhitespace(c)) {
+        ++i;
+      } else if (c == '\'') {
+        // string literal; '' is an escaped quote
+        ++i;
+        while (i < len) {
+          if (sql.charAt(i) == '\'') {
+            if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+              i += 2;
+              continue;
+            }
+            break;
+          }
+          ++i;
+        }
+        ++i;
+      } else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+        int end = sql.indexOf('\n', i);
+        i = (end == -1) ? len : end + 1;
+      } else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        i = (end == -1) ? len : end + 2;
+      } else if (c == '"' || c == '`' || c == '[') {
+        char close = (c == '[') ? ']' : c;
+        int end = sql.indexOf(close, i + 1);
+        if (end == -1) {
+          end = len - 1;
+        }
+        tokens.add(sql.substring(i, end + 1));
+        i = end + 1;
+      } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$') {
+        int start = i;
+        while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_'
+            || sql.charAt(i) == '$')) {
+          ++i;
+        }
+        tokens.add(sql.substring(start, i));
+      } else {
+        tokens.add(String.valueOf(c));
+        ++i;
+      }
+    }
+    return tokens;
+  }
+}
@@ -691,6 +691,10 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             } finally {
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
+            if ( result != null ) {
+               mRecentOperations.recordResultSet(cookie, Math.max(0, result.length - 2),
+                   getMaterializedBytes(result));
+            }
          } catch (Throwable t) {
             mRecentOperations.failOperation(cookie, t);
             throw t;
@@ -706,6 +710,28 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       return null;
    }
 
+   /**
+    * Approximate size of the rows of a result set returned by
+    * nativeExecuteForObjectArray (column names and types, then one Object[]
+    * per row), as held in memory.
+    */
+   private static long getMaterializedBytes(Object[] result) {
+      long bytes = 0L;
+      for ( int i = 2 ; i < result.length ; ++i ) {
+         Object[] row = (Object[]) result[i];
+         for ( Object value : row ) {
+            if ( value instanceof String ) {
+               bytes += 2L * ((String) value).length();
+            } else if ( value instanceof byte[] ) {
+               bytes += ((byte[]) value).length;
+            } else if ( value != null ) {
+               bytes += 8L;
+            }
+         }
+      }
+      return bytes;
+   }
+
    /** One of the values returned by {@link #getSqlStatementType(String)}. */
    public static final int STATEMENT_SELECT = 1;
    /** One of the values returned by {@link #getSqlStatementType(String)}. */
@@ -2229,8 +2255,10 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             if (existing != null && !existing.mInUse) {
                // we found one - mark it as in-use and return it
                existing.mInUse = true;
+               mRecentOperations.recordStatementCacheLookup(true);
                return existing;
             }
+            mRecentOperations.recordStatementCacheLookup(false);
 
             PreparedStatement statement = null;
             // Either there is an in-use statement in the cache or the
@@ -0,0 +1,139 @@
+package fi.iki.elonen;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AssetCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testHitAndInvalidationOnChange() throws IOException {
+    AssetCache cache = new AssetCache();
+    File js = writeFile("odkCommon.js", text("var a = 1;", 200));
+
+    AssetCache.Entry first = cache.get(js, "application/javascript");
+    assertNotNull(first);
+    assertSame(first, cache.get(js, "application/javascript"));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+
+    // rewriting the file changes its length and last-modified time
+    byte[] changed = text("var b = 2;", 300);
+    writeFile("odkCommon.js", changed);
+    assertTrue(js.setLastModified(js.lastModified() + 5000L));
+    AssetCache.Entry second = cache.get(js, "application/javascript");
+    assertArrayEquals(changed, second.getBody());
+    assertEquals(1, cache.getInvalidationCount());
+    assertTrue(!first.getETag().equals(second.getETag()));
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  @Test
+  public void testStrongETagAndGzipVariant() throws IOException {
+    AssetCache cache = new AssetCache();
+    byte[] css = text("body { margin: 0; }\n", 500);
+    AssetCache.Entry a = cache.get(writeFile("a.css", css), "text/css");
+    AssetCache.Entry b = cache.get(writeFile("b.css", css), "text/css");
+
+    // same contents, same strong etag
+    assertEquals(a.getETag(), b.getETag());
+    assertTrue(a.getETag().startsWith("\"") && a.getETag().endsWith("\""));
+
+    assertNotNull(a.getGzipBody());
+    assertTrue(a.getGzipBody().length < css.length);
+    assertArrayEquals(css, gunzip(a.getGzipBody()));
+    // the gzip variant is a different representation, with its own etag
+    assertEquals(a.getETag().substring(0, a.getETag().length() - 1) + "-gz\"", a.getGzipETag());
+
+    // images are not recompressed
+    AssetCache.Entry png = cache.get(writeFile("c.png", css), "image/png");
+    assertNull(png.getGzipBody());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedByBytes() throws IOException {
+    AssetCache cache = new AssetCache(3000, 1500);
+    File a = writeFile("a.bin", new byte[1000]);
+    File b = writeFile("b.bin", new byte[1000]);
+    File c = writeFile("c.bin", new byte[1000]);
+    File d = writeFile("d.bin", new byte[1000]);
+
+    cache.get(a, "application/octet-stream");
+    cache.get(b, "application/octet-stream");
+    cache.get(c, "application/octet-stream");
+    // touch a so that b is the least recently used
+    cache.get(a, "application/octet-stream");
+    cache.get(d, "application/octet-stream");
+
+    assertEquals(3, cache.getEntryCount());
+    assertEquals(3000, cache.getSizeInBytes());
+    assertEquals(1, cache.getEvictionCount());
+
+    long misses = cache.getMissCount();
+    cache.get(a, "application/octet-stream");
+    assertEquals(misses, cache.getMissCount());
+    cache.get(b, "application/octet-stream");
+    assertEquals(misses + 1, cache.getMissCount());
+  }
+
+  @Test
+  public void testLargeFilesAreNotCached() throws IOException {
+    AssetCache cache = new AssetCache(10000, 1000);
+    File big = writeFile("big.js", new byte[1001]);
+    assertNull(cache.get(big, "application/javascript"));
+    assertEquals(1, cache.getUncacheableCount());
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  private File writeFile(String name, byte[] contents) throws IOException {
+    File f = new File(folder.getRoot(), name);
+    OutputStream os = new FileOutputStream(f);
+    try {
+      os.write(contents);
+    } finally {
+      os.close();
+    }
+    return f;
+  }
+
+  private static byte[] text(String line, int repeat) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < repeat; ++i) {
+      b.append(line);
+    }
+    return b.toString().getBytes();
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    InputStream is = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int len;
+    while ((len = is.read(buffer)) != -1) {
+      bo.write(buffer, 0, len);
+    }
+    return bo.toByteArray();
+  }
+}
@@ -0,0 +1,193 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Latency benchmark of the webkit server's threading strategies. Each
+ * simulated page load fetches a set of assets over a handful of parallel
+ * keep-alive connections, the way a WebView does. Several page loads run at
+ * once, and the per-asset and per-page latencies are reported for the
+ * thread-per-connection runner and for the bounded worker pool.
+ * <p>
+ * Excluded from the default unit test run; run it with -PrunBenchmarks. The
+ * behavior of the bounded worker pool is covered by BoundedAsyncRunnerTest.
+ */
+@RunWith(JUnit4.class)
+public class AsyncRunnerLoadBenchmarkTest {
+
+  private static final Logger LOG = Logger.getLogger(AsyncRunnerLoadBenchmarkTest.class.getName());
+
+  private static final int CONCURRENT_PAGE_LOADS = 6;
+  private static final int PAGE_LOADS_PER_CLIENT = 10;
+  private static final int ASSETS_PER_PAGE = 30;
+  private static final int CONNECTIONS_PER_PAGE = 6;
+  private static final int ASSET_SIZE = 16 * 1024;
+
+  private static final byte[] ASSET = new byte[ASSET_SIZE];
+
+  /**
+   * Serves the same asset bytes for every uri.
+   */
+  private static class AssetServer extends NanoHTTPD {
+
+    AssetServer() {
+      super("127.0.0.1", 0);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+      return newFixedLengthResponse(Response.Status.OK, "application/javascript",
+          new ByteArrayInputStream(ASSET), ASSET.length);
+    }
+  }
+
+  private static class Result {
+    final List<Long> assetNanos = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Long> pageNanos = Collections.synchronizedList(new ArrayList<Long>());
+    final AtomicInteger failures = new AtomicInteger();
+  }
+
+  @Test
+  public void testDefaultAndBoundedRunners() throws Exception {
+    // warm up the JIT and the client's connection handling
+    run(null, 2);
+
+    Result threadPerConnection = run(null, PAGE_LOADS_PER_CLIENT);
+    NanoHTTPD.BoundedAsyncRunner runner = new NanoHTTPD.BoundedAsyncRunner(8, 64, 2000);
+    Result bounded = run(runner, PAGE_LOADS_PER_CLIENT);
+
+    report("thread-per-connection", threadPerConnection);
+    report("bounded worker pool", bounded);
+    LOG.info("bounded worker pool: " + runner.getStatistics());
+
+    // the timings are only meaningful if every asset was served
+    assertEquals(0, threadPerConnection.failures.get());
+    assertEquals(0, bounded.failures.get());
+  }
+
+  private Result run(NanoHTTPD.AsyncRunner runner, final int pageLoadsPerClient)
+      throws Exception {
+    AssetServer server = new AssetServer();
+    if (runner != null) {
+      server.setAsyncRunner(runner);
+    }
+    server.start();
+    final Result result = new Result();
+    final String base = "http://127.0.0.1:" + server.getListeningPort() + "/default/assets/";
+    ExecutorService clients = Executors.newFixedThreadPool(CONCURRENT_PAGE_LOADS);
+    final ExecutorService connections =
+        Executors.newFixedThreadPool(CONCURRENT_PAGE_LOADS * CONNECTIONS_PER_PAGE);
+    try {
+      List<Future<Void>> pages = new ArrayList<Future<Void>>();
+      for (int c = 0; c < CONCURRENT_PAGE_LOADS; ++c) {
+        pages.add(clients.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int p = 0; p < pageLoadsPerClient; ++p) {
+              loadPage(base, connections, result);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> page : pages) {
+        page.get();
+      }
+    } finally {
+      clients.shutdown();
+      connections.shutdown();
+      server.stop();
+    }
+    return result;
+  }
+
+  private void loadPage(final String base, ExecutorService connections, final Result result)
+      throws Exception {
+    long start = System.nanoTime();
+    final AtomicInteger next = new AtomicInteger();
+    List<Future<Void>> fetchers = new ArrayList<Future<Void>>();
+    for (int i = 0; i < CONNECTIONS_PER_PAGE; ++i) {
+      fetchers.add(connections.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          int asset;
+          while ((asset = next.getAndIncrement()) < ASSETS_PER_PAGE) {
+            long assetStart = System.nanoTime();
+            if (fetch(base + "asset" + asset + ".js")) {
+              result.assetNanos.add(System.nanoTime() - assetStart);
+            } else {
+              result.failures.incrementAndGet();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> fetcher : fetchers) {
+      fetcher.get();
+    }
+    result.pageNanos.add(System.nanoTime() - start);
+  }
+
+  private boolean fetch(String uri) {
+    HttpURLConnection c = null;
+    try {
+      c = (HttpURLConnection) new URL(uri).openConnection();
+      if (c.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return false;
+      }
+      InputStream is = c.getInputStream();
+      byte[] buffer = new byte[8192];
+      int total = 0;
+      int len;
+      while ((len = is.read(buffer)) != -1) {
+        total += len;
+      }
+      // closing the stream (not disconnecting) returns the connection
+      // to the client's keep-alive pool
+      is.close();
+      return total == ASSET_SIZE;
+    } catch (IOException e) {
+      if (c != null) {
+        c.disconnect();
+      }
+      return false;
+    }
+  }
+
+  private static void report(String name, Result result) {
+    LOG.info(name + ": asset p50=" + percentileMillis(result.assetNanos, 50)
+        + "ms p95=" + percentileMillis(result.assetNanos, 95) + "ms; page p50="
+        + percentileMillis(result.pageNanos, 50) + "ms p95="
+        + percentileMillis(result.pageNanos, 95) + "ms; failures=" + result.failures.get());
+  }
+
+  private static double percentileMillis(List<Long> nanos, int percentile) {
+    List<Long> sorted = new ArrayList<Long>(nanos);
+    if (sorted.isEmpty()) {
+      return 0.0;
+    }
+    Collections.sort(sorted);
+    int index = Math.min(sorted.size() - 1, (sorted.size() * percentile) / 100);
+    return sorted.get(index) / 1000000.0;
+  }
+}
@@ -0,0 +1,205 @@
+package fi.iki.elonen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class BoundedAsyncRunnerTest {
+
+  private static final int IDLE_TIMEOUT = 200;
+  private static final byte[] ASSET = new byte[4096];
+
+  private static class AssetServer extends NanoHTTPD {
+
+    AssetServer() {
+      super("127.0.0.1", 0);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+      return newFixedLengthResponse(Response.Status.OK, "application/javascript",
+          new ByteArrayInputStream(ASSET), ASSET.length);
+    }
+  }
+
+  private AssetServer server;
+  private NanoHTTPD.BoundedAsyncRunner runner;
+
+  @Before
+  public void setUp() throws IOException {
+    runner = new NanoHTTPD.BoundedAsyncRunner(4, 16, IDLE_TIMEOUT);
+    server = new AssetServer();
+    server.setAsyncRunner(runner);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testServesMoreConnectionsThanWorkers() throws Exception {
+    final String base = "http://127.0.0.1:" + server.getListeningPort() + "/asset";
+    ExecutorService clients = Executors.newFixedThreadPool(12);
+    try {
+      List<Future<Boolean>> fetches = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 120; ++i) {
+        final int asset = i;
+        fetches.add(clients.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            HttpURLConnection c = (HttpURLConnection) new URL(base + asset).openConnection();
+            try {
+              return c.getResponseCode() == HttpURLConnection.HTTP_OK &&
+                  readFully(c.getInputStream()).length == ASSET.length;
+            } finally {
+              c.disconnect();
+            }
+          }
+        }));
+      }
+      for (Future<Boolean> fetch : fetches) {
+        assertTrue(fetch.get());
+      }
+    } finally {
+      clients.shutdown();
+    }
+    assertEquals(0, runner.getRejectedCount());
+    assertTrue(runner.getMaxQueueDepth() <= 16);
+  }
+
+  @Test
+  public void testReadTimeoutIsRestoredOnceARequestArrives() throws IOException {
+    Socket s = new Socket("127.0.0.1", server.getListeningPort());
+    try {
+      OutputStream os = s.getOutputStream();
+      InputStream is = s.getInputStream();
+      os.write(request("/a").getBytes("US-ASCII"));
+      assertEquals(200, readResponse(is));
+
+      // a request that arrives slower than the idle timeout is still served
+      os.write("GET /b HTTP/1.1\r\n".getBytes("US-ASCII"));
+      os.flush();
+      sleep(3 * IDLE_TIMEOUT);
+      os.write("Host: localhost\r\n\r\n".getBytes("US-ASCII"));
+      assertEquals(200, readResponse(is));
+    } finally {
+      s.close();
+    }
+    assertEquals(0, runner.getIdledOutCount());
+  }
+
+  @Test
+  public void testIdleConnectionReleasesItsWorker() throws IOException {
+    Socket s = new Socket("127.0.0.1", server.getListeningPort());
+    try {
+      s.setSoTimeout(10 * IDLE_TIMEOUT);
+      InputStream is = s.getInputStream();
+      s.getOutputStream().write(request("/a").getBytes("US-ASCII"));
+      assertEquals(200, readResponse(is));
+      // the server closes the connection once it has been idle for too long
+      assertEquals(-1, is.read());
+    } finally {
+      s.close();
+    }
+    assertEquals(1, runner.getIdledOutCount());
+  }
+
+  @Test
+  public void testStopReleasesTheWorkers() throws IOException {
+    Socket s = new Socket("127.0.0.1", server.getListeningPort());
+    try {
+      s.getOutputStream().write(request("/a").getBytes("US-ASCII"));
+      assertEquals(200, readResponse(s.getInputStream()));
+      server.stop();
+    } finally {
+      s.close();
+    }
+    for (int i = 0; i < 50 && !runner.isTerminated(); ++i) {
+      sleep(100);
+    }
+    assertTrue(runner.isTerminated());
+  }
+
+  private static String request(String uri) {
+    return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+  }
+
+  /**
+   * Read one response with a Content-Length body.
+   *
+   * @return the status code
+   */
+  private static int readResponse(InputStream is) throws IOException {
+    String statusLine = readLine(is);
+    int contentLength = 0;
+    String line;
+    while ((line = readLine(is)).length() != 0) {
+      if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+        contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+      }
+    }
+    for (int i = 0; i < contentLength; ++i) {
+      if (is.read() == -1) {
+        throw new IOException("truncated body");
+      }
+    }
+    return Integer.parseInt(statusLine.split(" ")[1]);
+  }
+
+  private static String readLine(InputStream is) throws IOException {
+    StringBuilder b = new StringBuilder();
+    int c;
+    while ((c = is.read()) != '\n') {
+      if (c == -1) {
+        throw new IOException("connection closed");
+      }
+      if (c != '\r') {
+        b.append((char) c);
+      }
+    }
+    return b.toString();
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = is.read(buffer)) != -1) {
+      os.write(buffer, 0, len);
+    }
+    is.close();
+    return os.toByteArray();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package fi.iki.elonen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class FileResponseTest {
+
+  private static final int FILE_SIZE = 300 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private byte[] contents;
+  private NanoHTTPD server;
+
+  /**
+   * Serves the requested file (path relative to the temporary folder) as
+   * SimpleWebServer does, honoring the Range header.
+   */
+  private class FileServer extends NanoHTTPD {
+
+    FileServer() {
+      super("127.0.0.1", 0);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+      if (session.getUri().equals("/memory")) {
+        // as SimpleWebServer serves a cached asset
+        Response res = newFixedLengthResponse(Response.Status.OK, "application/octet-stream",
+            new ByteArrayInputStream(contents), contents.length);
+        res.addHeader("Content-Length", "" + contents.length);
+        return res;
+      }
+      File f = new File(folder.getRoot(), session.getUri().substring(1));
+      try {
+        List<FileResponse.ByteRange> ranges =
+            FileResponse.parseRangeHeader(session.getHeaders().get("range"), f.length());
+        if (ranges == null) {
+          return new FileResponse("application/octet-stream", f);
+        } else if (ranges.isEmpty()) {
+          return newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+        } else {
+          return new FileResponse("application/octet-stream", f, ranges);
+        }
+      } catch (IOException e) {
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "");
+      }
+    }
+  }
+
+  private static class HttpResult {
+    String statusLine;
+    final Map<String, String> headers = new HashMap<String, String>();
+    byte[] body;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    contents = new byte[FILE_SIZE];
+    for (int i = 0; i < contents.length; ++i) {
+      contents[i] = (byte) (i * 31 + (i >> 8));
+    }
+    file = folder.newFile("asset.bin");
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(contents);
+    } finally {
+      os.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private void startServer(boolean channelSockets) throws IOException {
+    server = new FileServer();
+    if (channelSockets) {
+      server.setServerSocketFactory(new NanoHTTPD.ChannelServerSocketFactory());
+    }
+    server.start();
+  }
+
+  @Test
+  public void testParseRangeHeader() {
+    assertNull(NanoHTTPD.FileResponse.parseRangeHeader(null, 100));
+    assertNull(NanoHTTPD.FileResponse.parseRangeHeader("items=0-5", 100));
+    assertNull(NanoHTTPD.FileResponse.parseRangeHeader("bytes=5-2", 100));
+    assertNull(NanoHTTPD.FileResponse.parseRangeHeader("bytes=abc", 100));
+
+    List<NanoHTTPD.FileResponse.ByteRange> ranges =
+        NanoHTTPD.FileResponse.parseRangeHeader("bytes=0-9, 50-, -10, 90-200", 100);
+    assertNotNull(ranges);
+    assertEquals(4, ranges.size());
+    assertRange(0, 9, ranges.get(0));
+    assertRange(50, 99, ranges.get(1));
+    assertRange(90, 99, ranges.get(2));
+    assertRange(90, 99, ranges.get(3));
+
+    // unsatisfiable ranges are dropped; none left means 416
+    assertEquals(1, NanoHTTPD.FileResponse.parseRangeHeader("bytes=0-0,100-", 100).size());
+    assertTrue(NanoHTTPD.FileResponse.parseRangeHeader("bytes=100-", 100).isEmpty());
+    assertTrue(NanoHTTPD.FileResponse.parseRangeHeader("bytes=-0", 100).isEmpty());
+  }
+
+  @Test
+  public void testWholeFile() throws IOException {
+    for (boolean channelSockets : new boolean[] { false, true }) {
+      startServer(channelSockets);
+      HttpResult result = get("/asset.bin", null);
+      assertTrue(result.statusLine.contains("200"));
+      assertEquals(Integer.toString(FILE_SIZE), result.headers.get("content-length"));
+      assertArrayEquals(contents, result.body);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testSingleRange() throws IOException {
+    for (boolean channelSockets : new boolean[] { false, true }) {
+      startServer(channelSockets);
+      HttpResult result = get("/asset.bin", "bytes=1000-200999");
+      assertTrue(result.statusLine.contains("206"));
+      assertEquals("bytes 1000-200999/" + FILE_SIZE, result.headers.get("content-range"));
+      assertArrayEquals(slice(1000, 200000), result.body);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testMultipleRanges() throws IOException {
+    for (boolean channelSockets : new boolean[] { false, true }) {
+      startServer(channelSockets);
+      HttpResult result = get("/asset.bin", "bytes=0-99,5000-5999,-16");
+      assertTrue(result.statusLine.contains("206"));
+      String contentType = result.headers.get("content-type");
+      assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+      // no charset parameter on a multipart type
+      assertFalse(contentType.contains("charset"));
+      String boundary = contentType.substring("multipart/byteranges; boundary=".length());
+
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      appendPart(expected, boundary, 0, 99);
+      appendPart(expected, boundary, 5000, 5999);
+      appendPart(expected, boundary, FILE_SIZE - 16, FILE_SIZE - 1);
+      expected.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+      assertArrayEquals(expected.toByteArray(), result.body);
+      assertEquals(Integer.toString(expected.size()), result.headers.get("content-length"));
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testHeadSendsNoBody() throws IOException {
+    for (String uri : new String[] { "/asset.bin", "/memory" }) {
+      startServer(false);
+      HttpResult result = request("HEAD", uri, null);
+      assertTrue(result.statusLine.contains("200"));
+      assertEquals(Integer.toString(FILE_SIZE), result.headers.get("content-length"));
+      // the connection is closed right after the headers
+      assertEquals(0, result.body.length);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testContentTypeCharset() {
+    assertEquals("text/html; charset=utf-8",
+        NanoHTTPD.Response.contentTypeWithCharset("text/html"));
+    assertEquals("application/json; charset=utf-8",
+        NanoHTTPD.Response.contentTypeWithCharset("application/json"));
+    assertEquals("application/javascript; charset=utf-8",
+        NanoHTTPD.Response.contentTypeWithCharset("application/javascript"));
+    assertEquals("text/plain; charset=ISO-8859-1",
+        NanoHTTPD.Response.contentTypeWithCharset("text/plain; charset=ISO-8859-1"));
+    assertEquals("image/png", NanoHTTPD.Response.contentTypeWithCharset("image/png"));
+    assertEquals("application/octet-stream",
+        NanoHTTPD.Response.contentTypeWithCharset("application/octet-stream"));
+    assertEquals("multipart/byteranges; boundary=abc",
+        NanoHTTPD.Response.contentTypeWithCharset("multipart/byteranges; boundary=abc"));
+  }
+
+  @Test
+  public void testLengthsBeyondIntRange() throws IOException {
+    // sparse on most file systems
+    File large = folder.newFile("large.bin");
+    long length = 3L * 1024L * 1024L * 1024L;
+    RandomAccessFile raf = new RandomAccessFile(large, "rw");
+    try {
+      raf.setLength(length);
+      raf.seek(length - 4);
+      raf.write(new byte[] { 1, 2, 3, 4 });
+    } finally {
+      raf.close();
+    }
+    startServer(true);
+    HttpResult result = get("/large.bin", "bytes=-4");
+    assertTrue(result.statusLine.contains("206"));
+    assertEquals("bytes " + (length - 4) + "-" + (length - 1) + "/" + length,
+        result.headers.get("content-range"));
+    assertArrayEquals(new byte[] { 1, 2, 3, 4 }, result.body);
+
+    result = get("/large.bin", "bytes=2147483640-2147483655");
+    assertEquals("16", result.headers.get("content-length"));
+    assertArrayEquals(new byte[16], result.body);
+  }
+
+  private void appendPart(ByteArrayOutputStream os, String boundary, int start, int end)
+      throws IOException {
+    os.write(("\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\n"
+        + "Content-Range: bytes " + start + "-" + end + "/" + FILE_SIZE + "\r\n\r\n")
+        .getBytes("US-ASCII"));
+    os.write(slice(start, end - start + 1));
+  }
+
+  private byte[] slice(int start, int length) {
+    byte[] b = new byte[length];
+    System.arraycopy(contents, start, b, 0, length);
+    return b;
+  }
+
+  private static void assertRange(long start, long end, NanoHTTPD.FileResponse.ByteRange range) {
+    assertEquals(start, range.start);
+    assertEquals(end, range.end);
+  }
+
+  private HttpResult get(String uri, String range) throws IOException {
+    return request("GET", uri, range);
+  }
+
+  /**
+   * For a HEAD request, the body holds whatever the server sent after the
+   * headers.
+   */
+  private HttpResult request(String method, String uri, String range) throws IOException {
+    Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+    try {
+      OutputStream os = socket.getOutputStream();
+      String request = method + " " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+          + ((range == null) ? "" : "Range: " + range + "\r\n") + "\r\n";
+      os.write(request.getBytes("US-ASCII"));
+      os.flush();
+
+      InputStream is = socket.getInputStream();
+      HttpResult result = new HttpResult();
+      result.statusLine = readLine(is);
+      String line;
+      while ((line = readLine(is)).length() != 0) {
+        int colon = line.indexOf(':');
+        result.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+            line.substring(colon + 1).trim());
+      }
+      if (method.equals("HEAD")) {
+        result.body = readFully(is);
+        return result;
+      }
+      int length = Integer.parseInt(result.headers.get("content-length"));
+      result.body = new byte[length];
+      int offset = 0;
+      while (offset < length) {
+        int read = is.read(result.body, offset, length - offset);
+        if (read < 0) {
+          throw new IOException("premature end of body");
+        }
+        offset += read;
+      }
+      return result;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = is.read(buffer)) != -1) {
+      os.write(buffer, 0, len);
+    }
+    return os.toByteArray();
+  }
+
+  private static String readLine(InputStream is) throws IOException {
+    StringBuilder b = new StringBuilder();
+    int c;
+    while ((c = is.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        b.append((char) c);
+      }
+    }
+    return b.toString();
+  }
+}
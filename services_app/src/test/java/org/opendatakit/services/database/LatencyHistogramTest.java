@@ -0,0 +1,83 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketsCoverEveryValue() {
+    // each bucket's range starts right after the previous bucket's range ends
+    for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; ++i) {
+      assertEquals(LatencyHistogram.highestValueInBucket(i - 1) + 1L,
+          LatencyHistogram.lowestValueInBucket(i));
+    }
+    long[] values = { 0L, 1L, 15L, 16L, 17L, 31L, 32L, 1000L, 65535L, 1234567L, 1L << 39 };
+    for (long v : values) {
+      int idx = LatencyHistogram.bucketIndex(v);
+      assertTrue(LatencyHistogram.lowestValueInBucket(idx) <= v);
+      assertTrue(LatencyHistogram.highestValueInBucket(idx) >= v);
+    }
+    // values beyond the tracked range land in the last bucket
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentilesWithinPrecision() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1L; v <= 10000L; ++v) {
+      h.record(v);
+    }
+    assertEquals(10000L, h.getTotalCount());
+    assertEquals(10000L, h.getMaxMicros());
+    assertEquals(5000L, h.getMeanMicros());
+    assertWithin(5000L, h.getValueAtPercentile(50.0));
+    assertWithin(9000L, h.getValueAtPercentile(90.0));
+    assertWithin(9900L, h.getValueAtPercentile(99.0));
+    assertEquals(10000L, h.getValueAtPercentile(100.0));
+
+    h.reset();
+    assertEquals(0L, h.getTotalCount());
+    assertEquals(0L, h.getValueAtPercentile(50.0));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    final LatencyHistogram h = new LatencyHistogram();
+    final int threads = 8;
+    final int perThread = 50000;
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; ++t) {
+      final long value = 100L * (t + 1);
+      Thread w = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; ++i) {
+            h.record(value);
+          }
+        }
+      });
+      workers.add(w);
+      w.start();
+    }
+    for (Thread w : workers) {
+      w.join();
+    }
+    assertEquals((long) threads * perThread, h.getTotalCount());
+    assertEquals(100L * threads, h.getMaxMicros());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    // log-linear buckets of 16 per power of two: within 1/16th
+    assertTrue("expected " + expected + " got " + actual,
+        Math.abs(actual - expected) <= expected / 16L + 1L);
+  }
+}
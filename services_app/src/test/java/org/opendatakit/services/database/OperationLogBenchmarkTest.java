@@ -0,0 +1,176 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * Throughput of recording operations as SQLiteConnection does (begin, record
+ * the result set, end), from 1 and 4 threads sharing the OperationLog of one
+ * appName: the previous recorder, which took a monitor and copied the bind
+ * args on every call, and the per-thread ring buffers.
+ * <p>
+ * Excluded from the default unit test run; run it with -PrunBenchmarks. The
+ * recording of concurrent operations is covered by OperationLogTest.
+ */
+@RunWith(JUnit4.class)
+public class OperationLogBenchmarkTest {
+
+  private static final Logger LOG = Logger.getLogger(OperationLogBenchmarkTest.class.getName());
+
+  private static final int OPERATIONS_PER_THREAD = 250000;
+  private static final String SQL = "SELECT * FROM \"t\" WHERE \"_id\" = ? AND \"_savepoint_type\" = ?";
+
+  private interface Recorder {
+    void record(Object[] bindArgs);
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    final OperationLog log = new OperationLog("default");
+    final MonitorOperationLog monitorLog = new MonitorOperationLog();
+    Recorder ring = new Recorder() {
+      @Override
+      public void record(Object[] bindArgs) {
+        int cookie = log.beginOperation("session", "executeForCursor", SQL, bindArgs);
+        log.recordResultSet(cookie, 1, 100);
+        log.endOperationDeferLogAdditional(cookie, null);
+      }
+    };
+    Recorder monitor = new Recorder() {
+      @Override
+      public void record(Object[] bindArgs) {
+        int cookie = monitorLog.beginOperation("session", "executeForCursor", SQL, bindArgs);
+        monitorLog.recordResultSet(cookie, 1);
+        monitorLog.endOperation(cookie);
+      }
+    };
+
+    // warm up the JIT
+    run(monitor, 2);
+    run(ring, 2);
+
+    for (int threads : new int[] { 1, 4 }) {
+      report("monitor, " + threads + " threads", threads, run(monitor, threads));
+      report("per-thread rings, " + threads + " threads", threads, run(ring, threads));
+    }
+  }
+
+  private static long run(final Recorder recorder, int threads) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; ++t) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Object[] bindArgs = new Object[] { "uuid:0b8e7e52-4c3a-4a1a-9e61-4b8f1f2c9a10", "COMPLETE" };
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+            recorder.record(bindArgs);
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - startNanos;
+  }
+
+  private static void report(String name, int threads, long nanos) {
+    double opsPerSecond = (threads * (double) OPERATIONS_PER_THREAD) / (nanos / 1.0e9);
+    LOG.info(String.format(Locale.US, "%s: %.0f operations/s (%d ms)", name,
+        opsPerSecond, nanos / 1000000L));
+  }
+
+  /**
+   * The recording path of the previous OperationLog: a single monitor, the
+   * bind args copied into a list and the wall clock read on every operation.
+   * Like the previous OperationLog, completed operations are recorded in the
+   * statistics outside of the monitor.
+   */
+  private static final class MonitorOperationLog {
+    private static final int MAX_RECENT_OPERATIONS = 60;
+
+    private static final class Entry {
+      long mStartTime;
+      long mEndTime;
+      long mRowCount;
+      String mSessionQualifier;
+      String mKind;
+      String mSql;
+      ArrayList<Object> mBindArgs;
+      boolean mFinished;
+      int mCookie;
+    }
+
+    private final Entry[] mOperations = new Entry[MAX_RECENT_OPERATIONS];
+    private final OperationStatistics mStatistics = new OperationStatistics();
+    private int mIndex;
+    private int mGeneration;
+
+    int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
+      synchronized (mOperations) {
+        final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
+        Entry operation = mOperations[index];
+        if (operation == null) {
+          operation = new Entry();
+          operation.mBindArgs = new ArrayList<Object>();
+          mOperations[index] = operation;
+        }
+        operation.mFinished = false;
+        operation.mSessionQualifier = sessionQualifier;
+        operation.mStartTime = System.currentTimeMillis();
+        operation.mKind = kind;
+        operation.mSql = sql;
+        operation.mBindArgs.clear();
+        for (Object arg : bindArgs) {
+          operation.mBindArgs.add(arg);
+        }
+        operation.mCookie = (mGeneration++) << 8 | index;
+        mIndex = index;
+        return operation.mCookie;
+      }
+    }
+
+    void recordResultSet(int cookie, long rowCount) {
+      synchronized (mOperations) {
+        Entry operation = mOperations[cookie & 0xff];
+        if (operation.mCookie == cookie) {
+          operation.mRowCount = rowCount;
+        }
+      }
+    }
+
+    void endOperation(int cookie) {
+      String kind = null;
+      String sql = null;
+      long millis = 0L;
+      long rowCount = -1L;
+      synchronized (mOperations) {
+        Entry operation = mOperations[cookie & 0xff];
+        if (operation.mCookie == cookie) {
+          operation.mEndTime = System.currentTimeMillis();
+          operation.mFinished = true;
+          kind = operation.mKind;
+          sql = operation.mSql;
+          millis = operation.mEndTime - operation.mStartTime;
+          rowCount = operation.mRowCount;
+        }
+      }
+      if (kind != null) {
+        mStatistics.record(kind, sql, millis * 1000L, false, rowCount, -1L);
+      }
+    }
+  }
+}
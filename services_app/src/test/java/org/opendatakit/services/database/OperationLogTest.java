@@ -0,0 +1,145 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class OperationLogTest {
+
+  private static final int THREADS = 4;
+  private static final int OPERATIONS_PER_THREAD = 10000;
+
+  @Test
+  public void testOperationsAreRecorded() {
+    OperationLog log = new OperationLog("default");
+    int cookie = log.beginOperation("session", "executeForCursor", "SELECT * FROM t WHERE a = ?",
+        new Object[] { "abc", new byte[] { 1, 2 } });
+    assertTrue(log.describeCurrentOperation().startsWith("executeForCursor started"));
+    log.recordResultSet(cookie, 3, 120);
+    log.endOperation(cookie);
+    assertNull(log.describeCurrentOperation());
+
+    StringBuilder b = new StringBuilder();
+    log.dump(b, true);
+    String dump = b.toString();
+    assertTrue(dump, dump.contains("executeForCursor took"));
+    assertTrue(dump, dump.contains("3 rows, 120 bytes"));
+    assertTrue(dump, dump.contains("bindArgs=[\"abc\", <byte[]>]"));
+    assertEquals(1L, log.getStatistics().getKindStatistics().get("executeForCursor").getLatency()
+        .getTotalCount());
+  }
+
+  @Test
+  public void testBindArgsAreCapturedWhenRead() {
+    OperationLog log = new OperationLog("default");
+    Object[] bindArgs = new Object[] { "abc", 7, new byte[] { 1, 2, 3 } };
+    int cookie = log.beginOperation("session", "executeForCursor",
+        "SELECT * FROM t WHERE a = ? AND b = ? AND c = ?", bindArgs);
+    log.endOperation(cookie);
+
+    StringBuilder b = new StringBuilder();
+    log.dump(b, true);
+    assertTrue(b.toString(), b.toString().contains("bindArgs=[\"abc\", 7, <byte[]>]"));
+
+    // the caller's array is held, not copied, so a reused array shows its current values
+    bindArgs[0] = "xyz";
+    b = new StringBuilder();
+    log.dump(b, true);
+    assertTrue(b.toString(), b.toString().contains("bindArgs=[\"xyz\", 7, <byte[]>]"));
+  }
+
+  @Test
+  public void testConcurrentOperationsAreAllRecorded() throws Exception {
+    final OperationLog log = new OperationLog("default");
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; ++t) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Object[] bindArgs = new Object[] { "uuid:0b8e7e52", "COMPLETE" };
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+            int cookie = log.beginOperation("session", "executeForCursor", "SELECT 1", bindArgs);
+            log.recordResultSet(cookie, 1, 100);
+            log.endOperationDeferLogAdditional(cookie, null);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    // dump while the operations are being recorded
+    StringBuilder b = new StringBuilder();
+    log.dump(b, true);
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(b.toString().contains("executeForCursor"));
+
+    assertEquals((long) THREADS * OPERATIONS_PER_THREAD,
+        log.getStatistics().getKindStatistics().get("executeForCursor").getLatency()
+            .getTotalCount());
+  }
+
+  @Test
+  public void testCookiesAreScopedToTheirThread() throws Exception {
+    final OperationLog log = new OperationLog("default");
+    final int cookie = log.beginOperation("session", "beginTransactionNonExclusive()", null, null);
+    final AtomicInteger otherCookie = new AtomicInteger();
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // ending another thread's operation is ignored
+        log.endOperation(cookie);
+        otherCookie.set(log.beginOperation("other", "isOpen()", null, null));
+        log.endOperation(otherCookie.get());
+      }
+    });
+    t.start();
+    t.join();
+    // the cookies of different threads differ
+    assertFalse(cookie == otherCookie.get());
+    assertTrue(log.describeCurrentOperation().startsWith("beginTransactionNonExclusive()"));
+    log.endOperation(cookie);
+    assertNull(log.describeCurrentOperation());
+
+    StringBuilder b = new StringBuilder();
+    log.dump(b, false);
+    assertTrue(b.toString().contains("sessionQualifier:other"));
+    assertTrue(b.toString().contains("sessionQualifier:session"));
+  }
+
+  @Test
+  public void testRingRetainsMostRecentOperations() {
+    OperationLog log = new OperationLog("default");
+    for (int i = 0; i < OperationLog.RING_SIZE * 3; ++i) {
+      log.endOperation(log.beginOperation("session", "op" + i + "()", null, null));
+    }
+    StringBuilder b = new StringBuilder();
+    log.dump(b, false);
+    String dump = b.toString();
+    assertTrue(dump, dump.contains(" 0: op" + (OperationLog.RING_SIZE * 3 - 1) + "()"));
+    assertTrue(dump, dump.contains(" " + (OperationLog.RING_SIZE - 1) + ": op"
+        + (OperationLog.RING_SIZE * 2) + "()"));
+    assertTrue(dump, !dump.contains("op" + (OperationLog.RING_SIZE * 2 - 1) + "()"));
+
+    log.clearOperations();
+    b = new StringBuilder();
+    log.dump(b, false);
+    assertTrue(b.toString().contains("Most recently executed operations:\n    <none>"));
+  }
+}
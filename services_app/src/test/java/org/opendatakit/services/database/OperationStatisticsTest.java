@@ -0,0 +1,91 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class OperationStatisticsTest {
+
+  @Test
+  public void testSqlTemplates() {
+    assertEquals("SELECT * FROM t WHERE a = ? AND b = ?",
+        OperationStatistics.toSqlTemplate("SELECT  *\n FROM t WHERE a = 'it''s' AND b = 42"));
+    assertEquals("SELECT * FROM t WHERE _id IN (?...)",
+        OperationStatistics.toSqlTemplate("SELECT * FROM t WHERE _id IN (?, ?,?)"));
+    assertEquals("SELECT * FROM t WHERE _id IN (?...) LIMIT ?",
+        OperationStatistics.toSqlTemplate("SELECT * FROM t WHERE _id IN ('a', 'b') LIMIT 10"));
+    // digits within identifiers are kept
+    assertEquals("SELECT col_2 FROM t1 WHERE x > ?",
+        OperationStatistics.toSqlTemplate("SELECT col_2 FROM t1 WHERE x > -1.5e3"));
+  }
+
+  @Test
+  public void testKinds() {
+    assertEquals("delete", OperationStatistics.kindOf("delete(\"t\",\"_id=?\",...)"));
+    assertEquals("executeForCursor", OperationStatistics.kindOf("executeForCursor"));
+  }
+
+  @Test
+  public void testRecord() {
+    OperationStatistics stats = new OperationStatistics();
+    stats.record("executeForCursor", "SELECT * FROM t WHERE a = 1", 1000L, false, 10L, 400L);
+    stats.record("executeForCursor", "SELECT * FROM t WHERE a = 2", 3000L, false, 5L, 200L);
+    stats.record("execute", "DELETE FROM t", 500L, true, -1L, -1L);
+    stats.recordStatementCacheLookup(true);
+    stats.recordStatementCacheLookup(true);
+    stats.recordStatementCacheLookup(false);
+
+    OperationStatistics.Stats query = stats.getSqlTemplateStatistics()
+        .get("SELECT * FROM t WHERE a = ?");
+    assertEquals(2L, query.getLatency().getTotalCount());
+    assertEquals(15L, query.getRows());
+    assertEquals(600L, query.getBytes());
+    assertEquals(0L, query.getFailures());
+    assertEquals(1L, stats.getKindStatistics().get("execute").getFailures());
+    assertEquals(2L, stats.getStatementCacheHits());
+    assertEquals(1L, stats.getStatementCacheMisses());
+
+    StringBuilder b = new StringBuilder();
+    stats.dump(b, false);
+    String dump = b.toString();
+    assertTrue(dump.contains("66.7% hit ratio"));
+    assertTrue(dump.contains("SELECT * FROM t WHERE a = ?"));
+    assertTrue(dump.contains("DELETE FROM t"));
+  }
+
+  @Test
+  public void testTemplateCountIsBounded() {
+    OperationStatistics stats = new OperationStatistics();
+    for (int i = 0; i < OperationStatistics.MAX_SQL_TEMPLATES + 50; ++i) {
+      stats.record("execute", "CREATE TABLE t" + i + " (a INTEGER)", 10L, false, -1L, -1L);
+    }
+    assertEquals(OperationStatistics.MAX_SQL_TEMPLATES + 1,
+        stats.getSqlTemplateStatistics().size());
+    assertEquals(50L, stats.getSqlTemplateStatistics()
+        .get(OperationStatistics.OTHER_SQL_TEMPLATE).getLatency().getTotalCount());
+  }
+
+  @Test
+  public void testSqlMemoEvictsLeastRecentlyUsed() {
+    OperationStatistics stats = new OperationStatistics();
+    String hot = "SELECT * FROM t WHERE a = 1";
+    String cold = "SELECT * FROM t WHERE a = 2";
+    stats.templateOf(cold);
+    stats.templateOf(hot);
+    for (int i = 0; i < 2 * OperationStatistics.MAX_MEMOIZED_SQL; ++i) {
+      // statements executed once each, interleaved with one executed repeatedly
+      stats.templateOf("SELECT * FROM t WHERE b = " + i);
+      assertEquals("SELECT * FROM t WHERE a = ?", stats.templateOf(hot));
+    }
+    assertTrue(stats.isMemoized(hot));
+    assertFalse(stats.isMemoized(cold));
+    assertTrue(stats.isMemoized(
+        "SELECT * FROM t WHERE b = " + (2 * OperationStatistics.MAX_MEMOIZED_SQL - 1)));
+    assertFalse(stats.isMemoized("SELECT * FROM t WHERE b = 0"));
+  }
+}
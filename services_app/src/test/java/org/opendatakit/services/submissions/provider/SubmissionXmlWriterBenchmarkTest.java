@@ -0,0 +1,115 @@
+package org.opendatakit.services.submissions.provider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Throughput benchmark of XML submission generation for a wide form with
+ * repeat groups: the DOM and Transformer path that SubmissionProvider used to
+ * take, which holds the DOM, the serialized bytes and a String copy of the
+ * document before writing it out, against the streaming writer.
+ * <p>
+ * Excluded from the default unit test run; run it with -PrunBenchmarks. That
+ * both produce the same bytes is checked by SubmissionXmlWriterTest.
+ */
+@RunWith(JUnit4.class)
+public class SubmissionXmlWriterBenchmarkTest {
+
+  private static final Logger LOG =
+      Logger.getLogger(SubmissionXmlWriterBenchmarkTest.class.getName());
+
+  private static final int TOP_LEVEL_FIELDS = 400;
+  private static final int REPEAT_GROUPS = 40;
+  private static final int FIELDS_PER_GROUP = 40;
+  private static final int ITERATIONS = 40;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private interface Generator {
+    void write(Map<String, Object> values, File out) throws Exception;
+  }
+
+  @Test
+  public void testDomAndStreamingThroughput() throws Exception {
+    final Map<String, Object> values =
+        SubmissionXmlWriterTest.wideForm(TOP_LEVEL_FIELDS, REPEAT_GROUPS, FIELDS_PER_GROUP);
+    File domFile = folder.newFile("dom.xml");
+    File streamFile = folder.newFile("stream.xml");
+
+    Generator dom = new Generator() {
+      @Override
+      public void write(Map<String, Object> values, File out) throws Exception {
+        Document d = SubmissionXmlWriterTest.ReferenceDomSerializer.newDocument();
+        Element e = d.createElement("data");
+        d.appendChild(e);
+        e.setAttribute("id", "census");
+        SubmissionXmlWriterTest.ReferenceDomSerializer.appendValues(d, e, values);
+        String doc = new String(SubmissionXmlWriterTest.ReferenceDomSerializer.serialize(d),
+            "UTF-8");
+        Writer w = new OutputStreamWriter(new FileOutputStream(out, false), "UTF-8");
+        try {
+          w.write(doc);
+        } finally {
+          w.close();
+        }
+      }
+    };
+    Generator streaming = new Generator() {
+      @Override
+      public void write(Map<String, Object> values, File out) throws Exception {
+        Writer w = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(out, false), "UTF-8"));
+        try {
+          SubmissionXmlWriter xw = new SubmissionXmlWriter(w);
+          xw.startTag("data");
+          xw.attribute("id", "census");
+          xw.values(values);
+          xw.finish();
+        } finally {
+          w.close();
+        }
+      }
+    };
+
+    // warm up the JIT
+    run(dom, values, domFile, 5);
+    run(streaming, values, streamFile, 5);
+
+    long domNanos = run(dom, values, domFile, ITERATIONS);
+    long streamNanos = run(streaming, values, streamFile, ITERATIONS);
+
+    report("dom + transformer", domNanos, domFile.length());
+    report("streaming writer", streamNanos, streamFile.length());
+  }
+
+  private static long run(Generator generator, Map<String, Object> values, File out,
+      int iterations) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      generator.write(values, out);
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private static void report(String name, long nanosPerSubmission, long bytes) {
+    double millis = nanosPerSubmission / 1000000.0;
+    double mbPerSecond = (bytes / (1024.0 * 1024.0)) / (nanosPerSubmission / 1.0e9);
+    LOG.info(String.format(Locale.US, "%s: %d bytes, %.2f ms/submission, %.1f MB/s",
+        name, bytes, millis, mbPerSecond));
+  }
+}
@@ -0,0 +1,303 @@
+package org.opendatakit.services.submissions.provider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class SubmissionXmlWriterTest {
+
+  private static final String NS = "http://openrosa.org/xforms";
+
+  private static final String GOLDEN_SUBMISSION = "<household id=\"census\">"
+      + "<jr:meta xmlns:jr=\"http://openrosa.org/xforms\">"
+      + "<instanceID xmlns=\"http://openrosa.org/xforms\">uuid:2f1c</instanceID>"
+      + "<deviceID xmlns=\"http://openrosa.org/xforms\">mac:00:11</deviceID>"
+      + "<timeEnd xmlns=\"http://openrosa.org/xforms\">2020-01-02T03:04:05+0000</timeEnd>"
+      + "<instanceName>Smith &amp; Sons &lt;east&gt;</instanceName>"
+      + "<rowID>uuid:2f1c</rowID><rowETag/><defaultAccess>FULL</defaultAccess><owner/>"
+      + "<formID>census</formID><locale>en_US</locale>"
+      + "<savepointTimestamp>2020-01-02T03:04:05.000000000</savepointTimestamp></jr:meta>"
+      + "<age>42</age><comment>line one\nline two&#13;\n\t\"quoted\" 'single'</comment>"
+      + "<count>9876543210</count><heads><adults>2</adults><children/></heads>"
+      + "<location>47.6 -122.3 10.0 5.0</location><married>true</married>"
+      + "<tags>a b c</tags><weight>71.5</weight></household>";
+
+  @Test
+  public void testGoldenSubmission() throws IOException {
+    StringWriter sw = new StringWriter();
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(sw);
+    xw.startTag("household");
+    xw.attribute("id", "census");
+    xw.startTag("jr", "meta", NS);
+    xw.element(NS, "instanceID", "uuid:2f1c");
+    xw.element(NS, "deviceID", "mac:00:11");
+    xw.element(NS, "timeEnd", "2020-01-02T03:04:05+0000");
+    xw.element("instanceName", "Smith & Sons <east>");
+    xw.element("rowID", "uuid:2f1c");
+    xw.element("rowETag", null);
+    xw.element("defaultAccess", "FULL");
+    xw.element("owner", null);
+    xw.element("formID", "census");
+    xw.element("locale", "en_US");
+    xw.element("savepointTimestamp", "2020-01-02T03:04:05.000000000");
+    xw.endTag();
+    xw.values(sampleValues());
+    xw.finish();
+
+    assertEquals(GOLDEN_SUBMISSION, sw.toString());
+  }
+
+  @Test
+  public void testMatchesTransformer() throws Exception {
+    // Long values were not supported by the DOM serializer; leave them out
+    Map<String, Object> values = sampleValues();
+    values.remove("count");
+    values.put("every_character", everyCharacter());
+
+    String[] meta = { "uuid:é😀", "Smith & Sons <east>\r\n\u0085", null, "" };
+
+    StringWriter sw = new StringWriter();
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(sw);
+    xw.startTag("data");
+    xw.attribute("id", "t&<>\"'\n\t\ré😀\u0001\u0085x");
+    xw.startTag("jr", "meta", NS);
+    xw.element(NS, "instanceID", meta[0]);
+    xw.element("instanceName", meta[1]);
+    xw.element("rowETag", meta[2]);
+    xw.element("owner", meta[3]);
+    xw.endTag();
+    xw.values(values);
+    xw.finish();
+    byte[] streamed = sw.toString().getBytes("UTF-8");
+
+    // the previous implementation: build a DOM and serialize it
+    Document d = ReferenceDomSerializer.newDocument();
+    Element e = d.createElement("data");
+    d.appendChild(e);
+    e.setAttribute("id", "t&<>\"'\n\t\ré😀\u0001\u0085x");
+    Element m = d.createElementNS(NS, "meta");
+    m.setPrefix("jr");
+    Element v = d.createElementNS(NS, "instanceID");
+    v.appendChild(d.createTextNode(meta[0]));
+    m.appendChild(v);
+    v = d.createElement("instanceName");
+    v.appendChild(d.createTextNode(meta[1]));
+    m.appendChild(v);
+    m.appendChild(d.createElement("rowETag"));
+    v = d.createElement("owner");
+    v.appendChild(d.createTextNode(meta[3]));
+    m.appendChild(v);
+    e.appendChild(m);
+    ReferenceDomSerializer.appendValues(d, e, values);
+
+    assertArrayEquals(ReferenceDomSerializer.serialize(d), streamed);
+  }
+
+  @Test
+  public void testWideFormMatchesTransformer() throws Exception {
+    // the form SubmissionXmlWriterBenchmarkTest measures, at a smaller size
+    Map<String, Object> values = wideForm(100, 10, 10);
+
+    StringWriter sw = new StringWriter();
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(sw);
+    xw.startTag("data");
+    xw.attribute("id", "census");
+    xw.values(values);
+    xw.finish();
+
+    Document d = ReferenceDomSerializer.newDocument();
+    Element e = d.createElement("data");
+    d.appendChild(e);
+    e.setAttribute("id", "census");
+    ReferenceDomSerializer.appendValues(d, e, values);
+
+    assertArrayEquals(ReferenceDomSerializer.serialize(d), sw.toString().getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testStreamsUtf8() throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    Writer w = new OutputStreamWriter(bo, "UTF-8");
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(w);
+    xw.element("name", "Jürgen 中");
+    xw.finish();
+    assertArrayEquals("<name>Jürgen 中</name>".getBytes("UTF-8"), bo.toByteArray());
+  }
+
+  @Test
+  public void testUnpairedHighSurrogate() throws IOException {
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(new StringWriter());
+    xw.startTag("data");
+    try {
+      xw.text("x\ud800y");
+      fail("expected an IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testUnsupportedValueType() throws IOException {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("list", Arrays.<Object>asList("a", new Object()));
+    SubmissionXmlWriter xw = new SubmissionXmlWriter(new StringWriter());
+    xw.startTag("data");
+    try {
+      xw.values(values);
+      fail("expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static Map<String, Object> sampleValues() {
+    Map<String, Object> heads = new HashMap<String, Object>();
+    heads.put("adults", 2);
+    heads.put("children", null);
+
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("weight", 71.5);
+    values.put("married", Boolean.TRUE);
+    values.put("age", 42);
+    values.put("count", 9876543210L);
+    values.put("heads", heads);
+    values.put("tags", new ArrayList<Object>(Arrays.<Object>asList("a", "b", "c")));
+    values.put("location", "47.6 -122.3 10.0 5.0");
+    values.put("comment", "line one\nline two\r\n\t\"quoted\" 'single'");
+    return values;
+  }
+
+  /**
+   * @return the values of a wide form with repeat groups, with a mix of
+   * value types and text that needs escaping.
+   */
+  static Map<String, Object> wideForm(int topLevelFields, int repeatGroups, int fieldsPerGroup) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (int i = 0; i < topLevelFields; ++i) {
+      values.put(String.format(Locale.US, "field_%03d", i), wideFormValue(i));
+    }
+    for (int g = 0; g < repeatGroups; ++g) {
+      Map<String, Object> group = new HashMap<String, Object>();
+      for (int i = 0; i < fieldsPerGroup; ++i) {
+        group.put(String.format(Locale.US, "member_%02d", i),
+            wideFormValue(g * fieldsPerGroup + i));
+      }
+      values.put(String.format(Locale.US, "household_%02d", g), group);
+    }
+    return values;
+  }
+
+  private static Object wideFormValue(int i) {
+    switch (i % 5) {
+    case 0:
+      return i;
+    case 1:
+      return i * 0.25;
+    case 2:
+      return (i % 2) == 0;
+    case 3:
+      List<Object> choices = new ArrayList<Object>();
+      choices.add("option_a");
+      choices.add("option_c");
+      return choices;
+    default:
+      return "Free text answer #" + i + " with <markup> & \"quotes\" and accents: é ñ ü";
+    }
+  }
+
+  /**
+   * @return a string holding every BMP character that is not a surrogate, a
+   * few supplementary characters and a lone low surrogate.
+   */
+  private static String everyCharacter() {
+    StringBuilder b = new StringBuilder();
+    for (int c = 0; c <= Character.MAX_VALUE; ++c) {
+      if (!Character.isSurrogate((char) c)) {
+        b.append((char) c);
+      }
+    }
+    b.appendCodePoint(0x10000).appendCodePoint(0x1f600).appendCodePoint(0x10ffff);
+    b.append('\udc00');
+    return b.toString();
+  }
+
+  /**
+   * Holds the DOM and Transformer based serialization that SubmissionProvider
+   * used before it streamed submissions.
+   */
+  static class ReferenceDomSerializer {
+
+    static Document newDocument() throws Exception {
+      Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .newDocument();
+      d.setXmlStandalone(true);
+      return d;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void appendValues(Document d, Element data, Map<String, Object> values) {
+      List<String> entryNames = new ArrayList<String>(values.keySet());
+      Collections.sort(entryNames);
+      for (String key : entryNames) {
+        Object o = values.get(key);
+        Element e = d.createElement(key);
+        if (o instanceof Map) {
+          appendValues(d, e, (Map<String, Object>) o);
+        } else if (o instanceof List) {
+          StringBuilder b = new StringBuilder();
+          for (Object ob : (List<Object>) o) {
+            b.append(ob.toString()).append(" ");
+          }
+          e.appendChild(d.createTextNode(b.toString().trim()));
+        } else if (o != null) {
+          e.appendChild(d.createTextNode(o.toString()));
+        }
+        data.appendChild(e);
+      }
+    }
+
+    static byte[] serialize(Document d) throws Exception {
+      Transformer transformer =
+          TransformerFactory.newInstance().newTransformer();
+      Properties outFormat = new Properties();
+      outFormat.setProperty(OutputKeys.INDENT, "no");
+      outFormat.setProperty(OutputKeys.METHOD, "xml");
+      outFormat.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      outFormat.setProperty(OutputKeys.VERSION, "1.0");
+      outFormat.setProperty(OutputKeys.ENCODING, "UTF-8");
+      transformer.setOutputProperties(outFormat);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      transformer.transform(new DOMSource(d.getDocumentElement()),
+          new StreamResult(out));
+      return out.toByteArray();
+    }
+  }
+}
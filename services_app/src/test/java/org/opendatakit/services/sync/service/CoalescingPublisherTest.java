@@ -0,0 +1,118 @@
+package org.opendatakit.services.sync.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class CoalescingPublisherTest {
+
+  private static final long INTERVAL_MILLIS = 250L;
+  private static final long MILLIS = 1000000L;
+
+  private static class ManualTicker implements CoalescingPublisher.Ticker {
+    long now = 0L;
+
+    @Override
+    public long nanoTime() {
+      return now;
+    }
+
+    void advanceMillis(long millis) {
+      now += millis * MILLIS;
+    }
+  }
+
+  private static class ManualScheduler implements CoalescingPublisher.Scheduler {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final List<Long> delays = new ArrayList<Long>();
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+      tasks.add(task);
+      delays.add(delayMillis);
+    }
+
+    void runAll() {
+      List<Runnable> ready = new ArrayList<Runnable>(tasks);
+      tasks.clear();
+      for (Runnable task : ready) {
+        task.run();
+      }
+    }
+  }
+
+  private ManualTicker ticker;
+  private ManualScheduler scheduler;
+  private List<String> published;
+  private CoalescingPublisher<String> publisher;
+
+  @Before
+  public void setUp() {
+    ticker = new ManualTicker();
+    scheduler = new ManualScheduler();
+    published = new ArrayList<String>();
+    publisher = new CoalescingPublisher<String>(INTERVAL_MILLIS, scheduler, ticker,
+        new CoalescingPublisher.Sink<String>() {
+          @Override
+          public void publish(String value) {
+            published.add(value);
+          }
+        });
+  }
+
+  @Test
+  public void testFirstOfferIsPublishedImmediately() {
+    publisher.offer("a");
+    assertEquals(1, scheduler.tasks.size());
+    assertEquals(0L, (long) scheduler.delays.get(0));
+    scheduler.runAll();
+    assertEquals(1, published.size());
+    assertEquals("a", published.get(0));
+  }
+
+  @Test
+  public void testOffersAreCoalescedToTheLatest() {
+    publisher.offer("a");
+    scheduler.runAll();
+
+    ticker.advanceMillis(100);
+    publisher.offer("b");
+    publisher.offer("c");
+    publisher.offer("d");
+    // one run, at the end of the interval
+    assertEquals(1, scheduler.tasks.size());
+    assertEquals(150L, (long) scheduler.delays.get(1));
+
+    ticker.advanceMillis(150);
+    scheduler.runAll();
+    assertEquals(2, published.size());
+    assertEquals("d", published.get(1));
+  }
+
+  @Test
+  public void testDiscardPendingDropsStaleValue() {
+    publisher.offer("a");
+    publisher.discardPending();
+    scheduler.runAll();
+    assertTrue(published.isEmpty());
+
+    // still usable afterwards
+    publisher.offer("b");
+    scheduler.runAll();
+    assertEquals(1, published.size());
+    assertEquals("b", published.get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullOffer() {
+    publisher.offer(null);
+  }
+}
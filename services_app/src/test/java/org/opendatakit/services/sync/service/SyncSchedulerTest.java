@@ -0,0 +1,137 @@
+package org.opendatakit.services.sync.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SyncSchedulerTest {
+
+  private static class ManualExecutor implements Executor {
+    final List<Runnable> started = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      started.add(command);
+    }
+
+    /**
+     * Run the sync that was started index-th, to completion.
+     */
+    void finish(int index) {
+      started.get(index).run();
+    }
+  }
+
+  private static class RecordingTask implements Runnable {
+    final String name;
+    final List<String> log;
+
+    RecordingTask(String name, List<String> log) {
+      this.name = name;
+      this.log = log;
+    }
+
+    @Override
+    public void run() {
+      log.add(name);
+    }
+  }
+
+  private ManualExecutor executor;
+  private SyncScheduler scheduler;
+  private List<String> ran;
+
+  @Before
+  public void setUp() {
+    executor = new ManualExecutor();
+    scheduler = new SyncScheduler(2, executor);
+    ran = new ArrayList<String>();
+  }
+
+  private Runnable task(String name) {
+    return new RecordingTask(name, ran);
+  }
+
+  @Test
+  public void testConcurrencyIsBounded() {
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, task("a"));
+    scheduler.submit("b", SyncScheduler.Priority.USER_INITIATED, task("b"));
+    scheduler.submit("c", SyncScheduler.Priority.USER_INITIATED, task("c"));
+    assertEquals(2, executor.started.size());
+    assertEquals(2, scheduler.getRunningCount());
+    assertEquals(1, scheduler.getQueuedCount());
+
+    executor.finish(0);
+    assertEquals(3, executor.started.size());
+    executor.finish(2);
+    assertEquals("c", ran.get(1));
+  }
+
+  @Test
+  public void testOneSyncPerAppAtATime() {
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, task("a1"));
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, task("a2"));
+    scheduler.submit("b", SyncScheduler.Priority.USER_INITIATED, task("b"));
+    // a2 waits for a1, but does not hold up b
+    assertEquals(2, executor.started.size());
+    executor.finish(1);
+    assertEquals("b", ran.get(0));
+    assertEquals(2, executor.started.size());
+
+    executor.finish(0);
+    assertEquals(3, executor.started.size());
+    executor.finish(2);
+    assertEquals("a2", ran.get(2));
+  }
+
+  @Test
+  public void testUserInitiatedBeforePeriodic() {
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, task("a"));
+    scheduler.submit("b", SyncScheduler.Priority.USER_INITIATED, task("b"));
+    scheduler.submit("c", SyncScheduler.Priority.PERIODIC, task("c"));
+    scheduler.submit("d", SyncScheduler.Priority.USER_INITIATED, task("d"));
+
+    executor.finish(0);
+    executor.finish(2);
+    assertEquals("d", ran.get(1));
+    executor.finish(1);
+    executor.finish(3);
+    assertEquals("c", ran.get(3));
+  }
+
+  @Test
+  public void testCancelBeforeStart() {
+    Runnable a = task("a");
+    Runnable b = task("b");
+    Runnable c = task("c");
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, a);
+    scheduler.submit("b", SyncScheduler.Priority.USER_INITIATED, b);
+    scheduler.submit("c", SyncScheduler.Priority.USER_INITIATED, c);
+
+    assertFalse(scheduler.cancel(a));
+    assertTrue(scheduler.cancel(c));
+    assertFalse(scheduler.cancel(c));
+    assertEquals(0, scheduler.getQueuedCount());
+
+    executor.finish(0);
+    executor.finish(1);
+    assertEquals(2, executor.started.size());
+    assertEquals(0, scheduler.getRunningCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSubmitAfterShutdown() {
+    scheduler.shutdown();
+    scheduler.submit("a", SyncScheduler.Priority.USER_INITIATED, task("a"));
+  }
+}
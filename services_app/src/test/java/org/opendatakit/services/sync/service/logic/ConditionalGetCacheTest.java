@@ -0,0 +1,78 @@
+package org.opendatakit.services.sync.service.logic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ConditionalGetCacheTest {
+
+  private static final URI TABLES_URI =
+      URI.create("https://example.org/odktables/default/tables/");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before
+  public void setUp() {
+    cacheDir = new File(folder.getRoot(), "cache");
+  }
+
+  @Test
+  public void testPutAndGet() {
+    ConditionalGetCache cache = new ConditionalGetCache(cacheDir, "user:alice", null);
+    assertNull(cache.get(TABLES_URI));
+
+    cache.put(TABLES_URI, "\"etag-1\"", null, "{\"tables\":[]}");
+    ConditionalGetCache.Entry entry = cache.get(TABLES_URI);
+    assertNotNull(entry);
+    assertEquals("\"etag-1\"", entry.eTag);
+    assertNull(entry.lastModified);
+    assertEquals("{\"tables\":[]}", entry.body);
+
+    cache.remove(TABLES_URI);
+    assertNull(cache.get(TABLES_URI));
+  }
+
+  @Test
+  public void testEntriesAreIdentitySpecific() {
+    ConditionalGetCache alice = new ConditionalGetCache(cacheDir, "user:alice", null);
+    ConditionalGetCache bob = new ConditionalGetCache(cacheDir, "user:bob", null);
+
+    alice.put(TABLES_URI, null, "Tue, 03 Nov 2020 10:00:00 GMT", "alice");
+    assertNull(bob.get(TABLES_URI));
+    assertEquals("alice", alice.get(TABLES_URI).body);
+  }
+
+  @Test
+  public void testResponseWithoutValidatorsIsNotCached() {
+    ConditionalGetCache cache = new ConditionalGetCache(cacheDir, "anonymous", null);
+    cache.put(TABLES_URI, "\"etag-1\"", null, "old");
+    cache.put(TABLES_URI, null, null, "new");
+    assertNull(cache.get(TABLES_URI));
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    ConditionalGetCache cache = new ConditionalGetCache(cacheDir, "anonymous", null);
+    for (int i = 0; i < ConditionalGetCache.MAX_ENTRIES + 10; ++i) {
+      cache.put(URI.create(TABLES_URI.toString() + "t" + i), "\"" + i + "\"", null, "body");
+    }
+    String[] names = cacheDir.list();
+    assertNotNull(names);
+    assertTrue(names.length <= ConditionalGetCache.MAX_ENTRIES);
+  }
+}
@@ -0,0 +1,94 @@
+package org.opendatakit.services.sync.service.logic;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class JsonRowResourceListStreamTest {
+
+  private static final String ROW_1 = "{\"rowETag\":\"e1\",\"id\":\"r1\",\"deleted\":false,"
+      + "\"orderedColumns\":[{\"column\":\"col1\",\"value\":\"a\"}]}";
+  private static final String ROW_2 = "{\"rowETag\":\"e2\",\"id\":\"r2\",\"deleted\":true,"
+      + "\"orderedColumns\":[{\"column\":\"col1\",\"value\":null}]}";
+
+  private static JsonRowResourceListStream open(String json) throws IOException {
+    return new JsonRowResourceListStream(
+        new ByteArrayInputStream(json.getBytes(Charset.forName("UTF-8"))), null);
+  }
+
+  @Test
+  public void testRowsBeforeMetadata() throws IOException {
+    JsonRowResourceListStream stream = open("{\"rows\":[" + ROW_1 + "," + ROW_2 + "],"
+        + "\"dataETag\":\"d1\",\"webSafeResumeCursor\":\"c1\",\"hasMoreResults\":true}");
+    try {
+      RowResource row = stream.nextRow();
+      assertNotNull(row);
+      assertEquals("r1", row.getRowId());
+      row = stream.nextRow();
+      assertNotNull(row);
+      assertEquals("r2", row.getRowId());
+      assertTrue(row.isDeleted());
+      assertNull(stream.nextRow());
+
+      RowResourceList page = stream.getPageMetadata();
+      assertEquals("d1", page.getDataETag());
+      assertEquals("c1", page.getWebSafeResumeCursor());
+      assertTrue(page.isHasMoreResults());
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void testMetadataBeforeRows() throws IOException {
+    JsonRowResourceListStream stream = open("{\"dataETag\":\"d2\",\"hasMoreResults\":false,"
+        + "\"rows\":[" + ROW_1 + "]}");
+    try {
+      assertEquals("r1", stream.nextRow().getRowId());
+      assertNull(stream.nextRow());
+      RowResourceList page = stream.getPageMetadata();
+      assertEquals("d2", page.getDataETag());
+      assertFalse(page.isHasMoreResults());
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void testUnconsumedRowsAreSkipped() throws IOException {
+    JsonRowResourceListStream stream = open("{\"rows\":[" + ROW_1 + "," + ROW_2 + "],"
+        + "\"dataETag\":\"d3\"}");
+    try {
+      assertEquals("r1", stream.nextRow().getRowId());
+      RowResourceList page = stream.getPageMetadata();
+      assertEquals("d3", page.getDataETag());
+      assertNull(stream.nextRow());
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void testEmptyPage() throws IOException {
+    JsonRowResourceListStream stream = open("{\"rows\":[],\"dataETag\":null}");
+    try {
+      assertNull(stream.nextRow());
+      assertNull(stream.getPageMetadata().getDataETag());
+    } finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package org.opendatakit.services.sync.service.logic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.httpclientandroidlib.HttpEntity;
+import org.opendatakit.httpclientandroidlib.client.entity.GzipCompressingEntity;
+import org.opendatakit.httpclientandroidlib.client.methods.CloseableHttpResponse;
+import org.opendatakit.httpclientandroidlib.client.methods.HttpPut;
+import org.opendatakit.httpclientandroidlib.impl.client.CloseableHttpClient;
+import org.opendatakit.httpclientandroidlib.impl.client.HttpClientBuilder;
+import org.opendatakit.httpclientandroidlib.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Byte counts of sync request and response bodies against a local mock
+ * server. The mock echoes the request body back (gzip-encoded when the
+ * client accepts it) and records the number of bytes that crossed the wire
+ * in each direction.
+ */
+@RunWith(JUnit4.class)
+public class SyncCompressionTest {
+
+  private static final int NUM_ROWS = 2000;
+  private static final int NUM_COLUMNS = 20;
+
+  private HttpServer server;
+  private URI echoUri;
+  private final AtomicLong requestWireBytes = new AtomicLong();
+  private final AtomicLong responseWireBytes = new AtomicLong();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/echo", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        requestWireBytes.set(body.length);
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        byte[] response = body;
+        String requestEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(requestEncoding)) {
+          // return the body as-is; it is already gzip-encoded
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        } else if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+          ByteArrayOutputStream bo = new ByteArrayOutputStream();
+          GZIPOutputStream gzip = new GZIPOutputStream(bo);
+          gzip.write(body);
+          gzip.close();
+          response = bo.toByteArray();
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        responseWireBytes.set(response.length);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+      }
+    });
+    server.start();
+    echoUri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/echo");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int len;
+    while ((len = is.read(buf)) >= 0) {
+      bo.write(buf, 0, len);
+    }
+    return bo.toByteArray();
+  }
+
+  private static Map<String, Object> buildRowList() {
+    List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      Map<String, Object> row = new HashMap<String, Object>();
+      row.put("id", UUID.randomUUID().toString());
+      row.put("rowETag", UUID.randomUUID().toString());
+      row.put("formId", "household_survey");
+      row.put("locale", "en_US");
+      row.put("savepointType", "COMPLETE");
+      row.put("savepointTimestamp", "2020-10-29T13:37:47.000000000");
+      List<Map<String, String>> values = new ArrayList<Map<String, String>>();
+      for (int j = 0; j < NUM_COLUMNS; ++j) {
+        Map<String, String> dkv = new HashMap<String, String>();
+        dkv.put("column", "column_" + j);
+        dkv.put("value", (j % 3 == 0) ? Integer.toString(i * j) : "value " + (i % 17));
+        values.add(dkv);
+      }
+      row.put("orderedColumns", values);
+      rows.add(row);
+    }
+    Map<String, Object> rowList = new HashMap<String, Object>();
+    rowList.put("rows", rows);
+    rowList.put("dataETag", UUID.randomUUID().toString());
+    return rowList;
+  }
+
+  /**
+   * @return request bytes on the wire, response bytes on the wire, decoded
+   * response bytes
+   */
+  private long[] put(CloseableHttpClient client, HttpEntity entity) throws IOException {
+    HttpPut request = new HttpPut(echoUri);
+    request.setEntity(entity);
+    CloseableHttpResponse response = client.execute(request);
+    try {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      // the client transparently decodes the gzip response
+      byte[] decoded = EntityUtils.toByteArray(response.getEntity());
+      return new long[] { requestWireBytes.get(), responseWireBytes.get(), decoded.length };
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void testRowPushBytesOnTheWire() throws IOException {
+    Map<String, Object> rowList = buildRowList();
+
+    CloseableHttpClient client = HttpClientBuilder.create().build();
+    try {
+      long[] plain = put(client, new JsonStreamingEntity(rowList));
+      long[] gzip = put(client, new GzipCompressingEntity(new JsonStreamingEntity(rowList)));
+
+      // both forms decode to the same JSON
+      assertEquals(plain[2], gzip[2]);
+      // the uncompressed request still receives a compressed response
+      assertTrue(plain[1] < plain[0]);
+      // row JSON is highly redundant and should compress by well over 4x
+      assertTrue(gzip[0] * 4 < plain[0]);
+    } finally {
+      client.close();
+    }
+  }
+}
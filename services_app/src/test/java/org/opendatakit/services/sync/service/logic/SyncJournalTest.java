@@ -0,0 +1,190 @@
+package org.opendatakit.services.sync.service.logic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies what the journal hands back to a sync that restarts with only the
+ * persisted entries surviving. Resuming an actual pull is covered by
+ * SyncJournalResumeTest, which drives ProcessRowDataPullServerUpdates.
+ */
+@RunWith(JUnit4.class)
+public class SyncJournalTest {
+
+  private static final String SERVER_KEY = "https://example.org|basic|alice";
+  private static final String TABLE_ID = "census";
+  private static final String SCHEMA_ETAG = "schema-1";
+  private static final String LAST_DATA_ETAG = "data-0";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Persistent journal storage; outlives the SyncJournal instances.
+   */
+  private static class MemoryStore implements SyncJournal.Store {
+    final Map<String, String> tableServerKeys = new HashMap<String, String>();
+    final Map<String, SyncJournal.TableEntry> tables = new HashMap<String, SyncJournal.TableEntry>();
+    final List<String> attachmentServerKeys = new ArrayList<String>();
+    final List<SyncJournal.AttachmentEntry> attachments =
+        new ArrayList<SyncJournal.AttachmentEntry>();
+
+    @Override
+    public List<SyncJournal.TableEntry> loadTables(String serverKey) {
+      List<SyncJournal.TableEntry> entries = new ArrayList<SyncJournal.TableEntry>();
+      for (SyncJournal.TableEntry e : tables.values()) {
+        if (serverKey.equals(tableServerKeys.get(e.tableId))) {
+          entries.add(copy(e));
+        }
+      }
+      return entries;
+    }
+
+    @Override
+    public List<SyncJournal.AttachmentEntry> loadAttachments(String serverKey) {
+      List<SyncJournal.AttachmentEntry> entries = new ArrayList<SyncJournal.AttachmentEntry>();
+      for (int i = 0; i < attachments.size(); ++i) {
+        if (serverKey.equals(attachmentServerKeys.get(i))) {
+          entries.add(attachments.get(i));
+        }
+      }
+      return entries;
+    }
+
+    @Override
+    public void saveTable(String serverKey, SyncJournal.TableEntry entry) {
+      tableServerKeys.put(entry.tableId, serverKey);
+      tables.put(entry.tableId, copy(entry));
+    }
+
+    @Override
+    public void saveAttachment(String serverKey, SyncJournal.AttachmentEntry entry) {
+      attachmentServerKeys.add(serverKey);
+      attachments.add(entry);
+    }
+
+    @Override
+    public void deleteTable(String tableId) {
+      tables.remove(tableId);
+      tableServerKeys.remove(tableId);
+      for (int i = attachments.size() - 1; i >= 0; --i) {
+        if (attachments.get(i).tableId.equals(tableId)) {
+          attachments.remove(i);
+          attachmentServerKeys.remove(i);
+        }
+      }
+    }
+
+    private static SyncJournal.TableEntry copy(SyncJournal.TableEntry e) {
+      SyncJournal.TableEntry c = new SyncJournal.TableEntry(e.tableId);
+      c.phase = e.phase;
+      c.schemaETag = e.schemaETag;
+      c.baseDataETag = e.baseDataETag;
+      c.pageDataETag = e.pageDataETag;
+      c.resumeCursor = e.resumeCursor;
+      return c;
+    }
+  }
+
+  private MemoryStore store;
+
+  @Before
+  public void setUp() {
+    store = new MemoryStore();
+  }
+
+  @Test
+  public void testResumePointRequiresSameBase() throws ServicesAvailabilityException {
+    SyncJournal journal = new SyncJournal(store, SERVER_KEY);
+    journal.recordPulledPage(TABLE_ID, SCHEMA_ETAG, LAST_DATA_ETAG, "data-1", "cursor-1");
+
+    journal = new SyncJournal(store, SERVER_KEY);
+    String[] resumePoint = journal.getPullResumePoint(TABLE_ID, SCHEMA_ETAG, LAST_DATA_ETAG);
+    assertNotNull(resumePoint);
+    assertEquals("data-1", resumePoint[0]);
+    assertEquals("cursor-1", resumePoint[1]);
+    assertEquals(SyncJournal.Phase.PULL, journal.getInterruptedPhase(TABLE_ID));
+
+    // the table's dataETag or schema moved on -- the cursor no longer applies
+    assertNull(journal.getPullResumePoint(TABLE_ID, SCHEMA_ETAG, "data-5"));
+    assertNull(journal.getPullResumePoint(TABLE_ID, "schema-2", LAST_DATA_ETAG));
+
+    // different server or user -- nothing is carried over
+    journal = new SyncJournal(store, "https://other.org|basic|alice");
+    assertTrue(journal.getInterruptedTables().isEmpty());
+  }
+
+  @Test
+  public void testPushedBatchEndsThePull() throws ServicesAvailabilityException {
+    SyncJournal journal = new SyncJournal(store, SERVER_KEY);
+    journal.recordPulledPage(TABLE_ID, SCHEMA_ETAG, LAST_DATA_ETAG, "data-1", "cursor-1");
+    journal.recordPushedBatch(TABLE_ID, SCHEMA_ETAG, "data-2");
+
+    journal = new SyncJournal(store, SERVER_KEY);
+    assertEquals(SyncJournal.Phase.PUSH, journal.getInterruptedPhase(TABLE_ID));
+    // a pull against the new dataETag starts from the first page
+    assertNull(journal.getPullResumePoint(TABLE_ID, SCHEMA_ETAG, "data-2"));
+  }
+
+  @Test
+  public void testAttachmentTransfers() throws ServicesAvailabilityException, IOException {
+    File downloaded = writeFile("a.jpg", 100);
+    File uploaded = writeFile("b.jpg", 200);
+
+    SyncJournal journal = new SyncJournal(store, SERVER_KEY);
+    journal.recordAttachmentTransfer(TABLE_ID, "row-1", "a.jpg", downloaded, "md5:aaa");
+    // uploads have no server md5 and are not journaled
+    journal.recordAttachmentTransfer(TABLE_ID, "row-1", "b.jpg", uploaded, null);
+    assertEquals(1, store.attachments.size());
+
+    journal = new SyncJournal(store, SERVER_KEY);
+    assertTrue(journal.isAttachmentTransferred(TABLE_ID, "row-1", "a.jpg", downloaded,
+        "md5:aaa"));
+    assertFalse(journal.isAttachmentTransferred(TABLE_ID, "row-1", "a.jpg", downloaded,
+        "md5:bbb"));
+    assertFalse(journal.isAttachmentTransferred(TABLE_ID, "row-2", "a.jpg", downloaded,
+        "md5:aaa"));
+    assertFalse(journal.isAttachmentTransferred(TABLE_ID, "row-1", "b.jpg", uploaded,
+        "md5:ccc"));
+
+    // a locally modified file must be verified again
+    assertTrue(downloaded.setLastModified(downloaded.lastModified() - 10000L));
+    assertFalse(journal.isAttachmentTransferred(TABLE_ID, "row-1", "a.jpg", downloaded,
+        "md5:aaa"));
+
+    journal.tableCompleted(TABLE_ID);
+    assertTrue(store.attachments.isEmpty());
+    assertFalse(journal.isAttachmentTransferred(TABLE_ID, "row-1", "a.jpg", downloaded,
+        "md5:aaa"));
+  }
+
+  private File writeFile(String name, int length) throws IOException {
+    File f = folder.newFile(name);
+    FileOutputStream os = new FileOutputStream(f);
+    try {
+      os.write(new byte[length]);
+    } finally {
+      os.close();
+    }
+    return f;
+  }
+}
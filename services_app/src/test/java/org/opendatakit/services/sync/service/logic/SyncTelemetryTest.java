@@ -0,0 +1,168 @@
+package org.opendatakit.services.sync.service.logic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SyncTelemetryTest {
+
+  private static final String TABLE_ID = "census";
+  private static final long MILLIS = 1000000L;
+
+  private static class ManualTicker implements SyncTelemetry.Ticker {
+    long now = 0L;
+
+    @Override
+    public long nanoTime() {
+      return now;
+    }
+
+    void advanceMillis(long millis) {
+      now += millis * MILLIS;
+    }
+  }
+
+  private ManualTicker ticker;
+  private SyncTelemetry telemetry;
+
+  @Before
+  public void setUp() {
+    ticker = new ManualTicker();
+    telemetry = new SyncTelemetry(ticker);
+  }
+
+  @Test
+  public void testNestedPhasesChargeInnermostOnly() {
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PULL);
+    ticker.advanceMillis(10);
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.CONFLICTS);
+    ticker.advanceMillis(25);
+    telemetry.endPhase();
+    ticker.advanceMillis(5);
+    telemetry.endPhase();
+    ticker.advanceMillis(100);
+    telemetry.finish();
+    ticker.advanceMillis(100);
+
+    assertEquals(15L,
+        telemetry.getPhaseStats(TABLE_ID, SyncTelemetry.Phase.PULL).getElapsedMillis());
+    assertEquals(25L,
+        telemetry.getPhaseStats(TABLE_ID, SyncTelemetry.Phase.CONFLICTS).getElapsedMillis());
+    assertNull(telemetry.getPhaseStats(TABLE_ID, SyncTelemetry.Phase.PUSH));
+    assertEquals(140L, telemetry.getElapsedMillis());
+  }
+
+  @Test
+  public void testCountsChargedToCurrentPhaseAndTotals() {
+    telemetry.beginPhase(SyncTelemetry.APP_LEVEL, SyncTelemetry.Phase.MANIFESTS);
+    telemetry.addFiles(3);
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.MANIFESTS);
+    telemetry.addFiles(2);
+    telemetry.recordRetry();
+    telemetry.endPhase();
+    telemetry.endPhase();
+
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PUSH);
+    telemetry.addRows(500);
+    telemetry.endPhase();
+
+    // nothing is active -- ignored
+    telemetry.addRows(7);
+    assertNull(telemetry.beginHttpRequest());
+
+    assertEquals(3L, telemetry.getPhaseStats(SyncTelemetry.APP_LEVEL,
+        SyncTelemetry.Phase.MANIFESTS).getFiles());
+    assertEquals(2L, telemetry.getPhaseStats(TABLE_ID,
+        SyncTelemetry.Phase.MANIFESTS).getFiles());
+    assertEquals(1L, telemetry.getPhaseStats(TABLE_ID,
+        SyncTelemetry.Phase.MANIFESTS).getRetries());
+    assertEquals(5L, telemetry.getTotals(SyncTelemetry.Phase.MANIFESTS).getFiles());
+    assertEquals(500L, telemetry.getTotals(SyncTelemetry.Phase.PUSH).getRows());
+    assertEquals(0L, telemetry.getTotals(SyncTelemetry.Phase.PULL).getRows());
+  }
+
+  @Test
+  public void testHttpExchangeOutlivesItsPhase() {
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.ATTACHMENTS);
+    SyncTelemetry.HttpExchange exchange = telemetry.beginHttpRequest();
+    exchange.addBytesSent(1000L);
+    ticker.advanceMillis(40);
+    exchange.responseReceived();
+    telemetry.endPhase();
+
+    // the response body is read after the phase has ended
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PUSH);
+    exchange.addBytesReceived(4096L);
+    telemetry.endPhase();
+
+    SyncTelemetry.PhaseStats stats =
+        telemetry.getPhaseStats(TABLE_ID, SyncTelemetry.Phase.ATTACHMENTS);
+    assertEquals(1L, stats.getRequests());
+    assertEquals(1000L, stats.getBytesSent());
+    assertEquals(4096L, stats.getBytesReceived());
+    assertEquals(40000L, stats.getHttpLatency().getMaxMicros());
+    assertEquals(0L,
+        telemetry.getPhaseStats(TABLE_ID, SyncTelemetry.Phase.PUSH).getBytesReceived());
+    assertEquals(4096L, telemetry.getTotals(SyncTelemetry.Phase.ATTACHMENTS).getBytesReceived());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUnbalancedEndPhase() {
+    telemetry.endPhase();
+  }
+
+  @Test
+  public void testStatusMaps() {
+    telemetry.beginPhase(SyncTelemetry.APP_LEVEL, SyncTelemetry.Phase.MANIFESTS);
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PULL);
+    telemetry.addRows(42);
+    ticker.advanceMillis(8);
+    telemetry.endPhase();
+    telemetry.endPhase();
+
+    Map<String, Object> table = telemetry.getTableStatusMap(TABLE_ID);
+    assertEquals(1, table.size());
+    @SuppressWarnings("unchecked")
+    Map<String, Object> pull = (Map<String, Object>) table.get(SyncTelemetry.Phase.PULL.name());
+    assertEquals(42L, pull.get("rows"));
+    assertEquals(8L, pull.get("elapsedMillis"));
+    assertTrue(telemetry.getTableStatusMap("unknown").isEmpty());
+
+    Map<String, Object> summary = telemetry.getSummaryMap();
+    assertEquals(1, summary.get("tables"));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> phases = (Map<String, Object>) summary.get("phases");
+    assertEquals(SyncTelemetry.Phase.values().length, phases.size());
+  }
+
+  @Test
+  public void testSaveWritesEveryTableAndPhase() throws Exception {
+    telemetry.beginPhase(SyncTelemetry.APP_LEVEL, SyncTelemetry.Phase.MANIFESTS);
+    telemetry.endPhase();
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PULL);
+    telemetry.endPhase();
+    telemetry.beginPhase(TABLE_ID, SyncTelemetry.Phase.PUSH);
+    telemetry.endPhase();
+
+    final int[] saved = { 0 };
+    telemetry.save(new SyncTelemetry.Store() {
+      @Override
+      public void save(long startTimeMillis,
+          Map<String, Map<SyncTelemetry.Phase, SyncTelemetry.PhaseStats>> tables) {
+        assertEquals(telemetry.getStartTimeMillis(), startTimeMillis);
+        for (Map<SyncTelemetry.Phase, SyncTelemetry.PhaseStats> phases : tables.values()) {
+          saved[0] += phases.size();
+        }
+      }
+    });
+    assertEquals(3, saved[0]);
+  }
+}
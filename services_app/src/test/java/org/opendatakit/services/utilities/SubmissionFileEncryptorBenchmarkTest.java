@@ -0,0 +1,105 @@
+package org.opendatakit.services.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+
+/**
+ * Throughput of encrypting the attachments of an encrypted-form submission:
+ * the previous two-pass approach (hash the file, then encrypt it through a
+ * 2KB buffer), the single-pass pipeline, and the single-pass pipeline with
+ * the attachments encrypted in parallel.
+ * <p>
+ * Excluded from the default unit test run; run it with -PrunBenchmarks. That
+ * all three produce the same bytes is checked by SubmissionFileEncryptorTest.
+ */
+@RunWith(JUnit4.class)
+public class SubmissionFileEncryptorBenchmarkTest {
+
+  private static final Logger LOG =
+      Logger.getLogger(SubmissionFileEncryptorBenchmarkTest.class.getName());
+
+  private static final int ATTACHMENTS = 8;
+  private static final int ATTACHMENT_SIZE = 4 * 1024 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testThroughput() throws Exception {
+    SubmissionFileEncryptorTest ciphers = new SubmissionFileEncryptorTest();
+    List<File> files = new ArrayList<File>();
+    List<File> twoPass = new ArrayList<File>();
+    List<File> singlePass = new ArrayList<File>();
+    List<File> parallel = new ArrayList<File>();
+    for (int i = 0; i < ATTACHMENTS; ++i) {
+      File f = new File(folder.getRoot(), "media" + i + ".jpg");
+      OutputStream os = new FileOutputStream(f);
+      try {
+        os.write(SubmissionFileEncryptorTest.contents(ATTACHMENT_SIZE + i));
+      } finally {
+        os.close();
+      }
+      files.add(f);
+      twoPass.add(new File(folder.getRoot(), f.getName() + ".2p"));
+      singlePass.add(new File(folder.getRoot(), f.getName() + ".1p"));
+      parallel.add(new File(folder.getRoot(), f.getName() + ".par"));
+    }
+    long totalBytes = 0;
+    for (File f : files) {
+      totalBytes += f.length();
+    }
+
+    // warm up the JIT
+    for (int i = 0; i < 2; ++i) {
+      SubmissionFileEncryptorTest.twoPassEncrypt(files.get(0), twoPass.get(0), ciphers.cipher(0));
+      SubmissionFileEncryptor.encryptFile(files.get(0), singlePass.get(0), ciphers.cipher(0));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ATTACHMENTS; ++i) {
+      SubmissionFileEncryptorTest.twoPassEncrypt(files.get(i), twoPass.get(i), ciphers.cipher(i));
+    }
+    long twoPassNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    SubmissionFileEncryptor.encryptFiles(files, singlePass, ciphersFor(ciphers), 1);
+    long singlePassNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    SubmissionFileEncryptor.encryptFiles(files, parallel, ciphersFor(ciphers),
+        SubmissionFileEncryptor.MAX_PARALLEL_ENCRYPTIONS);
+    long parallelNanos = System.nanoTime() - start;
+
+    report("two-pass, 2KB buffer", totalBytes, twoPassNanos);
+    report("single-pass", totalBytes, singlePassNanos);
+    report("single-pass, " + SubmissionFileEncryptor.MAX_PARALLEL_ENCRYPTIONS + " threads",
+        totalBytes, parallelNanos);
+  }
+
+  private static List<Cipher> ciphersFor(SubmissionFileEncryptorTest ciphers) throws Exception {
+    List<Cipher> list = new ArrayList<Cipher>();
+    for (int i = 0; i < ATTACHMENTS; ++i) {
+      list.add(ciphers.cipher(i));
+    }
+    return list;
+  }
+
+  private static void report(String name, long bytes, long nanos) {
+    double mbPerSecond = (bytes / (1024.0 * 1024.0)) / (nanos / 1.0e9);
+    LOG.info(String.format(Locale.US, "%s: %.1f MB/s (%d ms)", name, mbPerSecond,
+        nanos / 1000000L));
+  }
+}
@@ -0,0 +1,217 @@
+package org.opendatakit.services.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class SubmissionFileEncryptorTest {
+
+  private static final int[] SIZES = { 0, 1, 15, 16, 17, 2048,
+      SubmissionFileEncryptor.BUFFER_SIZE - 1, SubmissionFileEncryptor.BUFFER_SIZE,
+      SubmissionFileEncryptor.BUFFER_SIZE + 1, 1024 * 1024 + 3 };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] key = new byte[EncryptionUtils.SYMMETRIC_KEY_LENGTH / 8];
+
+  public SubmissionFileEncryptorTest() {
+    new Random(17).nextBytes(key);
+  }
+
+  @Test
+  public void testFilesMatchTwoPassEncryption() throws Exception {
+    for (int size : SIZES) {
+      File plain = writeFile("plain-" + size + ".jpg", contents(size));
+      File encrypted = new File(folder.getRoot(), plain.getName() + ".enc");
+      File reference = new File(folder.getRoot(), plain.getName() + ".ref");
+
+      byte[] digest = SubmissionFileEncryptor.encryptFile(plain, encrypted, cipher(size));
+      String md5 = twoPassEncrypt(plain, reference, cipher(size));
+
+      assertEquals(md5, SubmissionFileEncryptor.toNakedMd5Hash(digest));
+      assertArrayEquals(readFully(reference), readFully(encrypted));
+    }
+  }
+
+  @Test
+  public void testBytesMatchTwoPassEncryption() throws Exception {
+    byte[] submission = contents(300 * 1024 + 5);
+    File plain = writeFile("submission.xml", submission);
+    File encrypted = new File(folder.getRoot(), "submission.xml.enc");
+    File reference = new File(folder.getRoot(), "submission.xml.ref");
+
+    byte[] digest = SubmissionFileEncryptor.encryptBytes(submission, encrypted, cipher(1));
+    String md5 = twoPassEncrypt(plain, reference, cipher(1));
+
+    assertEquals(md5, SubmissionFileEncryptor.toNakedMd5Hash(digest));
+    assertArrayEquals(readFully(reference), readFully(encrypted));
+  }
+
+  @Test
+  public void testParallelMatchesTwoPassEncryption() throws Exception {
+    List<File> files = new ArrayList<File>();
+    List<File> parallel = new ArrayList<File>();
+    List<Cipher> ciphers = new ArrayList<Cipher>();
+    for (int i = 0; i < 5; ++i) {
+      File f = writeFile("photo" + i + ".jpg", contents(256 * 1024 + i));
+      files.add(f);
+      parallel.add(new File(folder.getRoot(), f.getName() + ".par"));
+      ciphers.add(cipher(i));
+    }
+
+    SubmissionFileEncryptor.encryptFiles(files, parallel, ciphers,
+        SubmissionFileEncryptor.MAX_PARALLEL_ENCRYPTIONS);
+
+    for (int i = 0; i < files.size(); ++i) {
+      File reference = new File(folder.getRoot(), files.get(i).getName() + ".ref");
+      twoPassEncrypt(files.get(i), reference, cipher(i));
+      assertArrayEquals(readFully(reference), readFully(parallel.get(i)));
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSequential() throws Exception {
+    List<File> files = new ArrayList<File>();
+    List<File> sequential = new ArrayList<File>();
+    List<File> parallel = new ArrayList<File>();
+    List<Cipher> sequentialCiphers = new ArrayList<Cipher>();
+    List<Cipher> parallelCiphers = new ArrayList<Cipher>();
+    for (int i = 0; i < 7; ++i) {
+      File f = writeFile("media" + i + ".jpg", contents(100 * 1024 * (i + 1) + i));
+      files.add(f);
+      sequential.add(new File(folder.getRoot(), f.getName() + ".seq"));
+      parallel.add(new File(folder.getRoot(), f.getName() + ".par"));
+      // every file has its own IV
+      sequentialCiphers.add(cipher(i));
+      parallelCiphers.add(cipher(i));
+    }
+
+    List<byte[]> sequentialDigests =
+        SubmissionFileEncryptor.encryptFiles(files, sequential, sequentialCiphers, 1);
+    List<byte[]> parallelDigests =
+        SubmissionFileEncryptor.encryptFiles(files, parallel, parallelCiphers, 4);
+
+    for (int i = 0; i < files.size(); ++i) {
+      assertArrayEquals(sequentialDigests.get(i), parallelDigests.get(i));
+      assertArrayEquals(readFully(sequential.get(i)), readFully(parallel.get(i)));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingAttachment() throws Exception {
+    List<File> files = new ArrayList<File>();
+    List<File> encrypted = new ArrayList<File>();
+    List<Cipher> ciphers = new ArrayList<Cipher>();
+    for (int i = 0; i < 3; ++i) {
+      File f = (i == 1) ? new File(folder.getRoot(), "missing.jpg")
+          : writeFile("media" + i + ".jpg", contents(1000));
+      files.add(f);
+      encrypted.add(new File(folder.getRoot(), f.getName() + ".enc"));
+      ciphers.add(cipher(i));
+    }
+    SubmissionFileEncryptor.encryptFiles(files, encrypted, ciphers, 3);
+  }
+
+  Cipher cipher(int ivSeed) throws Exception {
+    byte[] iv = new byte[EncryptionUtils.IV_BYTE_LENGTH];
+    iv[ivSeed % iv.length] = (byte) ivSeed;
+    Cipher c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM);
+    c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+        new IvParameterSpec(iv));
+    return c;
+  }
+
+  /**
+   * The previous implementation: hash the file, then read it again through a
+   * 2KB buffer into a CipherOutputStream.
+   *
+   * @return the zero-padded md5 hash, as ODKFileUtils.getNakedMd5Hash computes it
+   */
+  static String twoPassEncrypt(File file, File encryptedFile, Cipher c) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[2048];
+      int len;
+      while ((len = is.read(buffer)) != -1) {
+        md.update(buffer, 0, len);
+      }
+    } finally {
+      is.close();
+    }
+    String md5 = new BigInteger(1, md.digest()).toString(16);
+    while (md5.length() < 32) {
+      md5 = "0" + md5;
+    }
+
+    OutputStream fout = new CipherOutputStream(new FileOutputStream(encryptedFile), c);
+    InputStream fin = new FileInputStream(file);
+    byte[] buffer = new byte[2048];
+    int len = fin.read(buffer);
+    while (len != -1) {
+      fout.write(buffer, 0, len);
+      len = fin.read(buffer);
+    }
+    fin.close();
+    fout.flush();
+    fout.close();
+    return md5;
+  }
+
+  static byte[] contents(int size) {
+    byte[] b = new byte[size];
+    new Random(size).nextBytes(b);
+    return b;
+  }
+
+  private File writeFile(String name, byte[] contents) throws IOException {
+    File f = new File(folder.getRoot(), name);
+    OutputStream os = new FileOutputStream(f);
+    try {
+      os.write(contents);
+    } finally {
+      os.close();
+    }
+    return f;
+  }
+
+  static byte[] readFully(File f) throws IOException {
+    InputStream is = new FileInputStream(f);
+    try {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = is.read(buffer)) != -1) {
+        bo.write(buffer, 0, len);
+      }
+      return bo.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
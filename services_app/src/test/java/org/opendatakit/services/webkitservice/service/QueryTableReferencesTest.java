@@ -0,0 +1,75 @@
+package org.opendatakit.services.webkitservice.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class QueryTableReferencesTest {
+
+  @Test
+  public void testTableNames() {
+    assertEquals(Arrays.asList("geotagger"),
+        QueryTableReferences.getTableNames("SELECT _id, name FROM geotagger WHERE _id = ?"));
+    assertEquals(Arrays.asList("a", "b", "c"),
+        QueryTableReferences.getTableNames("select * from a, b as x join c on a._id = c._id"));
+    assertEquals(Arrays.asList("a", "b", "c"),
+        QueryTableReferences.getTableNames("select * from a join b on a.x = b.x, c"));
+    assertEquals(Arrays.asList("outer_t", "inner_t"), QueryTableReferences.getTableNames(
+        "select * from outer_t where x in (select x from inner_t where y = 'from _x')"));
+    assertEquals(Arrays.asList("sub", "t"), QueryTableReferences
+        .getTableNames("select * from (select a, b from sub) s, t order by a, b"));
+    assertEquals(Arrays.asList("my table", "t2", "t3"), QueryTableReferences
+        .getTableNames("select * from \"my table\" left outer join main.`t2` using (x, y), [t3]"));
+    assertEquals(Arrays.asList("t", "other"),
+        QueryTableReferences.getTableNames("select * from t where x in other"));
+  }
+
+  @Test
+  public void testInternalTables() {
+    assertTrue(QueryTableReferences.isInternalTable("_table_definitions"));
+    assertTrue(QueryTableReferences.isInternalTable("L__geotagger"));
+    assertTrue(QueryTableReferences.isInternalTable("l__geotagger"));
+    assertTrue(QueryTableReferences.isInternalTable("sqlite_master"));
+    assertFalse(QueryTableReferences.isInternalTable("geotagger"));
+    assertFalse(QueryTableReferences.isInternalTable("L_geotagger"));
+
+    // system columns may be read from data tables
+    assertNull(QueryTableReferences.findInternalTable(
+        "select _id, _savepoint_type from geotagger where _sync_state = ?"));
+    assertEquals("_column_definitions", QueryTableReferences.findInternalTable(
+        "select * from geotagger, _column_definitions"));
+    assertEquals("L__geotagger", QueryTableReferences.findInternalTable(
+        "select * from geotagger where _id in (select _id from \"L__geotagger\")"));
+    assertEquals("_key_value_store_active", QueryTableReferences.findInternalTable(
+        "select * from geotagger g join main._key_value_store_active k on g._id = k.key"));
+    // names in literals and comments are not table references
+    assertNull(QueryTableReferences.findInternalTable(
+        "select * from geotagger /* from _x */ where name = 'join _y' -- from _z"));
+  }
+
+  @Test
+  public void testNormalize() {
+    assertNull(QueryTableReferences.normalize(null));
+    assertEquals("select * from geotagger",
+        QueryTableReferences.normalize("  select * from geotagger;\n"));
+    assertEquals("select * from geotagger",
+        QueryTableReferences.normalize("select * from geotagger ; "));
+    assertEquals("select * from geotagger",
+        QueryTableReferences.normalize("select * from geotagger"));
+    // only the terminating ';' is stripped; a second statement is left to be refused
+    assertEquals("select 1; select 2", QueryTableReferences.normalize("select 1; select 2;"));
+    // a LIMIT can be appended to the normalized text
+    assertEquals(Arrays.asList("geotagger"), QueryTableReferences.getTableNames(
+        QueryTableReferences.normalize("select * from geotagger;") + " LIMIT 1"));
+    assertEquals("_column_definitions", QueryTableReferences.findInternalTable(
+        QueryTableReferences.normalize("select * from _column_definitions;")));
+  }
+}